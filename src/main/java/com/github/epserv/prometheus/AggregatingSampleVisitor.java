@@ -0,0 +1,414 @@
+package com.github.epserv.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import com.github.epserv.prometheus.walkers.WalkingSampleVisitor;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Applies an {@link Aggregation} to the samples reported to it, so that only the aggregated series are ever built
+ * as {@link com.github.epserv.prometheus.types.Metric} objects: samples are folded into primitive accumulators as
+ * they are parsed, and the families of the aggregated series are built when the visit finishes. Families without
+ * an aggregation rule are dropped.
+ * <p>
+ * The series of a family are grouped by a 64-bit hash of the values of their group labels, which are only copied
+ * for the first series of a group and compared with the copy when the hash of a later series matches it. A label
+ * with an empty value is the same as no label, as in Prometheus.
+ * <p>
+ * The aggregated families are walked by the walker given to the visitor, if any, and are available from
+ * {@link #getAggregatedFamilies()} afterwards. Like any visitor, this one must only be used by one processor at a
+ * time; it can be reused for the next scrape.
+ */
+public class AggregatingSampleVisitor implements SampleVisitor {
+    private final @NotNull Aggregation aggregation;
+    private final @Nullable PrometheusMetricsWalker walker;
+
+    private final @NotNull List<Groups> families = new ArrayList<>();
+    private final @NotNull Map<String, Groups> familiesByName = new HashMap<>();
+    private @Nullable Groups current;
+    private @NotNull List<MetricFamily> aggregated = List.of();
+
+    /**
+     * @param aggregation the rules to aggregate by
+     * @param walker the walker to report the aggregated families to, or null to only collect them
+     */
+    public AggregatingSampleVisitor(@NotNull Aggregation aggregation, @Nullable PrometheusMetricsWalker walker) {
+        this.aggregation = aggregation;
+        this.walker = walker;
+    }
+
+    /**
+     * @return the aggregated families of the last finished visit
+     */
+    @Contract(pure = true)
+    public @NotNull List<MetricFamily> getAggregatedFamilies() {
+        return aggregated;
+    }
+
+    @Override
+    public void onStart() {
+        families.clear();
+        familiesByName.clear();
+        current = null;
+    }
+
+    @Override
+    public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, @Nullable CharSequence help) {
+        String familyName = name.toString();
+        Aggregation.Rule rule = aggregation.getRule(familyName);
+        if (rule == null) {
+            current = null;
+            return;
+        }
+        Groups existing = familiesByName.get(familyName);
+        if (existing != null && existing.type == type) {
+            current = existing;
+            return;
+        }
+        current = new Groups(rule, familyName, type, help == null ? null : help.toString());
+        familiesByName.put(familyName, current);
+        if (existing == null) {
+            families.add(current);
+        } else {
+            // the family was exposed again with another type - the new one replaces it
+            families.set(families.indexOf(existing), current);
+        }
+    }
+
+    @Override
+    public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+        Groups groups = current;
+        if (groups != null) {
+            groups.add(name, labels, value);
+        }
+    }
+
+    @Override
+    public void onFinish() {
+        List<MetricFamily> built = new ArrayList<>(families.size());
+        for (Groups groups : families) {
+            built.add(groups.build());
+        }
+        aggregated = Collections.unmodifiableList(built);
+        families.clear();
+        familiesByName.clear();
+
+        if (walker != null) {
+            WalkingSampleVisitor walking = new WalkingSampleVisitor(walker);
+            walking.onStart();
+            for (MetricFamily family : aggregated) {
+                walking.walkMetricFamily(family);
+            }
+            walking.onFinish();
+        }
+    }
+
+    /**
+     * The groups of one family and their accumulators, indexed by group number.
+     */
+    private static final class Groups {
+        private static final int INITIAL_GROUPS = 16;
+
+        private final @NotNull Aggregation.Rule rule;
+        private final @NotNull String name;
+        private final @NotNull MetricType type;
+        private final @Nullable String help;
+        private final @NotNull String @NotNull [] ruleLabels;
+        private final @Nullable String ignoredLabel; // le or quantile, which never groups
+
+        // hash of the group labels to group number + 1, open addressing
+        private long[] keys = new long[INITIAL_GROUPS * 2];
+        private int[] indexes = new int[INITIAL_GROUPS * 2];
+        private int size;
+
+        // per group
+        private final @NotNull List<Map<String, String>> groupLabels = new ArrayList<>();
+        private double[] values = new double[INITIAL_GROUPS];
+        private long[] series = new long[INITIAL_GROUPS];
+        private double[] sums = new double[INITIAL_GROUPS];
+        private double[] counts = new double[INITIAL_GROUPS];
+        private double[][] buckets = new double[INITIAL_GROUPS][];
+
+        // histogram layout, in the order the upper bounds were first seen
+        private double[] upperBounds = new double[16];
+        private int bucketCount;
+        private int nextBucket; // where the next bucket sample of a series is expected
+
+        Groups(@NotNull Aggregation.Rule rule, @NotNull String name, @NotNull MetricType type,
+                @Nullable String help) {
+            this.rule = rule;
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.ruleLabels = rule.labels().toArray(new String[0]);
+            this.ignoredLabel = switch (type) {
+                case HISTOGRAM -> "le";
+                case SUMMARY -> "quantile";
+                default -> null;
+            };
+        }
+
+        void add(@NotNull CharSequence sampleName, @NotNull SampleLabels labels, double value) {
+            switch (type) {
+                case COUNTER, GAUGE -> {
+                    int group = group(labels);
+                    if (series[group]++ == 0) {
+                        values[group] = value;
+                        return;
+                    }
+                    values[group] = switch (rule.operation()) {
+                        case SUM, AVG -> values[group] + value;
+                        case MIN -> Math.min(values[group], value);
+                        case MAX -> Math.max(values[group], value);
+                        case COUNT -> values[group];
+                    };
+                }
+                case SUMMARY, HISTOGRAM -> {
+                    if (hasSuffix(sampleName, "_sum")) {
+                        sums[group(labels)] += value;
+                    } else if (hasSuffix(sampleName, "_count")) {
+                        counts[group(labels)] += value;
+                    } else if (type == MetricType.HISTOGRAM && hasSuffix(sampleName, "_bucket")) {
+                        CharSequence le = labels.get("le");
+                        if (le == null) {
+                            return;
+                        }
+                        int bucket = bucket(Util.convertStringToDouble(le, 0, le.length()));
+                        int group = group(labels);
+                        double[] groupBuckets = buckets[group];
+                        if (groupBuckets == null || groupBuckets.length < bucketCount) {
+                            groupBuckets = groupBuckets == null ? new double[Math.max(bucketCount, 8)]
+                                    : Arrays.copyOf(groupBuckets, Math.max(bucketCount, groupBuckets.length * 2));
+                            buckets[group] = groupBuckets;
+                        }
+                        groupBuckets[bucket] += value;
+                    }
+                    // the quantiles of summaries cannot be aggregated
+                }
+            }
+        }
+
+        private boolean hasSuffix(@NotNull CharSequence sampleName, @NotNull String suffix) {
+            return Util.hasSuffix(sampleName, name.length(), suffix);
+        }
+
+        private int bucket(double upperBound) {
+            if (nextBucket < bucketCount && upperBounds[nextBucket] == upperBound) {
+                return nextBucket++;
+            }
+            for (int i = 0; i < bucketCount; i++) {
+                if (upperBounds[i] == upperBound) {
+                    nextBucket = i + 1;
+                    return i;
+                }
+            }
+            if (bucketCount == upperBounds.length) {
+                upperBounds = Arrays.copyOf(upperBounds, bucketCount * 2);
+            }
+            upperBounds[bucketCount] = upperBound;
+            nextBucket = bucketCount + 1;
+            return bucketCount++;
+        }
+
+        private int group(@NotNull SampleLabels labels) {
+            long hash = hash(labels);
+            if (hash == 0) {
+                hash = 1; // 0 marks free slots
+            }
+            int mask = keys.length - 1;
+            int slot = (int) (hash ^ hash >>> 32) & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == hash && isGroup(labels, groupLabels.get(indexes[slot] - 1))) {
+                    return indexes[slot] - 1;
+                }
+                slot = slot + 1 & mask;
+            }
+
+            int group = size++;
+            keys[slot] = hash;
+            indexes[slot] = group + 1;
+            groupLabels.add(copyGroupLabels(labels));
+            if (group == values.length) {
+                int capacity = group * 2;
+                values = Arrays.copyOf(values, capacity);
+                series = Arrays.copyOf(series, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                buckets = Arrays.copyOf(buckets, capacity);
+            }
+            if (size * 2 > keys.length) {
+                rehash();
+            }
+            return group;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldIndexes = indexes;
+            keys = new long[oldKeys.length * 2];
+            indexes = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = (int) (oldKeys[i] ^ oldKeys[i] >>> 32) & mask;
+                    while (keys[slot] != 0) {
+                        slot = slot + 1 & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    indexes[slot] = oldIndexes[i];
+                }
+            }
+        }
+
+        // independent of the order of the labels
+        private long hash(@NotNull SampleLabels labels) {
+            long hash = 0;
+            if (!rule.without()) {
+                for (String label : ruleLabels) {
+                    CharSequence value = labels.get(label);
+                    if (value != null && !value.isEmpty()) {
+                        hash += Util.hashLabel(label, value);
+                    }
+                }
+                return hash;
+            }
+            for (int i = 0; i < labels.size(); i++) {
+                CharSequence label = labels.name(i);
+                CharSequence value = labels.value(i);
+                if (!value.isEmpty() && isGroupLabel(label)) {
+                    hash += Util.hashLabel(label, value);
+                }
+            }
+            return hash;
+        }
+
+        // whether the group labels of a sample are the given ones, when their hashes are the same
+        private boolean isGroup(@NotNull SampleLabels labels, @NotNull Map<String, String> group) {
+            if (!rule.without()) {
+                for (String label : ruleLabels) {
+                    CharSequence value = labels.get(label);
+                    String groupValue = group.get(label);
+                    if (value == null || value.isEmpty() ? groupValue != null
+                            : groupValue == null || CharSequence.compare(groupValue, value) != 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            // the labels of the group were copied in the order of the labels of its first sample, which the other
+            // samples usually have too
+            Iterator<Map.Entry<String, String>> entries = group.entrySet().iterator();
+            int count = 0;
+            for (int i = 0; i < labels.size(); i++) {
+                CharSequence label = labels.name(i);
+                CharSequence value = labels.value(i);
+                if (value.isEmpty() || !isGroupLabel(label)) {
+                    continue;
+                }
+                count++;
+                Map.Entry<String, String> entry = entries.hasNext() ? entries.next() : null;
+                String groupValue = entry != null && CharSequence.compare(entry.getKey(), label) == 0
+                        ? entry.getValue() : group.get(label.toString());
+                if (groupValue == null || CharSequence.compare(groupValue, value) != 0) {
+                    return false;
+                }
+            }
+            return count == group.size();
+        }
+
+        // only used for "without" rules
+        private boolean isGroupLabel(@NotNull CharSequence label) {
+            if (ignoredLabel != null && CharSequence.compare(ignoredLabel, label) == 0) {
+                return false;
+            }
+            for (String excluded : ruleLabels) {
+                if (CharSequence.compare(excluded, label) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private @NotNull Map<String, String> copyGroupLabels(@NotNull SampleLabels labels) {
+            Map<String, String> copy = new LinkedHashMap<>();
+            if (!rule.without()) {
+                for (String label : ruleLabels) {
+                    CharSequence value = labels.get(label);
+                    if (value != null && !value.isEmpty()) {
+                        copy.put(label, value.toString());
+                    }
+                }
+                return copy;
+            }
+            for (int i = 0; i < labels.size(); i++) {
+                CharSequence value = labels.value(i);
+                if (!value.isEmpty() && isGroupLabel(labels.name(i))) {
+                    copy.put(labels.name(i).toString(), value.toString());
+                }
+            }
+            return copy;
+        }
+
+        @NotNull MetricFamily build() {
+            Aggregation.Operation operation = rule.operation();
+            MetricType builtType = type == MetricType.COUNTER
+                    && (operation == Aggregation.Operation.AVG || operation == Aggregation.Operation.COUNT)
+                    ? MetricType.GAUGE : type;
+            MetricFamily.Builder family = new MetricFamily.Builder().setName(name).setType(builtType).setHelp(help);
+
+            // histogram buckets in ascending order of their upper bounds
+            Integer[] order = new Integer[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(upperBounds[a], upperBounds[b]));
+
+            for (int group = 0; group < size; group++) {
+                Map<String, String> labels = groupLabels.get(group);
+                switch (builtType) {
+                    case COUNTER -> family.addMetric(new Counter.Builder().setName(name).addLabels(labels)
+                            .setValue(value(group)).build());
+                    case GAUGE -> family.addMetric(new Gauge.Builder().setName(name).addLabels(labels)
+                            .setValue(value(group)).build());
+                    case SUMMARY -> family.addMetric(new Summary.Builder().setName(name).addLabels(labels)
+                            .setSampleCount((long) counts[group]).setSampleSum(sums[group]).build());
+                    case HISTOGRAM -> {
+                        Histogram.Builder histogram = new Histogram.Builder().setName(name).addLabels(labels)
+                                .setSampleCount((long) counts[group]).setSampleSum(sums[group]);
+                        double[] groupBuckets = buckets[group];
+                        for (int i : order) {
+                            double count = groupBuckets == null || i >= groupBuckets.length ? 0 : groupBuckets[i];
+                            histogram.addBucket(upperBounds[i], (long) count);
+                        }
+                        family.addMetric(histogram.build());
+                    }
+                }
+            }
+            return family.build();
+        }
+
+        private double value(int group) {
+            return switch (rule.operation()) {
+                case SUM, MIN, MAX -> values[group];
+                case AVG -> values[group] / series[group];
+                case COUNT -> series[group];
+            };
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.epserv.prometheus;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Rules to aggregate the series of metric families by some of their labels, like the PromQL expressions
+ * {@code sum by (service, code) (http_requests_total)} or {@code max without (instance) (queue_length)}.
+ * <p>
+ * Counters and gauges are aggregated with the {@link Operation} of their rule. Summaries and histograms are always
+ * summed: their {@code _sum} and {@code _count} and, for histograms, the counts of their buckets. The quantiles of
+ * summaries cannot be aggregated and are dropped.
+ * <p>
+ * An aggregation is immutable and can be shared by any number of scrapes. It is applied by an
+ * {@link AggregatingSampleVisitor}, see {@link #apply(PrometheusMetricsWalker)}.
+ */
+public final class Aggregation {
+
+    public enum Operation {
+        SUM, AVG, MIN, MAX,
+        /**
+         * The number of series in the group.
+         */
+        COUNT
+    }
+
+    /**
+     * How a family is aggregated.
+     *
+     * @param family the name of the metric family
+     * @param operation how the values of counters and gauges are aggregated
+     * @param without false if the series are grouped by the given labels, true if they are grouped by all labels
+     *        except the given ones
+     * @param labels the labels the series are grouped by, or not grouped by
+     */
+    public record Rule(@NotNull String family, @NotNull Operation operation, boolean without,
+            @NotNull List<String> labels) {
+    }
+
+    public static class Builder {
+        private final Map<String, Rule> rules = new HashMap<>();
+
+        /**
+         * Aggregates the series of a family that have the same values of the given labels.
+         *
+         * @param family the name of the metric family, which replaces a previous rule for the family
+         * @param operation how the values of counters and gauges are aggregated
+         * @param labels the labels to group by; without any all series of the family are aggregated into one
+         */
+        public Builder by(@NotNull String family, @NotNull Operation operation, @NotNull String... labels) {
+            rules.put(family, new Rule(family, operation, false, List.of(labels)));
+            return this;
+        }
+
+        /**
+         * Aggregates the series of a family that have the same labels apart from the given ones.
+         *
+         * @param family the name of the metric family, which replaces a previous rule for the family
+         * @param operation how the values of counters and gauges are aggregated
+         * @param labels the labels to leave out
+         */
+        public Builder without(@NotNull String family, @NotNull Operation operation, @NotNull String... labels) {
+            rules.put(family, new Rule(family, operation, true, List.of(labels)));
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull Aggregation build() {
+            return new Aggregation(this);
+        }
+    }
+
+    private final @NotNull Map<String, Rule> rules;
+
+    private Aggregation(@NotNull Builder builder) {
+        this.rules = Map.copyOf(builder.rules);
+    }
+
+    /**
+     * @param family the name of a metric family
+     * @return the rule of the family, or null if the family is not aggregated
+     */
+    @Contract(pure = true)
+    public @Nullable Rule getRule(@NotNull String family) {
+        return rules.get(family);
+    }
+
+    /**
+     * @return the rules, by family name
+     */
+    @Contract(pure = true)
+    public @NotNull Map<String, Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @param walker the walker to report the aggregated families to, or null to only collect them
+     * @return a visitor that aggregates the samples reported to it
+     */
+    @Contract("_ -> new")
+    public @NotNull AggregatingSampleVisitor apply(@Nullable PrometheusMetricsWalker walker) {
+        return new AggregatingSampleVisitor(this, walker);
+    }
+
+    @Override
+    public String toString() {
+        return "Aggregation" + rules.values();
+    }
+}
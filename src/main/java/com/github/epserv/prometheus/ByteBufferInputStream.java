@@ -0,0 +1,48 @@
+package com.github.epserv.prometheus;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An input stream over the remaining bytes of a buffer, for parsers that can only read streams.
+ * Reading advances the position of the buffer.
+ */
+final class ByteBufferInputStream extends InputStream {
+    private final @NotNull ByteBuffer buffer;
+
+    ByteBufferInputStream(@NotNull ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte @NotNull [] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,355 @@
+package com.github.epserv.prometheus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decodes an HTTP response body according to its {@code Content-Encoding} as it is read, so the parsers see
+ * the plain data without the whole body ever being buffered.
+ * <p>
+ * The {@code gzip} and {@code deflate} encodings are supported. Unlike {@link java.util.zip.GZIPInputStream}, which
+ * creates a new {@link Inflater} (and its native memory) for every stream, inflaters are taken from a pool that is
+ * shared by all scrapes and returned to it when the stream is closed. Like {@code GZIPInputStream}, it decodes all
+ * members of a gzip body that consists of several concatenated members.
+ * <p>
+ * The bytes read from the underlying stream, the bytes decoded and the time spent inflating are added to the
+ * given statistics when the stream is closed.
+ */
+final class DecodingInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_INFLATERS = 32;
+    private static final byte[] EMPTY = new byte[0];
+
+    // all pooled inflaters expect raw deflate data - the gzip and zlib wrappers are handled here
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_INFLATERS = new AtomicInteger();
+
+    private enum Encoding {
+        IDENTITY, GZIP, DEFLATE
+    }
+
+    private final @NotNull InputStream in;
+    private final @NotNull Encoding encoding;
+    private final @NotNull TransferStats.Recorder stats;
+    private final byte @NotNull [] buffer;
+    private final byte @NotNull [] single = new byte[1];
+    private int position;
+    private int limit;
+    private @Nullable Inflater inflater;
+    private @Nullable Checksum checksum; // of the decoded data, null if the encoding has none
+    private boolean headerRead;
+    private boolean eof;
+    private boolean closed;
+
+    private long wireBytes;
+    private long decodedBytes;
+    private long memberBytes; // decoded bytes of the current gzip member
+    private long inflateNanos;
+
+    /**
+     * @param in the response body as received
+     * @param contentEncoding the value of the {@code Content-Encoding} header, or null if there is none
+     * @param stats where to record the transfer statistics
+     * @param arena provides the buffer the compressed data is read into
+     * @throws IOException if the content encoding is not supported
+     */
+    DecodingInputStream(@NotNull InputStream in, @Nullable String contentEncoding,
+            @NotNull TransferStats.Recorder stats, @NotNull ScrapeArena arena) throws IOException {
+        this.in = in;
+        this.encoding = parseEncoding(contentEncoding);
+        this.stats = stats;
+        this.buffer = encoding == Encoding.IDENTITY ? EMPTY : arena.transferBuffer(BUFFER_SIZE);
+        if (encoding != Encoding.IDENTITY) {
+            this.inflater = takeInflater();
+        }
+    }
+
+    private static @NotNull Encoding parseEncoding(@Nullable String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        return switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "", "identity" -> Encoding.IDENTITY;
+            case "gzip", "x-gzip" -> Encoding.GZIP;
+            case "deflate" -> Encoding.DEFLATE;
+            default -> throw new IOException("Unsupported content encoding: " + contentEncoding);
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte @NotNull [] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (eof) {
+            return -1;
+        }
+
+        if (encoding == Encoding.IDENTITY) {
+            int read = in.read(bytes, offset, length);
+            if (read < 0) {
+                eof = true;
+                return -1;
+            }
+            wireBytes += read;
+            decodedBytes += read;
+            return read;
+        }
+
+        Inflater inflater = this.inflater;
+        if (!headerRead) {
+            readHeader();
+            headerRead = true;
+            inflater.setInput(buffer, position, limit - position);
+        }
+        while (true) {
+            int inflated;
+            long start = System.nanoTime();
+            try {
+                inflated = inflater.inflate(bytes, offset, length);
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid " + encoding.name().toLowerCase(Locale.ROOT) + " data: "
+                        + e.getMessage());
+            } finally {
+                inflateNanos += System.nanoTime() - start;
+            }
+
+            if (inflated > 0) {
+                if (checksum != null) {
+                    checksum.update(bytes, offset, inflated);
+                }
+                decodedBytes += inflated;
+                memberBytes += inflated;
+                return inflated;
+            }
+            if (inflater.finished()) {
+                position = limit - inflater.getRemaining();
+                readTrailer();
+                if (encoding == Encoding.GZIP && nextMember()) {
+                    continue;
+                }
+                eof = true;
+                return -1;
+            }
+            if (inflater.needsDictionary()) {
+                throw new ZipException("Compressed data needs a preset dictionary");
+            }
+            if (inflater.needsInput()) {
+                fill();
+                inflater.setInput(buffer, position, limit - position);
+            }
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (encoding != Encoding.IDENTITY || closed || eof) {
+            return super.skip(n);
+        }
+        // skip without copying the data, e.g. the messages of families a scrape is not interested in
+        long skipped = in.skip(n);
+        wireBytes += skipped;
+        decodedBytes += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return encoding == Encoding.IDENTITY && !eof ? in.available() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        stats.record(encoding != Encoding.IDENTITY, wireBytes, decodedBytes, inflateNanos);
+        Inflater inflater = this.inflater;
+        if (inflater != null) {
+            this.inflater = null;
+            returnInflater(inflater);
+        }
+        in.close();
+    }
+
+    private void readHeader() throws IOException {
+        if (encoding == Encoding.GZIP) {
+            // RFC 1952
+            if (nextByte() != 0x1f || nextByte() != 0x8b) {
+                throw new ZipException("Not in gzip format");
+            }
+            if (nextByte() != 8) {
+                throw new ZipException("Unsupported gzip compression method");
+            }
+            int flags = nextByte();
+            for (int i = 0; i < 6; i++) {
+                nextByte(); // modification time, extra flags, operating system
+            }
+            if ((flags & 0x04) != 0) {
+                // FEXTRA
+                int extraLength = nextByte() | nextByte() << 8;
+                for (int i = 0; i < extraLength; i++) {
+                    nextByte();
+                }
+            }
+            if ((flags & 0x08) != 0) {
+                // FNAME
+                while (nextByte() != 0) {
+                    // skip
+                }
+            }
+            if ((flags & 0x10) != 0) {
+                // FCOMMENT
+                while (nextByte() != 0) {
+                    // skip
+                }
+            }
+            if ((flags & 0x02) != 0) {
+                // FHCRC
+                nextByte();
+                nextByte();
+            }
+            if (checksum == null) {
+                checksum = new CRC32();
+            } else {
+                checksum.reset();
+            }
+            memberBytes = 0;
+            return;
+        }
+
+        // RFC 1950 says "deflate" means zlib wrapped data, but some servers send raw deflate data - accept both
+        int cmf = peekByte(0);
+        int flg = peekByte(1);
+        if ((cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0) {
+            if ((flg & 0x20) != 0) {
+                throw new ZipException("Compressed data needs a preset dictionary");
+            }
+            position += 2;
+            checksum = new Adler32();
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        Checksum checksum = this.checksum;
+        if (checksum == null) {
+            return;
+        }
+        if (encoding == Encoding.GZIP) {
+            long crc = nextByte() | nextByte() << 8 | nextByte() << 16 | (long) nextByte() << 24;
+            long size = nextByte() | nextByte() << 8 | nextByte() << 16 | (long) nextByte() << 24;
+            if (crc != checksum.getValue()) {
+                throw new ZipException("Corrupt gzip data: CRC mismatch");
+            }
+            if (size != (memberBytes & 0xffffffffL)) {
+                throw new ZipException("Corrupt gzip data: size mismatch");
+            }
+        } else {
+            long adler = (long) nextByte() << 24 | nextByte() << 16 | nextByte() << 8 | nextByte();
+            if (adler != checksum.getValue()) {
+                throw new ZipException("Corrupt deflate data: Adler-32 mismatch");
+            }
+        }
+    }
+
+    // starts decoding the next member of a gzip body, if another one follows the trailer of the current one
+    private boolean nextMember() throws IOException {
+        if (position == limit) {
+            int read;
+            do {
+                read = in.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            wireBytes += read;
+            position = 0;
+            limit = read;
+        }
+        if ((buffer[position] & 0xff) != 0x1f) {
+            // like GZIPInputStream, ignore trailing data that is not another member
+            return false;
+        }
+        readHeader();
+        Inflater inflater = this.inflater;
+        inflater.reset();
+        inflater.setInput(buffer, position, limit - position);
+        return true;
+    }
+
+    private int nextByte() throws IOException {
+        if (position == limit) {
+            fill();
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    // peeks at a byte of the header without consuming it - the header is at the start of the stream,
+    // so it is in the buffer unless the stream is shorter than the header
+    private int peekByte(int index) throws IOException {
+        while (limit <= index) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of compressed data");
+            }
+            wireBytes += read;
+            limit += read;
+        }
+        return buffer[index] & 0xff;
+    }
+
+    private void fill() throws IOException {
+        int read;
+        do {
+            read = in.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            throw new EOFException("Unexpected end of compressed data");
+        }
+        wireBytes += read;
+        position = 0;
+        limit = read;
+    }
+
+    private static @NotNull Inflater takeInflater() {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        POOLED_INFLATERS.decrementAndGet();
+        return inflater;
+    }
+
+    private static void returnInflater(@NotNull Inflater inflater) {
+        if (POOLED_INFLATERS.incrementAndGet() > MAX_POOLED_INFLATERS) {
+            POOLED_INFLATERS.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        INFLATERS.add(inflater);
+    }
+}
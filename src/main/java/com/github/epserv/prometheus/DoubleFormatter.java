@@ -0,0 +1,270 @@
+package com.github.epserv.prometheus;
+
+import java.math.BigInteger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Formats doubles with the shortest decimal representation that parses back to the same double.
+ * <p>
+ * The shortest decimal is found with the Schubfach algorithm by Raffaello Giulietti, see
+ * "The Schubfach way to render doubles". It is written in the same layout Go's
+ * {@code strconv.FormatFloat(v, 'g', -1, 64)} uses - which is what Prometheus exporters emit -
+ * so {@code 0.05}, {@code 144320}, {@code 1e-09} and {@code 4.14422136e+08}.
+ * Non-finite values are written as {@code NaN}, {@code +Inf} and {@code -Inf} as required by the Prometheus spec.
+ */
+final class DoubleFormatter {
+
+    /**
+     * The maximum number of characters a formatted double takes, i.e. {@code -2.2250738585072014e-308}.
+     */
+    static final int MAX_LENGTH = 24;
+
+    private static final int P = 53; // precision, in bits
+    private static final int Q_MIN = -1074; // exponent of the smallest subnormal
+    private static final long C_MIN = 1L << (P - 1);
+    private static final int C_TINY = 3;
+    private static final int BQ_MASK = 0x7FF;
+    private static final long T_MASK = (1L << (P - 1)) - 1;
+    private static final long MASK_63 = (1L << 63) - 1;
+
+    // g = g1 2^63 + g0 is a 126-bit approximation (rounded up) of 10^-k, for k from K_MIN to K_MAX
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    private static final long[] POWERS_OF_TEN = new long[18];
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_LENGTH]);
+
+    static {
+        BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int e = -k;
+            int shift = 125 - flog2pow10(e);
+            BigInteger g;
+            if (e >= 0) {
+                BigInteger power = BigInteger.TEN.pow(e);
+                g = shift >= 0 ? power.shiftLeft(shift) : power.shiftRight(-shift);
+            } else {
+                g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(-e));
+            }
+            g = g.add(BigInteger.ONE);
+            int index = 2 * (k - K_MIN);
+            G[index] = g.shiftRight(63).longValue();
+            G[index + 1] = g.and(mask63).longValue();
+        }
+
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private DoubleFormatter() {
+    }
+
+    /**
+     * Appends the formatted value to the builder.
+     */
+    static void format(double value, @NotNull StringBuilder builder) {
+        byte[] scratch = SCRATCH.get();
+        int length = format(value, scratch, 0);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) scratch[i]);
+        }
+    }
+
+    /**
+     * Writes the formatted value as ASCII into the buffer, which must have at least {@link #MAX_LENGTH} bytes left.
+     *
+     * @return the position after the last written byte
+     */
+    static int format(double value, byte @NotNull [] buffer, int position) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & T_MASK;
+        int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+
+        if (bq == BQ_MASK) {
+            if (t != 0) {
+                return putAscii(buffer, position, "NaN");
+            }
+            return putAscii(buffer, position, bits > 0 ? "+Inf" : "-Inf");
+        }
+
+        if (bits < 0) {
+            buffer[position++] = '-';
+        }
+
+        if (bq != 0) {
+            // normal value - here mq = -q
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            // fast path for integers
+            if (0 < mq & mq < P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    return putDecimal(buffer, position, f, 0);
+                }
+            }
+            return toDecimal(buffer, position, -mq, c, 0);
+        }
+        if (t != 0) {
+            // subnormal value
+            if (t < C_TINY) {
+                // Schubfach needs an extra digit of precision for these two values. Unlike Java, which then
+                // keeps that digit (4.9E-324), we want the shortest representation.
+                return t == 1 ? putDecimal(buffer, position, 5, -324) : putDecimal(buffer, position, 1, -323);
+            }
+            return toDecimal(buffer, position, Q_MIN, t, 0);
+        }
+        buffer[position++] = '0';
+        return position;
+    }
+
+    private static int toDecimal(byte[] buffer, int position, int q, long c, int dk) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN | q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        int index = 2 * (k - K_MIN);
+        long g1 = G[index];
+        long g0 = G[index + 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // try one digit less: sp10 = 10 floor(s / 10)
+            long sp10 = 10 * Math.multiplyHigh(s, 115_292_150_460_684_698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return putDecimal(buffer, position, upin ? sp10 : tp10, k);
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            return putDecimal(buffer, position, uin ? s : t, k + dk);
+        }
+        long cmp = vb - (s + t << 1);
+        return putDecimal(buffer, position, cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * Rounds the product of g and cp to odd.
+     */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = Math.multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = Math.multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    /**
+     * Writes f 10^e in the layout of Go's %g verb with the shortest precision.
+     */
+    private static int putDecimal(byte[] buffer, int position, long f, int e) {
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && f >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        int exponent = e + digits - 1; // the decimal exponent of the first digit
+
+        if (exponent < -4 || exponent >= 6) {
+            // scientific notation: d.ddde+XX
+            position = putDigits(buffer, position, f, digits, 1);
+            buffer[position++] = 'e';
+            buffer[position++] = (byte) (exponent < 0 ? '-' : '+');
+            int absExponent = Math.abs(exponent);
+            if (absExponent >= 100) {
+                buffer[position++] = (byte) ('0' + absExponent / 100);
+            }
+            buffer[position++] = (byte) ('0' + absExponent / 10 % 10);
+            buffer[position++] = (byte) ('0' + absExponent % 10);
+            return position;
+        }
+
+        if (exponent < 0) {
+            // 0.000ddd
+            buffer[position++] = '0';
+            buffer[position++] = '.';
+            for (int i = -1; i > exponent; i--) {
+                buffer[position++] = '0';
+            }
+            return putDigits(buffer, position, f, digits, digits);
+        }
+
+        if (digits <= exponent) {
+            // an integer with trailing zeros
+            position = putDigits(buffer, position, f, digits, digits);
+            for (int i = digits; i <= exponent; i++) {
+                buffer[position++] = '0';
+            }
+            return position;
+        }
+
+        return putDigits(buffer, position, f, digits, exponent + 1);
+    }
+
+    /**
+     * Writes the digits of f, putting a decimal point after the given number of integer digits
+     * (unless all digits are integer digits).
+     */
+    private static int putDigits(byte[] buffer, int position, long f, int digits, int integerDigits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            if (i == digits - 1 - integerDigits) {
+                buffer[position++] = '.';
+            }
+            long power = POWERS_OF_TEN[i];
+            int digit = (int) (f / power);
+            f -= digit * power;
+            buffer[position++] = (byte) ('0' + digit);
+        }
+        return position;
+    }
+
+    private static int putAscii(byte[] buffer, int position, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+        return position;
+    }
+
+    // floor(q log10(2))
+    private static int flog10pow2(int q) {
+        return (int) (q * 661_971_961_083L >> 41);
+    }
+
+    // floor(log10(3/4 2^q))
+    private static int flog10threeQuartersPow2(int q) {
+        return (int) (q * 661_971_961_083L + (-274_743_187_321L) >> 41);
+    }
+
+    // floor(e log2(10))
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+}
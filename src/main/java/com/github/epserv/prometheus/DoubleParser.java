@@ -0,0 +1,304 @@
+package com.github.epserv.prometheus;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parses decimal floating point numbers directly from byte or char ranges, without creating a string first.
+ * Char ranges are copied into a small per-thread buffer and parsed as bytes, so that the same parsing loop serves
+ * both without checking the type of its input for every character.
+ * <p>
+ * Decimal numbers are split into a 64-bit mantissa and a power of ten. Small numbers are converted exactly with
+ * a single floating point multiplication or division (Clinger's fast path). Everything else goes through the
+ * Eisel-Lemire algorithm, which is exact except in rare ambiguous cases that are handed to
+ * {@link Double#parseDouble(String)} - so the result is always correctly rounded.
+ * Input that is not a plain decimal number (hexadecimal notation, type suffixes, ...) is handed over as well.
+ * <p>
+ * The special values NaN, Inf and Infinity are accepted case-insensitively, with an optional sign.
+ */
+final class DoubleParser {
+
+    private static final double[] SMALL_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int MAX_MANTISSA_DIGITS = 19; // still fits in an unsigned 64-bit integer
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    // 128-bit approximations (rounded down) of the powers of ten from 1e-348 to 1e347, normalized so that the
+    // most significant bit is set. Index 2*i holds the high 64 bits, 2*i+1 the low 64 bits of 10^(i-348).
+    private static final int MIN_EXP10 = -348;
+    private static final int MAX_EXP10 = 347;
+    private static final long[] POWERS_OF_TEN = new long[2 * (MAX_EXP10 - MIN_EXP10 + 1)];
+
+    static {
+        BigInteger mask64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int exp10 = MIN_EXP10; exp10 <= MAX_EXP10; exp10++) {
+            BigInteger power = BigInteger.TEN.pow(Math.abs(exp10));
+            int bits = power.bitLength();
+            BigInteger normalized;
+            if (exp10 >= 0) {
+                normalized = bits > 128 ? power.shiftRight(bits - 128) : power.shiftLeft(128 - bits);
+            } else {
+                normalized = BigInteger.ONE.shiftLeft(127 + bits).divide(power);
+            }
+            int index = 2 * (exp10 - MIN_EXP10);
+            POWERS_OF_TEN[index] = normalized.shiftRight(64).longValue();
+            POWERS_OF_TEN[index + 1] = normalized.and(mask64).longValue();
+        }
+    }
+
+    // characters are copied into this before being parsed as bytes, unless the number is longer
+    private static final int SCRATCH_SIZE = 64;
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(SCRATCH_SIZE));
+
+    private DoubleParser() {
+    }
+
+    // the characters are copied as ASCII bytes, so that there is only one parsing loop and it reads a single type
+    static double parse(@NotNull CharSequence text, int from, int to) {
+        int length = to - from;
+        ByteBuffer scratch = length <= SCRATCH_SIZE ? SCRATCH.get() : ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(from + i);
+            if (c > 0x7f) {
+                return fallback(text.subSequence(from, to).toString());
+            }
+            scratch.put(i, (byte) c);
+        }
+        return parse(scratch, 0, length);
+    }
+
+    // parses the (ASCII) bytes of a buffer
+    static double parse(@NotNull ByteBuffer buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        if (i < to && isLetter(buffer.get(i))) {
+            // compared in place, so that e.g. the NaN quantiles of idle summaries do not create garbage
+            if (equalsIgnoreCase(buffer, i, to, "NaN")) {
+                return Double.NaN;
+            } else if (equalsIgnoreCase(buffer, i, to, "Inf") || equalsIgnoreCase(buffer, i, to, "Infinity")) {
+                return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            }
+            throw new NumberFormatException("For input string: \"" + toString(buffer, from, to) + "\"");
+        }
+
+        long mantissa = 0;
+        int digits = 0; // significant digits in the mantissa
+        int exp10 = 0;
+        boolean truncated = false;
+        boolean anyDigits = false;
+
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            anyDigits = true;
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exp10++;
+                truncated |= digit != 0;
+            }
+        }
+        if (i < to && buffer.get(i) == '.') {
+            for (i++; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                anyDigits = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    exp10--;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                } else {
+                    truncated |= digit != 0;
+                }
+            }
+        }
+        if (anyDigits && i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+            int exponentStart = i;
+            int exponent = 0;
+            for (; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                if (exponent < 100_000) {
+                    exponent = exponent * 10 + digit;
+                }
+            }
+            if (exponentStart == i) {
+                return fallback(toString(buffer, from, to));
+            }
+            exp10 += negativeExponent ? -exponent : exponent;
+        }
+
+        if (!anyDigits || i != to) {
+            return fallback(toString(buffer, from, to));
+        }
+
+        double value = toDouble(negative, mantissa, exp10, truncated);
+        return Double.isNaN(value) ? fallback(toString(buffer, from, to)) : value;
+    }
+
+    /**
+     * Converts mantissa * 10^exp10 to the closest double.
+     *
+     * @param mantissa an unsigned mantissa
+     * @param truncated true if non-zero digits did not fit into the mantissa
+     * @return the converted value, or NaN if it cannot be determined exactly here
+     */
+    private static double toDouble(boolean negative, long mantissa, int exp10, boolean truncated) {
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+
+        // Clinger's fast path: both the mantissa and the power of ten are exact doubles
+        if (!truncated && mantissa > 0 && mantissa <= MAX_EXACT_MANTISSA
+                && exp10 >= -22 && exp10 <= 22) {
+            double value = (double) mantissa;
+            value = exp10 < 0 ? value / SMALL_POWERS_OF_TEN[-exp10] : value * SMALL_POWERS_OF_TEN[exp10];
+            return negative ? -value : value;
+        }
+
+        if (exp10 < MIN_EXP10) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (exp10 > MAX_EXP10) {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+
+        double value = eiselLemire(mantissa, exp10, negative);
+        if (truncated && !Double.isNaN(value)) {
+            // the real mantissa is somewhere between mantissa and mantissa + 1 - both must round the same way
+            double upper = eiselLemire(mantissa + 1, exp10, negative);
+            if (Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(upper)) {
+                return Double.NaN;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The Eisel-Lemire algorithm, see "Number Parsing at a Gigabyte per Second" by Daniel Lemire.
+     *
+     * @return the correctly rounded value or NaN if the result is ambiguous, subnormal or out of range
+     */
+    private static double eiselLemire(long mantissa, int exp10, boolean negative) {
+        if (mantissa == 0) {
+            return Double.NaN; // the incremented mantissa wrapped around
+        }
+
+        // normalization
+        int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+        long normalized = mantissa << leadingZeros;
+        long retExp2 = ((217706L * exp10) >> 16) + 64 + 1023 - leadingZeros;
+
+        // multiplication
+        int index = 2 * (exp10 - MIN_EXP10);
+        long powerHi = POWERS_OF_TEN[index];
+        long powerLo = POWERS_OF_TEN[index + 1];
+        long xHi = unsignedMultiplyHigh(normalized, powerHi);
+        long xLo = normalized * powerHi;
+
+        // wider approximation
+        if ((xHi & 0x1FF) == 0x1FF && Long.compareUnsigned(xLo + normalized, normalized) < 0) {
+            long yHi = unsignedMultiplyHigh(normalized, powerLo);
+            long yLo = normalized * powerLo;
+            long mergedHi = xHi;
+            long mergedLo = xLo + yHi;
+            if (Long.compareUnsigned(mergedLo, xLo) < 0) {
+                mergedHi++;
+            }
+            if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0
+                    && Long.compareUnsigned(yLo + normalized, normalized) < 0) {
+                return Double.NaN;
+            }
+            xHi = mergedHi;
+            xLo = mergedLo;
+        }
+
+        // shifting to 54 bits
+        long msb = xHi >>> 63;
+        long retMantissa = xHi >>> (msb + 9);
+        retExp2 -= 1 ^ msb;
+
+        // half-way ambiguity
+        if (xLo == 0 && (xHi & 0x1FF) == 0 && (retMantissa & 3) == 1) {
+            return Double.NaN;
+        }
+
+        // from 54 to 53 bits
+        retMantissa += retMantissa & 1;
+        retMantissa >>>= 1;
+        if ((retMantissa >>> 53) > 0) {
+            retMantissa >>>= 1;
+            retExp2 += 1;
+        }
+
+        // zero or less means subnormal, 0x7FF or above means infinity - leave those to the slow path
+        if (Long.compareUnsigned(retExp2 - 1, 0x7FF - 1) >= 0) {
+            return Double.NaN;
+        }
+
+        long bits = retExp2 << 52 | retMantissa & 0x000FFFFFFFFFFFFFL;
+        if (negative) {
+            bits |= 0x8000000000000000L;
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    private static @NotNull String toString(@NotNull ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean equalsIgnoreCase(@NotNull ByteBuffer buffer, int from, int to, @NotNull String word) {
+        if (to - from != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            // ASCII letters only differ in the 0x20 bit between upper and lower case
+            if ((buffer.get(from + i) | 0x20) != (word.charAt(i) | 0x20)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static double fallback(@NotNull String text) {
+        return Double.parseDouble(text);
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.epserv.prometheus;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Selects the metric families a scrape is interested in by their names.
+ * <p>
+ * A family is accepted if it matches any of the included names, prefixes or patterns (or if nothing is included
+ * at all) and none of the excluded ones. The filter is handed down to the parsers, which skip the samples of
+ * families it does not accept without tokenizing them: the text parser only looks at the name of each sample
+ * line, the binary parser skips whole messages by their length prefix.
+ */
+public class FamilyFilter {
+
+    /**
+     * Accepts all families.
+     */
+    public static final FamilyFilter ALL = new Builder().build();
+
+    public static class Builder {
+        private final Set<String> includedNames = new HashSet<>();
+        private final List<String> includedPrefixes = new ArrayList<>();
+        private final List<Pattern> includedPatterns = new ArrayList<>();
+        private final Set<String> excludedNames = new HashSet<>();
+        private final List<String> excludedPrefixes = new ArrayList<>();
+        private final List<Pattern> excludedPatterns = new ArrayList<>();
+
+        public Builder include(@NotNull String name) {
+            includedNames.add(name);
+            return this;
+        }
+
+        public Builder includePrefix(@NotNull String prefix) {
+            includedPrefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * @param pattern the pattern the whole family name must match
+         */
+        public Builder includePattern(@NotNull Pattern pattern) {
+            includedPatterns.add(pattern);
+            return this;
+        }
+
+        public Builder exclude(@NotNull String name) {
+            excludedNames.add(name);
+            return this;
+        }
+
+        public Builder excludePrefix(@NotNull String prefix) {
+            excludedPrefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * @param pattern the pattern the whole family name must match
+         */
+        public Builder excludePattern(@NotNull Pattern pattern) {
+            excludedPatterns.add(pattern);
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull FamilyFilter build() {
+            return new FamilyFilter(this);
+        }
+    }
+
+    private final @NotNull Set<String> includedNames;
+    private final @NotNull String @NotNull [] includedPrefixes;
+    private final @NotNull Pattern @NotNull [] includedPatterns;
+    private final @NotNull Set<String> excludedNames;
+    private final @NotNull String @NotNull [] excludedPrefixes;
+    private final @NotNull Pattern @NotNull [] excludedPatterns;
+    private final boolean includesAll;
+    private final boolean acceptsAll;
+
+    protected FamilyFilter(@NotNull Builder builder) {
+        this.includedNames = Set.copyOf(builder.includedNames);
+        this.includedPrefixes = builder.includedPrefixes.toArray(new String[0]);
+        this.includedPatterns = builder.includedPatterns.toArray(new Pattern[0]);
+        this.excludedNames = Set.copyOf(builder.excludedNames);
+        this.excludedPrefixes = builder.excludedPrefixes.toArray(new String[0]);
+        this.excludedPatterns = builder.excludedPatterns.toArray(new Pattern[0]);
+        this.includesAll = includedNames.isEmpty() && includedPrefixes.length == 0 && includedPatterns.length == 0;
+        this.acceptsAll = includesAll && excludedNames.isEmpty() && excludedPrefixes.length == 0
+                && excludedPatterns.length == 0;
+    }
+
+    /**
+     * @return true if this filter accepts every family, so parsers do not need to consult it
+     */
+    @Contract(pure = true)
+    public boolean acceptsAll() {
+        return acceptsAll;
+    }
+
+    /**
+     * @param familyName the name of a metric family
+     * @return true if the family is to be scraped
+     */
+    public boolean accept(@NotNull String familyName) {
+        if (acceptsAll) {
+            return true;
+        }
+        if (!includesAll && !matches(familyName, includedNames, includedPrefixes, includedPatterns)) {
+            return false;
+        }
+        return !matches(familyName, excludedNames, excludedPrefixes, excludedPatterns);
+    }
+
+    private static boolean matches(@NotNull String familyName, @NotNull Set<String> names,
+            @NotNull String @NotNull [] prefixes, @NotNull Pattern @NotNull [] patterns) {
+        if (names.contains(familyName)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (familyName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(familyName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "FamilyFilter[include=" + includedNames + " " + List.of(includedPrefixes) + "* "
+                + List.of(includedPatterns) + ", exclude=" + excludedNames + " " + List.of(excludedPrefixes) + "* "
+                + List.of(excludedPatterns) + "]";
+    }
+}
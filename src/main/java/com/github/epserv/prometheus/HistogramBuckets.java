@@ -0,0 +1,329 @@
+package com.github.epserv.prometheus;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.epserv.prometheus.types.Histogram;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The buckets of a histogram as primitive arrays, for computing with histograms: estimating quantiles like
+ * Prometheus' {@code histogram_quantile()}, taking the difference between two scrapes of the same histogram and
+ * merging the histograms of several targets.
+ * <p>
+ * The upper bounds of the buckets are the <i>layout</i> of a histogram. Every histogram created by
+ * {@code of(...)} gets its own upper bounds array, while the results of {@link #delta(HistogramBuckets)},
+ * {@link #merge(List)} and {@link #scale(double)} share the array of the buckets they were computed from, so
+ * {@link #hasSameLayout(HistogramBuckets)} only compares the bounds one by one for histograms created separately.
+ * {@link #quantile(double, double[], double[], int, double[])} estimates the quantiles of any number of histograms
+ * with the same layout at once, with their counts in a single array, so a scrape of many histograms can be
+ * processed without an object per histogram.
+ * <p>
+ * Instances are immutable. Bucket counts are doubles, like in Prometheus, so that they can hold increases
+ * and rates as well.
+ */
+public final class HistogramBuckets {
+    private final double @NotNull [] upperBounds;
+    private final double @NotNull [] counts;
+    private final double sum;
+
+    /**
+     * @param upperBounds the upper bounds of the buckets in ascending order, which are not copied
+     * @param counts the cumulative counts of the buckets, which are not copied
+     * @param sum the sum of all observations
+     */
+    private HistogramBuckets(double @NotNull [] upperBounds, double @NotNull [] counts, double sum) {
+        this.upperBounds = upperBounds;
+        this.counts = counts;
+        this.sum = sum;
+    }
+
+    /**
+     * @param upperBounds the upper bounds of the buckets in ascending order
+     * @param counts the cumulative counts of the buckets
+     * @param sum the sum of all observations
+     * @return the buckets
+     * @throws IllegalArgumentException if the arrays differ in length or the upper bounds are not ascending
+     */
+    @Contract("_, _, _ -> new")
+    public static @NotNull HistogramBuckets of(double @NotNull [] upperBounds, double @NotNull [] counts,
+            double sum) {
+        if (upperBounds.length != counts.length) {
+            throw new IllegalArgumentException("Got " + upperBounds.length + " upper bounds but " + counts.length
+                    + " counts");
+        }
+        for (int i = 1; i < upperBounds.length; i++) {
+            if (!(upperBounds[i - 1] < upperBounds[i])) {
+                throw new IllegalArgumentException("Upper bounds are not ascending: " + Arrays.toString(upperBounds));
+            }
+        }
+        return new HistogramBuckets(upperBounds.clone(), counts.clone(), sum);
+    }
+
+    /**
+     * Buckets with the same upper bound, such as {@code le="1"} and {@code le="1.0"}, are merged by adding their
+     * counts, like {@code histogram_quantile()} does.
+     *
+     * @param histogram a scraped histogram
+     * @return the buckets of the histogram, sorted by their upper bounds
+     */
+    @Contract("_ -> new")
+    public static @NotNull HistogramBuckets of(@NotNull Histogram histogram) {
+        List<Histogram.Bucket> buckets = histogram.getBuckets();
+        double[] upperBounds = new double[buckets.size()];
+        double[] counts = new double[buckets.size()];
+        boolean sorted = true;
+        for (int i = 0; i < upperBounds.length; i++) {
+            Histogram.Bucket bucket = buckets.get(i);
+            upperBounds[i] = bucket.upperBound();
+            counts[i] = bucket.cumulativeCount();
+            sorted &= i == 0 || upperBounds[i - 1] < upperBounds[i];
+        }
+        if (!sorted) {
+            Histogram.Bucket[] ordered = buckets.toArray(new Histogram.Bucket[0]);
+            Arrays.sort(ordered, (a, b) -> Double.compare(a.upperBound(), b.upperBound()));
+            int size = 0;
+            for (Histogram.Bucket bucket : ordered) {
+                if (size > 0 && upperBounds[size - 1] == bucket.upperBound()) {
+                    counts[size - 1] += bucket.cumulativeCount();
+                } else {
+                    upperBounds[size] = bucket.upperBound();
+                    counts[size++] = bucket.cumulativeCount();
+                }
+            }
+            return of(Arrays.copyOf(upperBounds, size), Arrays.copyOf(counts, size), histogram.getSampleSum());
+        }
+        return new HistogramBuckets(upperBounds, counts, histogram.getSampleSum());
+    }
+
+    /**
+     * @return the upper bounds of the buckets, in ascending order
+     */
+    @Contract(pure = true)
+    public double @NotNull [] getUpperBounds() {
+        return upperBounds.clone();
+    }
+
+    /**
+     * @return the cumulative counts of the buckets
+     */
+    @Contract(pure = true)
+    public double @NotNull [] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    @Contract(pure = true)
+    public int size() {
+        return counts.length;
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the upper bound of the bucket
+     */
+    @Contract(pure = true)
+    public double upperBound(int index) {
+        return upperBounds[index];
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the cumulative count of the bucket
+     */
+    @Contract(pure = true)
+    public double count(int index) {
+        return counts[index];
+    }
+
+    /**
+     * @return the number of observations, i.e. the count of the last bucket, or 0 if there are no buckets
+     */
+    @Contract(pure = true)
+    public double getCount() {
+        return counts.length == 0 ? 0 : counts[counts.length - 1];
+    }
+
+    @Contract(pure = true)
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @param other other buckets
+     * @return true if both have the same upper bounds
+     */
+    @Contract(pure = true)
+    public boolean hasSameLayout(@NotNull HistogramBuckets other) {
+        return upperBounds == other.upperBounds || Arrays.equals(upperBounds, other.upperBounds);
+    }
+
+    /**
+     * Estimates a quantile of the observations like Prometheus' {@code histogram_quantile()}: the bucket the
+     * quantile falls into is found, and the observations are assumed to be spread evenly within it.
+     *
+     * @param q the quantile, between 0 and 1
+     * @return the estimated quantile, -Inf if q &lt; 0 and +Inf if q &gt; 1, otherwise NaN if it cannot be estimated
+     *         (q is NaN, there are no observations, fewer than two buckets, or the last bucket is not the
+     *         {@code +Inf} bucket)
+     */
+    public double quantile(double q) {
+        double[] result = new double[1];
+        quantile(q, upperBounds, counts, 1, result);
+        return result[0];
+    }
+
+    /**
+     * Estimates a quantile of several histograms with the same layout at once, see {@link #quantile(double)}.
+     * Counts that are not monotonic, e.g. because the buckets were scraped while being updated, are treated as
+     * if they were.
+     *
+     * @param q the quantile, between 0 and 1
+     * @param upperBounds the upper bounds of the buckets of all histograms, in ascending order
+     * @param counts the cumulative bucket counts of the histograms, one after another
+     * @param histograms the number of histograms
+     * @param result receives the estimated quantile of each histogram
+     */
+    public static void quantile(double q, double @NotNull [] upperBounds, double @NotNull [] counts, int histograms,
+            double @NotNull [] result) {
+        int buckets = upperBounds.length;
+        if (counts.length < (long) buckets * histograms || result.length < histograms) {
+            throw new IllegalArgumentException("Need " + buckets + " counts per histogram and a result for each of "
+                    + histograms + " histograms");
+        }
+        // checked in the same order as by Prometheus, so q out of range wins over buckets that are unusable
+        if (q < 0 || q > 1) {
+            Arrays.fill(result, 0, histograms, q < 0 ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+            return;
+        }
+        if (Double.isNaN(q) || buckets < 2 || upperBounds[buckets - 1] != Double.POSITIVE_INFINITY) {
+            Arrays.fill(result, 0, histograms, Double.NaN);
+            return;
+        }
+
+        for (int h = 0; h < histograms; h++) {
+            int offset = h * buckets;
+            double total = counts[offset + buckets - 1];
+            // counts are expected to be monotonic, the maximum so far is used where they are not
+            double max = 0;
+            for (int b = offset; b < offset + buckets - 1; b++) {
+                max = Math.max(max, counts[b]);
+            }
+            total = Math.max(total, max);
+            if (total == 0 || Double.isNaN(total)) {
+                result[h] = Double.NaN;
+                continue;
+            }
+
+            double rank = q * total;
+            double below = 0; // the count of the previous bucket
+            int b = 0;
+            double count = counts[offset];
+            while (b < buckets - 1 && count < rank) {
+                below = Math.max(below, count);
+                b++;
+                count = Math.max(below, counts[offset + b]);
+            }
+
+            if (b == buckets - 1) {
+                // the +Inf bucket - the upper bound of the last finite bucket is the best estimate
+                result[h] = upperBounds[buckets - 2];
+            } else if (b == 0 && upperBounds[0] <= 0) {
+                result[h] = upperBounds[0];
+            } else {
+                double start = b == 0 ? 0 : upperBounds[b - 1];
+                double end = upperBounds[b];
+                double inBucket = count - below;
+                result[h] = inBucket == 0 ? start : start + (end - start) * ((rank - below) / inBucket);
+            }
+        }
+    }
+
+    /**
+     * Returns the observations made between a previous scrape of the same histogram and this one, like
+     * Prometheus' {@code increase()} over the buckets. If any bucket decreased, the histogram was reset in between,
+     * and the observations since the reset - the current counts - are returned.
+     *
+     * @param previous the buckets of the previous scrape
+     * @return the increase of every bucket and of the sum
+     * @throws IllegalArgumentException if the histograms have different layouts
+     */
+    @Contract("_ -> new")
+    public @NotNull HistogramBuckets delta(@NotNull HistogramBuckets previous) {
+        checkLayout(previous);
+        double[] delta = new double[counts.length];
+        boolean reset = false;
+        for (int i = 0; i < counts.length; i++) {
+            delta[i] = counts[i] - previous.counts[i];
+            reset |= delta[i] < 0;
+        }
+        if (reset) {
+            return new HistogramBuckets(upperBounds, counts.clone(), sum);
+        }
+        return new HistogramBuckets(upperBounds, delta, sum - previous.sum);
+    }
+
+    /**
+     * Adds the observations of histograms with the same layout, e.g. those of the same histogram of several
+     * targets.
+     *
+     * @param histograms the histograms, of which there must be at least one
+     * @return the merged histogram
+     * @throws IllegalArgumentException if there are no histograms or they have different layouts
+     */
+    @Contract("_ -> new")
+    public static @NotNull HistogramBuckets merge(@NotNull List<@NotNull HistogramBuckets> histograms) {
+        if (histograms.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one histogram to merge");
+        }
+        HistogramBuckets first = histograms.get(0);
+        double[] merged = new double[first.counts.length];
+        double sum = 0;
+        for (HistogramBuckets histogram : histograms) {
+            first.checkLayout(histogram);
+            double[] counts = histogram.counts;
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += counts[i];
+            }
+            sum += histogram.sum;
+        }
+        return new HistogramBuckets(first.upperBounds, merged, sum);
+    }
+
+    /**
+     * @param factor the factor, e.g. the reciprocal of the seconds between two scrapes to turn a {@link #delta}
+     *        into a rate
+     * @return these buckets with all counts and the sum multiplied by the factor
+     */
+    @Contract("_ -> new")
+    public @NotNull HistogramBuckets scale(double factor) {
+        double[] scaled = new double[counts.length];
+        for (int i = 0; i < scaled.length; i++) {
+            scaled[i] = counts[i] * factor;
+        }
+        return new HistogramBuckets(upperBounds, scaled, sum * factor);
+    }
+
+    private void checkLayout(@NotNull HistogramBuckets other) {
+        if (!hasSameLayout(other)) {
+            throw new IllegalArgumentException("Histograms have different buckets: " + Arrays.toString(upperBounds)
+                    + " and " + Arrays.toString(other.upperBounds));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("HistogramBuckets[");
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            Util.appendDouble(builder, upperBounds[i]).append(':');
+            Util.appendDouble(builder, counts[i]);
+        }
+        return builder.append(", sum=").append(Util.convertDoubleToString(sum)).append(']').toString();
+    }
+}
@@ -0,0 +1,249 @@
+package com.github.epserv.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The result of a scrape with an inverted index over the labels of its series, so that series can be selected
+ * by {@link LabelMatcher label matchers} without scanning all of them.
+ * <p>
+ * Every series (every {@link Metric}) gets an id, its position in the scrape. For every label name and value the
+ * index keeps the ids of the series with that label value as a {@link PostingList}: a sorted int array for values
+ * few series share, a bitmap for values many series share. The metric name is indexed as the {@code __name__}
+ * label, taking the place of a label a metric may literally have by that name. A selector is answered by intersecting the posting lists of its matchers, smallest first, so its cost
+ * depends on the number of series the most selective matcher matches rather than on the size of the scrape.
+ * <p>
+ * Labels with an empty value are not indexed, since a label with an empty value is the same as no label to a
+ * {@link LabelMatcher}.
+ * <p>
+ * The index is built once and immutable afterwards, so it can be queried by any number of threads.
+ *
+ * @see PrometheusScraper#scrapeIndexed()
+ */
+public final class IndexedScrapeResult {
+    private static final @NotNull PostingList EMPTY = PostingList.of(new int[0], 0, 0);
+
+    private final @NotNull List<MetricFamily> families;
+    private final @NotNull Map<String, MetricFamily> familiesByName;
+    private final @NotNull Metric @NotNull [] series;
+    private final @NotNull Map<String, Map<String, PostingList>> postings;
+
+    /**
+     * Indexes the given metric families.
+     *
+     * @param families the metric families of a scrape
+     */
+    public IndexedScrapeResult(@NotNull List<@NotNull MetricFamily> families) {
+        this.families = List.copyOf(families);
+        this.familiesByName = new HashMap<>();
+        int seriesCount = 0;
+        for (MetricFamily family : this.families) {
+            familiesByName.putIfAbsent(family.getName(), family);
+            seriesCount += family.getMetrics().size();
+        }
+
+        this.series = new Metric[seriesCount];
+        Map<String, Map<String, IdList>> ids = new HashMap<>();
+        int id = 0;
+        for (MetricFamily family : this.families) {
+            for (Metric metric : family.getMetrics()) {
+                series[id] = metric;
+                add(ids, RelabelRule.METRIC_NAME_LABEL, metric.getName(), id);
+                for (Map.Entry<String, String> label : metric.getLabels().entrySet()) {
+                    // the metric name is what __name__ is matched against, not a label that happens to be named so
+                    if (!label.getKey().equals(RelabelRule.METRIC_NAME_LABEL)) {
+                        add(ids, label.getKey(), label.getValue(), id);
+                    }
+                }
+                id++;
+            }
+        }
+
+        this.postings = new HashMap<>(ids.size() * 2);
+        for (Map.Entry<String, Map<String, IdList>> name : ids.entrySet()) {
+            Map<String, PostingList> values = new HashMap<>(name.getValue().size() * 2);
+            for (Map.Entry<String, IdList> value : name.getValue().entrySet()) {
+                IdList list = value.getValue();
+                values.put(value.getKey(), PostingList.of(list.ids, list.size, seriesCount));
+            }
+            postings.put(name.getKey(), values);
+        }
+    }
+
+    private static void add(@NotNull Map<String, Map<String, IdList>> ids, @NotNull String name,
+            @NotNull String value, int id) {
+        if (value.isEmpty()) {
+            return;
+        }
+        IdList list = ids.computeIfAbsent(name, n -> new HashMap<>()).computeIfAbsent(value, v -> new IdList());
+        // a label name occurs only once per series, so the ids are added in ascending order without duplicates
+        if (list.size == list.ids.length) {
+            list.ids = Arrays.copyOf(list.ids, list.size * 2);
+        }
+        list.ids[list.size++] = id;
+    }
+
+    /**
+     * @return all metric families of the scrape, in the order they were scraped
+     */
+    @Contract(pure = true)
+    public @NotNull List<@NotNull MetricFamily> getFamilies() {
+        return families;
+    }
+
+    /**
+     * @param name the name of the metric family
+     * @return the metric family, or null if the scrape did not contain it
+     */
+    @Contract(pure = true)
+    public @Nullable MetricFamily getFamily(@NotNull String name) {
+        return familiesByName.get(name);
+    }
+
+    /**
+     * @return the number of series (metrics) of all families
+     */
+    @Contract(pure = true)
+    public int getSeriesCount() {
+        return series.length;
+    }
+
+    /**
+     * @return the names of all labels of the series, including {@code __name__}, in ascending order
+     */
+    public @NotNull Set<String> getLabelNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(postings.keySet()));
+    }
+
+    /**
+     * @param name the name of the label
+     * @return the non-empty values of the label, in ascending order
+     */
+    public @NotNull Set<String> getLabelValues(@NotNull String name) {
+        Map<String, PostingList> values = postings.get(name);
+        return values == null ? Set.of() : Collections.unmodifiableSet(new TreeSet<>(values.keySet()));
+    }
+
+    /**
+     * Selects the series that all given matchers match, like the Prometheus selector
+     * {@code {name="value", ...}}. Without any matchers all series are selected.
+     *
+     * @param matchers the label matchers
+     * @return the matching series, in the order they were scraped
+     */
+    public @NotNull List<@NotNull Metric> select(@NotNull LabelMatcher @NotNull ... matchers) {
+        List<PostingList> included = new ArrayList<>(matchers.length);
+        List<PostingList> excluded = new ArrayList<>(matchers.length);
+        for (LabelMatcher matcher : matchers) {
+            if (matcher.matches("")) {
+                // series without the label match, so the matcher is answered by the series it does not match
+                PostingList postingList = postings(matcher, false);
+                if (postingList.size() == series.length) {
+                    return List.of();
+                }
+                if (postingList.size() > 0) {
+                    excluded.add(postingList);
+                }
+            } else {
+                PostingList postingList = postings(matcher, true);
+                if (postingList.size() == 0) {
+                    return List.of();
+                }
+                included.add(postingList);
+            }
+        }
+
+        List<Metric> selected = new ArrayList<>();
+        if (included.isEmpty()) {
+            for (int id = 0; id < series.length; id++) {
+                if (!containedInAny(excluded, id)) {
+                    selected.add(series[id]);
+                }
+            }
+            return selected;
+        }
+
+        included.sort(Comparator.comparingInt(PostingList::size));
+        candidates:
+        for (int id : included.get(0).toArray()) {
+            for (int i = 1; i < included.size(); i++) {
+                if (!included.get(i).contains(id)) {
+                    continue candidates;
+                }
+            }
+            if (!containedInAny(excluded, id)) {
+                selected.add(series[id]);
+            }
+        }
+        return selected;
+    }
+
+    private static boolean containedInAny(@NotNull List<PostingList> postingLists, int id) {
+        for (PostingList postingList : postingLists) {
+            if (postingList.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param matching whether to return the series with a label value the matcher matches, or those with a label
+     *        value it does not match
+     */
+    private @NotNull PostingList postings(@NotNull LabelMatcher matcher, boolean matching) {
+        Map<String, PostingList> values = postings.get(matcher.getName());
+        if (values == null) {
+            return EMPTY;
+        }
+        if (matcher.getType() == LabelMatcher.Type.EQUAL && matching
+                || matcher.getType() == LabelMatcher.Type.NOT_EQUAL && !matching) {
+            return values.getOrDefault(matcher.getValue(), EMPTY);
+        }
+
+        PostingList single = null;
+        long[] union = null;
+        for (Map.Entry<String, PostingList> value : values.entrySet()) {
+            if (matcher.matches(value.getKey()) != matching) {
+                continue;
+            }
+            if (single == null && union == null) {
+                single = value.getValue();
+                continue;
+            }
+            if (union == null) {
+                union = new long[(series.length + 63) >>> 6];
+                single.addTo(union);
+                single = null;
+            }
+            value.getValue().addTo(union);
+        }
+        if (union != null) {
+            return PostingList.ofBitmap(union);
+        }
+        return single == null ? EMPTY : single;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedScrapeResult[families=" + families.size() + ", series=" + series.length + "]";
+    }
+
+    private static final class IdList {
+        int @NotNull [] ids = new int[1];
+        int size;
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.epserv.prometheus;
+
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A label matcher of a Prometheus series selector, like {@code pod="x"} or {@code code!~"5.."}.
+ * <p>
+ * As in Prometheus, a series without the label is matched as if it had the label with an empty value, so
+ * {@code pod=""} selects the series without a {@code pod} label. The {@code __name__} label refers to the
+ * metric name. Regular expressions must match the whole value.
+ *
+ * @see IndexedScrapeResult#select(LabelMatcher...)
+ */
+public final class LabelMatcher {
+
+    public enum Type {
+        EQUAL("="), NOT_EQUAL("!="), REGEX("=~"), NOT_REGEX("!~");
+
+        private final @NotNull String operator;
+
+        Type(@NotNull String operator) {
+            this.operator = operator;
+        }
+    }
+
+    private final @NotNull String name;
+    private final @NotNull Type type;
+    private final @NotNull String value;
+    private final Pattern pattern; // null unless this is a regex matcher
+
+    private LabelMatcher(@NotNull String name, @NotNull Type type, @NotNull String value) {
+        this.name = name;
+        this.type = type;
+        this.value = value;
+        this.pattern = type == Type.REGEX || type == Type.NOT_REGEX ? Pattern.compile(value) : null;
+    }
+
+    @Contract("_, _ -> new")
+    public static @NotNull LabelMatcher equal(@NotNull String name, @NotNull String value) {
+        return new LabelMatcher(name, Type.EQUAL, value);
+    }
+
+    @Contract("_, _ -> new")
+    public static @NotNull LabelMatcher notEqual(@NotNull String name, @NotNull String value) {
+        return new LabelMatcher(name, Type.NOT_EQUAL, value);
+    }
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if the regex is not valid
+     */
+    @Contract("_, _ -> new")
+    public static @NotNull LabelMatcher regex(@NotNull String name, @NotNull String regex) {
+        return new LabelMatcher(name, Type.REGEX, regex);
+    }
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if the regex is not valid
+     */
+    @Contract("_, _ -> new")
+    public static @NotNull LabelMatcher notRegex(@NotNull String name, @NotNull String regex) {
+        return new LabelMatcher(name, Type.NOT_REGEX, regex);
+    }
+
+    @Contract(pure = true)
+    public @NotNull String getName() {
+        return name;
+    }
+
+    @Contract(pure = true)
+    public @NotNull Type getType() {
+        return type;
+    }
+
+    @Contract(pure = true)
+    public @NotNull String getValue() {
+        return value;
+    }
+
+    /**
+     * @param labelValue the value of the label, or the empty string if the series does not have the label
+     * @return true if the value is matched
+     */
+    public boolean matches(@NotNull String labelValue) {
+        return switch (type) {
+            case EQUAL -> value.equals(labelValue);
+            case NOT_EQUAL -> !value.equals(labelValue);
+            case REGEX -> pattern.matcher(labelValue).matches();
+            case NOT_REGEX -> !pattern.matcher(labelValue).matches();
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name + type.operator + '"' + value + '"';
+    }
+}
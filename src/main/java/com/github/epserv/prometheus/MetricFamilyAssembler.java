@@ -0,0 +1,174 @@
+package com.github.epserv.prometheus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Builds {@link MetricFamily} objects out of the raw samples reported to a {@link SampleVisitor}.
+ * <p>
+ * Counter and gauge samples are full metrics, so they are converted one-for-one.
+ * For summary metrics all quantile samples, sum and count with the same labels are combined into one metric.
+ * For histogram metrics all bucket samples, sum and count with the same labels are combined into one metric.
+ * <p>
+ * The family being assembled is completed by {@link #finish()}. The metrics of a family can also be taken out in
+ * parts with {@link #takeMetrics()}, so that the metrics of a large family need not all be kept.
+ */
+public class MetricFamilyAssembler implements SampleVisitor {
+    private static final Logger log = Logger.getLogger(MetricFamilyAssembler.class);
+
+    private @Nullable String name;
+    private @Nullable String help;
+    private @Nullable MetricType type;
+
+    // one builder per unique set of labels, kept in the order the label sets were first seen
+    private final Map<Map<String, String>, Metric.Builder<?, ?>> builders = new LinkedHashMap<>();
+
+    @Override
+    public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, @Nullable CharSequence help) {
+        this.name = name.toString();
+        this.help = help == null ? null : help.toString();
+        this.type = type;
+        this.builders.clear();
+    }
+
+    @Override
+    public void onSample(@NotNull CharSequence sampleName, @NotNull SampleLabels labels, double value,
+            long timestamp) {
+        if (name == null || type == null) {
+            throw new IllegalStateException("Sample found before its metric family: " + sampleName);
+        }
+
+        switch (type) {
+            case COUNTER -> {
+                Map<String, String> labelMap = labels.toMap(null);
+                builders.put(labelMap, new Counter.Builder().setName(name).setValue(value).addLabels(labelMap));
+            }
+            case GAUGE -> {
+                Map<String, String> labelMap = labels.toMap(null);
+                builders.put(labelMap, new Gauge.Builder().setName(name).setValue(value).addLabels(labelMap));
+            }
+            case SUMMARY -> {
+                // Get the builder that we are using to build up the current metric. Remember we need to
+                // get the builder for this specific metric identified with a unique set of labels.
+                // The quantile label isn't a "real" label, so it is not part of the lookup.
+                Map<String, String> realLabels = labels.toMap("quantile");
+                Summary.Builder sBuilder = (Summary.Builder) builders.get(realLabels);
+                if (sBuilder == null) {
+                    sBuilder = new Summary.Builder().setName(name).addLabels(realLabels);
+                    builders.put(realLabels, sBuilder);
+                }
+                if (hasSuffix(sampleName, "_count")) {
+                    sBuilder.setSampleCount((long) value);
+                } else if (hasSuffix(sampleName, "_sum")) {
+                    sBuilder.setSampleSum(value);
+                } else {
+                    // This must be a quantile sample
+                    CharSequence quantile = labels.get("quantile");
+                    if (quantile == null) {
+                        log.debugf("Summary quantile sample is missing the 'quantile' label: %s%s",
+                                sampleName, labels);
+                    } else {
+                        sBuilder.addQuantile(Util.convertStringToDouble(quantile, 0, quantile.length()), value);
+                    }
+                }
+            }
+            case HISTOGRAM -> {
+                // Same as for summaries - the le label isn't a "real" label, so it is not part of the lookup.
+                Map<String, String> realLabels = labels.toMap("le");
+                Histogram.Builder hBuilder = (Histogram.Builder) builders.get(realLabels);
+                if (hBuilder == null) {
+                    hBuilder = new Histogram.Builder().setName(name).addLabels(realLabels);
+                    builders.put(realLabels, hBuilder);
+                }
+                if (hasSuffix(sampleName, "_count")) {
+                    hBuilder.setSampleCount((long) value);
+                } else if (hasSuffix(sampleName, "_sum")) {
+                    hBuilder.setSampleSum(value);
+                } else {
+                    // This must be a bucket sample
+                    CharSequence bucket = labels.get("le");
+                    if (bucket == null) {
+                        log.debugf("Histogram bucket sample is missing the 'le' label: %s%s", sampleName, labels);
+                    } else {
+                        hBuilder.addBucket(Util.convertStringToDouble(bucket, 0, bucket.length()), (long) value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a metric family has been started and not yet {@link #finish() finished}
+     */
+    @Contract(pure = true)
+    public boolean isStarted() {
+        return name != null;
+    }
+
+    /**
+     * Builds the metrics out of the samples seen since the metric family was started or since this method was last
+     * called. The family stays started, and its next samples are combined into new metrics.
+     *
+     * @return the metrics, in the order their label sets were first seen
+     * @throws IllegalStateException if no metric family was started
+     */
+    public @NotNull List<Metric> takeMetrics() {
+        if (name == null || type == null) {
+            throw new IllegalStateException("No metric family was started");
+        }
+
+        // now that we've combined everything into individual metric builders, we can build all our metrics
+        List<Metric> metrics = new ArrayList<>(builders.size());
+        for (Metric.Builder<?, ?> builder : builders.values()) {
+            try {
+                metrics.add(builder.build());
+            } catch (Exception e) {
+                log.debugf(e, "Error building metric for metric family [%s] - it will be ignored", name);
+            }
+        }
+        builders.clear();
+        return metrics;
+    }
+
+    /**
+     * Builds the metric family out of all the samples seen since it was started, or since metrics were last
+     * {@link #takeMetrics() taken}.
+     *
+     * @return the metric family
+     * @throws IllegalStateException if no metric family was started
+     */
+    public @NotNull MetricFamily finish() {
+        List<Metric> metrics = takeMetrics();
+        MetricFamily.Builder metricFamilyBuilder = new MetricFamily.Builder()
+                .setName(name)
+                .setHelp(help)
+                .setType(type);
+        for (Metric metric : metrics) {
+            metricFamilyBuilder.addMetric(metric);
+        }
+
+        name = null;
+        help = null;
+        type = null;
+
+        return metricFamilyBuilder.build();
+    }
+
+    private boolean hasSuffix(@NotNull CharSequence sampleName, @NotNull String suffix) {
+        return Util.hasSuffix(sampleName, name == null ? 0 : name.length(), suffix);
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.epserv.prometheus;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A reusable {@link SampleLabels} implementation for processors. The label name and value buffers are kept
+ * between samples so that filling in the labels of the next sample does not create any garbage.
+ * <p>
+ * To add a label, append its name to {@link #nextName()}, its value to {@link #nextValue()} and then
+ * {@link #commit()} it.
+ */
+public final class MutableSampleLabels implements SampleLabels {
+    private StringBuilder[] names = new StringBuilder[8];
+    private StringBuilder[] values = new StringBuilder[8];
+    private int size;
+
+    /**
+     * Removes all labels.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Removes all labels after the given number of labels.
+     *
+     * @param newSize the number of labels to keep
+     */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("Cannot truncate " + size + " labels to " + newSize);
+        }
+        size = newSize;
+    }
+
+    /**
+     * @return the cleared buffer for the name of the label that is being added
+     */
+    public @NotNull StringBuilder nextName() {
+        ensureCapacity();
+        return reset(names);
+    }
+
+    /**
+     * @return the cleared buffer for the value of the label that is being added
+     */
+    public @NotNull StringBuilder nextValue() {
+        ensureCapacity();
+        return reset(values);
+    }
+
+    /**
+     * Completes the label that is being added.
+     */
+    public void commit() {
+        size++;
+    }
+
+    /**
+     * Copies a label.
+     *
+     * @param name the label name
+     * @param value the label value
+     */
+    public void add(@NotNull CharSequence name, @NotNull CharSequence value) {
+        nextName().append(name);
+        nextValue().append(value);
+        commit();
+    }
+
+    /**
+     * Sets the value of a label, adding the label if there is none with the given name yet.
+     *
+     * @param name the label name
+     * @param value the label value, which must not be one of the buffers of this object
+     */
+    public void set(@NotNull CharSequence name, @NotNull CharSequence value) {
+        int index = indexOf(name);
+        if (index < 0) {
+            add(name, value);
+        } else {
+            values[index].setLength(0);
+            values[index].append(value);
+        }
+    }
+
+    /**
+     * Removes a label, keeping the order of the other labels.
+     *
+     * @param index index of the label to remove
+     */
+    public void remove(int index) {
+        checkIndex(index);
+        // rotate the buffers of the removed label to the end, so they are reused
+        StringBuilder name = names[index];
+        StringBuilder value = values[index];
+        System.arraycopy(names, index + 1, names, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        names[size] = name;
+        values[size] = value;
+    }
+
+    /**
+     * @param name the label name
+     * @return the index of the label with the given name, or -1 if there is none
+     */
+    public int indexOf(@NotNull CharSequence name) {
+        for (int i = 0; i < size; i++) {
+            if (CharSequence.compare(names[i], name) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    @Contract(pure = true)
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public @NotNull CharSequence name(int index) {
+        return names[checkIndex(index)];
+    }
+
+    @Override
+    public @NotNull CharSequence value(int index) {
+        return values[checkIndex(index)];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                str.append(",");
+            }
+            str.append(names[i]).append("=").append(values[i]);
+        }
+        return str.append("}").toString();
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Label index " + index + " out of bounds for size " + size);
+        }
+        return index;
+    }
+
+    private void ensureCapacity() {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+    }
+
+    private @NotNull StringBuilder reset(StringBuilder[] buffers) {
+        StringBuilder buffer = buffers[size];
+        if (buffer == null) {
+            buffer = new StringBuilder(32);
+            buffers[size] = buffer;
+        } else {
+            buffer.setLength(0);
+        }
+        return buffer;
+    }
+}
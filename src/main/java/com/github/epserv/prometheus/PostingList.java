@@ -0,0 +1,97 @@
+package com.github.epserv.prometheus;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An immutable set of series ids of an {@link IndexedScrapeResult}. Sparse sets are kept as sorted int arrays,
+ * dense ones - those with more than one in {@value #DENSE_RATIO} of all series - as bitmaps, which take less
+ * memory then and answer {@link #contains(int)} in constant time.
+ */
+final class PostingList {
+    static final int DENSE_RATIO = 32;
+
+    private final int @NotNull [] ids; // sorted, empty if this is a bitmap
+    private final long @NotNull [] bits; // empty if this is an array
+    private final int size;
+
+    private PostingList(int @NotNull [] ids, long @NotNull [] bits, int size) {
+        this.ids = ids;
+        this.bits = bits;
+        this.size = size;
+    }
+
+    /**
+     * @param ids the sorted ids, only the first {@code size} of which are used
+     * @param size the number of ids
+     * @param seriesCount the number of all series, which decides whether the ids are kept as a bitmap
+     */
+    static @NotNull PostingList of(int @NotNull [] ids, int size, int seriesCount) {
+        if ((long) size * DENSE_RATIO > seriesCount) {
+            long[] bits = new long[(seriesCount + 63) >>> 6];
+            for (int i = 0; i < size; i++) {
+                bits[ids[i] >>> 6] |= 1L << ids[i];
+            }
+            return new PostingList(new int[0], bits, size);
+        }
+        return new PostingList(size == ids.length ? ids : Arrays.copyOf(ids, size), new long[0], size);
+    }
+
+    /**
+     * @param bits a bitmap of the ids, which is not copied
+     */
+    static @NotNull PostingList ofBitmap(long @NotNull [] bits) {
+        int size = 0;
+        for (long word : bits) {
+            size += Long.bitCount(word);
+        }
+        return new PostingList(new int[0], bits, size);
+    }
+
+    @Contract(pure = true)
+    int size() {
+        return size;
+    }
+
+    boolean contains(int id) {
+        if (bits.length > 0) {
+            int word = id >>> 6;
+            return word < bits.length && (bits[word] & 1L << id) != 0;
+        }
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * Adds all ids to the bitmap.
+     */
+    void addTo(long @NotNull [] bitmap) {
+        if (bits.length > 0) {
+            for (int i = 0; i < bits.length; i++) {
+                bitmap[i] |= bits[i];
+            }
+        } else {
+            for (int id : ids) {
+                bitmap[id >>> 6] |= 1L << id;
+            }
+        }
+    }
+
+    /**
+     * @return the ids in ascending order
+     */
+    int @NotNull [] toArray() {
+        if (bits.length == 0) {
+            return ids;
+        }
+        int[] array = new int[size];
+        int n = 0;
+        for (int word = 0; word < bits.length; word++) {
+            for (long w = bits[word]; w != 0; w &= w - 1) {
+                array[n++] = (word << 6) + Long.numberOfTrailingZeros(w);
+            }
+        }
+        return array;
+    }
+}
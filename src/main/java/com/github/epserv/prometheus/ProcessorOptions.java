@@ -0,0 +1,116 @@
+package com.github.epserv.prometheus;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * How a {@link PrometheusMetricsProcessor} processes its data: where it keeps its parser between scrapes, the
+ * limits the parser enforces, the metric families it reports and the relabeling rules applied to the samples.
+ * <p>
+ * Options are immutable. Since an arena must only be used by one scrape at a time, options with an arena must not
+ * be given to processors that run at the same time.
+ */
+public final class ProcessorOptions {
+
+    /**
+     * No arena, no limits, all families and no relabeling.
+     */
+    public static final ProcessorOptions DEFAULT = new Builder().build();
+
+    public static class Builder {
+        private ScrapeArena arena;
+        private ScrapeLimits limits = ScrapeLimits.NONE;
+        private FamilyFilter familyFilter = FamilyFilter.ALL;
+        private Relabeling relabeling = Relabeling.NONE;
+
+        public Builder() {
+        }
+
+        /**
+         * @param options the options to start from
+         */
+        public Builder(@NotNull ProcessorOptions options) {
+            this.arena = options.arena;
+            this.limits = options.limits;
+            this.familyFilter = options.familyFilter;
+            this.relabeling = options.relabeling;
+        }
+
+        /**
+         * @param arena where the parser is kept between scrapes of the same target, or null to create a new parser
+         *        for every scrape (the default)
+         */
+        public Builder setArena(@Nullable ScrapeArena arena) {
+            this.arena = arena;
+            return this;
+        }
+
+        /**
+         * @param limits the limits the parser enforces while it consumes the data, {@link ScrapeLimits#NONE} by
+         *        default
+         */
+        public Builder setLimits(@NotNull ScrapeLimits limits) {
+            this.limits = limits;
+            return this;
+        }
+
+        /**
+         * @param familyFilter selects the metric families that are reported, {@link FamilyFilter#ALL} by default.
+         *        The data of the other families is skipped without being parsed.
+         */
+        public Builder setFamilyFilter(@NotNull FamilyFilter familyFilter) {
+            this.familyFilter = familyFilter;
+            return this;
+        }
+
+        /**
+         * @param relabeling the relabeling rules applied to every sample before it is reported,
+         *        {@link Relabeling#NONE} by default
+         */
+        public Builder setRelabeling(@NotNull Relabeling relabeling) {
+            this.relabeling = relabeling;
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull ProcessorOptions build() {
+            return new ProcessorOptions(this);
+        }
+    }
+
+    private final @Nullable ScrapeArena arena;
+    private final @NotNull ScrapeLimits limits;
+    private final @NotNull FamilyFilter familyFilter;
+    private final @NotNull Relabeling relabeling;
+
+    private ProcessorOptions(@NotNull Builder builder) {
+        if (builder.limits == null) throw new IllegalArgumentException("Need to set limits");
+        if (builder.familyFilter == null) throw new IllegalArgumentException("Need to set familyFilter");
+        if (builder.relabeling == null) throw new IllegalArgumentException("Need to set relabeling");
+        this.arena = builder.arena;
+        this.limits = builder.limits;
+        this.familyFilter = builder.familyFilter;
+        this.relabeling = builder.relabeling;
+    }
+
+    @Contract(pure = true)
+    public @Nullable ScrapeArena getArena() {
+        return arena;
+    }
+
+    @Contract(pure = true)
+    public @NotNull ScrapeLimits getLimits() {
+        return limits;
+    }
+
+    @Contract(pure = true)
+    public @NotNull FamilyFilter getFamilyFilter() {
+        return familyFilter;
+    }
+
+    @Contract(pure = true)
+    public @NotNull Relabeling getRelabeling() {
+        return relabeling;
+    }
+}
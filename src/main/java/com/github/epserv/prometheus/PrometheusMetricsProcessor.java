@@ -1,80 +1,186 @@
 package com.github.epserv.prometheus;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.function.BooleanSupplier;
 
 import com.github.epserv.prometheus.types.*;
+import com.github.epserv.prometheus.walkers.StreamingWalkingSampleVisitor;
+import com.github.epserv.prometheus.walkers.WalkingSampleVisitor;
 import org.jboss.logging.Logger;
 import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * A processor is responsible for iterating over a collection of metric families found in a specific
  * data format and invoking a walker during the iteration so the metric families can be processed.
+ * <p>
+ * Underneath, every processor reports raw samples to a {@link SampleVisitor} - see {@link #visit(SampleVisitor)}.
+ * Walking is implemented as an adapter on top of that.
  */
 public abstract class PrometheusMetricsProcessor<T> {
     private static final Logger log = Logger.getLogger(PrometheusMetricsProcessor.class);
 
     private final @NotNull InputStream inputStream;
-    private final @NotNull PrometheusMetricsWalker walker;
+    private final @Nullable PrometheusMetricsWalker walker;
+    private final @NotNull ProcessorOptions options;
+
+    /**
+     * Use this constructor if the processor is only going to be {@link #visit(SampleVisitor) visited}.
+     *
+     * @param inputStream where the Prometheus metrics are that the visitor will traverse.
+     */
+    public PrometheusMetricsProcessor(@NotNull InputStream inputStream) {
+        this(inputStream, null, ProcessorOptions.DEFAULT);
+    }
 
     /**
      * @param inputStream where the Prometheus metrics are that the walker will traverse.
      * @param theWalker the actual object that will be notified about the metrics as they are encountered
      */
     public PrometheusMetricsProcessor(@NotNull InputStream inputStream, @NotNull PrometheusMetricsWalker theWalker) {
+        this(inputStream, theWalker, ProcessorOptions.DEFAULT);
+    }
+
+    /**
+     * @param inputStream where the Prometheus metrics are that the walker or visitor will traverse.
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered,
+     *                  or null if the processor is only going to be {@link #visit(SampleVisitor) visited}
+     * @param options the arena, limits, family filter and relabeling rules to process the data with
+     */
+    protected PrometheusMetricsProcessor(@NotNull InputStream inputStream, @Nullable PrometheusMetricsWalker theWalker,
+            @NotNull ProcessorOptions options) {
         this.inputStream = inputStream;
         this.walker = theWalker;
+        this.options = options;
     }
 
     /**
      * This will iterate over a set of metrics that are produced by the
      * {@link #createPrometheusMetricDataParser() parser} and will notify the {@link #getWalker() walker}
      * of each metric found.
+     *
+     * @throws UncheckedIOException wrapping a {@link ScrapeLimitExceededException} if the data exceeds the
+     *                              {@link #getLimits() limits} - the walker is not told to finish in that case
      */
     public void walk() {
-        // tell the walker we are starting
-        walker.walkStart();
+        WalkingSampleVisitor adapter = new WalkingSampleVisitor(getWalker());
+        walk(adapter, adapter::isFinished);
+    }
 
-        int totalMetrics = 0;
-        int familyIndex = 0;
+    /**
+     * Like {@link #walk()}, but the {@link #getWalker() walker} is notified of each metric as soon as it has been
+     * parsed rather than once its whole metric family has been parsed, so memory use does not grow with the size
+     * of the metric families. The walker is given the metric families without their metrics -
+     * see {@link StreamingWalkingSampleVisitor}.
+     *
+     * @throws UncheckedIOException wrapping a {@link ScrapeLimitExceededException} if the data exceeds the
+     *                              {@link #getLimits() limits} - the walker is not told to finish in that case
+     */
+    public void walkStreaming() {
+        StreamingWalkingSampleVisitor adapter = new StreamingWalkingSampleVisitor(getWalker());
+        walk(adapter, adapter::isFinished);
+    }
 
+    private void walk(@NotNull SampleVisitor adapter, @NotNull BooleanSupplier finished) {
         try {
-            PrometheusMetricDataParser<T> parser = createPrometheusMetricDataParser();
-            T metricFamily = parser.parse(); // prime the pump
+            visit(adapter);
+        } catch (ScrapeLimitExceededException e) {
+            // unlike a parse error, this must not look like a complete (if short) scrape
+            throw new UncheckedIOException(e);
+        } catch (Exception e) {
+            log.debugf(e, "Error while processing data");
+        }
 
-            while (metricFamily != null) {
-                MetricFamily convertedMetricFamily = convert(metricFamily);
+        if (!finished.getAsBoolean()) {
+            // tell the walker we have finished with whatever we could process
+            adapter.onFinish();
+        }
+    }
 
-                // let the walker know we are traversing a new family of metrics
-                walker.walkMetricFamily(convertedMetricFamily, familyIndex++);
+    /**
+     * This will report every sample found in the input stream to the given visitor, without building
+     * the common {@link MetricFamily} and {@link Metric} objects where the data format allows it.
+     * The samples are {@link #getRelabeling() relabeled} first, so when walking, the metrics are built from the
+     * relabeled samples and dropped samples never become metrics.
+     *
+     * @param visitor the object that will be notified about the samples as they are encountered
+     * @throws IOException if failed to read or parse the data
+     */
+    public void visit(@NotNull SampleVisitor visitor) throws IOException {
+        visitor = options.getRelabeling().apply(visitor);
+        visitor.onStart();
+        visitSamples(visitor);
+        visitor.onFinish();
+    }
 
-                // walk through each metric in the family
-                int metricIndex = 0;
+    /**
+     * Reports all metric families and their samples to the given visitor.
+     * <p>
+     * The default implementation has the {@link #createPrometheusMetricDataParser() parser} produce the
+     * metric families, {@link #convert(Object) converts} them and then reports the samples of those accepted by
+     * the {@link #getFamilyFilter() filter}.
+     * Subclasses should override this if their data format can be visited more directly.
+     *
+     * @param visitor the object that will be notified about the samples
+     * @throws IOException if failed to read or parse the data
+     */
+    protected void visitSamples(@NotNull SampleVisitor visitor) throws IOException {
+        PrometheusMetricDataParser<T> parser = createPrometheusMetricDataParser();
+        MutableSampleLabels labels = new MutableSampleLabels();
+        for (T metricFamily = parser.parse(); metricFamily != null; metricFamily = parser.parse()) {
+            MetricFamily family = convert(metricFamily);
+            if (options.getFamilyFilter().accept(family.getName())) {
+                visitMetricFamily(family, visitor, labels);
+            }
+        }
+    }
 
-                for (Metric metric : convertedMetricFamily.getMetrics()) {
-                    switch (convertedMetricFamily.getType()) {
-                        case COUNTER -> walker.walkCounterMetric(convertedMetricFamily, (Counter) metric, metricIndex);
-                        case GAUGE -> walker.walkGaugeMetric(convertedMetricFamily, (Gauge) metric, metricIndex);
-                        case SUMMARY -> walker.walkSummaryMetric(convertedMetricFamily, (Summary) metric, metricIndex);
-                        case HISTOGRAM -> walker.walkHistogramMetric(convertedMetricFamily, (Histogram) metric, metricIndex);
+    /**
+     * Reports the given metric family and the samples of all its metrics to the visitor.
+     *
+     * @param family the family to report
+     * @param visitor the object that will be notified about the samples
+     * @param labels reusable storage for the labels of the samples
+     */
+    protected static void visitMetricFamily(@NotNull MetricFamily family, @NotNull SampleVisitor visitor,
+            @NotNull MutableSampleLabels labels) {
+        String name = family.getName();
+        visitor.onFamily(name, family.getType(), family.getHelp());
+
+        for (Metric metric : family.getMetrics()) {
+            labels.clear();
+            metric.getLabels().forEach(labels::add);
+            int realLabels = labels.size();
+
+            switch (family.getType()) {
+                case COUNTER -> visitor.onSample(name, labels, ((Counter) metric).getValue(), SampleVisitor.NO_TIMESTAMP);
+                case GAUGE -> visitor.onSample(name, labels, ((Gauge) metric).getValue(), SampleVisitor.NO_TIMESTAMP);
+                case SUMMARY -> {
+                    Summary summary = (Summary) metric;
+                    for (Summary.Quantile quantile : summary.getQuantiles()) {
+                        labels.add("quantile", Util.convertDoubleToString(quantile.quantile()));
+                        visitor.onSample(name, labels, quantile.value(), SampleVisitor.NO_TIMESTAMP);
+                        labels.truncate(realLabels);
                     }
-
-                    metricIndex++;
+                    visitor.onSample(name + "_sum", labels, summary.getSampleSum(), SampleVisitor.NO_TIMESTAMP);
+                    visitor.onSample(name + "_count", labels, summary.getSampleCount(), SampleVisitor.NO_TIMESTAMP);
+                }
+                case HISTOGRAM -> {
+                    Histogram histogram = (Histogram) metric;
+                    for (Histogram.Bucket bucket : histogram.getBuckets()) {
+                        labels.add("le", Util.convertDoubleToString(bucket.upperBound()));
+                        visitor.onSample(name + "_bucket", labels, bucket.cumulativeCount(), SampleVisitor.NO_TIMESTAMP);
+                        labels.truncate(realLabels);
+                    }
+                    visitor.onSample(name + "_sum", labels, histogram.getSampleSum(), SampleVisitor.NO_TIMESTAMP);
+                    visitor.onSample(name + "_count", labels, histogram.getSampleCount(), SampleVisitor.NO_TIMESTAMP);
                 }
-
-                // finished processing the metrics for the current family
-                totalMetrics += convertedMetricFamily.getMetrics().size();
-
-                // go to the next metric family
-                metricFamily = parser.parse();
             }
-        } catch (Exception e) {
-            log.debugf(e, "Error while processing binary data");
         }
-
-        // tell the walker we have finished
-        walker.walkFinish(familyIndex, totalMetrics);
     }
 
     /**
@@ -87,12 +193,49 @@ public abstract class PrometheusMetricsProcessor<T> {
 
     /**
      * @return the object that will iterate over the found metric data
+     * @throws IllegalStateException if this processor was created without a walker
      */
     @Contract(pure = true)
     protected @NotNull PrometheusMetricsWalker getWalker() {
+        if (walker == null) {
+            throw new IllegalStateException("This processor was not given a walker");
+        }
         return walker;
     }
 
+    /**
+     * @return the arena this processor was created with, or a new (empty) one if there is none
+     */
+    @Contract(pure = true)
+    protected @NotNull ScrapeArena getArena() {
+        ScrapeArena arena = options.getArena();
+        return arena == null ? new ScrapeArena() : arena;
+    }
+
+    /**
+     * @return the limits the parser enforces while it consumes the data
+     */
+    @Contract(pure = true)
+    protected @NotNull ScrapeLimits getLimits() {
+        return options.getLimits();
+    }
+
+    /**
+     * @return selects the metric families the walker or visitor is notified about
+     */
+    @Contract(pure = true)
+    protected @NotNull FamilyFilter getFamilyFilter() {
+        return options.getFamilyFilter();
+    }
+
+    /**
+     * @return the relabeling rules applied to every sample
+     */
+    @Contract(pure = true)
+    protected @NotNull Relabeling getRelabeling() {
+        return options.getRelabeling();
+    }
+
     /**
      * @return a new parser instance that can be used to parse the formatted data
      *         found in the {@link #getInputStream() input stream}.
@@ -3,11 +3,24 @@ package com.github.epserv.prometheus;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
 import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
@@ -27,18 +40,60 @@ import org.jetbrains.annotations.Nullable;
 public class PrometheusScraper {
     private static final Logger log = Logger.getLogger(PrometheusScraper.class);
 
+    /**
+     * The default time allowed for an asynchronous scrape request, until the response headers are received.
+     */
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    // shared by all scrapers so that repeated scrapes of the same target reuse pooled connections
+    private static final class SharedHttpClient {
+        private static final HttpClient INSTANCE = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    // the default executor of asynchronous scrapes, created on first use
+    private static final class SharedAsyncExecutor {
+        private static final Executor INSTANCE = create();
+
+        private static @NotNull Executor create() {
+            Executor executor = ScrapeExecutors.newVirtualThreadExecutor();
+            return executor != null ? executor : ScrapeExecutors.newBoundedDaemonPool("prometheus-async-scrape-");
+        }
+    }
+
     private final @NotNull URL url;
+    private final @Nullable File file;
     private final @Nullable PrometheusDataFormat knownDataFormat;
     private final @Nullable String authorization;
+    private final @NotNull TransferStats.Recorder transferStats = new TransferStats.Recorder();
+    // reused by the next scrape, see acquireArena()
+    private final @NotNull AtomicReference<ScrapeArena> arena = new AtomicReference<>(new ScrapeArena());
+    private volatile @NotNull ProcessorOptions options = ProcessorOptions.DEFAULT; // without an arena
 
     // see openConnection() for where this is used
     protected static class OpenConnectionDetails {
         private final @NotNull InputStream inputStream;
         private final @Nullable String contentType;
+        private final @Nullable String contentEncoding;
 
         public OpenConnectionDetails(@NotNull InputStream is, @Nullable String contentType) {
+            this(is, contentType, null);
+        }
+
+        /**
+         * @param is the stream of the data, as received
+         * @param contentType the content type of the data, or null if unknown
+         * @param contentEncoding the content encoding the data is compressed with (see {@link #getAcceptEncoding()}),
+         *                        or null if it is not compressed
+         */
+        public OpenConnectionDetails(@NotNull InputStream is, @Nullable String contentType,
+                @Nullable String contentEncoding) {
             this.inputStream = is;
             this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
         }
 
         @Contract(pure = true)
@@ -50,6 +105,11 @@ public class PrometheusScraper {
         public @Nullable String getContentType() {
             return this.contentType;
         }
+
+        @Contract(pure = true)
+        public @Nullable String getContentEncoding() {
+            return this.contentEncoding;
+        }
     }
 
     public PrometheusScraper(@Nullable String host, int port, @Nullable String context) throws MalformedURLException {
@@ -67,6 +127,7 @@ public class PrometheusScraper {
             context = "/metrics";
         }
         this.url = new URL("http", host, port, context);
+        this.file = null;
         this.knownDataFormat = null;
         this.authorization = authorization;
         log.debugf("Will scrape Prometheus data from URL [%s]", this.url);
@@ -109,6 +170,7 @@ public class PrometheusScraper {
      */
     public PrometheusScraper(@NotNull URL url, @Nullable PrometheusDataFormat dataFormat, @Nullable String authorization) {
         this.url = url;
+        this.file = null;
         this.knownDataFormat = dataFormat;
         this.authorization = authorization;
         log.debugf("Will scrape Prometheus data from URL [%s] with data format [%s]",
@@ -118,6 +180,9 @@ public class PrometheusScraper {
     /**
      * Scrape data from the given file. The data format will indicate if it
      * is binary protocol buffer data or text data ("text/plain").
+     * <p>
+     * The file is memory mapped and parsed in place, so scraping it does not copy its content
+     * onto the heap.
      *
      * @param file the file to scrape
      * @param dataFormat the format of the metric data in the file.
@@ -128,6 +193,7 @@ public class PrometheusScraper {
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException("File does not have valid URL: " + file);
         }
+        this.file = file;
 
         this.knownDataFormat = dataFormat;
         this.authorization = null;
@@ -147,30 +213,411 @@ public class PrometheusScraper {
         return Objects.requireNonNull(collector.getAllMetricFamilies(), "collector.getAllMetricFamilies() cannot be null");
     }
 
+    /**
+     * Like {@link #scrape()}, but indexes the labels of the scraped series, so that they can be selected by
+     * label matchers without scanning all of them.
+     *
+     * @return all metric data found at the endpoint, indexed by labels
+     * @throws IOException if failed to scrape data
+     */
+    public @NotNull IndexedScrapeResult scrapeIndexed() throws IOException {
+        return new IndexedScrapeResult(scrape());
+    }
+
     public void scrape(@NotNull PrometheusMetricsWalker walker) throws IOException {
-        OpenConnectionDetails connectionDetails = openConnection(this.url);
-        try (InputStream inputStream = connectionDetails.getInputStream()) {
-            String contentType = connectionDetails.getContentType();
-
-            // if we were given a content type - we use it always. If we were not given a content type,
-            // then use the one given to the constructor (if one was given).
-            if ((contentType == null || contentType.contains("unknown"))) {
-                contentType = this.knownDataFormat == null ? "text/plain" : this.knownDataFormat.getContentType();
+        ByteBuffer mappedFile = mapFile();
+        if (mappedFile != null) {
+            ScrapeArena arena = acquireArena();
+            try {
+                walk(createProcessor(mappedFile, walker, arena));
+            } finally {
+                this.arena.set(arena);
             }
+            return;
+        }
+
+        process(openConnection(this.url), walkingProcessor(walker));
+    }
 
-            PrometheusMetricsProcessor<?> processor;
-            if (contentType.contains("application/vnd.google.protobuf")) {
-                processor = new BinaryPrometheusMetricsProcessor(inputStream, walker);
-            } else if (contentType.contains("text/plain")) {
-                processor = new TextPrometheusMetricsProcessor(inputStream, walker);
-            } else {
-                // unknown - since all Prometheus endpoints are required to support text, try it
-                log.debugf("Unknown content type for URL [%s]. Trying text format.", url);
-                processor = new TextPrometheusMetricsProcessor(inputStream, walker);
+    /**
+     * Reports every sample found at the endpoint to the given visitor. Unlike {@link #scrape(PrometheusMetricsWalker)}
+     * this does not build any {@link MetricFamily} objects, so consumers that only aggregate or forward samples
+     * can scrape without creating garbage for every sample.
+     *
+     * @param visitor the object that will be notified about the samples
+     * @throws IOException if failed to scrape data
+     */
+    public void scrape(@NotNull SampleVisitor visitor) throws IOException {
+        ByteBuffer mappedFile = mapFile();
+        if (mappedFile != null) {
+            ScrapeArena arena = acquireArena();
+            try {
+                createProcessor(mappedFile, null, arena).visit(visitor);
+            } finally {
+                this.arena.set(arena);
             }
+            return;
+        }
 
+        process(openConnection(this.url), visitingProcessor(visitor));
+    }
+
+    /**
+     * Asynchronous version of {@link #scrape()}.
+     *
+     * @return a future completed with all metric data found at the endpoint, or completed exceptionally with
+     *         an {@link IOException} if failed to scrape data
+     * @see #scrapeAsync(PrometheusMetricsWalker)
+     */
+    public @NotNull CompletableFuture<List<@NotNull MetricFamily>> scrapeAsync() {
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        return scrapeAsync(collector).thenApply(ignored -> Objects.requireNonNull(collector.getAllMetricFamilies(),
+                "collector.getAllMetricFamilies() cannot be null"));
+    }
+
+    /**
+     * Asynchronous version of {@link #scrape(PrometheusMetricsWalker)}.
+     * <p>
+     * HTTP endpoints are requested with the {@link #getHttpClient() shared HTTP client}, which keeps connections
+     * alive (and uses HTTP/2 where the endpoint supports it), so repeated scrapes of the same target do not pay for
+     * setting up a new connection each time. The response body is handed to the processor as it arrives; the
+     * processing runs on the {@link #getAsyncExecutor() async executor}. Other URLs, such as files,
+     * are scraped synchronously on that executor.
+     *
+     * @param walker the object that will be notified about the metrics
+     * @return a future completed once the walk is done, or completed exceptionally with an {@link IOException}
+     *         if failed to scrape data
+     */
+    public @NotNull CompletableFuture<Void> scrapeAsync(@NotNull PrometheusMetricsWalker walker) {
+        return scrapeAsync(() -> scrape(walker), walkingProcessor(walker));
+    }
+
+    /**
+     * Asynchronous version of {@link #scrape(SampleVisitor)}.
+     *
+     * @param visitor the object that will be notified about the samples
+     * @return a future completed once all samples were visited, or completed exceptionally with an
+     *         {@link IOException} if failed to scrape data
+     * @see #scrapeAsync(PrometheusMetricsWalker)
+     */
+    public @NotNull CompletableFuture<Void> scrapeAsync(@NotNull SampleVisitor visitor) {
+        return scrapeAsync(() -> scrape(visitor), visitingProcessor(visitor));
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    private interface ResponseProcessor {
+        void process(@NotNull InputStream inputStream, @Nullable String contentType, @NotNull ScrapeArena arena)
+                throws IOException;
+    }
+
+    private @NotNull ResponseProcessor walkingProcessor(@NotNull PrometheusMetricsWalker walker) {
+        return (inputStream, contentType, arena) -> walk(createProcessor(inputStream, contentType, walker, arena));
+    }
+
+    // a walk that exceeds the limits fails like a visit does, rather than with an unchecked exception
+    private static void walk(@NotNull PrometheusMetricsProcessor<?> processor) throws ScrapeLimitExceededException {
+        try {
             processor.walk();
+        } catch (UncheckedIOException e) {
+            if (e.getCause() instanceof ScrapeLimitExceededException limitExceeded) {
+                throw limitExceeded;
+            }
+            throw e;
+        }
+    }
+
+    private @NotNull ResponseProcessor visitingProcessor(@NotNull SampleVisitor visitor) {
+        return (inputStream, contentType, arena) -> createProcessor(inputStream, contentType, null, arena)
+                .visit(visitor);
+    }
+
+    /**
+     * Decodes the data of the opened connection and has the response processor process it, using the arena of
+     * this scraper. The stream of the connection is closed afterwards.
+     */
+    private void process(@NotNull OpenConnectionDetails connectionDetails,
+            @NotNull ResponseProcessor responseProcessor) throws IOException {
+        ScrapeArena arena = acquireArena();
+        InputStream connectionStream = connectionDetails.getInputStream();
+        try (InputStream inputStream = decode(connectionDetails, arena)) {
+            responseProcessor.process(inputStream, connectionDetails.getContentType(), arena);
+        } finally {
+            this.arena.set(arena);
+            // the decoding stream closes it as well, but it is not created if the content encoding is not supported
+            connectionStream.close();
+        }
+    }
+
+    // concurrent scrapes each need an arena of their own, so only one of them gets to reuse the kept one
+    private @NotNull ScrapeArena acquireArena() {
+        ScrapeArena arena = this.arena.getAndSet(null);
+        return arena == null ? new ScrapeArena() : arena;
+    }
+
+    /**
+     * @param synchronousScrape how to scrape the endpoint if it is not requested over HTTP
+     * @param responseProcessor how to process the response of the endpoint
+     */
+    private @NotNull CompletableFuture<Void> scrapeAsync(@NotNull IOAction synchronousScrape,
+            @NotNull ResponseProcessor responseProcessor) {
+        Executor executor = getAsyncExecutor();
+        String protocol = this.url.getProtocol();
+        if (this.file != null || !("http".equals(protocol) || "https".equals(protocol))) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    synchronousScrape.run();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor).exceptionallyCompose(PrometheusScraper::unwrapFailure);
+        }
+
+        HttpRequest request;
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(this.url.toURI())
+                    .timeout(getRequestTimeout())
+                    .header("Accept", getBinaryFormatContentType());
+            String acceptEncoding = getAcceptEncoding();
+            if (acceptEncoding != null) builder.header("Accept-Encoding", acceptEncoding);
+            if (this.authorization != null) builder.header("Authorization", this.authorization);
+            request = builder.GET().build();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new IOException("Cannot request URL: " + this.url, e));
+        }
+
+        return getHttpClient()
+                .sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .thenAcceptAsync(response -> {
+                    try {
+                        if (response.statusCode() / 100 != 2) {
+                            response.body().close();
+                            throw new IOException("Failed to scrape [" + this.url + "]: HTTP status "
+                                    + response.statusCode());
+                        }
+                        String contentType = response.headers().firstValue("Content-Type").orElse(null);
+                        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
+                        process(new OpenConnectionDetails(response.body(), contentType, contentEncoding),
+                                responseProcessor);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor)
+                .exceptionallyCompose(PrometheusScraper::unwrapFailure);
+    }
+
+    // have the future fail with the IOException itself rather than the exceptions wrapping it
+    private static @NotNull CompletableFuture<Void> unwrapFailure(@NotNull Throwable failure) {
+        Throwable cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return CompletableFuture.failedFuture(cause);
+    }
+
+    /**
+     * The HTTP client used by the asynchronous scrape methods. By default, this is a client shared by all scrapers,
+     * which pools connections and prefers HTTP/2. Subclasses can override this to use their own client, for example
+     * one that is set up with an SSL context for secure endpoints.
+     *
+     * @return the HTTP client to request the endpoint with
+     */
+    protected @NotNull HttpClient getHttpClient() {
+        return SharedHttpClient.INSTANCE;
+    }
+
+    /**
+     * The executor the asynchronous scrape methods process the response on. Processing blocks while waiting for
+     * more of the response body, so this must not be the common fork-join pool, which does not compensate for
+     * blocking reads and would be starved, along with everything else that runs on it. By default, this is an
+     * executor shared by all scrapers that runs every scrape on a virtual thread if the JVM supports them,
+     * otherwise on a pool of at most {@code max(16, 4 * processors)} daemon threads.
+     *
+     * @return the executor to process the scraped data on
+     */
+    protected @NotNull Executor getAsyncExecutor() {
+        return SharedAsyncExecutor.INSTANCE;
+    }
+
+    /**
+     * @return the time allowed for an asynchronous scrape request, until the response headers are received
+     */
+    protected @NotNull Duration getRequestTimeout() {
+        return DEFAULT_REQUEST_TIMEOUT;
+    }
+
+    /**
+     * @return the statistics of the data transferred by the scrapes of this scraper so far
+     */
+    public @NotNull TransferStats getTransferStats() {
+        return transferStats.snapshot();
+    }
+
+    /**
+     * Sets the limits on the data of the following scrapes. Scrapes whose data exceeds them fail with a
+     * {@link ScrapeLimitExceededException} as soon as the parser gets to the offending part of the data, and their
+     * walker is not told to finish.
+     *
+     * @param limits the limits to enforce, {@link ScrapeLimits#NONE} by default
+     */
+    public synchronized void setLimits(@NotNull ScrapeLimits limits) {
+        this.options = new ProcessorOptions.Builder(options).setLimits(limits).build();
+    }
+
+    /**
+     * @return the limits on the data of scrapes
+     */
+    @Contract(pure = true)
+    public @NotNull ScrapeLimits getLimits() {
+        return options.getLimits();
+    }
+
+    /**
+     * Sets the filter that selects the metric families the following scrapes report. The parsers skip the data of
+     * all other families without tokenizing it, which makes scraping a few families out of thousands much cheaper
+     * than dropping them after they were parsed.
+     *
+     * @param familyFilter the family filter, {@link FamilyFilter#ALL} by default
+     */
+    public synchronized void setFamilyFilter(@NotNull FamilyFilter familyFilter) {
+        this.options = new ProcessorOptions.Builder(options).setFamilyFilter(familyFilter).build();
+    }
+
+    /**
+     * @return the filter that selects the metric families scrapes report
+     */
+    @Contract(pure = true)
+    public @NotNull FamilyFilter getFamilyFilter() {
+        return options.getFamilyFilter();
+    }
+
+    /**
+     * Sets the relabeling rules applied to the samples of the following scrapes while they are parsed, before
+     * any metric is built from them.
+     *
+     * @param relabeling the relabeling rules, {@link Relabeling#NONE} by default
+     */
+    public synchronized void setRelabeling(@NotNull Relabeling relabeling) {
+        this.options = new ProcessorOptions.Builder(options).setRelabeling(relabeling).build();
+    }
+
+    /**
+     * @return the relabeling rules applied to the samples of scrapes
+     */
+    @Contract(pure = true)
+    public @NotNull Relabeling getRelabeling() {
+        return options.getRelabeling();
+    }
+
+    /**
+     * Sets the limits, the family filter and the relabeling rules of the following scrapes at once - see
+     * {@link #setLimits(ScrapeLimits)}, {@link #setFamilyFilter(FamilyFilter)} and
+     * {@link #setRelabeling(Relabeling)}. The arena of the options is not used, since the scraper keeps the arenas
+     * of its scrapes itself.
+     *
+     * @param options the options of the following scrapes
+     */
+    public synchronized void setProcessorOptions(@NotNull ProcessorOptions options) {
+        this.options = new ProcessorOptions.Builder(options).setArena(null).build();
+    }
+
+    /**
+     * The value of the <code>Accept-Encoding</code> header of scrape requests. By default, the endpoint is asked
+     * to compress the data with gzip or deflate, which the data is decompressed from as it is parsed. Subclasses can
+     * return null to have the data transferred uncompressed, e.g. if the endpoint is on the same host and
+     * decompression would cost more than it saves.
+     *
+     * @return the content encodings to accept, or null to not send the header
+     */
+    @Contract(pure = true)
+    protected @Nullable String getAcceptEncoding() {
+        return "gzip, deflate";
+    }
+
+    /**
+     * @return a stream of the decompressed data of the opened connection, which records the transfer statistics
+     *         when closed
+     * @throws IOException if the data is compressed with an unsupported content encoding
+     */
+    private @NotNull InputStream decode(@NotNull OpenConnectionDetails connectionDetails, @NotNull ScrapeArena arena)
+            throws IOException {
+        return new DecodingInputStream(connectionDetails.getInputStream(), connectionDetails.getContentEncoding(),
+                transferStats, arena);
+    }
+
+    /**
+     * Creates the processor for the data format of the opened connection.
+     *
+     * @param inputStream the data of the opened connection
+     * @param contentType the content type of the data, as provided by the connection
+     * @param walker the walker for the processor, or null if it is going to be visited
+     * @param arena where the processor keeps its parser between scrapes
+     * @return the processor that reads the data from the connection
+     */
+    private @NotNull PrometheusMetricsProcessor<?> createProcessor(@NotNull InputStream inputStream,
+            @Nullable String contentType, @Nullable PrometheusMetricsWalker walker, @NotNull ScrapeArena arena) {
+        ProcessorOptions options = new ProcessorOptions.Builder(this.options).setArena(arena).build();
+        if (isBinary(contentType)) {
+            return new BinaryPrometheusMetricsProcessor(inputStream, walker, options);
+        }
+        return new TextPrometheusMetricsProcessor(inputStream, walker, options);
+    }
+
+    // the mapped data of the file is parsed in place, but the parser and its caches still come from the arena
+    private @NotNull PrometheusMetricsProcessor<?> createProcessor(@NotNull ByteBuffer mappedFile,
+            @Nullable PrometheusMetricsWalker walker, @NotNull ScrapeArena arena) {
+        ProcessorOptions options = new ProcessorOptions.Builder(this.options).setArena(arena).build();
+        if (isBinary(null)) {
+            return new BinaryPrometheusMetricsProcessor(new ByteBufferInputStream(mappedFile), walker, options);
+        }
+        return new TextPrometheusMetricsProcessor(mappedFile, walker, options);
+    }
+
+    /**
+     * Memory maps the file given to the constructor.
+     *
+     * @return the mapped file content, or null if this scraper was not given a file or the file is too large
+     *         to be mapped into a single buffer, in which case it is streamed instead
+     * @throws IOException if the file could not be mapped
+     */
+    private @Nullable ByteBuffer mapFile() throws IOException {
+        if (this.file == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                log.debugf("File [%s] is too large to be mapped (%d bytes) - it will be streamed", this.file, size);
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Determines the data format of the scraped data.
+     *
+     * @param contentType the content type of the data, as provided by the connection
+     * @return true if the data is in binary format, false if it is (or is assumed to be) in text format
+     */
+    private boolean isBinary(@Nullable String contentType) {
+        // if we were given a content type - we use it always. If we were not given a content type,
+        // then use the one given to the constructor (if one was given).
+        if ((contentType == null || contentType.contains("unknown"))) {
+            contentType = this.knownDataFormat == null ? "text/plain" : this.knownDataFormat.getContentType();
+        }
+
+        if (contentType.contains("application/vnd.google.protobuf")) {
+            return true;
+        } else if (!contentType.contains("text/plain")) {
+            // unknown - since all Prometheus endpoints are required to support text, try it
+            log.debugf("Unknown content type for URL [%s]. Trying text format.", url);
         }
+        return false;
     }
 
     /**
@@ -205,6 +652,8 @@ public class PrometheusScraper {
      * <p>
      * If subclasses return a null content type in the returned object the data format passed to this
      * object's constructor will be assumed as the data format in the input stream.
+     * Subclasses that send the {@link #getAcceptEncoding() Accept-Encoding} header must return the content encoding
+     * of the response, so that the data is decompressed.
      * <p>
      * The default implementation is to simply open an unsecured connection to the URL.
      *
@@ -217,9 +666,11 @@ public class PrometheusScraper {
     protected @NotNull OpenConnectionDetails openConnection(@NotNull URL endpointUrl) throws IOException {
         URLConnection conn = endpointUrl.openConnection();
         conn.setRequestProperty("Accept", getBinaryFormatContentType());
+        String acceptEncoding = getAcceptEncoding();
+        if (acceptEncoding != null) conn.setRequestProperty("Accept-Encoding", acceptEncoding);
         if (this.authorization != null) conn.setRequestProperty("Authorization", this.authorization);
         InputStream stream = conn.getInputStream();
         String contentType = conn.getContentType();
-        return new OpenConnectionDetails(stream, contentType);
+        return new OpenConnectionDetails(stream, contentType, conn.getContentEncoding());
     }
 }
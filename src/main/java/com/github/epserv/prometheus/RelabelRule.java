@@ -0,0 +1,173 @@
+package com.github.epserv.prometheus;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A Prometheus style metric relabeling rule, see the {@code metric_relabel_configs} of a Prometheus scrape config.
+ * The defaults are those of Prometheus: the {@link Action#REPLACE replace} action, the {@code ;} separator,
+ * the {@code (.*)} regex and the {@code $1} replacement.
+ * <p>
+ * The {@code __name__} source label refers to the sample name. Rules cannot change the sample name though, as that
+ * would move the sample out of its metric family.
+ * <p>
+ * Rules are {@link Relabeling compiled} before they are applied.
+ */
+public class RelabelRule {
+
+    public enum Action {
+        /**
+         * Sets the target label to the replacement if the regex matches the source value.
+         * A replacement that expands to the empty string removes the target label.
+         */
+        REPLACE,
+        /**
+         * Drops the sample if the regex does not match the source value.
+         */
+        KEEP,
+        /**
+         * Drops the sample if the regex matches the source value.
+         */
+        DROP,
+        /**
+         * Removes all labels whose name matches the regex.
+         */
+        LABELDROP,
+        /**
+         * Removes all labels whose name does not match the regex.
+         */
+        LABELKEEP,
+        /**
+         * Copies the value of all labels whose name matches the regex to the label named by the replacement.
+         */
+        LABELMAP
+    }
+
+    /**
+     * The name of the pseudo label that holds the sample name.
+     */
+    public static final String METRIC_NAME_LABEL = "__name__";
+
+    public static class Builder {
+        private Action action = Action.REPLACE;
+        private List<String> sourceLabels = List.of();
+        private String separator = ";";
+        private String regex = "(.*)";
+        private String targetLabel;
+        private String replacement = "$1";
+
+        public Builder setAction(@NotNull Action action) {
+            this.action = action;
+            return this;
+        }
+
+        /**
+         * @param sourceLabels the labels whose values are joined with the separator to the value the regex is
+         *                     matched against
+         */
+        public Builder setSourceLabels(@NotNull String... sourceLabels) {
+            this.sourceLabels = List.of(sourceLabels);
+            return this;
+        }
+
+        public Builder setSeparator(@NotNull String separator) {
+            this.separator = separator;
+            return this;
+        }
+
+        /**
+         * @param regex the regular expression, which must match the whole source value (or label name)
+         */
+        public Builder setRegex(@NotNull String regex) {
+            this.regex = regex;
+            return this;
+        }
+
+        /**
+         * @param targetLabel the label set by the {@link Action#REPLACE replace} action, which may refer to groups
+         *                    of the regex like the replacement
+         */
+        public Builder setTargetLabel(@Nullable String targetLabel) {
+            this.targetLabel = targetLabel;
+            return this;
+        }
+
+        /**
+         * @param replacement the replacement, in which {@code $1}, {@code ${1}} or {@code ${name}} refer to the groups
+         *                    of the regex and {@code $$} stands for a dollar sign
+         */
+        public Builder setReplacement(@NotNull String replacement) {
+            this.replacement = replacement;
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull RelabelRule build() {
+            return new RelabelRule(this);
+        }
+    }
+
+    private final @NotNull Action action;
+    private final @NotNull List<String> sourceLabels;
+    private final @NotNull String separator;
+    private final @NotNull String regex;
+    private final @Nullable String targetLabel;
+    private final @NotNull String replacement;
+
+    protected RelabelRule(@NotNull Builder builder) {
+        if (builder.action == null) throw new IllegalArgumentException("Need to set action");
+        if (builder.action == Action.REPLACE && builder.targetLabel == null) {
+            throw new IllegalArgumentException("Need to set targetLabel");
+        }
+        if (METRIC_NAME_LABEL.equals(builder.targetLabel)) {
+            throw new IllegalArgumentException("Relabeling cannot change the sample name");
+        }
+
+        this.action = builder.action;
+        this.sourceLabels = builder.sourceLabels;
+        this.separator = builder.separator;
+        this.regex = builder.regex;
+        this.targetLabel = builder.targetLabel;
+        this.replacement = builder.replacement;
+    }
+
+    @Contract(pure = true)
+    public @NotNull Action getAction() {
+        return action;
+    }
+
+    @Contract(pure = true)
+    public @NotNull List<String> getSourceLabels() {
+        return sourceLabels;
+    }
+
+    @Contract(pure = true)
+    public @NotNull String getSeparator() {
+        return separator;
+    }
+
+    @Contract(pure = true)
+    public @NotNull String getRegex() {
+        return regex;
+    }
+
+    @Contract(pure = true)
+    public @Nullable String getTargetLabel() {
+        return targetLabel;
+    }
+
+    @Contract(pure = true)
+    public @NotNull String getReplacement() {
+        return replacement;
+    }
+
+    @Override
+    public String toString() {
+        return "RelabelRule[" + action.name().toLowerCase(Locale.ROOT) + " " + sourceLabels + " =~ " + regex
+                + (targetLabel == null ? "" : " -> " + targetLabel + "=" + replacement) + "]";
+    }
+}
@@ -0,0 +1,299 @@
+package com.github.epserv.prometheus;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A list of {@link RelabelRule relabeling rules}, compiled into a program that is applied to every sample while it
+ * is parsed - before any {@code Metric} object is built. Samples dropped by a rule are never materialized, and
+ * the labels of a sample are only copied once, when the first rule changes them.
+ * <p>
+ * Compiling resolves everything that does not depend on the sample: the regular expressions are compiled, regexes
+ * without any special characters are matched by plain string comparison, {@code (.*)} and {@code .*} are known
+ * to match anything, and the replacements are split into literal parts and group references.
+ * <p>
+ * A relabeling is immutable and can be shared by any number of scrapes. The per-scrape state (matchers and
+ * buffers) lives in the {@link RelabelingSampleVisitor} created by {@link #apply(SampleVisitor)}.
+ */
+public final class Relabeling {
+
+    /**
+     * Does not change any sample.
+     */
+    public static final Relabeling NONE = new Builder().build();
+
+    // characters that make a regex more than a literal string
+    private static final String REGEX_META_CHARACTERS = "\\[](){}.*+?^$|";
+    private static final Pattern NAMED_GROUP = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    public static class Builder {
+        private final List<RelabelRule> rules = new ArrayList<>();
+
+        public Builder addRule(@NotNull RelabelRule rule) {
+            rules.add(rule);
+            return this;
+        }
+
+        public Builder addRules(@NotNull List<RelabelRule> rules) {
+            this.rules.addAll(rules);
+            return this;
+        }
+
+        /**
+         * @return the compiled rules
+         * @throws java.util.regex.PatternSyntaxException if a regex is not valid
+         */
+        @Contract("-> new")
+        public @NotNull Relabeling build() {
+            return new Relabeling(this);
+        }
+    }
+
+    private final @NotNull List<RelabelRule> rules;
+    final @NotNull Step @NotNull [] steps;
+
+    private Relabeling(@NotNull Builder builder) {
+        this.rules = List.copyOf(builder.rules);
+        this.steps = new Step[rules.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = new Step(rules.get(i));
+        }
+    }
+
+    /**
+     * @return the rules, in the order they are applied
+     */
+    @Contract(pure = true)
+    public @NotNull List<RelabelRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return true if there are no rules, so samples are never changed
+     */
+    @Contract(pure = true)
+    public boolean isEmpty() {
+        return steps.length == 0;
+    }
+
+    /**
+     * @param visitor the visitor to report the relabeled samples to
+     * @return a visitor that relabels the samples reported to it, or the given visitor if there are no rules
+     */
+    public @NotNull SampleVisitor apply(@NotNull SampleVisitor visitor) {
+        return isEmpty() ? visitor : new RelabelingSampleVisitor(this, visitor);
+    }
+
+    @Override
+    public String toString() {
+        return "Relabeling" + rules;
+    }
+
+    /**
+     * A compiled rule.
+     */
+    static final class Step {
+        final @NotNull RelabelRule.Action action;
+        final @NotNull String @NotNull [] sourceLabels;
+        final boolean @NotNull [] sourceIsName; // the __name__ pseudo label
+        final @NotNull String separator;
+        final @NotNull Pattern pattern;
+        final @Nullable String literal; // the regex if it has no special characters
+        final boolean matchesAll; // .* or (.*)
+        final boolean groupMatchesAll; // (.*), so group 1 is the whole value
+        final @Nullable Template target;
+        final @NotNull Template replacement;
+
+        Step(@NotNull RelabelRule rule) {
+            this.action = rule.getAction();
+            this.sourceLabels = rule.getSourceLabels().toArray(new String[0]);
+            this.sourceIsName = new boolean[sourceLabels.length];
+            for (int i = 0; i < sourceLabels.length; i++) {
+                sourceIsName[i] = RelabelRule.METRIC_NAME_LABEL.equals(sourceLabels[i]);
+            }
+            this.separator = rule.getSeparator();
+
+            String regex = rule.getRegex();
+            this.pattern = Pattern.compile(regex);
+            this.literal = isLiteral(regex) ? regex : null;
+            this.groupMatchesAll = regex.equals("(.*)");
+            this.matchesAll = groupMatchesAll || regex.equals(".*");
+
+            Set<String> groupNames = new HashSet<>();
+            Matcher namedGroups = NAMED_GROUP.matcher(regex);
+            while (namedGroups.find()) {
+                groupNames.add(namedGroups.group(1));
+            }
+            this.target = rule.getTargetLabel() == null ? null : new Template(rule.getTargetLabel(), groupNames);
+            this.replacement = new Template(rule.getReplacement(), groupNames);
+        }
+
+        private static boolean isLiteral(@NotNull String regex) {
+            for (int i = 0; i < regex.length(); i++) {
+                if (REGEX_META_CHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param matcher the matcher of this step, or null if the value was matched without one
+         */
+        void appendGroup(@NotNull StringBuilder out, @NotNull CharSequence value, @Nullable Matcher matcher,
+                int group) {
+            if (matcher != null) {
+                if (group <= matcher.groupCount() && matcher.start(group) >= 0) {
+                    out.append(value, matcher.start(group), matcher.end(group));
+                }
+            } else if (group == 0 || group == 1 && groupMatchesAll) {
+                out.append(value);
+            }
+        }
+
+        void appendGroup(@NotNull StringBuilder out, @NotNull CharSequence value, @Nullable Matcher matcher,
+                @NotNull String group) {
+            // named groups only exist in regexes that are matched with a matcher
+            if (matcher != null && matcher.start(group) >= 0) {
+                out.append(value, matcher.start(group), matcher.end(group));
+            }
+        }
+    }
+
+    /**
+     * A replacement split into literal parts and references to the groups of the regex, following the expansion
+     * rules of Go's {@code regexp.Expand} that Prometheus uses: {@code $name} takes the longest sequence of
+     * letters, digits and underscores as the name, a name that is not a number or a group of the regex expands to
+     * the empty string.
+     */
+    static final class Template {
+        // per part: either a literal, or a group name, or (if both are null) a group number
+        private final @Nullable String @NotNull [] literals;
+        private final @Nullable String @NotNull [] groupNames;
+        private final int @NotNull [] groups;
+        final @Nullable String constant; // the whole template if it has no group references
+
+        Template(@NotNull String template, @NotNull Set<String> knownGroupNames) {
+            List<String> literals = new ArrayList<>();
+            List<String> groupNames = new ArrayList<>();
+            List<Integer> groups = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            boolean references = false;
+            int i = 0;
+            while (i < template.length()) {
+                char c = template.charAt(i);
+                if (c != '$' || i + 1 == template.length()) {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+                if (template.charAt(i + 1) == '$') {
+                    literal.append('$');
+                    i += 2;
+                    continue;
+                }
+
+                String name;
+                if (template.charAt(i + 1) == '{') {
+                    int close = template.indexOf('}', i + 2);
+                    if (close < 0) {
+                        literal.append(c);
+                        i++;
+                        continue;
+                    }
+                    name = template.substring(i + 2, close);
+                    i = close + 1;
+                } else {
+                    int end = i + 1;
+                    while (end < template.length() && isNameChar(template.charAt(end))) {
+                        end++;
+                    }
+                    if (end == i + 1) {
+                        literal.append(c);
+                        i++;
+                        continue;
+                    }
+                    name = template.substring(i + 1, end);
+                    i = end;
+                }
+
+                references = true;
+                if (!literal.isEmpty()) {
+                    literals.add(literal.toString());
+                    groupNames.add(null);
+                    groups.add(-1);
+                    literal.setLength(0);
+                }
+                literals.add(null);
+                if (isNumber(name)) {
+                    groupNames.add(null);
+                    groups.add(name.length() > 9 ? Integer.MAX_VALUE : Integer.parseInt(name));
+                } else if (knownGroupNames.contains(name)) {
+                    groupNames.add(name);
+                    groups.add(-1);
+                } else {
+                    // unknown groups expand to nothing
+                    literals.set(literals.size() - 1, "");
+                    groupNames.add(null);
+                    groups.add(-1);
+                }
+            }
+            if (!literal.isEmpty()) {
+                literals.add(literal.toString());
+                groupNames.add(null);
+                groups.add(-1);
+            }
+
+            this.literals = literals.toArray(new String[0]);
+            this.groupNames = groupNames.toArray(new String[0]);
+            this.groups = groups.stream().mapToInt(Integer::intValue).toArray();
+            this.constant = references ? null : String.join("", literals);
+        }
+
+        private static boolean isNameChar(char c) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+        }
+
+        private static boolean isNumber(@NotNull String name) {
+            if (name.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Appends the expansion of this template for the given match.
+         */
+        void expand(@NotNull StringBuilder out, @NotNull Step step, @NotNull CharSequence value,
+                @Nullable Matcher matcher) {
+            if (constant != null) {
+                out.append(constant);
+                return;
+            }
+            for (int i = 0; i < literals.length; i++) {
+                String literal = literals[i];
+                String groupName = groupNames[i];
+                if (literal != null) {
+                    out.append(literal);
+                } else if (groupName != null) {
+                    step.appendGroup(out, value, matcher, groupName);
+                } else {
+                    step.appendGroup(out, value, matcher, groups[i]);
+                }
+            }
+        }
+    }
+}
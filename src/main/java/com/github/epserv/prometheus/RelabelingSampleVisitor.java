@@ -0,0 +1,181 @@
+package com.github.epserv.prometheus;
+
+import java.util.regex.Matcher;
+
+import com.github.epserv.prometheus.types.MetricType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Applies a {@link Relabeling} to the samples reported to it and reports the relabeled samples, unless they are
+ * dropped, to another visitor.
+ * <p>
+ * Samples that no rule changes are passed on with the labels the processor reported. Otherwise, the labels are
+ * copied into a reusable buffer once and all rules work on that, so relabeling does not create garbage for
+ * every sample.
+ * <p>
+ * Like any visitor, this one must only be used by one processor at a time.
+ */
+public class RelabelingSampleVisitor implements SampleVisitor {
+    private final @NotNull Relabeling.Step @NotNull [] steps;
+    private final @NotNull SampleVisitor delegate;
+
+    // per step, created when first needed
+    private final @Nullable Matcher @NotNull [] matchers;
+
+    // reused for every sample
+    private final @NotNull MutableSampleLabels relabeled = new MutableSampleLabels();
+    private final @NotNull StringBuilder sourceValue = new StringBuilder();
+    private final @NotNull StringBuilder targetLabel = new StringBuilder();
+    private final @NotNull StringBuilder targetValue = new StringBuilder();
+
+    /**
+     * @param relabeling the rules to apply
+     * @param delegate the visitor to report the relabeled samples to
+     */
+    public RelabelingSampleVisitor(@NotNull Relabeling relabeling, @NotNull SampleVisitor delegate) {
+        this.steps = relabeling.steps;
+        this.delegate = delegate;
+        this.matchers = new Matcher[steps.length];
+    }
+
+    @Override
+    public void onStart() {
+        delegate.onStart();
+    }
+
+    @Override
+    public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, @Nullable CharSequence help) {
+        delegate.onFamily(name, type, help);
+    }
+
+    @Override
+    public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+        SampleLabels current = labels;
+        for (int s = 0; s < steps.length; s++) {
+            Relabeling.Step step = steps[s];
+            switch (step.action) {
+                case KEEP, DROP -> {
+                    boolean matches = matches(s, sourceValue(step, name, current));
+                    if (matches == (step.action == RelabelRule.Action.DROP)) {
+                        return;
+                    }
+                }
+                case REPLACE -> {
+                    CharSequence source = sourceValue(step, name, current);
+                    if (!matches(s, source)) {
+                        continue;
+                    }
+                    Matcher matcher = usedMatcher(s, step);
+                    targetLabel.setLength(0);
+                    step.target.expand(targetLabel, step, source, matcher);
+                    targetValue.setLength(0);
+                    step.replacement.expand(targetValue, step, source, matcher);
+
+                    current = copy(current, labels);
+                    if (targetValue.isEmpty()) {
+                        int index = relabeled.indexOf(targetLabel);
+                        if (index >= 0) {
+                            relabeled.remove(index);
+                        }
+                    } else if (!targetLabel.isEmpty()) {
+                        relabeled.set(targetLabel, targetValue);
+                    }
+                }
+                case LABELDROP, LABELKEEP -> {
+                    boolean keepMatching = step.action == RelabelRule.Action.LABELKEEP;
+                    for (int i = current.size() - 1; i >= 0; i--) {
+                        if (matches(s, current.name(i)) != keepMatching) {
+                            current = copy(current, labels);
+                            relabeled.remove(i);
+                        }
+                    }
+                }
+                case LABELMAP -> {
+                    for (int i = 0, size = current.size(); i < size; i++) {
+                        CharSequence labelName = current.name(i);
+                        if (!matches(s, labelName)) {
+                            continue;
+                        }
+                        targetLabel.setLength(0);
+                        step.replacement.expand(targetLabel, step, labelName, usedMatcher(s, step));
+                        if (targetLabel.isEmpty() || CharSequence.compare(targetLabel, labelName) == 0) {
+                            continue;
+                        }
+                        current = copy(current, labels);
+                        // the value may be overwritten by set() if the target label is the source of another label
+                        targetValue.setLength(0);
+                        targetValue.append(relabeled.value(i));
+                        relabeled.set(targetLabel, targetValue);
+                    }
+                }
+            }
+        }
+        delegate.onSample(name, current, value, timestamp);
+    }
+
+    @Override
+    public void onFinish() {
+        delegate.onFinish();
+    }
+
+    // the labels are only copied by the first rule that changes them
+    private @NotNull SampleLabels copy(@NotNull SampleLabels current, @NotNull SampleLabels original) {
+        if (current == relabeled) {
+            return relabeled;
+        }
+        relabeled.clear();
+        for (int i = 0; i < original.size(); i++) {
+            relabeled.add(original.name(i), original.value(i));
+        }
+        return relabeled;
+    }
+
+    private @NotNull CharSequence sourceValue(@NotNull Relabeling.Step step, @NotNull CharSequence name,
+            @NotNull SampleLabels labels) {
+        if (step.sourceLabels.length == 1) {
+            // no need to copy a single value
+            return sourceLabelValue(step, 0, name, labels);
+        }
+        sourceValue.setLength(0);
+        for (int i = 0; i < step.sourceLabels.length; i++) {
+            if (i > 0) {
+                sourceValue.append(step.separator);
+            }
+            sourceValue.append(sourceLabelValue(step, i, name, labels));
+        }
+        return sourceValue;
+    }
+
+    private static @NotNull CharSequence sourceLabelValue(@NotNull Relabeling.Step step, int index,
+            @NotNull CharSequence name, @NotNull SampleLabels labels) {
+        if (step.sourceIsName[index]) {
+            return name;
+        }
+        CharSequence value = labels.get(step.sourceLabels[index]);
+        return value == null ? "" : value;
+    }
+
+    private boolean matches(int s, @NotNull CharSequence value) {
+        Relabeling.Step step = steps[s];
+        if (step.matchesAll) {
+            return true;
+        }
+        if (step.literal != null) {
+            return CharSequence.compare(step.literal, value) == 0;
+        }
+        Matcher matcher = matchers[s];
+        if (matcher == null) {
+            matcher = step.pattern.matcher(value);
+            matchers[s] = matcher;
+        } else {
+            matcher.reset(value);
+        }
+        return matcher.matches();
+    }
+
+    // the matcher that holds the groups of the last match of the step, or null if it was matched without one
+    private @Nullable Matcher usedMatcher(int s, @NotNull Relabeling.Step step) {
+        return step.matchesAll || step.literal != null ? null : matchers[s];
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.epserv.prometheus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The labels of a single sample as seen by a {@link SampleVisitor}. Labels are kept in the order they were found.
+ */
+public interface SampleLabels {
+
+    /**
+     * @return the number of labels
+     */
+    int size();
+
+    /**
+     * @param index index of the label, where 0 is the first one
+     * @return the name of the label
+     */
+    @NotNull CharSequence name(int index);
+
+    /**
+     * @param index index of the label, where 0 is the first one
+     * @return the value of the label
+     */
+    @NotNull CharSequence value(int index);
+
+    /**
+     * Looks up the value of a label by its name.
+     *
+     * @param name the label name
+     * @return the value of the label, or null if there is no such label
+     */
+    default @Nullable CharSequence get(@NotNull CharSequence name) {
+        for (int i = 0; i < size(); i++) {
+            if (CharSequence.compare(name(i), name) == 0) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the labels into a new map, leaving out the label with the given name.
+     *
+     * @param excludedName name of a label that should not be copied, or null to copy all labels
+     * @return the labels, in order
+     */
+    @Contract("_ -> new")
+    default @NotNull Map<String, String> toMap(@Nullable String excludedName) {
+        Map<String, String> map = new LinkedHashMap<>(); // used linked hash map to retain ordering
+        for (int i = 0; i < size(); i++) {
+            String name = name(i).toString();
+            if (!name.equals(excludedName)) {
+                map.put(name, value(i).toString());
+            }
+        }
+        return map;
+    }
+}
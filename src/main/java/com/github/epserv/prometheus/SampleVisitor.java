@@ -0,0 +1,58 @@
+package com.github.epserv.prometheus;
+
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A low-level alternative to {@link PrometheusMetricsWalker}. Processors call a visitor with every raw sample
+ * as it is parsed, without building {@code MetricFamily} or {@code Metric} objects first.
+ * <p>
+ * Samples are reported the way they appear in the text exposition format: a summary is reported as its
+ * quantile samples (with a {@code quantile} label) plus its {@code _sum} and {@code _count} samples,
+ * and a histogram as its {@code _bucket} samples (with an {@code le} label) plus {@code _sum} and {@code _count}.
+ * <p>
+ * The character sequences and labels handed to the visitor are reused by the processor.
+ * They are only valid for the duration of the call; copy them (e.g. with {@code toString()}) to keep them.
+ *
+ * @see com.github.epserv.prometheus.walkers.WalkingSampleVisitor
+ */
+public interface SampleVisitor {
+
+    /**
+     * The timestamp passed to {@link #onSample} when the sample did not have one.
+     */
+    long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * Called when a visit has been started.
+     */
+    default void onStart() {
+    }
+
+    /**
+     * Called when a new metric family starts. All samples up to the next call belong to this family.
+     *
+     * @param name the name of the family
+     * @param type the type of the metrics in the family
+     * @param help the help description of the family, or null if there is none
+     */
+    void onFamily(@NotNull CharSequence name, @NotNull MetricType type, @Nullable CharSequence help);
+
+    /**
+     * Called for every sample of the current metric family.
+     *
+     * @param name the sample name, which may carry a {@code _sum}, {@code _count} or {@code _bucket} suffix
+     * @param labels the labels of the sample
+     * @param value the sample value
+     * @param timestamp the sample timestamp in milliseconds since the epoch, or {@link #NO_TIMESTAMP}
+     */
+    void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp);
+
+    /**
+     * Called when a visit has traversed all the samples.
+     */
+    default void onFinish() {
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.epserv.prometheus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Holds the state that is expensive to create for every scrape - the parsers with their read buffers, label storage
+ * and caches of the decoded family names and help texts - so that it can be reused by the next scrape of the
+ * same target.
+ * <p>
+ * Processors created with an arena take their parser from it and reset it instead of creating a new one. Since
+ * the exposition of a target hardly changes from one scrape to the next, the family names and help texts of the
+ * previous scrape are reused as well, so {@link PrometheusMetricsProcessor#visit(SampleVisitor) visiting} a
+ * stable target allocates close to nothing. (Walking still creates the metric families it hands to the walker.)
+ * <p>
+ * An arena must only be used by one scrape at a time. {@link PrometheusScraper} keeps one for its scrapes.
+ */
+public final class ScrapeArena {
+    private final @NotNull Map<Class<?>, Object> resources = new HashMap<>();
+    private byte[] transferBuffer;
+
+    /**
+     * Returns the resource of the given type, creating it on first use. Processors use this to keep their
+     * parsers across scrapes - the resource is expected to be reset by the caller before it is used again.
+     *
+     * @param type the type of the resource, which identifies it within this arena
+     * @param factory creates the resource if the arena does not hold one yet
+     * @param <T> the type of the resource
+     * @return the resource
+     */
+    public <T> @NotNull T get(@NotNull Class<T> type, @NotNull Supplier<? extends T> factory) {
+        Object resource = resources.get(type);
+        if (resource == null) {
+            resource = factory.get();
+            resources.put(type, resource);
+        }
+        return type.cast(resource);
+    }
+
+    /**
+     * Drops all resources, e.g. to release the memory of buffers that grew during an unusually large scrape.
+     */
+    public void clear() {
+        resources.clear();
+        transferBuffer = null;
+    }
+
+    /**
+     * @param size the minimum size of the buffer
+     * @return the buffer compressed response bodies are read into
+     */
+    byte @NotNull [] transferBuffer(int size) {
+        if (transferBuffer == null || transferBuffer.length < size) {
+            transferBuffer = new byte[size];
+        }
+        return transferBuffer;
+    }
+}
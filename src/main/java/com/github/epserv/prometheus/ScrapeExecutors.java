@@ -0,0 +1,67 @@
+package com.github.epserv.prometheus;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates the executors scrapes run on. Scrapes block while they read the response body, so they must not run on
+ * a pool that other code depends on, such as the common fork-join pool.
+ */
+final class ScrapeExecutors {
+    /**
+     * The number of threads of a {@link #newBoundedDaemonPool(String) bounded pool}.
+     */
+    static final int MAX_THREADS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+    private ScrapeExecutors() {
+    }
+
+    /**
+     * @return an executor that runs every task on its own virtual thread, or null if the JVM does not support them
+     */
+    static @Nullable ExecutorService newVirtualThreadExecutor() {
+        try {
+            // virtual threads are not available in all JVMs this runs on
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates the executor scrapes fall back to if the JVM does not support virtual threads. It has at most
+     * {@link #MAX_THREADS} threads, which time out when idle, and queues the tasks submitted while all of them are busy.
+     *
+     * @param namePrefix the prefix of the names of the threads, which are followed by a number
+     * @return a bounded pool of daemon threads
+     */
+    static @NotNull ThreadPoolExecutor newBoundedDaemonPool(@NotNull String namePrefix) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreadFactory(namePrefix));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @param namePrefix the prefix of the names of the threads, which are followed by a number
+     * @return a factory of daemon threads
+     */
+    static @NotNull ThreadFactory daemonThreadFactory(@NotNull String namePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,16 @@
+package com.github.epserv.prometheus;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a scrape is aborted because the scraped data exceeds one of the {@link ScrapeLimits}.
+ */
+public class ScrapeLimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ScrapeLimitExceededException(@NotNull String message) {
+        super(message);
+    }
+}
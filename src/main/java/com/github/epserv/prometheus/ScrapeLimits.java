@@ -0,0 +1,152 @@
+package com.github.epserv.prometheus;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits on the size of scraped data, like the {@code sample_limit}, {@code label_limit},
+ * {@code label_value_length_limit} and {@code body_size_limit} settings of a Prometheus scrape config.
+ * A limit of zero means there is no limit.
+ * <p>
+ * The parsers check the limits as they consume the data, so a scrape that exceeds a limit is aborted with a
+ * {@link ScrapeLimitExceededException} as soon as that is known, rather than after all of it has been parsed.
+ */
+public class ScrapeLimits {
+
+    /**
+     * No limits at all.
+     */
+    public static final ScrapeLimits NONE = new Builder().build();
+
+    public static class Builder {
+        private long sampleLimit;
+        private int labelLimit;
+        private int labelValueLengthLimit;
+        private long bodySizeLimit;
+
+        /**
+         * @param sampleLimit the maximum number of samples of a scrape, or 0 for no limit
+         */
+        public Builder setSampleLimit(long sampleLimit) {
+            this.sampleLimit = sampleLimit;
+            return this;
+        }
+
+        /**
+         * @param labelLimit the maximum number of labels of a sample, or 0 for no limit
+         */
+        public Builder setLabelLimit(int labelLimit) {
+            this.labelLimit = labelLimit;
+            return this;
+        }
+
+        /**
+         * @param labelValueLengthLimit the maximum number of characters of a label value, or 0 for no limit
+         */
+        public Builder setLabelValueLengthLimit(int labelValueLengthLimit) {
+            this.labelValueLengthLimit = labelValueLengthLimit;
+            return this;
+        }
+
+        /**
+         * @param bodySizeLimit the maximum number of (uncompressed) bytes of the scraped data, or 0 for no limit
+         */
+        public Builder setBodySizeLimit(long bodySizeLimit) {
+            this.bodySizeLimit = bodySizeLimit;
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull ScrapeLimits build() {
+            return new ScrapeLimits(this);
+        }
+    }
+
+    private final long sampleLimit;
+    private final int labelLimit;
+    private final int labelValueLengthLimit;
+    private final long bodySizeLimit;
+
+    protected ScrapeLimits(@NotNull Builder builder) {
+        if (builder.sampleLimit < 0) throw new IllegalArgumentException("Sample limit must not be negative");
+        if (builder.labelLimit < 0) throw new IllegalArgumentException("Label limit must not be negative");
+        if (builder.labelValueLengthLimit < 0) {
+            throw new IllegalArgumentException("Label value length limit must not be negative");
+        }
+        if (builder.bodySizeLimit < 0) throw new IllegalArgumentException("Body size limit must not be negative");
+
+        this.sampleLimit = builder.sampleLimit;
+        this.labelLimit = builder.labelLimit;
+        this.labelValueLengthLimit = builder.labelValueLengthLimit;
+        this.bodySizeLimit = builder.bodySizeLimit;
+    }
+
+    @Contract(pure = true)
+    public long getSampleLimit() {
+        return sampleLimit;
+    }
+
+    @Contract(pure = true)
+    public int getLabelLimit() {
+        return labelLimit;
+    }
+
+    @Contract(pure = true)
+    public int getLabelValueLengthLimit() {
+        return labelValueLengthLimit;
+    }
+
+    @Contract(pure = true)
+    public long getBodySizeLimit() {
+        return bodySizeLimit;
+    }
+
+    /**
+     * @param samples the number of samples parsed so far, including the current one
+     * @throws ScrapeLimitExceededException if there are more samples than allowed
+     */
+    public void checkSamples(long samples) throws ScrapeLimitExceededException {
+        if (sampleLimit > 0 && samples > sampleLimit) {
+            throw new ScrapeLimitExceededException("Scrape exceeds the sample limit of " + sampleLimit);
+        }
+    }
+
+    /**
+     * Checks the labels of a sample. Parsers call this whenever they have added a label to the sample, so the last
+     * label is the only one whose value still needs to be checked.
+     *
+     * @param sampleName the name of the sample
+     * @param labels the labels of the sample parsed so far
+     * @throws ScrapeLimitExceededException if the sample has more labels than allowed or its last label value
+     *                                      is longer than allowed
+     */
+    public void checkLastLabel(@NotNull CharSequence sampleName, @NotNull SampleLabels labels)
+            throws ScrapeLimitExceededException {
+        int size = labels.size();
+        if (labelLimit > 0 && size > labelLimit) {
+            throw new ScrapeLimitExceededException("Sample " + sampleName + " exceeds the label limit of "
+                    + labelLimit);
+        }
+        if (labelValueLengthLimit > 0 && size > 0 && labels.value(size - 1).length() > labelValueLengthLimit) {
+            throw new ScrapeLimitExceededException("Value of label " + labels.name(size - 1) + " of sample "
+                    + sampleName + " exceeds the label value length limit of " + labelValueLengthLimit);
+        }
+    }
+
+    /**
+     * @param bytes the number of bytes of the scraped data consumed so far
+     * @throws ScrapeLimitExceededException if there are more bytes than allowed
+     */
+    public void checkBodySize(long bytes) throws ScrapeLimitExceededException {
+        if (bodySizeLimit > 0 && bytes > bodySizeLimit) {
+            throw new ScrapeLimitExceededException("Scrape exceeds the body size limit of " + bodySizeLimit
+                    + " bytes");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScrapeLimits[samples=" + sampleLimit + ", labels=" + labelLimit + ", labelValueLength="
+                + labelValueLengthLimit + ", bodySize=" + bodySizeLimit + "]";
+    }
+}
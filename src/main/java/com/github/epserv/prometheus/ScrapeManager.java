@@ -0,0 +1,353 @@
+package com.github.epserv.prometheus;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Periodically scrapes a set of {@link ScrapeTarget targets}, each at its own interval and with its own walker.
+ * <p>
+ * Every scrape runs on its own virtual thread if the JVM supports them, otherwise on a bounded pool of daemon threads.
+ * The number of scrapes that run against the same host at the same time is capped. A target whose previous scrape
+ * is still running when the next one is due skips that scrape. A target whose host is already scraped by as many
+ * scrapes as allowed waits in a queue of the host, without holding a thread, until one of those scrapes completes.
+ * <p>
+ * Scrapes are scheduled on a hashed timing wheel. Each target is scraped at a fixed offset within its interval,
+ * derived from a stable hash of its URL (see {@link #getScrapeOffset(ScrapeTarget)}), so that targets with the same
+ * interval are spread evenly across it instead of all being scraped at the same moment. The offset is relative to
+ * the wall clock, so a target keeps its offset when the manager is restarted.
+ * <p>
+ * Aggregate statistics are available via {@link #getStats()}.
+ */
+public class ScrapeManager implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(ScrapeManager.class);
+
+    /**
+     * The default maximum number of scrapes that run against the same host at the same time.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_SCRAPES_PER_HOST = 4;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final int maxConcurrentScrapesPerHost;
+    private final @NotNull ExecutorService executor;
+    private final @NotNull TimingWheel wheel;
+    private final @NotNull Map<ScrapeTarget, ScheduledTarget> targets = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, HostPermits> hostPermits = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    // statistics
+    private final long startNanos = System.nanoTime();
+    private final @NotNull LongAdder scrapes = new LongAdder();
+    private final @NotNull LongAdder failures = new LongAdder();
+    private final @NotNull LongAdder overlapping = new LongAdder();
+    private final @NotNull LongAdder missed = new LongAdder();
+    private final @NotNull LongAdder due = new LongAdder();
+    private final @NotNull LongAdder totalLagNanos = new LongAdder();
+    private final @NotNull LongAccumulator maxLagNanos = new LongAccumulator(Math::max, 0);
+    private final @NotNull AtomicInteger inFlight = new AtomicInteger();
+    private final @NotNull LongAdder totalNanos = new LongAdder();
+    private final @NotNull LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public ScrapeManager() {
+        this(DEFAULT_MAX_CONCURRENT_SCRAPES_PER_HOST);
+    }
+
+    /**
+     * @param maxConcurrentScrapesPerHost the maximum number of scrapes that run against the same host at the same time
+     */
+    public ScrapeManager(int maxConcurrentScrapesPerHost) {
+        this(maxConcurrentScrapesPerHost, newScrapeExecutor());
+    }
+
+    /**
+     * @param maxConcurrentScrapesPerHost the maximum number of scrapes that run against the same host at the same time
+     * @param executor the executor that runs the scrapes - it is shut down when this manager is closed
+     */
+    public ScrapeManager(int maxConcurrentScrapesPerHost, @NotNull ExecutorService executor) {
+        if (maxConcurrentScrapesPerHost <= 0) {
+            throw new IllegalArgumentException("Max concurrent scrapes per host must be positive: "
+                    + maxConcurrentScrapesPerHost);
+        }
+        this.maxConcurrentScrapesPerHost = maxConcurrentScrapesPerHost;
+        this.executor = executor;
+        this.wheel = new TimingWheel(TICK_NANOS, TICKS_PER_WHEEL, "prometheus-scrape-scheduler");
+    }
+
+    /**
+     * Starts scraping the given target. The first scrape happens at the next {@link #getScrapeOffset(ScrapeTarget)
+     * offset} of the target, so within one interval.
+     *
+     * @param target the target to scrape
+     * @throws IllegalStateException if this manager is closed or already scrapes the target
+     */
+    public void addTarget(@NotNull ScrapeTarget target) {
+        if (closed) {
+            throw new IllegalStateException("Scrape manager is closed");
+        }
+        ScheduledTarget scheduled = new ScheduledTarget(target, createScraper(target));
+        if (targets.putIfAbsent(target, scheduled) != null) {
+            dropHostPermits(target);
+            throw new IllegalStateException("Target is already scraped: " + target);
+        }
+        long intervalNanos = target.getInterval().toNanos();
+        long wallClockNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        long untilOffset = Math.floorMod(getScrapeOffset(target).toNanos() - wallClockNanos, intervalNanos);
+        scheduled.schedule(System.nanoTime() + untilOffset);
+    }
+
+    /**
+     * Returns the offset within its interval at which a target is scraped, i.e. the target is scraped whenever
+     * the time since the epoch modulo the interval is the offset. The offset only depends on the URL and the interval
+     * of the target.
+     *
+     * @param target the target
+     * @return the offset, between zero (inclusive) and the interval of the target (exclusive)
+     */
+    public static @NotNull Duration getScrapeOffset(@NotNull ScrapeTarget target) {
+        long hash = Util.fnv(target.getUrl().toExternalForm());
+        return Duration.ofNanos(Math.floorMod(hash, target.getInterval().toNanos()));
+    }
+
+    /**
+     * Stops scraping the given target. A scrape of the target that is running is not interrupted.
+     *
+     * @param target the target to no longer scrape
+     * @return false if the target was not scraped by this manager
+     */
+    public boolean removeTarget(@NotNull ScrapeTarget target) {
+        ScheduledTarget scheduled = targets.remove(target);
+        if (scheduled == null) {
+            return false;
+        }
+        scheduled.cancel();
+        dropHostPermits(target);
+        return true;
+    }
+
+    /**
+     * @return the targets this manager scrapes
+     */
+    public @NotNull Set<ScrapeTarget> getTargets() {
+        return Collections.unmodifiableSet(targets.keySet());
+    }
+
+    /**
+     * @return a snapshot of the statistics of all scrapes run so far
+     */
+    public @NotNull ScrapeStats getStats() {
+        return new ScrapeStats(targets.size(), scrapes.sum(), failures.sum(), overlapping.sum(), missed.sum(),
+                inFlight.get(),
+                Duration.ofNanos(totalNanos.sum()), Duration.ofNanos(maxNanos.get()),
+                due.sum(), Duration.ofNanos(totalLagNanos.sum()), Duration.ofNanos(maxLagNanos.get()),
+                Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Stops scraping all targets. Scrapes that are running are not interrupted, but no new scrapes are started.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        targets.values().forEach(ScheduledTarget::cancel);
+        targets.clear();
+        hostPermits.clear();
+        wheel.close();
+        executor.shutdown();
+    }
+
+    /**
+     * Creates the scraper for a target. Subclasses can override this to return a scraper that, for example,
+     * connects securely to the target. Such a scraper should be given the
+     * {@link ScrapeTarget#getProcessorOptions() processor options} of the target.
+     *
+     * @param target the target that is going to be scraped
+     * @return the scraper that is used for all scrapes of the target
+     */
+    @Contract("_ -> new")
+    protected @NotNull PrometheusScraper createScraper(@NotNull ScrapeTarget target) {
+        PrometheusScraper scraper = new PrometheusScraper(target.getUrl(), target.getDataFormat(),
+                target.getAuthorization());
+        scraper.setProcessorOptions(target.getProcessorOptions());
+        return scraper;
+    }
+
+    private @NotNull HostPermits retainHostPermits(@NotNull ScrapeTarget target) {
+        return hostPermits.compute(target.getUrl().getHost(), (host, permits) -> {
+            if (permits == null) {
+                permits = new HostPermits(new Semaphore(maxConcurrentScrapesPerHost));
+            }
+            permits.targets++;
+            return permits;
+        });
+    }
+
+    // a scrape of the target that is still running or waiting releases its permit into the host permits it came from
+    private void dropHostPermits(@NotNull ScrapeTarget target) {
+        hostPermits.computeIfPresent(target.getUrl().getHost(),
+                (host, permits) -> --permits.targets == 0 ? null : permits);
+    }
+
+    private static @NotNull ExecutorService newScrapeExecutor() {
+        ExecutorService executor = ScrapeExecutors.newVirtualThreadExecutor();
+        if (executor == null) {
+            log.debugf("Virtual threads are not available - scrapes will run on a pool of %d threads",
+                    ScrapeExecutors.MAX_THREADS);
+            executor = ScrapeExecutors.newBoundedDaemonPool("prometheus-scrape-");
+        }
+        return executor;
+    }
+
+    /**
+     * The permits of the scrapes against a host, which are dropped when no scheduled target uses the host anymore.
+     * A target that is due while all permits are taken waits in a queue and is dispatched by the scrape that releases
+     * the next permit.
+     */
+    private static final class HostPermits {
+        private final @NotNull Semaphore semaphore;
+        private final @NotNull ConcurrentLinkedQueue<ScheduledTarget> waiting = new ConcurrentLinkedQueue<>();
+        private int targets; // only accessed while the map entry is computed
+
+        HostPermits(@NotNull Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        void offer(@NotNull ScheduledTarget target) {
+            waiting.add(target);
+            drain();
+        }
+
+        void release() {
+            semaphore.release();
+            drain();
+        }
+
+        // whoever adds a waiting target or releases a permit drains, so no target waits while a permit is free
+        private void drain() {
+            while (!waiting.isEmpty() && semaphore.tryAcquire()) {
+                ScheduledTarget next = waiting.poll();
+                if (next == null || !next.dispatch()) {
+                    semaphore.release();
+                }
+            }
+        }
+    }
+
+    private final class ScheduledTarget {
+        private final @NotNull ScrapeTarget target;
+        private final @NotNull PrometheusScraper scraper;
+        private final @NotNull HostPermits permits;
+        private final @NotNull AtomicBoolean running = new AtomicBoolean();
+        private volatile TimingWheel.Timeout timeout;
+        private volatile boolean cancelled;
+        private long deadlineNanos; // only accessed by the wheel's worker once scheduled
+
+        ScheduledTarget(@NotNull ScrapeTarget target, @NotNull PrometheusScraper scraper) {
+            this.target = target;
+            this.scraper = scraper;
+            this.permits = retainHostPermits(target);
+        }
+
+        void schedule(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+            try {
+                timeout = wheel.schedule(this::trigger, deadlineNanos);
+            } catch (IllegalStateException e) {
+                // the manager has been closed
+                cancelled = true;
+            }
+        }
+
+        // runs on the wheel's worker thread when the next scrape is due
+        void trigger() {
+            if (cancelled) {
+                return;
+            }
+            long now = System.nanoTime();
+            long lag = now - deadlineNanos;
+            due.increment();
+            totalLagNanos.add(lag);
+            maxLagNanos.accumulate(lag);
+
+            // stay at the offset of the target - if the scheduler fell behind by whole intervals, those are missed
+            long intervalNanos = target.getInterval().toNanos();
+            long next = deadlineNanos + intervalNanos;
+            if (next <= now) {
+                long intervals = (now - next) / intervalNanos + 1;
+                missed.add(intervals);
+                next += intervals * intervalNanos;
+            }
+            schedule(next);
+
+            if (!running.compareAndSet(false, true)) {
+                overlapping.increment();
+                log.debugf("Skipping scrape of %s - the previous scrape is still running", target);
+                return;
+            }
+            inFlight.incrementAndGet();
+            // the scrape is dispatched once it holds a permit of its host, so that no thread waits for the host
+            permits.offer(this);
+        }
+
+        // called while holding a permit of the host, returns false if the permit was not handed to a scrape
+        boolean dispatch() {
+            try {
+                executor.execute(this::scrape);
+                return true;
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                running.set(false);
+                return false;
+            }
+        }
+
+        private void scrape() {
+            if (cancelled) {
+                inFlight.decrementAndGet();
+                running.set(false);
+                permits.release();
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                scraper.scrape(target.getWalker());
+            } catch (Exception e) {
+                failures.increment();
+                log.debugf(e, "Failed to scrape %s", target);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                totalNanos.add(nanos);
+                maxNanos.accumulate(nanos);
+                scrapes.increment();
+                inFlight.decrementAndGet();
+                running.set(false);
+                permits.release();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            TimingWheel.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
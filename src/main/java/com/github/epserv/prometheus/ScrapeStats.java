@@ -0,0 +1,55 @@
+package com.github.epserv.prometheus;
+
+import java.time.Duration;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A snapshot of the aggregate statistics of the scrapes run by a {@link ScrapeManager}.
+ *
+ * @param targets the number of targets currently managed
+ * @param scrapes the number of scrapes completed, successfully or not
+ * @param failures the number of scrapes that failed
+ * @param overlapping the number of scrapes skipped because the previous scrape of the target was still running,
+ *        which points at slow targets
+ * @param missed the number of scrapes skipped because the scheduler fell behind by a whole interval, which points at
+ *        an overloaded scheduler
+ * @param inFlight the number of scrapes running (or waiting for their host) right now
+ * @param totalLatency the sum of the durations of all completed scrapes
+ * @param maxLatency the duration of the longest scrape
+ * @param due the number of times a scrape of a target was due, including overlapping scrapes
+ * @param totalSchedulingLag the sum of the delays between a scrape being due and the scheduler acting on it
+ * @param maxSchedulingLag the longest such delay
+ * @param uptime the time since the manager was started
+ */
+public record ScrapeStats(int targets, long scrapes, long failures, long overlapping, long missed, int inFlight,
+        @NotNull Duration totalLatency, @NotNull Duration maxLatency,
+        long due, @NotNull Duration totalSchedulingLag, @NotNull Duration maxSchedulingLag, @NotNull Duration uptime) {
+
+    /**
+     * @return the average duration of a scrape, or zero if there was no scrape yet
+     */
+    @Contract(pure = true)
+    public @NotNull Duration averageLatency() {
+        return scrapes == 0 ? Duration.ZERO : totalLatency.dividedBy(scrapes);
+    }
+
+    /**
+     * @return the average delay between a scrape being due and the scheduler acting on it, or zero if no scrape
+     *         was due yet
+     */
+    @Contract(pure = true)
+    public @NotNull Duration averageSchedulingLag() {
+        return due == 0 ? Duration.ZERO : totalSchedulingLag.dividedBy(due);
+    }
+
+    /**
+     * @return the number of scrapes completed per second since the manager was started
+     */
+    @Contract(pure = true)
+    public double scrapesPerSecond() {
+        long nanos = uptime.toNanos();
+        return nanos == 0 ? 0 : scrapes * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.epserv.prometheus;
+
+import java.net.URL;
+import java.time.Duration;
+
+import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An endpoint that a {@link ScrapeManager} scrapes periodically, along with the walker that is given the data of
+ * each scrape. Scrapes of the same target never overlap, so the walker does not need to be thread safe.
+ */
+public class ScrapeTarget {
+
+    public static class Builder {
+        private URL url;
+        private PrometheusDataFormat dataFormat;
+        private String authorization;
+        private Duration interval;
+        private PrometheusMetricsWalker walker;
+        private ScrapeLimits limits = ScrapeLimits.NONE;
+        private FamilyFilter familyFilter = FamilyFilter.ALL;
+        private Relabeling relabeling = Relabeling.NONE;
+
+        public Builder setUrl(@NotNull URL url) {
+            this.url = url;
+            return this;
+        }
+
+        /**
+         * @param dataFormat the data format to assume if the endpoint does not provide a content type
+         */
+        public Builder setDataFormat(@Nullable PrometheusDataFormat dataFormat) {
+            this.dataFormat = dataFormat;
+            return this;
+        }
+
+        /**
+         * @param authorization the <code>Authorization</code> header value, or null
+         */
+        public Builder setAuthorization(@Nullable String authorization) {
+            this.authorization = authorization;
+            return this;
+        }
+
+        public Builder setInterval(@NotNull Duration interval) {
+            this.interval = interval;
+            return this;
+        }
+
+        public Builder setWalker(@NotNull PrometheusMetricsWalker walker) {
+            this.walker = walker;
+            return this;
+        }
+
+        /**
+         * @param limits the limits on the data of each scrape, {@link ScrapeLimits#NONE} by default
+         */
+        public Builder setLimits(@NotNull ScrapeLimits limits) {
+            this.limits = limits;
+            return this;
+        }
+
+        /**
+         * @param familyFilter selects the metric families the walker is given, {@link FamilyFilter#ALL} by default
+         */
+        public Builder setFamilyFilter(@NotNull FamilyFilter familyFilter) {
+            this.familyFilter = familyFilter;
+            return this;
+        }
+
+        /**
+         * @param relabeling the relabeling rules applied to the samples, {@link Relabeling#NONE} by default
+         */
+        public Builder setRelabeling(@NotNull Relabeling relabeling) {
+            this.relabeling = relabeling;
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull ScrapeTarget build() {
+            return new ScrapeTarget(this);
+        }
+    }
+
+    private final @NotNull URL url;
+    private final @Nullable PrometheusDataFormat dataFormat;
+    private final @Nullable String authorization;
+    private final @NotNull Duration interval;
+    private final @NotNull PrometheusMetricsWalker walker;
+    private final @NotNull ProcessorOptions processorOptions;
+
+    protected ScrapeTarget(@NotNull Builder builder) {
+        if (builder.url == null) throw new IllegalArgumentException("Need to set url");
+        if (builder.interval == null) throw new IllegalArgumentException("Need to set interval");
+        if (builder.walker == null) throw new IllegalArgumentException("Need to set walker");
+        if (builder.limits == null) throw new IllegalArgumentException("Need to set limits");
+        if (builder.familyFilter == null) throw new IllegalArgumentException("Need to set familyFilter");
+        if (builder.relabeling == null) throw new IllegalArgumentException("Need to set relabeling");
+        if (builder.interval.isNegative() || builder.interval.isZero()) {
+            throw new IllegalArgumentException("Interval must be positive: " + builder.interval);
+        }
+
+        this.url = builder.url;
+        this.dataFormat = builder.dataFormat;
+        this.authorization = builder.authorization;
+        this.interval = builder.interval;
+        this.walker = builder.walker;
+        this.processorOptions = new ProcessorOptions.Builder()
+                .setLimits(builder.limits)
+                .setFamilyFilter(builder.familyFilter)
+                .setRelabeling(builder.relabeling)
+                .build();
+    }
+
+    @Contract(pure = true)
+    public @NotNull URL getUrl() {
+        return url;
+    }
+
+    @Contract(pure = true)
+    public @Nullable PrometheusDataFormat getDataFormat() {
+        return dataFormat;
+    }
+
+    @Contract(pure = true)
+    public @Nullable String getAuthorization() {
+        return authorization;
+    }
+
+    @Contract(pure = true)
+    public @NotNull Duration getInterval() {
+        return interval;
+    }
+
+    @Contract(pure = true)
+    public @NotNull PrometheusMetricsWalker getWalker() {
+        return walker;
+    }
+
+    @Contract(pure = true)
+    public @NotNull ScrapeLimits getLimits() {
+        return processorOptions.getLimits();
+    }
+
+    @Contract(pure = true)
+    public @NotNull FamilyFilter getFamilyFilter() {
+        return processorOptions.getFamilyFilter();
+    }
+
+    @Contract(pure = true)
+    public @NotNull Relabeling getRelabeling() {
+        return processorOptions.getRelabeling();
+    }
+
+    /**
+     * @return the limits, the family filter and the relabeling rules of the target's scrapes, without an arena
+     */
+    @Contract(pure = true)
+    public @NotNull ProcessorOptions getProcessorOptions() {
+        return processorOptions;
+    }
+
+    @Override
+    public String toString() {
+        return "ScrapeTarget[" + url + " every " + interval + "]";
+    }
+}
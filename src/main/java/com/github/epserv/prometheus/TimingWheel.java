@@ -0,0 +1,165 @@
+package com.github.epserv.prometheus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A hashed timing wheel, see "Hashed and Hierarchical Timing Wheels" by Varghese and Lauck.
+ * <p>
+ * Tasks are put into the bucket of the tick their deadline falls into, so scheduling and cancelling a task is O(1)
+ * regardless of how many tasks there are, at the cost of firing tasks up to one tick late. Deadlines further away
+ * than one turn of the wheel are counted down in rounds.
+ * <p>
+ * All tasks run on the single worker thread of the wheel, so they must be short - e.g. hand the actual work to
+ * an executor.
+ */
+final class TimingWheel implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final int mask;
+    private final @NotNull Bucket @NotNull [] buckets;
+    private final @NotNull Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final @NotNull Thread worker;
+    private final long startNanos;
+    private long tick; // only accessed by the worker
+    private volatile boolean closed;
+
+    /**
+     * @param tickNanos the duration of a tick, which is the precision of the deadlines
+     * @param ticksPerWheel the number of buckets - rounded up to a power of two
+     * @param threadName the name of the worker thread
+     */
+    TimingWheel(long tickNanos, int ticksPerWheel, @NotNull String threadName) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickNanos);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("Ticks per wheel out of range: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if (size == 0) {
+            size = 1;
+        }
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, threadName);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedules a task to run once the given deadline has passed.
+     *
+     * @param task the task to run
+     * @param deadlineNanos the deadline, in terms of {@link System#nanoTime()}
+     * @return the handle to cancel the task with
+     * @throws IllegalStateException if the wheel is closed
+     */
+    @NotNull Timeout schedule(@NotNull Runnable task, long deadlineNanos) {
+        if (closed) {
+            throw new IllegalStateException("Timing wheel is closed");
+        }
+        Timeout timeout = new Timeout(task, deadlineNanos);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the worker thread. Tasks that are not due yet never run.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!closed) {
+            long tickDeadline = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = tickDeadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                if (closed) {
+                    return;
+                }
+            }
+
+            transferPending();
+            expire(buckets[(int) (tick & mask)].timeouts);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll()) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // the tick whose end is the first one at or after the deadline
+            long deadlineTick = Math.max((timeout.deadlineNanos - startNanos) / tickNanos, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].timeouts.add(timeout);
+        }
+    }
+
+    private void expire(@NotNull List<Timeout> bucket) {
+        // compacts the bucket in place, keeping the timeouts that are due in a later round
+        int kept = 0;
+        for (int i = 0, size = bucket.size(); i < size; i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                log.debugf(t, "Scheduled task failed");
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    // the timeouts of one slot of the wheel, only accessed by the worker
+    private static final class Bucket {
+        private final @NotNull List<Timeout> timeouts = new ArrayList<>();
+    }
+
+    /**
+     * A task scheduled on a {@link TimingWheel}.
+     */
+    static final class Timeout {
+        private final @NotNull Runnable task;
+        private final long deadlineNanos;
+        private long remainingRounds; // only accessed by the worker
+        private volatile boolean cancelled;
+
+        private Timeout(@NotNull Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running if it has not run yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
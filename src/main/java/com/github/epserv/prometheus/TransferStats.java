@@ -0,0 +1,66 @@
+package com.github.epserv.prometheus;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A snapshot of how much data the scrapes of a {@link PrometheusScraper} transferred, and what decompressing it cost.
+ * Comparing {@link #wireBytes()} with {@link #decodedBytes()} and {@link #decodingTime()} shows whether compressed
+ * transfer pays off for an endpoint.
+ *
+ * @param responses the number of responses read
+ * @param compressedResponses the number of those that were compressed
+ * @param wireBytes the number of bytes of the response bodies as received
+ * @param decodedBytes the number of bytes of the response bodies after decompression
+ * @param decodingTime the time spent decompressing the response bodies
+ */
+public record TransferStats(long responses, long compressedResponses, long wireBytes, long decodedBytes,
+        @NotNull Duration decodingTime) {
+
+    /**
+     * @return how many times larger the decoded data is than the data received, or 1 if nothing was received yet
+     */
+    @Contract(pure = true)
+    public double compressionRatio() {
+        return wireBytes == 0 ? 1 : (double) decodedBytes / wireBytes;
+    }
+
+    /**
+     * @return the number of bytes that compression saved per millisecond spent decompressing, or zero if nothing
+     *         was decompressed yet
+     */
+    @Contract(pure = true)
+    public double savedBytesPerDecodingMillisecond() {
+        long nanos = decodingTime.toNanos();
+        return nanos == 0 ? 0 : (decodedBytes - wireBytes) * 1e6 / nanos;
+    }
+
+    /**
+     * Accumulates the statistics of many responses, possibly read concurrently.
+     */
+    static final class Recorder {
+        private final @NotNull LongAdder responses = new LongAdder();
+        private final @NotNull LongAdder compressedResponses = new LongAdder();
+        private final @NotNull LongAdder wireBytes = new LongAdder();
+        private final @NotNull LongAdder decodedBytes = new LongAdder();
+        private final @NotNull LongAdder decodingNanos = new LongAdder();
+
+        void record(boolean compressed, long wireBytes, long decodedBytes, long decodingNanos) {
+            responses.increment();
+            if (compressed) {
+                compressedResponses.increment();
+            }
+            this.wireBytes.add(wireBytes);
+            this.decodedBytes.add(decodedBytes);
+            this.decodingNanos.add(decodingNanos);
+        }
+
+        @NotNull TransferStats snapshot() {
+            return new TransferStats(responses.sum(), compressedResponses.sum(), wireBytes.sum(), decodedBytes.sum(),
+                    Duration.ofNanos(decodingNanos.sum()));
+        }
+    }
+}
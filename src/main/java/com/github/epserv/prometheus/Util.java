@@ -1,28 +1,235 @@
 package com.github.epserv.prometheus;
 
+import java.nio.ByteBuffer;
+
 import org.jetbrains.annotations.NotNull;
 
 public class Util {
 
+    /**
+     * Parses a sample value, bucket bound or quantile. Besides decimal numbers this accepts
+     * NaN, +Inf and -Inf as required by the Prometheus spec.
+     *
+     * @param valueString the text to parse
+     * @return the parsed value
+     * @throws NumberFormatException if the text is not a number
+     */
     public static double convertStringToDouble(@NotNull String valueString) {
-        double doubleValue;
-        if (valueString.equalsIgnoreCase("NaN")) {
-            doubleValue = Double.NaN;
-        } else if (valueString.equalsIgnoreCase("+Inf")) {
-            doubleValue = Double.POSITIVE_INFINITY;
-        } else if (valueString.equalsIgnoreCase("-Inf")) {
-            doubleValue = Double.NEGATIVE_INFINITY;
+        return DoubleParser.parse(valueString, 0, valueString.length());
+    }
+
+    /**
+     * Same as {@link #convertStringToDouble(String)} but parses a range of characters without creating a string.
+     *
+     * @param chars the characters to parse
+     * @param from the index of the first character of the number
+     * @param to the index after the last character of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the range is not a number
+     */
+    public static double convertStringToDouble(@NotNull CharSequence chars, int from, int to) {
+        return DoubleParser.parse(chars, from, to);
+    }
+
+    /**
+     * Same as {@link #convertStringToDouble(String)} but parses a range of (ASCII) bytes without creating a string.
+     *
+     * @param bytes the bytes to parse - only absolute indices are used, the buffer's position is not changed
+     * @param from the index of the first byte of the number
+     * @param to the index after the last byte of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the range is not a number
+     */
+    public static double convertBytesToDouble(@NotNull ByteBuffer bytes, int from, int to) {
+        return DoubleParser.parse(bytes, from, to);
+    }
+
+    /**
+     * The maximum number of bytes {@link #appendDouble(byte[], int, double)} writes.
+     */
+    public static final int MAX_DOUBLE_LENGTH = DoubleFormatter.MAX_LENGTH;
+
+    /**
+     * Formats a value with the shortest representation that parses back to the same value,
+     * laid out like Prometheus exporters do (i.e. {@code 0.05}, {@code 144320} or {@code 1e-09}).
+     * Prometheus spec requires NaN to be denoted as "NaN", positive infinity as "+Inf" and negative infinity as "-Inf".
+     *
+     * @param value the value to format
+     * @return the formatted value
+     */
+    public static String convertDoubleToString(double value) {
+        StringBuilder str = new StringBuilder(MAX_DOUBLE_LENGTH);
+        DoubleFormatter.format(value, str);
+        return str.toString();
+    }
+
+    /**
+     * Same as {@link #convertDoubleToString(double)} but appends to the given builder.
+     *
+     * @param builder where the formatted value is appended
+     * @param value the value to format
+     * @return the builder
+     */
+    public static @NotNull StringBuilder appendDouble(@NotNull StringBuilder builder, double value) {
+        DoubleFormatter.format(value, builder);
+        return builder;
+    }
+
+    /**
+     * Same as {@link #convertDoubleToString(double)} but writes ASCII bytes into the given buffer.
+     *
+     * @param buffer where the formatted value is written; must have room for {@link #MAX_DOUBLE_LENGTH} bytes
+     * @param position where in the buffer to start writing
+     * @param value the value to format
+     * @return the position after the last byte written
+     */
+    public static int appendDouble(byte @NotNull [] buffer, int position, double value) {
+        return DoubleFormatter.format(value, buffer, position);
+    }
+
+    /**
+     * The maximum number of bytes {@link #appendLong(byte[], int, long)} writes.
+     */
+    public static final int MAX_LONG_LENGTH = 20;
+
+    /**
+     * Writes a value in decimal as ASCII bytes into the given buffer.
+     *
+     * @param buffer where the value is written; must have room for {@link #MAX_LONG_LENGTH} bytes
+     * @param position where in the buffer to start writing
+     * @param value the value to write
+     * @return the position after the last byte written
+     */
+    public static int appendLong(byte @NotNull [] buffer, int position, long value) {
+        if (value < 0) {
+            buffer[position++] = '-';
         } else {
-            doubleValue = Double.parseDouble(valueString);
+            value = -value; // negative values cover Long.MIN_VALUE
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' - value % 10);
+            value /= 10;
         }
-        return doubleValue;
+        return end;
     }
 
-    public static String convertDoubleToString(double value) {
-        // Prometheus spec requires positive infinity to be denoted as "+Inf" and negative infinity as "-Inf"
-        if (Double.isInfinite(value)) {
-            return (value < 0.0) ? "-Inf" : "+Inf";
+    /**
+     * Writes text as UTF-8 into the given buffer. Unpaired surrogates, which cannot be encoded, are written as
+     * {@code ?}.
+     *
+     * @param buffer where the text is written; must have room for 3 bytes per char of the text
+     * @param position where in the buffer to start writing
+     * @param text the text to write
+     * @return the position after the last byte written
+     */
+    public static int appendUtf8(byte @NotNull [] buffer, int position, @NotNull CharSequence text) {
+        return appendUtf8(buffer, position, text, 0, text.length());
+    }
+
+    /**
+     * Same as {@link #appendUtf8(byte[], int, CharSequence)} but writes a range of the characters of the text.
+     *
+     * @param buffer where the text is written; must have room for 3 bytes per char of the range
+     * @param position where in the buffer to start writing
+     * @param text the text to write
+     * @param from the index of the first character to write
+     * @param to the index after the last character to write
+     * @return the position after the last byte written
+     */
+    public static int appendUtf8(byte @NotNull [] buffer, int position, @NotNull CharSequence text, int from,
+            int to) {
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // 4 bytes for 2 chars
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[position++] = (byte) (0x80 | c & 0x3f);
+            }
         }
-        return String.format("%f", value);
+        return position;
+    }
+
+    /**
+     * Whether a sample of a family is the one with the given suffix, like the {@code _sum} sample of a summary. The
+     * sample name is assumed to start with the family name.
+     *
+     * @param sampleName the name of the sample
+     * @param familyNameLength the length of the name of the family of the sample
+     * @param suffix the suffix, such as {@code _sum}, {@code _count} or {@code _bucket}
+     * @return true if the sample name is the family name followed by the suffix
+     */
+    public static boolean hasSuffix(@NotNull CharSequence sampleName, int familyNameLength, @NotNull String suffix) {
+        if (sampleName.length() != familyNameLength + suffix.length()) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (sampleName.charAt(familyNameLength + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Hashes text with 64-bit FNV-1a, which unlike {@link String#hashCode()} spreads similar texts well.
+     *
+     * @param text the text to hash
+     * @return the hash
+     */
+    public static long fnv(@NotNull CharSequence text) {
+        return fnv(FNV_OFFSET, text);
+    }
+
+    private static long fnv(long hash, @NotNull CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Hashes a label. The hashes of the labels of a series can be added up to a hash of the series that does not
+     * depend on the order of its labels.
+     *
+     * @param name the name of the label
+     * @param value the value of the label
+     * @return the hash
+     */
+    public static long hashLabel(@NotNull CharSequence name, @NotNull CharSequence value) {
+        return mix(fnv(fnv(name) * FNV_PRIME, value));
+    }
+
+    /**
+     * Spreads the bits of a hash, with the finalizer of MurmurHash3.
+     *
+     * @param hash the hash to spread
+     * @return the spread hash
+     */
+    public static long mix(long hash) {
+        hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ hash >>> 33) * 0xc4ceb34f1a85ec53L;
+        return hash ^ hash >>> 33;
     }
 }
@@ -1,10 +1,13 @@
 package com.github.epserv.prometheus.binary;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.github.epserv.prometheus.ProcessorOptions;
 import com.github.epserv.prometheus.PrometheusMetricsProcessor;
+import com.github.epserv.prometheus.SampleVisitor;
 import com.github.epserv.prometheus.types.Counter;
 import com.github.epserv.prometheus.types.Gauge;
 import com.github.epserv.prometheus.types.MetricType;
@@ -16,21 +19,54 @@ import io.prometheus.client.Metrics.Quantile;
 import io.prometheus.client.Metrics.Summary;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * This will iterate over a list of Prometheus metrics that are given as binary protocol buffer data.
  */
 public class BinaryPrometheusMetricsProcessor extends PrometheusMetricsProcessor<MetricFamily> {
+    public BinaryPrometheusMetricsProcessor(@NotNull InputStream inputStream) {
+        super(inputStream);
+    }
+
     public BinaryPrometheusMetricsProcessor(@NotNull InputStream inputStream, @NotNull PrometheusMetricsWalker theWalker) {
         super(inputStream, theWalker);
     }
 
+    /**
+     * Note that the limits of the options are only enforced when walking or visiting, not by
+     * {@link #createPrometheusMetricDataParser() the parser} of the generated message classes.
+     *
+     * @param inputStream where the Prometheus metrics are that the walker or visitor will traverse.
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered,
+     *                  or null if the processor is only going to be visited
+     * @param options the arena, limits, family filter and relabeling rules to process the data with. The
+     *                messages of families the filter does not accept are skipped without being decoded.
+     */
+    public BinaryPrometheusMetricsProcessor(@NotNull InputStream inputStream,
+            @Nullable PrometheusMetricsWalker theWalker, @NotNull ProcessorOptions options) {
+        super(inputStream, theWalker, options);
+    }
+
     @Override
     @Contract("-> new")
     public @NotNull BinaryPrometheusMetricDataParser createPrometheusMetricDataParser() {
         return new BinaryPrometheusMetricDataParser(getInputStream());
     }
 
+    /**
+     * Decodes the protocol buffer messages straight into samples, without building any generated message objects.
+     * Unlike {@link #convert(MetricFamily)}, this supports histograms.
+     */
+    @Override
+    protected void visitSamples(@NotNull SampleVisitor visitor) throws IOException {
+        MetricFamilyDecoder decoder = getArena().get(MetricFamilyDecoder.class, MetricFamilyDecoder::new);
+        decoder.reset(getInputStream(), getLimits(), getFamilyFilter());
+        while (decoder.decode(visitor)) {
+            // keep going until the end of the data
+        }
+    }
+
     @Override
     @Contract("_ -> new")
     protected com.github.epserv.prometheus.types.@NotNull MetricFamily convert(@NotNull MetricFamily family) {
@@ -67,7 +103,9 @@ public class BinaryPrometheusMetricsProcessor extends PrometheusMetricsProcessor
                             .addQuantiles(hqList);
                     break;
                 case HISTOGRAM:
-                    /* NO HISTOGRAM SUPPORT IN PROMETHEUS JAVA MODEL API 0.0.2. Uncomment when 0.0.3 is released
+                    // NO HISTOGRAM SUPPORT IN PROMETHEUS JAVA MODEL API 0.0.2 - walk() and visit() use
+                    // MetricFamilyDecoder which does support them. Uncomment when 0.0.3 is released
+                    /*
                     Histogram histogram = metric.getHistogram();
                     List<Bucket> pbList = histogram.getBucketList();
                     List<com.github.epserv.prometheus.types.Histogram.Bucket> hbList;
@@ -0,0 +1,246 @@
+package com.github.epserv.prometheus.binary;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.github.epserv.prometheus.Util;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.Summary;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes metric families as varint length delimited {@code io.prometheus.client.MetricFamily} protocol buffer
+ * messages, the format {@link BinaryPrometheusMetricsProcessor} reads, e.g. to re-expose metrics scraped from a
+ * text endpoint to consumers of the binary format.
+ * <p>
+ * Like {@link MetricFamilyDecoder}, this encodes the wire format itself instead of building the generated message
+ * objects of the model API, which do not support histograms. Each family is encoded into a reusable buffer: a
+ * nested message reserves one byte for its length, which is all that messages shorter than 128 bytes need, and
+ * is only moved if its length turns out to need more. The buffer is written to the output stream once it holds
+ * more than {@value #FLUSH_THRESHOLD} bytes of complete messages, and when the writer is flushed.
+ * <p>
+ * A writer must only be used by one thread at a time.
+ */
+public class BinaryPrometheusMetricsWriter implements Flushable, Closeable {
+
+    /**
+     * The content type of the written data.
+     */
+    public static final String CONTENT_TYPE =
+            "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    private static final int FLUSH_THRESHOLD = 8192;
+
+    // wire types
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+
+    // io.prometheus.client.MetricType values
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_HISTOGRAM = 4;
+
+    private final @NotNull OutputStream out;
+    private byte @NotNull [] buffer = new byte[2 * FLUSH_THRESHOLD];
+    private int position;
+
+    /**
+     * NOTE: the stream is closed when this writer is closed.
+     *
+     * @param out the stream to write the length delimited messages to
+     */
+    public BinaryPrometheusMetricsWriter(@NotNull OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @param families the metric families to write
+     * @throws IOException if the output stream could not be written to
+     */
+    public void write(@NotNull List<@NotNull MetricFamily> families) throws IOException {
+        for (MetricFamily family : families) {
+            write(family);
+        }
+    }
+
+    /**
+     * @param family the metric family to write as one length delimited message
+     * @throws IOException if the output stream could not be written to
+     */
+    public void write(@NotNull MetricFamily family) throws IOException {
+        int familyStart = startMessage();
+        writeString(1, family.getName());
+        if (family.getHelp() != null) {
+            writeString(2, family.getHelp());
+        }
+        writeTag(3, VARINT);
+        writeVarint(switch (family.getType()) {
+            case COUNTER -> TYPE_COUNTER;
+            case GAUGE -> TYPE_GAUGE;
+            case SUMMARY -> TYPE_SUMMARY;
+            case HISTOGRAM -> TYPE_HISTOGRAM;
+        });
+        for (Metric metric : family.getMetrics()) {
+            writeTag(4, LENGTH_DELIMITED);
+            int metricStart = startMessage();
+            for (Map.Entry<String, String> label : metric.getLabels().entrySet()) {
+                writeTag(1, LENGTH_DELIMITED);
+                int labelStart = startMessage();
+                writeString(1, label.getKey());
+                writeString(2, label.getValue());
+                endMessage(labelStart);
+            }
+            if (metric instanceof Counter counter) {
+                writeTag(3, LENGTH_DELIMITED);
+                int valueStart = startMessage();
+                writeDouble(1, counter.getValue());
+                endMessage(valueStart);
+            } else if (metric instanceof Gauge gauge) {
+                writeTag(2, LENGTH_DELIMITED);
+                int valueStart = startMessage();
+                writeDouble(1, gauge.getValue());
+                endMessage(valueStart);
+            } else if (metric instanceof Summary summary) {
+                writeTag(4, LENGTH_DELIMITED);
+                int valueStart = startMessage();
+                writeUInt64(1, summary.getSampleCount());
+                writeDouble(2, summary.getSampleSum());
+                for (Summary.Quantile quantile : summary.getQuantiles()) {
+                    writeTag(3, LENGTH_DELIMITED);
+                    int quantileStart = startMessage();
+                    writeDouble(1, quantile.quantile());
+                    writeDouble(2, quantile.value());
+                    endMessage(quantileStart);
+                }
+                endMessage(valueStart);
+            } else if (metric instanceof Histogram histogram) {
+                writeTag(7, LENGTH_DELIMITED);
+                int valueStart = startMessage();
+                writeUInt64(1, histogram.getSampleCount());
+                writeDouble(2, histogram.getSampleSum());
+                for (Histogram.Bucket bucket : histogram.getBuckets()) {
+                    writeTag(3, LENGTH_DELIMITED);
+                    int bucketStart = startMessage();
+                    writeUInt64(1, bucket.cumulativeCount());
+                    writeDouble(2, bucket.upperBound());
+                    endMessage(bucketStart);
+                }
+                endMessage(valueStart);
+            }
+            endMessage(metricStart);
+        }
+        endMessage(familyStart);
+
+        if (position > FLUSH_THRESHOLD) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    // reserves one byte for the length of a message and returns where it starts
+    private int startMessage() {
+        ensure(1);
+        return position++;
+    }
+
+    // writes the length of the message, moving the message if the length takes more than the reserved byte
+    private void endMessage(int start) {
+        int length = position - start - 1;
+        int lengthSize = varintSize(length);
+        if (lengthSize > 1) {
+            ensure(lengthSize - 1);
+            System.arraycopy(buffer, start + 1, buffer, start + lengthSize, length);
+            position += lengthSize - 1;
+        }
+        int end = position;
+        position = start;
+        writeVarint(length);
+        position = end;
+    }
+
+    private void writeTag(int field, int wireType) {
+        writeVarint(field << 3 | wireType);
+    }
+
+    private void writeDouble(int field, double value) {
+        writeTag(field, FIXED64);
+        ensure(8);
+        long bits = Double.doubleToRawLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            buffer[position++] = (byte) (bits >>> (i * 8));
+        }
+    }
+
+    private void writeUInt64(int field, long value) {
+        writeTag(field, VARINT);
+        writeVarint(value);
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // writes a string field as UTF-8
+    private void writeString(int field, @NotNull String text) {
+        writeTag(field, LENGTH_DELIMITED);
+        int start = startMessage();
+        ensure(text.length() * 3);
+        position = Util.appendUtf8(buffer, position, text);
+        endMessage(start);
+    }
+
+    // makes room for the given number of bytes - a message is only written out once it is complete
+    private void ensure(int length) {
+        if (buffer.length - position < length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+
+    /**
+     * Writes the buffered messages to the output stream and flushes it.
+     *
+     * @throws IOException if the output stream could not be written to
+     */
+    @Override
+    public void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    /**
+     * Flushes this writer and closes the output stream.
+     *
+     * @throws IOException if the output stream could not be written to or closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
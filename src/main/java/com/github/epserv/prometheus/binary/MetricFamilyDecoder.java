@@ -0,0 +1,556 @@
+package com.github.epserv.prometheus.binary;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.github.epserv.prometheus.FamilyFilter;
+import com.github.epserv.prometheus.MutableSampleLabels;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.ScrapeLimits;
+import com.github.epserv.prometheus.Util;
+import com.github.epserv.prometheus.types.MetricType;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decodes the protocol buffer wire format of {@code io.prometheus.client.MetricFamily} messages, as written by
+ * Prometheus clients (varint length delimited), and reports their samples straight to a {@link SampleVisitor}.
+ * <p>
+ * Each message is read into a reusable buffer and decoded in place - no generated message objects are built.
+ * Unlike the generated classes of the model API this is built against, histograms (including gauge histograms)
+ * and sample timestamps are supported. Untyped metrics are reported as gauges. Fields this decoder does not know
+ * about, such as exemplars and native histogram buckets, are skipped.
+ * <p>
+ * A decoder can be {@link #reset(InputStream) reset} to decode another stream. It then reuses its buffers, and
+ * the family names and help texts of the previous stream if they did not change.
+ * <p>
+ * The {@link ScrapeLimits} given on reset are enforced as the stream is consumed: the body size before a message
+ * is read, the sample limit before a sample is reported and the label limits as each label is decoded.
+ * <p>
+ * Messages of families not accepted by the {@link FamilyFilter} are skipped by their length prefix: only the start
+ * of the message, which holds the family name, is read into the buffer.
+ */
+final class MetricFamilyDecoder {
+    private static final Logger log = Logger.getLogger(MetricFamilyDecoder.class);
+
+    // wire types
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+
+    // io.prometheus.client.MetricType values
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final int TYPE_UNTYPED = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+    private static final int TYPE_GAUGE_HISTOGRAM = 5;
+
+    // the family name is the first field in practice, so this much of a message tells whether to skip it
+    private static final int NAME_PEEK_LENGTH = 256;
+
+    private @NotNull InputStream inputStream;
+    private @NotNull ScrapeLimits limits = ScrapeLimits.NONE;
+    private @NotNull FamilyFilter filter = FamilyFilter.ALL;
+    private long bytesRead;
+    private long samples;
+    private byte[] buffer = new byte[8 * 1024];
+
+    // the family names and help texts by family index, kept across resets
+    private int familyIndex;
+    private @Nullable String @NotNull [] familyNames = new String[0];
+    private @Nullable String @NotNull [] familyHelps = new String[0];
+
+    // position in the buffer while decoding, and the last decoded tag
+    private int position;
+    private int tag;
+
+    private final @NotNull StringBuilder sampleName = new StringBuilder();
+    private final @NotNull MutableSampleLabels labels = new MutableSampleLabels();
+
+    /**
+     * NOTE: this object will not own this stream - it will never attempt to close it.
+     *
+     * @param inputStream the stream where the length delimited messages can be found
+     */
+    MetricFamilyDecoder(@NotNull InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Creates a decoder to be {@link #reset(InputStream) reset} before each use.
+     */
+    MetricFamilyDecoder() {
+        this(InputStream.nullInputStream());
+    }
+
+    /**
+     * Starts decoding another stream, keeping the buffers and caches of this decoder.
+     * NOTE: this object will not own this stream - it will never attempt to close it.
+     *
+     * @param inputStream the stream where the length delimited messages can be found
+     */
+    void reset(@NotNull InputStream inputStream) {
+        reset(inputStream, ScrapeLimits.NONE, FamilyFilter.ALL);
+    }
+
+    /**
+     * Starts decoding another stream, keeping the buffers and caches of this decoder.
+     * NOTE: this object will not own this stream - it will never attempt to close it.
+     *
+     * @param inputStream the stream where the length delimited messages can be found
+     * @param limits the limits to enforce on the stream
+     * @param filter selects the families to report
+     */
+    void reset(@NotNull InputStream inputStream, @NotNull ScrapeLimits limits, @NotNull FamilyFilter filter) {
+        this.inputStream = inputStream;
+        this.limits = limits;
+        this.filter = filter;
+        this.familyIndex = 0;
+        this.bytesRead = 0;
+        this.samples = 0;
+    }
+
+    /**
+     * Decodes the next metric family message and reports it and its samples to the visitor.
+     *
+     * @param visitor the object that will be notified about the family and its samples
+     * @return false if there were no more messages in the stream
+     * @throws IOException if failed to read the stream or if the data is not valid
+     */
+    boolean decode(@NotNull SampleVisitor visitor) throws IOException {
+        int first = inputStream.read();
+        if (first < 0) {
+            return false;
+        }
+        bytesRead++;
+        int length = readLength(first);
+        // check before reading, so an oversized message is not even buffered
+        bytesRead += length;
+        limits.checkBodySize(bytesRead);
+        if (familyIndex >= familyNames.length) {
+            familyNames = Arrays.copyOf(familyNames, Math.max(16, familyIndex * 2));
+            familyHelps = Arrays.copyOf(familyHelps, familyNames.length);
+        }
+
+        boolean accepted = filter.acceptsAll();
+        int read = 0;
+        if (!accepted) {
+            read = readFully(0, Math.min(length, NAME_PEEK_LENGTH), length);
+            String name = peekName(read);
+            if (name != null) {
+                if (!filter.accept(name)) {
+                    inputStream.skipNBytes(length - read);
+                    familyIndex++;
+                    return true;
+                }
+                accepted = true;
+            }
+        }
+        readFully(read, length, length);
+
+        decodeFamily(visitor, length, accepted);
+        familyIndex++;
+        return true;
+    }
+
+    /**
+     * Reads the bytes of the current message between the given offsets into the buffer. The buffer only grows
+     * as the bytes arrive, so that a bogus length prefix fails with an {@link EOFException} instead of allocating
+     * a buffer of up to 2 GiB first.
+     *
+     * @return the end offset
+     */
+    private int readFully(int from, int to, int length) throws IOException {
+        while (from < to) {
+            if (buffer.length == from) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(to, buffer.length * 2L));
+            }
+            int end = Math.min(to, buffer.length);
+            int read = inputStream.readNBytes(buffer, from, end - from);
+            if (read < end - from) {
+                throw new EOFException("Truncated metric family message: expected " + length + " bytes but got "
+                        + (from + read));
+            }
+            from = end;
+        }
+        return to;
+    }
+
+    /**
+     * @param available the number of bytes of the message in the buffer
+     * @return the family name if it is the first field of the message and all of it is available, otherwise null
+     */
+    private @Nullable String peekName(int available) throws IOException {
+        position = 0;
+        if (available == 0 || buffer[0] != (1 << 3 | LENGTH_DELIMITED)) {
+            return null;
+        }
+        position = 1;
+        long nameLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position >= available || shift > 28) {
+                return null;
+            }
+            byte b = buffer[position++];
+            nameLength |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (nameLength > available - position) {
+            return null;
+        }
+        position = 1;
+        String name = readString(available, familyNames[familyIndex]);
+        familyNames[familyIndex] = name;
+        return name;
+    }
+
+    /**
+     * @param accepted whether the filter is known to accept the family, otherwise it is checked once its name
+     *                 has been decoded
+     */
+    private void decodeFamily(@NotNull SampleVisitor visitor, int end, boolean accepted) throws IOException {
+        // the family header must be known before the metrics can be reported, so collect it first -
+        // metric messages are skipped over without being looked at
+        String name = "";
+        String help = null;
+        int type = TYPE_COUNTER; // the default of the enum field
+        position = 0;
+        while (position < end) {
+            switch (readTag(end)) {
+                case 1 << 3 | LENGTH_DELIMITED -> {
+                    name = readString(end, familyNames[familyIndex]);
+                    familyNames[familyIndex] = name;
+                }
+                case 2 << 3 | LENGTH_DELIMITED -> {
+                    help = readString(end, familyHelps[familyIndex]);
+                    familyHelps[familyIndex] = help;
+                }
+                case 3 << 3 | VARINT -> type = (int) readVarint(end);
+                default -> skipField(end);
+            }
+        }
+
+        if (!accepted && !filter.accept(name)) {
+            return;
+        }
+
+        MetricType metricType = switch (type) {
+            case TYPE_COUNTER -> MetricType.COUNTER;
+            case TYPE_GAUGE, TYPE_UNTYPED -> MetricType.GAUGE;
+            case TYPE_SUMMARY -> MetricType.SUMMARY;
+            case TYPE_HISTOGRAM, TYPE_GAUGE_HISTOGRAM -> MetricType.HISTOGRAM;
+            default -> null;
+        };
+        if (metricType == null) {
+            log.debugf("Ignoring metric family [%s] of unknown type [%d]", name, type);
+            return;
+        }
+
+        visitor.onFamily(name, metricType, help);
+
+        position = 0;
+        while (position < end) {
+            if (readTag(end) == (4 << 3 | LENGTH_DELIMITED)) {
+                int metricEnd = readLengthDelimitedEnd(end);
+                decodeMetric(visitor, name, metricType, metricEnd);
+                position = metricEnd;
+            } else {
+                skipField(end);
+            }
+        }
+    }
+
+    private void decodeMetric(@NotNull SampleVisitor visitor, @NotNull String name, @NotNull MetricType type, int end)
+            throws IOException {
+        // labels and the timestamp come first in practice, but the wire format allows any order
+        labels.clear();
+        long timestamp = SampleVisitor.NO_TIMESTAMP;
+        int valueStart = -1;
+        int valueEnd = -1;
+        int start = position;
+        while (position < end) {
+            int fieldTag = readTag(end);
+            switch (fieldTag) {
+                case 1 << 3 | LENGTH_DELIMITED -> decodeLabel(name, readLengthDelimitedEnd(end));
+                case 6 << 3 | VARINT -> timestamp = readVarint(end);
+                default -> {
+                    if (isValueTag(type, fieldTag)) {
+                        valueEnd = readLengthDelimitedEnd(end);
+                        valueStart = position;
+                        position = valueEnd;
+                    } else {
+                        skipField(end);
+                    }
+                }
+            }
+        }
+        if (valueStart < 0) {
+            // a missing value message has all of its fields set to their defaults
+            valueStart = start;
+            valueEnd = start;
+        }
+
+        position = valueStart;
+        switch (type) {
+            case COUNTER, GAUGE -> visitSample(visitor, name, decodeValue(valueEnd), timestamp);
+            case SUMMARY -> decodeSummary(visitor, name, timestamp, valueEnd);
+            case HISTOGRAM -> decodeHistogram(visitor, name, timestamp, valueEnd);
+        }
+    }
+
+    // the field of the Metric message that holds the value message for the type
+    private static boolean isValueTag(@NotNull MetricType type, int tag) {
+        if ((tag & 0x7) != LENGTH_DELIMITED) {
+            return false;
+        }
+        int field = tag >>> 3;
+        return switch (type) {
+            case GAUGE -> field == 2 || field == 5; // untyped metrics are reported as gauges
+            case COUNTER -> field == 3;
+            case SUMMARY -> field == 4;
+            case HISTOGRAM -> field == 7;
+        };
+    }
+
+    private void decodeLabel(@NotNull String name, int end) throws IOException {
+        StringBuilder labelName = labels.nextName();
+        StringBuilder labelValue = labels.nextValue();
+        while (position < end) {
+            switch (readTag(end)) {
+                case 1 << 3 | LENGTH_DELIMITED -> appendString(labelName, readLengthDelimitedEnd(end));
+                case 2 << 3 | LENGTH_DELIMITED -> appendString(labelValue, readLengthDelimitedEnd(end));
+                default -> skipField(end);
+            }
+        }
+        labels.commit();
+        limits.checkLastLabel(name, labels);
+    }
+
+    // Counter, Gauge and Untyped all have their value in field 1
+    private double decodeValue(int end) throws IOException {
+        double value = 0;
+        while (position < end) {
+            if (readTag(end) == (1 << 3 | FIXED64)) {
+                value = readDouble(end);
+            } else {
+                skipField(end);
+            }
+        }
+        return value;
+    }
+
+    private void decodeSummary(@NotNull SampleVisitor visitor, @NotNull String name, long timestamp, int end)
+            throws IOException {
+        long count = 0;
+        double sum = 0;
+        int realLabels = labels.size();
+        while (position < end) {
+            switch (readTag(end)) {
+                case 1 << 3 | VARINT -> count = readVarint(end);
+                case 2 << 3 | FIXED64 -> sum = readDouble(end);
+                case 3 << 3 | LENGTH_DELIMITED -> {
+                    int quantileEnd = readLengthDelimitedEnd(end);
+                    double quantile = 0;
+                    double value = 0;
+                    while (position < quantileEnd) {
+                        switch (readTag(quantileEnd)) {
+                            case 1 << 3 | FIXED64 -> quantile = readDouble(quantileEnd);
+                            case 2 << 3 | FIXED64 -> value = readDouble(quantileEnd);
+                            default -> skipField(quantileEnd);
+                        }
+                    }
+                    labels.nextName().append("quantile");
+                    Util.appendDouble(labels.nextValue(), quantile);
+                    labels.commit();
+                    limits.checkLastLabel(name, labels);
+                    visitSample(visitor, name, value, timestamp);
+                    labels.truncate(realLabels);
+                }
+                default -> skipField(end);
+            }
+        }
+        visitSumAndCount(visitor, name, timestamp, sum, count);
+    }
+
+    private void decodeHistogram(@NotNull SampleVisitor visitor, @NotNull String name, long timestamp, int end)
+            throws IOException {
+        double count = 0;
+        double sum = 0;
+        int realLabels = labels.size();
+        while (position < end) {
+            switch (readTag(end)) {
+                case 1 << 3 | VARINT -> count = readVarint(end);
+                case 4 << 3 | FIXED64 -> count = readDouble(end); // sample_count_float
+                case 2 << 3 | FIXED64 -> sum = readDouble(end);
+                case 3 << 3 | LENGTH_DELIMITED -> {
+                    int bucketEnd = readLengthDelimitedEnd(end);
+                    double cumulativeCount = 0;
+                    double upperBound = 0;
+                    while (position < bucketEnd) {
+                        switch (readTag(bucketEnd)) {
+                            case 1 << 3 | VARINT -> cumulativeCount = readVarint(bucketEnd);
+                            case 4 << 3 | FIXED64 -> cumulativeCount = readDouble(bucketEnd); // cumulative_count_float
+                            case 2 << 3 | FIXED64 -> upperBound = readDouble(bucketEnd);
+                            default -> skipField(bucketEnd);
+                        }
+                    }
+                    labels.nextName().append("le");
+                    Util.appendDouble(labels.nextValue(), upperBound);
+                    labels.commit();
+                    limits.checkLastLabel(name, labels);
+                    sampleName.setLength(0);
+                    visitSample(visitor, sampleName.append(name).append("_bucket"), cumulativeCount, timestamp);
+                    labels.truncate(realLabels);
+                }
+                default -> skipField(end);
+            }
+        }
+        visitSumAndCount(visitor, name, timestamp, sum, count);
+    }
+
+    private void visitSumAndCount(@NotNull SampleVisitor visitor, @NotNull String name, long timestamp, double sum,
+            double count) throws IOException {
+        sampleName.setLength(0);
+        visitSample(visitor, sampleName.append(name).append("_sum"), sum, timestamp);
+        sampleName.setLength(0);
+        visitSample(visitor, sampleName.append(name).append("_count"), count, timestamp);
+    }
+
+    private void visitSample(@NotNull SampleVisitor visitor, @NotNull CharSequence name, double value, long timestamp)
+            throws IOException {
+        limits.checkSamples(++samples);
+        visitor.onSample(name, labels, value, timestamp);
+    }
+
+    private int readLength(int first) throws IOException {
+        int length = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 28) {
+                throw new IOException("Malformed message length");
+            }
+            b = inputStream.read();
+            if (b < 0) {
+                throw new EOFException("Truncated message length");
+            }
+            bytesRead++;
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        if (length < 0) {
+            throw new IOException("Malformed message length: " + length);
+        }
+        return length;
+    }
+
+    private int readTag(int end) throws IOException {
+        tag = (int) readVarint(end);
+        return tag;
+    }
+
+    private long readVarint(int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= end) {
+                throw truncated();
+            }
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private double readDouble(int end) throws IOException {
+        if (end - position < 8) {
+            throw truncated();
+        }
+        long bits = 0;
+        for (int i = 7; i >= 0; i--) {
+            bits = bits << 8 | (buffer[position + i] & 0xFF);
+        }
+        position += 8;
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Reads the length of a length delimited field.
+     *
+     * @return the end of the field, the field's data starts at the current position
+     */
+    private int readLengthDelimitedEnd(int end) throws IOException {
+        long length = readVarint(end);
+        if (length < 0 || length > end - position) {
+            throw truncated();
+        }
+        return position + (int) length;
+    }
+
+    /**
+     * @param previous the string read at this place of the previous stream, which is returned if it did not change
+     */
+    private @NotNull String readString(int end, @Nullable String previous) throws IOException {
+        int stringEnd = readLengthDelimitedEnd(end);
+        int length = stringEnd - position;
+        if (previous != null && previous.length() == length) {
+            // only ASCII strings can match, as non-ASCII characters take more than one byte
+            int i = 0;
+            while (i < length && buffer[position + i] == previous.charAt(i)) {
+                i++;
+            }
+            if (i == length) {
+                position = stringEnd;
+                return previous;
+            }
+        }
+        String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position = stringEnd;
+        return string;
+    }
+
+    // ASCII strings are appended without creating any garbage
+    private void appendString(@NotNull StringBuilder builder, int end) {
+        for (int i = position; i < end; i++) {
+            if (buffer[i] < 0) {
+                builder.append(new String(buffer, position, end - position, StandardCharsets.UTF_8));
+                position = end;
+                return;
+            }
+        }
+        for (; position < end; position++) {
+            builder.append((char) buffer[position]);
+        }
+    }
+
+    private void skipField(int end) throws IOException {
+        switch (tag & 0x7) {
+            case VARINT -> readVarint(end);
+            case FIXED64 -> skipBytes(8, end);
+            case LENGTH_DELIMITED -> position = readLengthDelimitedEnd(end);
+            case FIXED32 -> skipBytes(4, end);
+            default -> throw new IOException("Unsupported wire type " + (tag & 0x7) + " of field " + (tag >>> 3));
+        }
+    }
+
+    private void skipBytes(int count, int end) throws IOException {
+        if (end - position < count) {
+            throw truncated();
+        }
+        position += count;
+    }
+
+    private static @NotNull IOException truncated() {
+        return new IOException("Truncated or malformed metric family message");
+    }
+}
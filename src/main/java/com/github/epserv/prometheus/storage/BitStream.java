@@ -0,0 +1,108 @@
+package com.github.epserv.prometheus.storage;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A growable sequence of bits, written and read most significant bit first. Bits are kept in 64-bit words, so
+ * writing or reading up to 64 bits at once touches at most two words.
+ */
+final class BitStream {
+    private long @NotNull [] words;
+    private int bitLength;
+
+    BitStream(int initialWords) {
+        this.words = new long[Math.max(1, initialWords)];
+    }
+
+    /**
+     * @return the number of bits written
+     */
+    int bitLength() {
+        return bitLength;
+    }
+
+    /**
+     * @return the number of bytes the written bits take
+     */
+    int byteLength() {
+        return (bitLength + 7) >>> 3;
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * @param value holds the bits to write in its lowest bits
+     * @param count the number of bits to write, between 1 and 64
+     */
+    void writeBits(long value, int count) {
+        int word = bitLength >>> 6;
+        if (word + 1 >= words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        long bits = count == 64 ? value : value & (1L << count) - 1;
+        int free = 64 - (bitLength & 63);
+        if (count <= free) {
+            words[word] |= bits << (free - count);
+        } else {
+            words[word] |= bits >>> (count - free);
+            words[word + 1] |= bits << (64 - (count - free));
+        }
+        bitLength += count;
+    }
+
+    /**
+     * Releases the space reserved for bits that were not written, once no more bits are going to be written.
+     */
+    void trim() {
+        int used = (bitLength + 63) >>> 6;
+        if (used < words.length) {
+            words = Arrays.copyOf(words, Math.max(1, used));
+        }
+    }
+
+    @NotNull Reader reader() {
+        return new Reader(words);
+    }
+
+    /**
+     * Reads the bits of a stream. The bits written after the reader was created may or may not be seen by it,
+     * so the reader must not read beyond the bits written when it was created.
+     */
+    static final class Reader {
+        private final long @NotNull [] words;
+        private int position;
+
+        private Reader(long @NotNull [] words) {
+            this.words = words;
+        }
+
+        boolean readBit() {
+            boolean bit = (words[position >>> 6] << (position & 63)) < 0;
+            position++;
+            return bit;
+        }
+
+        /**
+         * @param count the number of bits to read, between 1 and 64
+         * @return the bits in the lowest bits of the result
+         */
+        long readBits(int count) {
+            int word = position >>> 6;
+            int offset = position & 63;
+            int free = 64 - offset;
+            long bits;
+            if (count <= free) {
+                bits = (words[word] << offset) >>> (64 - count);
+            } else {
+                int rest = count - free;
+                bits = (words[word] & (1L << free) - 1) << rest | words[word + 1] >>> (64 - rest);
+            }
+            position += count;
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.epserv.prometheus.storage;
+
+/**
+ * A sample of a {@link TimeSeries}.
+ *
+ * @param timestamp the time of the sample, in milliseconds since the epoch
+ * @param value the value of the sample
+ */
+public record Sample(long timestamp, double value) {
+}
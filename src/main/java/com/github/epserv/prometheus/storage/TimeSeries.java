@@ -0,0 +1,153 @@
+package com.github.epserv.prometheus.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The samples of one series - a metric name and a set of labels - kept by a {@link TimeSeriesStore}.
+ * <p>
+ * Samples are appended to a head chunk, which is cut, i.e. closed and replaced by a new one, when it holds
+ * the {@linkplain TimeSeriesStore.Builder#setChunkSamples(int) configured number of samples}. Chunks are dropped
+ * as a whole once all their samples are older than the retention of the store.
+ * <p>
+ * A series is thread safe. Appending to a series obtained once with
+ * {@link TimeSeriesStore#getOrCreateSeries(String, java.util.Map)} avoids looking it up for every sample.
+ */
+public final class TimeSeries {
+    private final int id;
+    private final @NotNull String name;
+    private final @NotNull SortedMap<String, String> labels;
+    private final int chunkSamples;
+
+    private final @NotNull List<XorChunk> chunks = new ArrayList<>(); // closed, oldest first
+    private @NotNull XorChunk head = new XorChunk();
+    private boolean removed;
+
+    TimeSeries(int id, @NotNull String name, @NotNull SortedMap<String, String> labels, int chunkSamples) {
+        this.id = id;
+        this.name = name;
+        this.labels = Collections.unmodifiableSortedMap(labels);
+        this.chunkSamples = chunkSamples;
+    }
+
+    /**
+     * @return the id of this series, which is unique within its store
+     */
+    @Contract(pure = true)
+    public int getId() {
+        return id;
+    }
+
+    @Contract(pure = true)
+    public @NotNull String getName() {
+        return name;
+    }
+
+    /**
+     * @return the labels of this series, sorted by name
+     */
+    @Contract(pure = true)
+    public @NotNull SortedMap<String, String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * Appends a sample. Like Prometheus, a series only accepts samples in order: a sample that is not newer
+     * than the last sample is rejected.
+     *
+     * @param timestamp the time of the sample, in milliseconds since the epoch
+     * @param value the value of the sample
+     * @return false if the sample was rejected because it is not newer than the last sample, or because
+     *         the series was removed from its store by retention
+     */
+    public synchronized boolean append(long timestamp, double value) {
+        if (removed || head.count() > 0 && timestamp <= head.maxTime()) {
+            return false;
+        }
+        if (head.count() == chunkSamples) {
+            head.close();
+            chunks.add(head);
+            head = new XorChunk();
+        }
+        head.append(timestamp, value);
+        return true;
+    }
+
+    /**
+     * @param minTime the minimum timestamp of the samples, inclusive
+     * @param maxTime the maximum timestamp of the samples, inclusive
+     * @return the samples within the given time range, oldest first
+     */
+    public synchronized @NotNull List<Sample> getSamples(long minTime, long maxTime) {
+        List<Sample> samples = new ArrayList<>();
+        for (XorChunk chunk : chunks) {
+            addSamples(samples, chunk, minTime, maxTime);
+        }
+        addSamples(samples, head, minTime, maxTime);
+        return samples;
+    }
+
+    private static void addSamples(@NotNull List<Sample> samples, @NotNull XorChunk chunk, long minTime,
+            long maxTime) {
+        if (chunk.count() == 0 || chunk.maxTime() < minTime || chunk.minTime() > maxTime) {
+            return;
+        }
+        XorChunk.Iterator iterator = chunk.iterator();
+        while (iterator.next()) {
+            long timestamp = iterator.timestamp();
+            if (timestamp > maxTime) {
+                break;
+            }
+            if (timestamp >= minTime) {
+                samples.add(new Sample(timestamp, iterator.value()));
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples kept
+     */
+    public synchronized int getSampleCount() {
+        int count = head.count();
+        for (XorChunk chunk : chunks) {
+            count += chunk.count();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of bytes the compressed samples take
+     */
+    public synchronized long getChunkBytes() {
+        long bytes = head.byteLength();
+        for (XorChunk chunk : chunks) {
+            bytes += chunk.byteLength();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the chunks whose samples are all older than the given time.
+     *
+     * @return true if no samples are left, in which case the series is marked as removed
+     */
+    synchronized boolean truncate(long minTime) {
+        while (!chunks.isEmpty() && chunks.get(0).maxTime() < minTime) {
+            chunks.remove(0);
+        }
+        if (chunks.isEmpty() && (head.count() == 0 || head.maxTime() < minTime)) {
+            removed = true;
+        }
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return name + labels;
+    }
+}
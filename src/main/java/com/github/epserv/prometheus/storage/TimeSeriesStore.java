@@ -0,0 +1,249 @@
+package com.github.epserv.prometheus.storage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.epserv.prometheus.LabelMatcher;
+import com.github.epserv.prometheus.RelabelRule;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the recent history of scraped series in memory, compressed with the chunk encoding of Facebook's Gorilla
+ * time series database (which Prometheus uses as well): slowly changing series scraped at a regular interval take
+ * about one to two bytes per sample.
+ * <p>
+ * Series are registered by their name and labels on their first sample. Samples older than the
+ * {@linkplain Builder#setRetention(Duration) retention} are dropped chunk by chunk, and series without any
+ * remaining samples are removed, by {@link #applyRetention()}.
+ * <p>
+ * A store is thread safe, so the scrapes of all targets can append to the same store. The simplest way to feed
+ * it is a {@link com.github.epserv.prometheus.walkers.StoringPrometheusMetricsWalker}, which can log the samples
+ * to a {@link WriteAheadLog} as well, so the store can be rebuilt after a restart.
+ */
+public final class TimeSeriesStore {
+
+    /**
+     * The default time samples are kept for.
+     */
+    public static final Duration DEFAULT_RETENTION = Duration.ofHours(3);
+
+    /**
+     * The default number of samples after which a chunk is cut, the same as in Prometheus.
+     */
+    public static final int DEFAULT_CHUNK_SAMPLES = 120;
+
+    public static class Builder {
+        private Duration retention = DEFAULT_RETENTION;
+        private int chunkSamples = DEFAULT_CHUNK_SAMPLES;
+
+        /**
+         * @param retention how long samples are kept, relative to the newest sample of the store
+         */
+        public Builder setRetention(@NotNull Duration retention) {
+            if (retention.isNegative() || retention.isZero()) {
+                throw new IllegalArgumentException("Retention must be positive: " + retention);
+            }
+            this.retention = retention;
+            return this;
+        }
+
+        /**
+         * @param chunkSamples the number of samples after which the head chunk of a series is cut
+         */
+        public Builder setChunkSamples(int chunkSamples) {
+            if (chunkSamples <= 0) {
+                throw new IllegalArgumentException("Chunk samples must be positive: " + chunkSamples);
+            }
+            this.chunkSamples = chunkSamples;
+            return this;
+        }
+
+        @Contract("-> new")
+        public @NotNull TimeSeriesStore build() {
+            return new TimeSeriesStore(this);
+        }
+    }
+
+    // Map equality does not depend on the order or the implementation of the maps, so a key can be looked up
+    // with the labels of the caller, and the labels are only copied into a sorted map when the series is created
+    private record SeriesKey(@NotNull String name, @NotNull Map<String, String> labels) {
+    }
+
+    private final long retentionMillis;
+    private final int chunkSamples;
+    private final @NotNull Map<SeriesKey, TimeSeries> series = new ConcurrentHashMap<>();
+    private final @NotNull AtomicInteger nextId = new AtomicInteger();
+    private final @NotNull AtomicLong maxTime = new AtomicLong(Long.MIN_VALUE);
+    private final @NotNull AtomicLong retentionAppliedAt = new AtomicLong(Long.MIN_VALUE);
+
+    private TimeSeriesStore(@NotNull Builder builder) {
+        this.retentionMillis = builder.retention.toMillis();
+        this.chunkSamples = builder.chunkSamples;
+    }
+
+    @Contract(pure = true)
+    public @NotNull Duration getRetention() {
+        return Duration.ofMillis(retentionMillis);
+    }
+
+    /**
+     * Returns the series with the given name and labels, registering it if the store does not have it yet.
+     *
+     * @param name the metric name of the series
+     * @param labels the labels of the series, in any order
+     * @return the series
+     */
+    public @NotNull TimeSeries getOrCreateSeries(@NotNull String name, @NotNull Map<String, String> labels) {
+        TimeSeries existing = series.get(new SeriesKey(name, labels));
+        if (existing != null) {
+            return existing;
+        }
+        SortedMap<String, String> sortedLabels = new TreeMap<>(labels);
+        return series.computeIfAbsent(new SeriesKey(name, sortedLabels),
+                k -> new TimeSeries(nextId.getAndIncrement(), name, sortedLabels, chunkSamples));
+    }
+
+    /**
+     * Appends a sample to the series with the given name and labels, registering the series on its first sample.
+     *
+     * @param name the metric name of the series
+     * @param labels the labels of the series, in any order
+     * @param timestamp the time of the sample, in milliseconds since the epoch
+     * @param value the value of the sample
+     * @return false if the sample was rejected because it is not newer than the last sample of the series
+     */
+    public boolean append(@NotNull String name, @NotNull Map<String, String> labels, long timestamp, double value) {
+        return append(getOrCreateSeries(name, labels), timestamp, value) != null;
+    }
+
+    /**
+     * Appends a sample to a series of this store. If the series was removed by retention since it was obtained,
+     * it is registered again.
+     *
+     * @param timeSeries the series, obtained from {@link #getOrCreateSeries(String, Map)}
+     * @param timestamp the time of the sample, in milliseconds since the epoch
+     * @param value the value of the sample
+     * @return the series the sample was appended to, or null if the sample was rejected because it is not newer
+     *         than the last sample of the series
+     */
+    public @Nullable TimeSeries append(@NotNull TimeSeries timeSeries, long timestamp, double value) {
+        while (!timeSeries.append(timestamp, value)) {
+            SeriesKey key = new SeriesKey(timeSeries.getName(), timeSeries.getLabels());
+            if (series.get(key) == timeSeries) {
+                return null;
+            }
+            // removed by retention since it was looked up - register it again
+            timeSeries = getOrCreateSeries(timeSeries.getName(), timeSeries.getLabels());
+        }
+        maxTime.accumulateAndGet(timestamp, Math::max);
+        return timeSeries;
+    }
+
+    /**
+     * @return all series of the store
+     */
+    public @NotNull Collection<TimeSeries> getSeries() {
+        return Collections.unmodifiableCollection(series.values());
+    }
+
+    /**
+     * Selects the series that all given matchers match, like the Prometheus selector {@code {name="value", ...}}.
+     *
+     * @param matchers the label matchers, where {@code __name__} matches the metric name
+     * @return the matching series, in no particular order
+     */
+    public @NotNull List<TimeSeries> select(@NotNull LabelMatcher @NotNull ... matchers) {
+        List<TimeSeries> selected = new ArrayList<>();
+        series:
+        for (TimeSeries timeSeries : series.values()) {
+            for (LabelMatcher matcher : matchers) {
+                String value = RelabelRule.METRIC_NAME_LABEL.equals(matcher.getName()) ? timeSeries.getName()
+                        : timeSeries.getLabels().getOrDefault(matcher.getName(), "");
+                if (!matcher.matches(value)) {
+                    continue series;
+                }
+            }
+            selected.add(timeSeries);
+        }
+        return selected;
+    }
+
+    /**
+     * @return the number of series
+     */
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    /**
+     * @return the number of samples of all series
+     */
+    public long getSampleCount() {
+        long count = 0;
+        for (TimeSeries timeSeries : series.values()) {
+            count += timeSeries.getSampleCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of bytes the compressed samples of all series take
+     */
+    public long getChunkBytes() {
+        long bytes = 0;
+        for (TimeSeries timeSeries : series.values()) {
+            bytes += timeSeries.getChunkBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the timestamp of the newest sample, or {@link Long#MIN_VALUE} if the store has no samples
+     */
+    public long getMaxTime() {
+        return maxTime.get();
+    }
+
+    /**
+     * Drops the samples that are older than the retention, relative to the newest sample of the store. Since this
+     * looks at every series, it only does so if the newest sample advanced by a sixteenth of the retention since
+     * it last did; call it after every scrape.
+     */
+    public void applyRetention() {
+        long now = maxTime.get();
+        long last = retentionAppliedAt.get();
+        if (now == Long.MIN_VALUE || last != Long.MIN_VALUE && now - last < retentionMillis / 16
+                || !retentionAppliedAt.compareAndSet(last, now)) {
+            return;
+        }
+        truncate(now - retentionMillis);
+    }
+
+    /**
+     * Drops the chunks whose samples are all older than the given time, and the series that are left without
+     * samples.
+     *
+     * @param minTime the time, in milliseconds since the epoch, of the oldest sample to keep
+     */
+    public void truncate(long minTime) {
+        for (SeriesKey key : series.keySet()) {
+            series.computeIfPresent(key, (k, timeSeries) -> timeSeries.truncate(minTime) ? null : timeSeries);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSeriesStore[series=" + series.size() + ", retention=" + getRetention() + "]";
+    }
+}
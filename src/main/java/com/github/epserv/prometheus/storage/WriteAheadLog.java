@@ -0,0 +1,568 @@
+package com.github.epserv.prometheus.storage;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A durable, append-only log of the samples appended to a {@link TimeSeriesStore}, so that the store can be
+ * rebuilt after a restart.
+ * <p>
+ * The log is a directory of numbered segment files. Every segment is a sequence of records, each made of its
+ * length, a CRC-32C checksum and a payload that either defines a series (its id, name and labels) or holds a batch
+ * of samples. A segment defines every series its samples refer to, so segments can be deleted independently of
+ * each other. The log is written to the last segment, which is rotated once it exceeds the
+ * {@linkplain Builder#setSegmentSize(long) segment size}; a new log always starts a new segment.
+ * <p>
+ * Records are collected in a buffer and written with one {@link FileChannel} write once it fills up or when they
+ * are {@linkplain #commit() committed}. Commits are grouped: while one thread writes and syncs, the records of
+ * other threads accumulate and are made durable by the next single write and sync, so concurrent scrapes share
+ * the cost of syncing. The {@link SyncPolicy} decides whether commits sync the data to the disk at all.
+ * <p>
+ * On startup, {@link #replay(TimeSeriesStore)} reads the existing segments through memory mapped buffers. Replay
+ * stops at the first record that is incomplete or whose checksum does not match, which is where the previous
+ * process was stopped while writing.
+ * <p>
+ * A log is thread safe.
+ */
+public final class WriteAheadLog implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(WriteAheadLog.class);
+
+    /**
+     * The default size of a segment after which the log continues in a new segment.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 128L << 20;
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    private static final int HEADER_SIZE = 8; // length and checksum
+    private static final byte SERIES_RECORD = 1;
+    private static final byte SAMPLES_RECORD = 2;
+
+    /**
+     * When the log forces the written records to the disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Never - the records survive a crash of the process, since they were written to the operating system,
+         * but not necessarily a crash of the machine.
+         */
+        NEVER,
+
+        /**
+         * When the records are {@linkplain #commit() committed}, grouping the commits of concurrent threads.
+         */
+        ON_COMMIT,
+
+        /**
+         * After every record, which is the safest policy and by far the slowest one.
+         */
+        ALWAYS
+    }
+
+    public static class Builder {
+        private final @NotNull Path directory;
+        private SyncPolicy syncPolicy = SyncPolicy.ON_COMMIT;
+        private long segmentSize = DEFAULT_SEGMENT_SIZE;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+        /**
+         * @param directory the directory of the segment files, which is created if it does not exist
+         */
+        public Builder(@NotNull Path directory) {
+            this.directory = directory;
+        }
+
+        public Builder setSyncPolicy(@NotNull SyncPolicy syncPolicy) {
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         * @param segmentSize the size of a segment after which the log continues in a new segment. A segment
+         *        can grow beyond this by one batch of samples.
+         */
+        public Builder setSegmentSize(long segmentSize) {
+            if (segmentSize <= 0) {
+                throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * @param bufferSize the initial size of the buffer records are collected in before they are written
+         */
+        public Builder setBufferSize(int bufferSize) {
+            if (bufferSize < HEADER_SIZE) {
+                throw new IllegalArgumentException("Buffer size must be at least " + HEADER_SIZE + ": " + bufferSize);
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Opens the log, starting a new segment.
+         *
+         * @return the log
+         * @throws IOException if the directory or the segment could not be created
+         */
+        @Contract("-> new")
+        public @NotNull WriteAheadLog build() throws IOException {
+            return new WriteAheadLog(this);
+        }
+    }
+
+    private final @NotNull Path directory;
+    private final @NotNull SyncPolicy syncPolicy;
+    private final long segmentSize;
+    private final @NotNull CRC32C checksum = new CRC32C();
+
+    // guarded by this
+    private @NotNull ByteBuffer buffer;
+    private @NotNull FileChannel channel;
+    private int segment;
+    private long segmentBytes;
+    private long segmentMaxTime = Long.MIN_VALUE;
+    private long appended; // bytes appended to the log by this process, buffered or written
+    private final @NotNull BitSet loggedSeries = new BitSet(); // ids of the series defined in the current segment
+    private final @NotNull NavigableMap<Integer, Long> closedSegments = new TreeMap<>(); // max time per segment
+    private boolean closed;
+    // the channel a commit forces outside of this lock, which rotate() must not close under it
+    private @Nullable FileChannel syncingChannel;
+    private boolean syncingChannelRotated;
+
+    // guarded by syncLock
+    private final @NotNull Object syncLock = new Object();
+    private volatile long durable; // bytes known to be written and synced as the policy demands
+
+    private WriteAheadLog(@NotNull Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.syncPolicy = builder.syncPolicy;
+        this.segmentSize = builder.segmentSize;
+        this.buffer = ByteBuffer.allocate(builder.bufferSize);
+        Files.createDirectories(directory);
+        int last = -1;
+        for (int existing : listSegments()) {
+            last = Math.max(last, existing);
+        }
+        this.segment = last + 1;
+        this.channel = openSegment(segment);
+    }
+
+    private @NotNull List<Integer> listSegments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.length() == 8 && name.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                    segments.add(Integer.parseInt(name));
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private @NotNull Path segmentFile(int segment) {
+        return directory.resolve(String.format("%08d", segment));
+    }
+
+    private @NotNull FileChannel openSegment(int segment) throws IOException {
+        return FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @Contract(pure = true)
+    public @NotNull Path getDirectory() {
+        return directory;
+    }
+
+    @Contract(pure = true)
+    public @NotNull SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Appends a batch of samples to the log, preceded by the definitions of the series the current segment does
+     * not define yet. The samples are not durable before they are {@linkplain #commit() committed}.
+     *
+     * @param series the series of the samples
+     * @param timestamps the timestamps of the samples
+     * @param values the values of the samples
+     * @param count the number of samples, i.e. the number of elements of the arrays that are used
+     * @throws IOException if the records could not be written
+     */
+    public synchronized void log(@NotNull TimeSeries @NotNull [] series, long @NotNull [] timestamps,
+            double @NotNull [] values, int count) throws IOException {
+        if (closed) {
+            throw new IOException("Write-ahead log is closed");
+        }
+        if (count == 0) {
+            return;
+        }
+        if (segmentBytes >= segmentSize) {
+            rotate();
+        }
+
+        for (int i = 0; i < count; i++) {
+            TimeSeries timeSeries = series[i];
+            if (!loggedSeries.get(timeSeries.getId())) {
+                writeSeries(timeSeries);
+                loggedSeries.set(timeSeries.getId());
+            }
+        }
+
+        long baseTime = timestamps[0];
+        int start = beginRecord(SAMPLES_RECORD, 8 + 5 + count * (5 + 10 + 8));
+        buffer.putLong(baseTime);
+        putVarInt(count);
+        for (int i = 0; i < count; i++) {
+            putVarInt(series[i].getId());
+            putVarLong(zigZag(timestamps[i] - baseTime));
+            buffer.putDouble(values[i]);
+            segmentMaxTime = Math.max(segmentMaxTime, timestamps[i]);
+        }
+        endRecord(start);
+    }
+
+    private void writeSeries(@NotNull TimeSeries timeSeries) throws IOException {
+        byte[] name = timeSeries.getName().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> labels = new ArrayList<>(timeSeries.getLabels().size() * 2);
+        int size = 5 + 5 + name.length + 5;
+        for (Map.Entry<String, String> label : timeSeries.getLabels().entrySet()) {
+            byte[] labelName = label.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] labelValue = label.getValue().getBytes(StandardCharsets.UTF_8);
+            labels.add(labelName);
+            labels.add(labelValue);
+            size += 10 + labelName.length + labelValue.length;
+        }
+
+        int start = beginRecord(SERIES_RECORD, size);
+        putVarInt(timeSeries.getId());
+        putBytes(name);
+        putVarInt(labels.size() / 2);
+        for (byte[] bytes : labels) {
+            putBytes(bytes);
+        }
+        endRecord(start);
+    }
+
+    // reserves the header, returns the position of the record in the buffer
+    private int beginRecord(byte type, int maxPayloadSize) throws IOException {
+        int needed = HEADER_SIZE + 1 + maxPayloadSize;
+        if (buffer.remaining() < needed) {
+            writeBuffer();
+            if (buffer.capacity() < needed) {
+                buffer = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+            }
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(type);
+        return start;
+    }
+
+    private void endRecord(int start) throws IOException {
+        int end = buffer.position();
+        int length = end - start - HEADER_SIZE;
+        checksum.reset();
+        checksum.update(buffer.array(), start + HEADER_SIZE, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) checksum.getValue());
+        segmentBytes += end - start;
+        appended += end - start;
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            writeBuffer();
+            channel.force(false);
+            durable = appended;
+        }
+    }
+
+    private void putVarInt(int value) {
+        putVarLong(value & 0xffffffffL);
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putBytes(byte @NotNull [] bytes) {
+        putVarInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static long zigZag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void rotate() throws IOException {
+        writeBuffer();
+        if (syncPolicy != SyncPolicy.NEVER) {
+            channel.force(false);
+        }
+        if (channel == syncingChannel) {
+            // closed by the commit once it has forced the channel
+            syncingChannelRotated = true;
+        } else {
+            channel.close();
+        }
+        durable = appended;
+        closedSegments.put(segment, segmentMaxTime);
+        segment++;
+        channel = openSegment(segment);
+        segmentBytes = 0;
+        segmentMaxTime = Long.MIN_VALUE;
+        loggedSeries.clear();
+    }
+
+    /**
+     * Makes the records logged so far durable: writes them and, unless the sync policy is
+     * {@link SyncPolicy#NEVER}, forces them to the disk. If another thread is committing at the same time,
+     * this waits for it and commits the records of both threads at once.
+     *
+     * @throws IOException if the records could not be written or synced
+     */
+    public void commit() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        if (durable >= target) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durable >= target) {
+                // committed by the thread that held the lock
+                return;
+            }
+            FileChannel syncedChannel;
+            long written;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Write-ahead log is closed");
+                }
+                writeBuffer();
+                syncedChannel = channel;
+                syncingChannel = syncedChannel;
+                written = appended;
+            }
+            // records are appended by other threads while this one syncs, which may rotate the segment
+            try {
+                if (syncPolicy == SyncPolicy.ON_COMMIT) {
+                    syncedChannel.force(false);
+                }
+            } finally {
+                synchronized (this) {
+                    syncingChannel = null;
+                    if (syncingChannelRotated) {
+                        syncingChannelRotated = false;
+                        syncedChannel.close();
+                    }
+                }
+            }
+            durable = Math.max(durable, written);
+        }
+    }
+
+    /**
+     * Deletes the segments whose samples are all older than the given time. The segment that is written to is
+     * never deleted, and neither are segments written by a previous process that were not
+     * {@linkplain #replay(TimeSeriesStore) replayed}, since the times of their samples are not known.
+     *
+     * @param minTime the time, in milliseconds since the epoch, of the oldest sample to keep
+     * @return the number of deleted segments
+     * @throws IOException if a segment could not be deleted
+     */
+    public synchronized int truncate(long minTime) throws IOException {
+        int deleted = 0;
+        while (!closedSegments.isEmpty() && closedSegments.firstEntry().getValue() < minTime) {
+            int oldest = closedSegments.pollFirstEntry().getKey();
+            Files.deleteIfExists(segmentFile(oldest));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Appends the samples of the segments written by previous processes to the given store, oldest first.
+     * Samples the store rejects, e.g. because it already has newer samples of their series, are skipped.
+     *
+     * @param store the store to rebuild
+     * @return the number of samples appended to the store
+     * @throws IOException if a segment could not be read
+     */
+    public long replay(@NotNull TimeSeriesStore store) throws IOException {
+        int current;
+        synchronized (this) {
+            current = segment;
+        }
+        long replayed = 0;
+        for (int previous : listSegments()) {
+            if (previous >= current) {
+                break;
+            }
+            SegmentReplay result = replaySegment(previous, store);
+            replayed += result.samples;
+            synchronized (this) {
+                closedSegments.put(previous, result.maxTime);
+            }
+            if (result.corrupt) {
+                log.warnf("Write-ahead log segment %s ends with an incomplete or corrupt record - "
+                        + "it was probably being written when the process stopped", segmentFile(previous));
+            }
+        }
+        return replayed;
+    }
+
+    private record SegmentReplay(long samples, long maxTime, boolean corrupt) {
+    }
+
+    private @NotNull SegmentReplay replaySegment(int segment, @NotNull TimeSeriesStore store) throws IOException {
+        long samples = 0;
+        long maxTime = Long.MIN_VALUE;
+        Map<Integer, TimeSeries> series = new HashMap<>();
+        CRC32C crc = new CRC32C();
+        try (FileChannel file = FileChannel.open(segmentFile(segment), StandardOpenOption.READ)) {
+            MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            while (data.remaining() >= HEADER_SIZE) {
+                int length = data.getInt();
+                int expectedChecksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) {
+                    return new SegmentReplay(samples, maxTime, true);
+                }
+                ByteBuffer record = data.slice(data.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != expectedChecksum) {
+                    return new SegmentReplay(samples, maxTime, true);
+                }
+                data.position(data.position() + length);
+
+                try {
+                    byte type = record.get();
+                    if (type == SERIES_RECORD) {
+                        int id = getVarInt(record);
+                        String name = getString(record);
+                        int labelCount = getVarInt(record);
+                        Map<String, String> labels = new HashMap<>(labelCount * 2);
+                        for (int i = 0; i < labelCount; i++) {
+                            labels.put(getString(record), getString(record));
+                        }
+                        series.put(id, store.getOrCreateSeries(name, labels));
+                    } else if (type == SAMPLES_RECORD) {
+                        long baseTime = record.getLong();
+                        int count = getVarInt(record);
+                        for (int i = 0; i < count; i++) {
+                            TimeSeries timeSeries = series.get(getVarInt(record));
+                            long timestamp = baseTime + unZigZag(getVarLong(record));
+                            double value = record.getDouble();
+                            maxTime = Math.max(maxTime, timestamp);
+                            if (timeSeries != null && store.append(timeSeries, timestamp, value) != null) {
+                                samples++;
+                            }
+                        }
+                    } else {
+                        return new SegmentReplay(samples, maxTime, true);
+                    }
+                } catch (BufferUnderflowException e) {
+                    return new SegmentReplay(samples, maxTime, true);
+                }
+            }
+            return new SegmentReplay(samples, maxTime, data.hasRemaining());
+        }
+    }
+
+    private static int getVarInt(@NotNull ByteBuffer buffer) {
+        return (int) getVarLong(buffer);
+    }
+
+    private static long getVarLong(@NotNull ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static @NotNull String getString(@NotNull ByteBuffer buffer) {
+        byte[] bytes = new byte[getVarInt(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long unZigZag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * @return the number of the segment that is written to
+     */
+    public synchronized int getCurrentSegment() {
+        return segment;
+    }
+
+    /**
+     * Commits the logged records and closes the segment that is written to.
+     *
+     * @throws IOException if the records could not be written or synced
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    writeBuffer();
+                    if (syncPolicy != SyncPolicy.NEVER) {
+                        channel.force(false);
+                    }
+                    durable = appended;
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WriteAheadLog[" + directory + "]";
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.epserv.prometheus.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A chunk of the samples of one series, compressed as described in Facebook's Gorilla paper: timestamps are
+ * stored as the difference between consecutive deltas ("delta of delta"), which is zero for samples scraped at
+ * a regular interval and takes a single bit then, and values are stored as the XOR with the previous value,
+ * of which only the bits that changed are written. Slowly changing counters and gauges take one to two bytes
+ * per sample.
+ * <p>
+ * A chunk is not thread safe; {@link TimeSeries} guards its chunks.
+ */
+final class XorChunk {
+    private static final int INITIAL_WORDS = 4;
+
+    private final @NotNull BitStream bits = new BitStream(INITIAL_WORDS);
+    private int count;
+    private long minTime;
+    private long maxTime;
+
+    // encoder state
+    private long delta;
+    private long valueBits;
+    private int leading = -1; // of the last written window of meaningful bits, -1 before the first one
+    private int trailing;
+
+    int count() {
+        return count;
+    }
+
+    long minTime() {
+        return minTime;
+    }
+
+    long maxTime() {
+        return maxTime;
+    }
+
+    int byteLength() {
+        return bits.byteLength();
+    }
+
+    /**
+     * Appends a sample, whose timestamp must be greater than that of the last sample.
+     */
+    void append(long timestamp, double value) {
+        long newValueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            bits.writeBits(timestamp, 64);
+            bits.writeBits(newValueBits, 64);
+            minTime = timestamp;
+        } else {
+            long newDelta = timestamp - maxTime;
+            writeDeltaOfDelta(newDelta - delta);
+            writeValue(newValueBits ^ valueBits);
+            delta = newDelta;
+        }
+        maxTime = timestamp;
+        valueBits = newValueBits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            bits.writeBit(false);
+        } else if (fits(deltaOfDelta, 14)) {
+            bits.writeBits(0b10, 2);
+            bits.writeBits(deltaOfDelta, 14);
+        } else if (fits(deltaOfDelta, 17)) {
+            bits.writeBits(0b110, 3);
+            bits.writeBits(deltaOfDelta, 17);
+        } else if (fits(deltaOfDelta, 20)) {
+            bits.writeBits(0b1110, 4);
+            bits.writeBits(deltaOfDelta, 20);
+        } else {
+            bits.writeBits(0b1111, 4);
+            bits.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static boolean fits(long value, int bitCount) {
+        long limit = 1L << (bitCount - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private void writeValue(long xor) {
+        if (xor == 0) {
+            bits.writeBit(false);
+            return;
+        }
+        int newLeading = Math.min(Long.numberOfLeadingZeros(xor), 31); // the count is written in 5 bits
+        int newTrailing = Long.numberOfTrailingZeros(xor);
+        if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+            // the changed bits fit into the window of the previous value
+            bits.writeBits(0b10, 2);
+            bits.writeBits(xor >>> trailing, 64 - leading - trailing);
+            return;
+        }
+        int significant = 64 - newLeading - newTrailing;
+        bits.writeBits(0b11, 2);
+        bits.writeBits(newLeading, 5);
+        bits.writeBits(significant, 6); // 64 is written as 0
+        bits.writeBits(xor >>> newTrailing, significant);
+        leading = newLeading;
+        trailing = newTrailing;
+    }
+
+    /**
+     * Releases the memory reserved for samples that were not appended, once no more samples are appended.
+     */
+    void close() {
+        bits.trim();
+    }
+
+    /**
+     * @return an iterator over the samples appended so far
+     */
+    @NotNull Iterator iterator() {
+        return new Iterator(bits.reader(), count);
+    }
+
+    /**
+     * Decodes the samples of a chunk, in order.
+     */
+    static final class Iterator {
+        private final @NotNull BitStream.Reader reader;
+        private final int count;
+        private int index;
+        private long timestamp;
+        private long delta;
+        private long valueBits;
+        private int leading;
+        private int trailing;
+
+        private Iterator(@NotNull BitStream.Reader reader, int count) {
+            this.reader = reader;
+            this.count = count;
+        }
+
+        /**
+         * Moves to the next sample.
+         *
+         * @return false if there are no more samples
+         */
+        boolean next() {
+            if (index == count) {
+                return false;
+            }
+            if (index == 0) {
+                timestamp = reader.readBits(64);
+                valueBits = reader.readBits(64);
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+                readValue();
+            }
+            index++;
+            return true;
+        }
+
+        long timestamp() {
+            return timestamp;
+        }
+
+        double value() {
+            return Double.longBitsToDouble(valueBits);
+        }
+
+        private long readDeltaOfDelta() {
+            if (!reader.readBit()) {
+                return 0;
+            }
+            int bitCount;
+            if (!reader.readBit()) {
+                bitCount = 14;
+            } else if (!reader.readBit()) {
+                bitCount = 17;
+            } else if (!reader.readBit()) {
+                bitCount = 20;
+            } else {
+                return reader.readBits(64);
+            }
+            long value = reader.readBits(bitCount);
+            return value << (64 - bitCount) >> (64 - bitCount);
+        }
+
+        private void readValue() {
+            if (!reader.readBit()) {
+                return;
+            }
+            if (reader.readBit()) {
+                leading = (int) reader.readBits(5);
+                int significant = (int) reader.readBits(6);
+                if (significant == 0) {
+                    significant = 64;
+                }
+                trailing = 64 - leading - significant;
+            }
+            valueBits ^= reader.readBits(64 - leading - trailing) << trailing;
+        }
+    }
+}
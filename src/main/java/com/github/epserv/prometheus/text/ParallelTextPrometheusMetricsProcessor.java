@@ -0,0 +1,339 @@
+package com.github.epserv.prometheus.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import com.github.epserv.prometheus.MutableSampleLabels;
+import com.github.epserv.prometheus.ProcessorOptions;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.ScrapeLimitExceededException;
+import com.github.epserv.prometheus.ScrapeLimits;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import com.github.epserv.prometheus.walkers.WalkingSampleVisitor;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A text processor for very large expositions. The whole data is split into chunks at metric family boundaries
+ * (a {@code # HELP} or {@code # TYPE} line that follows a sample of another family) and the chunks are parsed
+ * in parallel on an executor, the common {@link ForkJoinPool} by default.
+ * <p>
+ * The metric families are still delivered to the walker (or visitor) one at a time, in their original order and
+ * with their original indices, so the result is the same as that of a {@link TextPrometheusMetricsProcessor}.
+ * Families of a chunk are delivered as soon as that chunk and all chunks before it are parsed.
+ * <p>
+ * The limits, the family filter and the relabeling rules of the {@link ProcessorOptions} apply as they do to the
+ * sequential processor. The body size limit is checked before anything is parsed, the label limits and the family
+ * filter by the parser of every chunk, and the sample limit both by the parser of every chunk and over all chunks
+ * as they are delivered. Unlike the sequential processor, this one reads the whole input stream into memory before
+ * parsing it, and it does not use the arena of the options, since the chunks are parsed at the same time.
+ */
+public class ParallelTextPrometheusMetricsProcessor extends TextPrometheusMetricsProcessor {
+    private static final Logger log = Logger.getLogger(ParallelTextPrometheusMetricsProcessor.class);
+
+    /**
+     * The default minimum size of a chunk in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private final @NotNull Executor executor;
+    private final int chunkSize;
+    private @Nullable ByteBuffer data;
+
+    public ParallelTextPrometheusMetricsProcessor(@NotNull InputStream inputStream,
+            @NotNull PrometheusMetricsWalker theWalker) {
+        this(inputStream, theWalker, ProcessorOptions.DEFAULT, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param inputStream where the Prometheus metrics are that the walker will traverse.
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered
+     * @param pool the pool the chunks are parsed on
+     * @param chunkSize the minimum size of a chunk in bytes - a chunk ends at the first family boundary after it
+     */
+    public ParallelTextPrometheusMetricsProcessor(@NotNull InputStream inputStream,
+            @NotNull PrometheusMetricsWalker theWalker, @NotNull ForkJoinPool pool, int chunkSize) {
+        this(inputStream, theWalker, ProcessorOptions.DEFAULT, pool, chunkSize);
+    }
+
+    /**
+     * @param inputStream where the Prometheus metrics are that the walker or visitor will traverse.
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered,
+     *                  or null if the processor is only going to be visited
+     * @param options the limits, family filter and relabeling rules to process the data with
+     * @param executor the executor the chunks are parsed on
+     * @param chunkSize the minimum size of a chunk in bytes - a chunk ends at the first family boundary after it
+     */
+    public ParallelTextPrometheusMetricsProcessor(@NotNull InputStream inputStream,
+            @Nullable PrometheusMetricsWalker theWalker, @NotNull ProcessorOptions options,
+            @NotNull Executor executor, int chunkSize) {
+        super(inputStream, theWalker, options);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Use this constructor if the data is already in memory, e.g. in a memory mapped file.
+     * The remaining bytes of the buffer are parsed in place.
+     *
+     * @param data the text data
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered
+     * @param pool the pool the chunks are parsed on
+     * @param chunkSize the minimum size of a chunk in bytes - a chunk ends at the first family boundary after it
+     */
+    public ParallelTextPrometheusMetricsProcessor(@NotNull ByteBuffer data,
+            @NotNull PrometheusMetricsWalker theWalker, @NotNull ForkJoinPool pool, int chunkSize) {
+        this(data, theWalker, ProcessorOptions.DEFAULT, pool, chunkSize);
+    }
+
+    /**
+     * Use this constructor if the data is already in memory, e.g. in a memory mapped file.
+     * The remaining bytes of the buffer are parsed in place.
+     *
+     * @param data the text data
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered,
+     *                  or null if the processor is only going to be visited
+     * @param options the limits, family filter and relabeling rules to process the data with
+     * @param executor the executor the chunks are parsed on
+     * @param chunkSize the minimum size of a chunk in bytes - a chunk ends at the first family boundary after it
+     */
+    public ParallelTextPrometheusMetricsProcessor(@NotNull ByteBuffer data,
+            @Nullable PrometheusMetricsWalker theWalker, @NotNull ProcessorOptions options,
+            @NotNull Executor executor, int chunkSize) {
+        this(InputStream.nullInputStream(), theWalker, options, executor, chunkSize);
+        this.data = data;
+    }
+
+    @Override
+    public void walk() {
+        if (!getRelabeling().isEmpty()) {
+            // the metrics have to be built from the relabeled samples
+            super.walk();
+            return;
+        }
+        WalkingSampleVisitor adapter = new WalkingSampleVisitor(getWalker());
+        try {
+            adapter.onStart();
+            parse(adapter::walkMetricFamily);
+            adapter.onFinish();
+        } catch (ScrapeLimitExceededException e) {
+            // unlike a parse error, this must not look like a complete (if short) scrape
+            throw new UncheckedIOException(e);
+        } catch (Exception e) {
+            log.debugf(e, "Error while processing data");
+        }
+
+        if (!adapter.isFinished()) {
+            // tell the walker we have finished with whatever we could process
+            adapter.onFinish();
+        }
+    }
+
+    @Override
+    protected void visitSamples(@NotNull SampleVisitor visitor) throws IOException {
+        MutableSampleLabels labels = new MutableSampleLabels();
+        parse(family -> visitMetricFamily(family, visitor, labels));
+    }
+
+    /**
+     * Parses all chunks in parallel and hands the metric families to the consumer in their original order.
+     */
+    private void parse(@NotNull Consumer<MetricFamily> consumer) throws IOException {
+        ScrapeLimits limits = getLimits();
+        if (data == null) {
+            long bodySizeLimit = limits.getBodySizeLimit();
+            // read one byte more than allowed, so that an oversized body is detected without reading all of it
+            data = ByteBuffer.wrap(bodySizeLimit > 0 && bodySizeLimit < Integer.MAX_VALUE
+                    ? getInputStream().readNBytes((int) bodySizeLimit + 1)
+                    : getInputStream().readAllBytes());
+        }
+        limits.checkBodySize(data.remaining());
+
+        List<CompletableFuture<Chunk>> tasks = new ArrayList<>();
+        for (ByteBuffer chunk : split(data, chunkSize)) {
+            tasks.add(CompletableFuture.supplyAsync(() -> parseChunk(chunk), executor));
+        }
+
+        try {
+            long samples = 0;
+            for (CompletableFuture<Chunk> task : tasks) {
+                Chunk chunk = task.get();
+                samples += chunk.samples();
+                limits.checkSamples(samples);
+                chunk.families().forEach(consumer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the metric data to be parsed");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException unchecked ? unchecked.getCause()
+                    : e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            } else if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException("Failed to parse the metric data", cause);
+        } finally {
+            // if a chunk failed, there is no need to parse the ones after it
+            tasks.forEach(task -> task.cancel(false));
+        }
+    }
+
+    /**
+     * The metric families of a chunk and the number of samples they were parsed from.
+     */
+    private record Chunk(@NotNull List<MetricFamily> families, long samples) {
+    }
+
+    private @NotNull Chunk parseChunk(@NotNull ByteBuffer chunk) {
+        TextPrometheusMetricDataParser parser = new TextPrometheusMetricDataParser(chunk);
+        parser.setLimits(getLimits());
+        parser.setFamilyFilter(getFamilyFilter());
+        List<MetricFamily> families = new ArrayList<>();
+        try {
+            for (MetricFamily family = parser.parse(); family != null; family = parser.parse()) {
+                families.add(family);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Chunk(families, parser.getSamples());
+    }
+
+    /**
+     * Splits the remaining bytes of the data into chunks of at least the given size that each start
+     * at a metric family boundary (except the first one).
+     */
+    static @NotNull List<ByteBuffer> split(@NotNull ByteBuffer data, int chunkSize) {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        int start = data.position();
+        int limit = data.limit();
+        while (limit - start > chunkSize) {
+            int boundary = findFamilyBoundary(data, start, start + chunkSize, limit);
+            if (boundary < 0) {
+                break;
+            }
+            chunks.add(data.slice(start, boundary - start));
+            start = boundary;
+        }
+        chunks.add(data.slice(start, limit - start));
+        return chunks;
+    }
+
+    /**
+     * Finds the start of the first line after the line containing {@code from} that is a HELP or TYPE line
+     * directly following a sample line of another family. Splitting there is safe because a sequential parser
+     * would finish the current family at that line and start afresh.
+     *
+     * @return the index of the line start or -1 if there is no such line
+     */
+    private static int findFamilyBoundary(@NotNull ByteBuffer data, int start, int from, int limit) {
+        int lineStart = from;
+        while (lineStart > start && data.get(lineStart - 1) != '\n') {
+            lineStart--;
+        }
+
+        int sampleNameStart = -1; // the previous non-empty line if it is a sample line, -1 otherwise
+        int sampleNameEnd = -1;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && data.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+
+            int i = skip(data, lineStart, lineEnd, true);
+            if (i < lineEnd) {
+                if (data.get(i) == '#') {
+                    if (sampleNameStart >= 0 && isFamilyBoundary(data, i, lineEnd, sampleNameStart, sampleNameEnd)) {
+                        return lineStart;
+                    }
+                    sampleNameStart = -1;
+                } else {
+                    sampleNameStart = i;
+                    sampleNameEnd = i;
+                    while (sampleNameEnd < lineEnd) {
+                        byte b = data.get(sampleNameEnd);
+                        if (b == '{' || b == ' ' || b == '\t') {
+                            break;
+                        }
+                        sampleNameEnd++;
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the comment line starting at {@code from} is a HELP or TYPE line of a metric family
+     *         that the given sample does not belong to
+     */
+    private static boolean isFamilyBoundary(@NotNull ByteBuffer data, int from, int to,
+            int sampleNameStart, int sampleNameEnd) {
+        int keywordStart = skip(data, from + 1, to, true);
+        if (keywordStart == from + 1 || keywordStart + 4 > to) {
+            return false;
+        }
+        if (!isKeyword(data, keywordStart, "HELP") && !isKeyword(data, keywordStart, "TYPE")) {
+            return false;
+        }
+        int nameStart = skip(data, keywordStart + 4, to, true);
+        if (nameStart == keywordStart + 4) {
+            return false;
+        }
+        int nameEnd = skip(data, nameStart, to, false);
+        if (nameStart == nameEnd) {
+            return false;
+        }
+
+        // be conservative - a sample whose name starts with the family name may well belong to it
+        int nameLength = nameEnd - nameStart;
+        if (sampleNameEnd - sampleNameStart < nameLength) {
+            return true;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (data.get(sampleNameStart + i) != data.get(nameStart + i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isKeyword(@NotNull ByteBuffer data, int from, @NotNull String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            if (data.get(from + i) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // skips whitespace if whitespace is true, otherwise skips to the next whitespace
+    private static int skip(@NotNull ByteBuffer data, int from, int to, boolean whitespace) {
+        while (from < to) {
+            byte b = data.get(from);
+            if ((b == ' ' || b == '\t' || b == '\r') != whitespace) {
+                break;
+            }
+            from++;
+        }
+        return from;
+    }
+}
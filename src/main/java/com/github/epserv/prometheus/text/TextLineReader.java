@@ -0,0 +1,333 @@
+package com.github.epserv.prometheus.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.github.epserv.prometheus.ScrapeLimits;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads Prometheus text data one line at a time into a reusable byte buffer.
+ * <p>
+ * Lines are never decoded as a whole. Callers get the byte range of the current line via
+ * {@link #lineStart()} and {@link #lineEnd()}, inspect the bytes with {@link #byteAt(int)} and only
+ * {@link #decode(int, int) decode} the slices that actually need to become strings.
+ * <p>
+ * A byte range returned for the current line stays valid until the next call to {@link #nextLine()}.
+ * <p>
+ * The {@link ScrapeLimits#getBodySizeLimit() body size limit} is checked whenever more data is read from the
+ * stream, so an oversized body is never read much beyond the limit.
+ */
+final class TextLineReader {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private @Nullable InputStream inputStream;
+    private @NotNull ByteBuffer buffer;
+    private @Nullable ByteBuffer readBuffer; // the buffer streams are read into, kept when the reader is reset
+
+    private int position; // the first byte not yet returned as part of a line
+    private int limit; // one past the last valid byte in the buffer
+    private boolean eof;
+    private @NotNull ScrapeLimits limits = ScrapeLimits.NONE;
+    private long bytesRead; // the number of bytes of the data read so far
+    private boolean sizeChecked;
+
+    private int lineStart;
+    private int lineEnd;
+    private boolean pushedBack;
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Reads lines from the given stream using a freshly allocated buffer.
+     * NOTE: this object will not own this stream - it will never attempt to close it.
+     *
+     * @param inputStream the stream where the text data can be found
+     */
+    TextLineReader(@NotNull InputStream inputStream) {
+        this(inputStream, ByteBuffer.allocate(DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Reads lines from the given stream using the given buffer, which must be backed by an accessible array.
+     * The buffer grows (is replaced) if a single line does not fit into it.
+     *
+     * @param inputStream the stream where the text data can be found
+     * @param buffer the buffer to read the data into
+     */
+    TextLineReader(@NotNull InputStream inputStream, @NotNull ByteBuffer buffer) {
+        if (!buffer.hasArray()) {
+            throw new IllegalArgumentException("Buffer must be backed by an accessible array");
+        }
+        this.buffer = buffer;
+        this.readBuffer = buffer;
+        reset(inputStream);
+    }
+
+    /**
+     * Creates a reader to be {@link #reset(InputStream) reset} before each use. It allocates the buffer streams are
+     * read into when it is first reset to a stream.
+     */
+    TextLineReader() {
+        this(EMPTY);
+    }
+
+    /**
+     * Reads lines directly from the remaining bytes of the given buffer without copying them anywhere.
+     * This is how memory mapped data is parsed.
+     *
+     * @param data the text data
+     */
+    TextLineReader(@NotNull ByteBuffer data) {
+        this.buffer = data;
+        reset(data);
+    }
+
+    /**
+     * Starts reading lines from another stream, reusing the buffer this reader has (or had) read streams into.
+     *
+     * @param inputStream the stream where the text data can be found
+     */
+    void reset(@NotNull InputStream inputStream) {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        }
+        this.inputStream = inputStream;
+        this.buffer = readBuffer;
+        this.position = 0;
+        this.limit = 0;
+        this.eof = false;
+        this.pushedBack = false;
+        this.bytesRead = 0;
+        this.sizeChecked = true; // checked as the stream is read
+    }
+
+    /**
+     * Starts reading lines directly from the remaining bytes of the given buffer.
+     *
+     * @param data the text data
+     */
+    void reset(@NotNull ByteBuffer data) {
+        this.inputStream = null;
+        this.buffer = data;
+        this.position = data.position();
+        this.limit = data.limit();
+        this.eof = true;
+        this.pushedBack = false;
+        this.bytesRead = data.remaining();
+        this.sizeChecked = false; // all of the data is there already - checked by the first call to nextLine
+    }
+
+    /**
+     * Lets go of the stream or the buffer this reader was last reset to, so that a reader kept for reuse does
+     * not keep them reachable. Until it is reset again, the reader is at the end of data.
+     */
+    void release() {
+        this.inputStream = null;
+        this.buffer = readBuffer != null ? readBuffer : EMPTY;
+        this.position = 0;
+        this.limit = 0;
+        this.eof = true;
+        this.pushedBack = false;
+    }
+
+    /**
+     * @param limits the limits to enforce on the data, until they are set again
+     */
+    void setLimits(@NotNull ScrapeLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Advances to the next line. Leading and trailing whitespace (including a carriage return) is not
+     * part of the returned line range.
+     *
+     * @return true if a line is available, false at end of data
+     * @throws IOException if failed to read from the stream
+     */
+    boolean nextLine() throws IOException {
+        if (pushedBack) {
+            pushedBack = false;
+            return true;
+        }
+        if (!sizeChecked) {
+            sizeChecked = true;
+            limits.checkBodySize(bytesRead);
+        }
+
+        int scanFrom = position;
+        while (true) {
+            int newline = indexOf((byte) '\n', scanFrom, limit);
+            if (newline >= 0) {
+                setLine(position, newline);
+                position = newline + 1;
+                return true;
+            }
+            if (eof) {
+                if (position == limit) {
+                    return false;
+                }
+                setLine(position, limit);
+                position = limit;
+                return true;
+            }
+            int scanned = limit - position;
+            fill();
+            scanFrom = position + scanned;
+        }
+    }
+
+    /**
+     * Makes the next call to {@link #nextLine()} return the current line again.
+     */
+    void pushBack() {
+        pushedBack = true;
+    }
+
+    @Contract(pure = true)
+    int lineStart() {
+        return lineStart;
+    }
+
+    @Contract(pure = true)
+    int lineEnd() {
+        return lineEnd;
+    }
+
+    byte byteAt(int index) {
+        return buffer.get(index);
+    }
+
+    /**
+     * @return the buffer the current line lives in. Only absolute indices given by this reader are meaningful.
+     */
+    @Contract(pure = true)
+    @NotNull ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Finds the given byte in the range.
+     *
+     * @return the index of the first occurrence or -1 if it isn't in the range
+     */
+    int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the range contains exactly the (ASCII) characters of the given string
+     */
+    boolean equalsAscii(int from, int to, @NotNull String str) {
+        return to - from == str.length() && startsWithAscii(from, to, str);
+    }
+
+    /**
+     * @return true if the range contains the (ASCII) characters of the given string, ignoring their case
+     */
+    boolean equalsAsciiIgnoreCase(int from, int to, @NotNull String str) {
+        int length = str.length();
+        if (to - from != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = (char) buffer.get(from + i);
+            if (c != str.charAt(i) && Character.toUpperCase(c) != Character.toUpperCase(str.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the range starts with the (ASCII) characters of the given string
+     */
+    boolean startsWithAscii(int from, int to, @NotNull String str) {
+        int length = str.length();
+        if (to - from < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(from + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the range as UTF-8.
+     */
+    @NotNull String decode(int from, int to) {
+        int length = to - from;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = scratch(length);
+        buffer.get(from, bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a reusable byte array with at least the given length
+     */
+    byte @NotNull [] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private void setLine(int start, int end) {
+        while (start < end && (buffer.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    private void fill() throws IOException {
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        int remaining = limit - position;
+
+        if (position > 0) {
+            // move the unfinished line to the start of the buffer
+            System.arraycopy(array, offset + position, array, offset, remaining);
+            position = 0;
+            limit = remaining;
+        }
+
+        if (limit == buffer.capacity()) {
+            // a single line does not fit into the buffer - grow it
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            System.arraycopy(array, offset, bigger.array(), 0, limit);
+            buffer = bigger;
+            readBuffer = bigger;
+            array = bigger.array();
+            offset = 0;
+        }
+
+        int read = inputStream.read(array, offset + limit, buffer.capacity() - limit);
+        if (read < 0) {
+            eof = true;
+        } else {
+            limit += read;
+            bytesRead += read;
+            limits.checkBodySize(bytesRead);
+        }
+    }
+}
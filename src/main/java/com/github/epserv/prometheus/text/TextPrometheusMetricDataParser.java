@@ -1,34 +1,71 @@
 package com.github.epserv.prometheus.text;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import com.github.epserv.prometheus.FamilyFilter;
+import com.github.epserv.prometheus.MetricFamilyAssembler;
+import com.github.epserv.prometheus.MutableSampleLabels;
 import com.github.epserv.prometheus.PrometheusMetricDataParser;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.ScrapeLimitExceededException;
+import com.github.epserv.prometheus.ScrapeLimits;
 import com.github.epserv.prometheus.Util;
 import org.jboss.logging.Logger;
-import com.github.epserv.prometheus.types.Counter;
-import com.github.epserv.prometheus.types.Gauge;
-import com.github.epserv.prometheus.types.Histogram;
-import com.github.epserv.prometheus.types.Metric;
 import com.github.epserv.prometheus.types.MetricFamily;
 import com.github.epserv.prometheus.types.MetricType;
-import com.github.epserv.prometheus.types.Summary;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
  * Provides a method that can scrape Prometheus text metric data from input streams.
+ * The data is read in blocks into a reusable buffer and tokenized directly on its bytes.
+ * <p>
+ * Besides {@link #parse()}, which builds one metric family at a time, the parser can report the
+ * raw samples to a {@link SampleVisitor} via {@link #parse(SampleVisitor)}. In that mode only family names and
+ * help texts are decoded into strings; sample names and labels are decoded into reusable buffers and
+ * sample values are parsed straight from the bytes.
+ * <p>
+ * A parser kept in a {@link com.github.epserv.prometheus.ScrapeArena} is reset for every scrape. It then also
+ * reuses the family names and help texts of the previous scrape if they did not change.
+ * <p>
+ * The {@link #setLimits(ScrapeLimits) limits} are enforced as the data is consumed - a line that exceeds them
+ * aborts parsing with a {@link ScrapeLimitExceededException} instead of being ignored like a malformed line.
+ * <p>
+ * Families not accepted by the {@link #setFamilyFilter(FamilyFilter) family filter} are skipped: their help text
+ * is not decoded and of their sample lines only the names are looked at, to find where the family ends.
  */
 public class TextPrometheusMetricDataParser extends PrometheusMetricDataParser<MetricFamily> {
     private static final Logger log = Logger.getLogger(TextPrometheusMetricDataParser.class);
 
-    private String lastLineReadFromStream; // this is only set when we break from the while loop in parse()
+    private static final MetricType[] TYPES = MetricType.values();
+
+    private final @NotNull TextLineReader reader;
+    private boolean checkedFormat;
+    private @NotNull ScrapeLimits limits = ScrapeLimits.NONE;
+    private long samples;
+    private @NotNull FamilyFilter filter = FamilyFilter.ALL;
+
+    // the metric family currently being parsed
+    private @NotNull String familyName = "";
+    private @Nullable String familyHelp;
+    private @Nullable MetricType familyType;
+    private boolean familyVisited;
+    private boolean familySkipped; // not accepted by the filter
+    private int familyIndex = -1;
+
+    // the family names and help texts by family index, kept across resets
+    private @Nullable String @NotNull [] familyNames = new String[0];
+    private @Nullable String @NotNull [] familyHelps = new String[0];
+
+    // reused for every sample
+    private final @NotNull StringBuilder sampleName = new StringBuilder();
+    private final @NotNull MutableSampleLabels sampleLabels = new MutableSampleLabels();
+    private double sampleValue;
+    private long sampleTimestamp;
+    private @Nullable MetricFamilyAssembler assembler;
 
     /**
      * Provides the input stream where the parser will look for metric data.
@@ -38,370 +75,502 @@ public class TextPrometheusMetricDataParser extends PrometheusMetricDataParser<M
      */
     public TextPrometheusMetricDataParser(@NotNull InputStream inputStream) {
         super(inputStream);
+        this.reader = new TextLineReader(inputStream);
     }
 
-    private static class ParserContext {
-        // this is the metric family that has been fully built
-        public MetricFamily finishedMetricFamily;
-
-        // these are used when building a metric family
-        public String name = "";
-        public String help = "";
-        public MetricType type = null;
-        public final List<String> allowedNames = new ArrayList<>();
-        public final List<TextSample> textSamples = new ArrayList<>();
-
-        // starts a fresh metric family
-        public void clear() {
-            name = "";
-            help = "";
-            type = null;
-            allowedNames.clear();
-            textSamples.clear();
-        }
-
-        // complete the construction of the metric family
-        public void finishMetricFamily() {
-            if (finishedMetricFamily != null) {
-                return;
+    /**
+     * Parses the remaining bytes of the given buffer in place, without copying them anywhere.
+     *
+     * @param data the text data
+     */
+    TextPrometheusMetricDataParser(@NotNull ByteBuffer data) {
+        super(InputStream.nullInputStream());
+        this.reader = new TextLineReader(data);
+    }
+
+    /**
+     * Creates a parser to be {@link #reset(InputStream) reset} before each use. The buffer streams are read into
+     * is only allocated once a stream is parsed, so a parser that only ever parses data in memory has none.
+     */
+    TextPrometheusMetricDataParser() {
+        super(InputStream.nullInputStream());
+        this.reader = new TextLineReader();
+    }
+
+    /**
+     * Starts parsing another stream, keeping the buffers and caches of this parser.
+     * Note that {@link #getInputStream()} keeps returning the stream given to the constructor.
+     *
+     * @param inputStream the stream where the metric data can be found
+     */
+    void reset(@NotNull InputStream inputStream) {
+        reader.reset(inputStream);
+        resetState();
+    }
+
+    /**
+     * Starts parsing the remaining bytes of the given buffer in place, keeping the caches of this parser.
+     *
+     * @param data the text data
+     */
+    void reset(@NotNull ByteBuffer data) {
+        reader.reset(data);
+        resetState();
+    }
+
+    /**
+     * Lets go of the stream or the buffer this parser was last reset to, once it is done parsing them.
+     * The buffers and caches of this parser are kept.
+     */
+    void release() {
+        reader.release();
+    }
+
+    /**
+     * Sets the limits this parser enforces, from now on until they are set again.
+     *
+     * @param limits the limits to enforce
+     */
+    public void setLimits(@NotNull ScrapeLimits limits) {
+        this.limits = limits;
+        reader.setLimits(limits);
+    }
+
+    /**
+     * Sets the filter that selects the families this parser reports, from now on until it is set again.
+     *
+     * @param filter the family filter
+     */
+    public void setFamilyFilter(@NotNull FamilyFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return the number of samples parsed since this parser was created or reset - the samples of families the
+     *         filter skips are not parsed
+     */
+    long getSamples() {
+        return samples;
+    }
+
+    private void resetState() {
+        checkedFormat = false;
+        samples = 0;
+        familyIndex = -1;
+        startFamily("");
+    }
+
+    @Override
+    public MetricFamily parse() throws IOException {
+        if (assembler == null) {
+            assembler = new MetricFamilyAssembler();
+        }
+        return parseFamily(assembler) ? assembler.finish() : null;
+    }
+
+    /**
+     * Reports all remaining metric families and their samples to the given visitor.
+     * The visitor's {@link SampleVisitor#onStart()} and {@link SampleVisitor#onFinish()} are not called.
+     *
+     * @param visitor the object that will be notified about the samples
+     * @throws IOException if failed to read the data from the stream
+     */
+    public void parse(@NotNull SampleVisitor visitor) throws IOException {
+        while (parseFamily(visitor)) {
+            // keep going until the end of the data
+        }
+    }
+
+    /**
+     * Reads the lines of the next metric family accepted by the filter and reports the family and its samples
+     * to the visitor.
+     *
+     * @return false if there was no more metric family in the stream
+     */
+    private boolean parseFamily(@NotNull SampleVisitor visitor) throws IOException {
+        while (parseNextFamily(visitor)) {
+            if (!familySkipped) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the lines of a single metric family and, unless the filter skips it, reports the family and its
+     * samples to the visitor.
+     *
+     * @return false if there was no more metric family in the stream
+     */
+    private boolean parseNextFamily(@NotNull SampleVisitor visitor) throws IOException {
+        startFamily("");
+
+        while (reader.nextLine()) {
+            int start = reader.lineStart();
+            int end = reader.lineEnd();
+
+            // do a quick check to see if we are getting passed in binary format rather than text
+            if (!checkedFormat) {
+                checkedFormat = true;
+                if (start < end && reader.byteAt(start) < 0) {
+                    throw new IOException("Doesn't look like the metric data is in text format");
+                }
             }
 
-            MetricFamily.Builder metricFamilyBuilder = new MetricFamily.Builder();
-            metricFamilyBuilder.setName(name);
-            metricFamilyBuilder.setHelp(help);
-            metricFamilyBuilder.setType(type);
-
-            // need to convert the samples to metrics
-            // We know if the family is a counter or a gauge, all samples are full metrics,
-            // so we can convert them easily one-for-one.
-            // For summary metrics, we need to combine all quantile samples, sum, and count.
-            // For histogram metrics, we need to combine all bucket samples, sum, and count.
-
-            Map<Map<String, String>, Metric.Builder<?, ?>> builders = new LinkedHashMap<>();
-
-            for (TextSample textSample : textSamples) {
-                try {
-                    switch (type) {
-                        case COUNTER -> builders.put(textSample.getLabels(),
-                                new Counter.Builder().setName(name)
-                                        .setValue(Util.convertStringToDouble(textSample.getValue()))
-                                        .addLabels(textSample.getLabels()));
-                        case GAUGE -> builders.put(textSample.getLabels(),
-                                new Gauge.Builder().setName(name)
-                                        .setValue(Util.convertStringToDouble(textSample.getValue()))
-                                        .addLabels(textSample.getLabels()));
-                        case SUMMARY -> {
-                            // Get the builder that we are using to build up the current metric. Remember we need to
-                            // get the builder for this specific metric identified with a unique set of labels.
-
-                            // First we need to remove any existing quantile label since it isn't a "real" label.
-                            // This is to ensure our lookup uses all but only "real" labels.
-                            String quantileValue = textSample.getLabels().remove("quantile"); // may be null
-                            Summary.Builder sBuilder = (Summary.Builder) builders.get(textSample.getLabels());
-                            if (sBuilder == null) {
-                                sBuilder = new Summary.Builder();
-                                builders.put(textSample.getLabels(), sBuilder);
-                            }
-                            sBuilder.setName(name);
-                            sBuilder.addLabels(textSample.getLabels());
-                            if (textSample.getName().endsWith("_count")) {
-                                sBuilder.setSampleCount((long) Util.convertStringToDouble(textSample.getValue()));
-                            } else if (textSample.getName().endsWith("_sum")) {
-                                sBuilder.setSampleSum(Util.convertStringToDouble(textSample.getValue()));
-                            } else {
-                                // This must be a quantile sample
-                                if (quantileValue == null) {
-                                    log.debugf("Summary quantile sample is missing the 'quantile' label: %s",
-                                            textSample.getLine());
-                                } else {
-                                    sBuilder.addQuantile(
-                                            Util.convertStringToDouble(quantileValue),
-                                            Util.convertStringToDouble(textSample.getValue())
-                                    );
-                                }
-                            }
-                        }
-                        case HISTOGRAM -> {
-                            // Get the builder that we are using to build up the current metric. Remember we need to
-                            // get the builder for this specific metric identified with a unique set of labels.
-
-                            // First we need to remove any existing le label since it isn't a "real" label.
-                            // This is to ensure our lookup uses all but only "real" labels.
-                            String bucket = textSample.getLabels().remove("le"); // may be null
-                            Histogram.Builder hBuilder = (Histogram.Builder) builders.get(textSample.getLabels());
-                            if (hBuilder == null) {
-                                hBuilder = new Histogram.Builder();
-                                builders.put(textSample.getLabels(), hBuilder);
-                            }
-                            hBuilder.setName(name);
-                            hBuilder.addLabels(textSample.getLabels());
-                            if (textSample.getName().endsWith("_count")) {
-                                hBuilder.setSampleCount((long) Util.convertStringToDouble(textSample.getValue()));
-                            } else if (textSample.getName().endsWith("_sum")) {
-                                hBuilder.setSampleSum(Util.convertStringToDouble(textSample.getValue()));
-                            } else {
-                                // This must be a bucket sample
-                                if (bucket == null) {
-                                    throw new Exception("Histogram bucket sample is missing the 'le' label");
-                                }
-                                hBuilder.addBucket(Util.convertStringToDouble(bucket),
-                                        (long) Util.convertStringToDouble(textSample.getValue()));
-                            }
+            if (start == end) {
+                continue;
+            }
+
+            boolean sampleParsed = false;
+            try {
+                if (reader.byteAt(start) == '#') {
+                    if (!processCommentLine(start, end)) {
+                        // break and we'll finish the metric family we previously were building up
+                        reader.pushBack();
+                        break;
+                    }
+                } else {
+                    // parse the sample line that contains a single metric (or part of a metric as in summary/histo)
+                    int nameEnd = findNameEnd(start, end);
+                    if (!isAllowedName(start, nameEnd)) {
+                        if (!familyName.isEmpty()) {
+                            // break and we'll finish the metric family we previously were building up
+                            reader.pushBack();
+                            break;
                         }
+                        startFamily("");
+                        log.debugf("Ignoring an unexpected metric: %s", reader.decode(start, end));
+                    } else if (!familySkipped) {
+                        parseSampleLine(start, nameEnd, end);
+                        sampleParsed = true;
                     }
-                } catch (Exception e) {
-                    log.debugf(e, "Error processing sample. This metric sample will be ignored: %s",
-                            textSample.getLine());
                 }
+            } catch (ScrapeLimitExceededException e) {
+                throw e;
+            } catch (Exception e) {
+                log.debugf("Failed to process line - it will be ignored: %s", reader.decode(start, end));
             }
 
-            // now that we've combined everything into individual metric builders, we can build all our metrics
-            for (Metric.Builder<?, ?> builder : builders.values()) {
-                try {
-                    metricFamilyBuilder.addMetric(builder.build());
-                } catch (Exception e) {
-                    log.debugf(e, "Error building metric for metric family [%s] - it will be ignored", name);
-                }
+            // outside the handling of malformed lines, so that a failing visitor fails the parse
+            if (sampleParsed) {
+                visitFamily(visitor);
+                visitor.onSample(sampleName, sampleLabels, sampleValue, sampleTimestamp);
             }
+        }
 
-            finishedMetricFamily = metricFamilyBuilder.build();
+        if (familyName.isEmpty()) {
+            return false;
         }
+
+        // a family may not have any samples - it still needs to be reported
+        if (!familySkipped) {
+            visitFamily(visitor);
+        }
+        return true;
     }
 
-    @Override
-    public MetricFamily parse() throws IOException {
+    private void startFamily(@NotNull String name) {
+        familyName = name;
+        familyHelp = "";
+        familyType = null;
+        familyVisited = false;
+        familySkipped = false;
+    }
 
-        // determine the first line we should process. If we were previously called, we already
-        // read a line - start from that last line read. Otherwise, prime the pump and read
-        // the first line from the stream.
-        String line;
-        if (lastLineReadFromStream != null) {
-            line = lastLineReadFromStream;
-            lastLineReadFromStream = null;
-        } else {
-            line = readLine(getInputStream());
+    private void visitFamily(@NotNull SampleVisitor visitor) {
+        if (!familyVisited && familyType != null) {
+            familyVisited = true;
+            visitor.onFamily(familyName, familyType, familyHelp);
         }
+    }
 
-        if (line == null) {
-            return null;
+    /**
+     * Processes a HELP or TYPE line, any other comment is ignored.
+     *
+     * @return false if the line starts a new metric family and the current one must be finished first
+     */
+    private boolean processCommentLine(int start, int end) {
+        // tokens: 0 is #, 1 is HELP or TYPE, 2 is metric name, 3 is doc
+        int hashEnd = skipToWhitespace(start, end);
+        if (hashEnd != start + 1) {
+            return true;
+        }
+        int keywordStart = skipWhitespace(hashEnd, end);
+        int keywordEnd = skipToWhitespace(keywordStart, end);
+        boolean help = reader.equalsAscii(keywordStart, keywordEnd, "HELP");
+        if (!help && !reader.equalsAscii(keywordStart, keywordEnd, "TYPE")) {
+            return true;
+        }
+        int nameStart = skipWhitespace(keywordEnd, end);
+        int nameEnd = skipToWhitespace(nameStart, end);
+        if (nameStart == nameEnd) {
+            return true;
         }
+        int restStart = skipWhitespace(nameEnd, end);
 
-        // do a quick check to see if we are getting passed in binary format rather than text
-        if (!line.isEmpty() && !String.valueOf(line.charAt(0)).matches("\\p{ASCII}*")) {
-            throw new IOException("Doesn't look like the metric data is in text format");
+        MetricType type = null;
+        if (!help) {
+            // fail before touching the current family if the type is unknown
+            type = parseType(restStart, end);
         }
 
-        ParserContext context = new ParserContext();
+        boolean newFamily = !reader.equalsAscii(nameStart, nameEnd, familyName);
+        if (newFamily && !familyName.isEmpty()) {
+            return false;
+        }
+        if (newFamily) {
+            // start anew
+            familyIndex++;
+            startFamily(decodeFamilyName(nameStart, nameEnd));
+            familySkipped = !filter.acceptsAll() && !filter.accept(familyName);
+        }
 
-        while (line != null) {
-            line = line.trim();
+        if (help) {
+            if (familyType == null) {
+                familyType = MetricType.GAUGE; // default in case we don't get a TYPE
+            }
+            familyHelp = restStart < end && !familySkipped ? decodeFamilyHelp(restStart, end) : "";
+        } else {
+            familyType = type;
+        }
+        return true;
+    }
 
-            try {
-                if (!line.isEmpty()) {
-                    if (line.charAt(0) == '#') {
-                        String[] parts = line.split("[ \t]+", 4); // 0 is #, 1 is HELP or TYPE, 2 is metric name, 3 is doc
-                        if (parts.length >= 2) {
-                            if (parts[1].equals("HELP")) {
-                                if (!parts[2].equals(context.name)) {
-                                    // we are hitting a new metric family
-                                    if (!context.name.isEmpty()) {
-                                        // break and we'll finish the metric family we previously were building up
-                                        this.lastLineReadFromStream = line;
-                                        break;
-                                    }
-                                    // start anew
-                                    context.clear();
-                                    context.name = parts[2];
-                                    context.type = MetricType.GAUGE; // default in case we don't get a TYPE
-                                    context.allowedNames.add(parts[2]);
-                                }
-
-                                if (parts.length == 4) {
-                                    context.help = unescapeHelp(parts[3]);
-                                } else {
-                                    context.help = "";
-                                }
-                            } else if (parts[1].equals("TYPE")) {
-                                if (!parts[2].equals(context.name)) {
-                                    if (!context.name.isEmpty()) {
-                                        // break and we'll finish the metric family we previously were building up
-                                        this.lastLineReadFromStream = line;
-                                        break;
-                                    }
-                                    // start anew
-                                    context.clear();
-                                    context.name = parts[2];
-                                }
-                                context.type = MetricType.valueOf(parts[3].toUpperCase());
-                                context.allowedNames.clear();
-                                switch (context.type) {
-                                    case COUNTER, GAUGE -> context.allowedNames.add(context.name);
-                                    case SUMMARY -> {
-                                        context.allowedNames.add(context.name + "_count");
-                                        context.allowedNames.add(context.name + "_sum");
-                                        context.allowedNames.add(context.name);
-                                    }
-                                    case HISTOGRAM -> {
-                                        context.allowedNames.add(context.name + "_count");
-                                        context.allowedNames.add(context.name + "_sum");
-                                        context.allowedNames.add(context.name + "_bucket");
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        // parse the sample line that contains a single metric (or part of a metric as in summary/histo)
-                        TextSample sample = parseSampleLine(line);
-                        if (!context.allowedNames.contains(sample.getName())) {
-                            if (!context.name.isEmpty()) {
-                                // break and we'll finish the metric family we previously were building up
-                                this.lastLineReadFromStream = line;
-                                break;
-                            }
-                            context.clear();
-                            log.debugf("Ignoring an unexpected metric: " + line);
-                        } else {
-                            // add the sample to the family we are building up
-                            context.textSamples.add(sample);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                log.debugf("Failed to process line - it will be ignored: %s", line);
+    private @NotNull MetricType parseType(int start, int end) {
+        for (MetricType type : TYPES) {
+            if (reader.equalsAsciiIgnoreCase(start, end, type.name())) {
+                return type;
             }
+        }
+        throw new IllegalArgumentException("Unknown metric type: " + reader.decode(start, end));
+    }
 
-            // go to the next line
-            line = readLine(getInputStream());
+    // a stable exposition has the same families in the same order every time, so compare with the previous one
+    private @NotNull String decodeFamilyName(int start, int end) {
+        if (familyIndex < familyNames.length) {
+            String cached = familyNames[familyIndex];
+            if (cached != null && reader.equalsAscii(start, end, cached)) {
+                return cached;
+            }
+        } else {
+            familyNames = Arrays.copyOf(familyNames, Math.max(16, familyIndex * 2));
         }
+        String name = reader.decode(start, end);
+        familyNames[familyIndex] = name;
+        return name;
+    }
 
-        if (!context.name.isEmpty()) {
-            // finish the metric family we previously were building up
-            context.finishMetricFamily();
+    private @NotNull String decodeFamilyHelp(int start, int end) {
+        if (familyIndex < familyHelps.length) {
+            // help texts with escape sequences never match, so they are always decoded
+            String cached = familyHelps[familyIndex];
+            if (cached != null && reader.equalsAscii(start, end, cached)) {
+                return cached;
+            }
+        } else {
+            familyHelps = Arrays.copyOf(familyHelps, Math.max(16, familyIndex * 2));
         }
+        String help = unescapeHelp(reader.decode(start, end));
+        familyHelps[familyIndex] = help;
+        return help;
+    }
 
-        return context.finishedMetricFamily;
+    // the sample names that belong to the family depend on its type, i.e. summaries have _sum and _count
+    private boolean isAllowedName(int start, int end) {
+        if (familyType == null || !reader.startsWithAscii(start, end, familyName)) {
+            return false;
+        }
+        int suffixStart = start + familyName.length();
+        return switch (familyType) {
+            case COUNTER, GAUGE -> suffixStart == end;
+            case SUMMARY -> suffixStart == end
+                    || reader.equalsAscii(suffixStart, end, "_count")
+                    || reader.equalsAscii(suffixStart, end, "_sum");
+            case HISTOGRAM -> reader.equalsAscii(suffixStart, end, "_count")
+                    || reader.equalsAscii(suffixStart, end, "_sum")
+                    || reader.equalsAscii(suffixStart, end, "_bucket");
+        };
     }
 
-    private TextSample parseSampleLine(String line) {
-        // algorithm from parser.py
-        StringBuilder name = new StringBuilder();
-        StringBuilder labelname = new StringBuilder();
-        StringBuilder labelvalue = new StringBuilder();
-        StringBuilder value = new StringBuilder();
-        Map<String, String> labels = new LinkedHashMap<>();
-
-        String state = "name";
-
-        label:
-        for (int c = 0; c < line.length(); c++) {
-            char charAt = line.charAt(c);
-            switch (state) {
-                case "name" -> {
-                    if (charAt == '{') {
-                        state = "startoflabelname";
-                    } else if (charAt == ' ' || charAt == '\t') {
-                        state = "endofname";
-                    } else {
-                        name.append(charAt);
-                    }
-                }
-                case "endofname" -> {
-                    if (charAt != ' ' && charAt != '\t') {
-                        if (charAt == '{') {
-                            state = "startoflabelname";
-                        } else {
-                            value.append(charAt);
-                            state = "value";
-                        }
+    // parses a sample line into sampleName, sampleLabels, sampleValue and sampleTimestamp
+    private void parseSampleLine(int start, int nameEnd, int end) throws ScrapeLimitExceededException {
+        // algorithm from parser.py, done on the raw bytes
+        sampleName.setLength(0);
+        appendDecoded(sampleName, start, nameEnd, false);
+        sampleLabels.clear();
+
+        int i = skipWhitespace(nameEnd, end);
+        if (i < end && reader.byteAt(i) == '{') {
+            i = skipWhitespace(i + 1, end);
+            while (i < end && reader.byteAt(i) != '}') {
+                int labelNameStart = i;
+                while (i < end) {
+                    byte b = reader.byteAt(i);
+                    if (b == '=' || b == '}' || b == ' ' || b == '\t') {
+                        break;
                     }
+                    i++;
                 }
-                case "startoflabelname" -> {
-                    if (charAt == '}') {
-                        state = "endoflabels";
-                    } else if (charAt != ' ' && charAt != '\t') {
-                        labelname.append(charAt);
-                        state = "labelname";
-                    }
-                }
-                case "labelname" -> {
-                    if (charAt == '=') {
-                        state = "labelvaluequote";
-                    } else if (charAt == '}') {
-                        state = "endoflabels";
-                    } else if (charAt == ' ' || charAt == '\t') {
-                        state = "labelvalueequals";
-                    } else {
-                        labelname.append(charAt);
-                    }
+                int labelNameEnd = i;
+                i = skipWhitespace(i, end);
+                if (i < end && reader.byteAt(i) == '}') {
+                    break; // a label name without a value is dropped
                 }
-                case "labelvalueequals" -> {
-                    if (charAt == '=') {
-                        state = "labelvaluequote";
-                    } else if (charAt != ' ' && charAt != '\t') {
-                        throw new IllegalStateException("Invalid line: " + line);
-                    }
+                if (i >= end || reader.byteAt(i) != '=') {
+                    throw invalidLine(start, end);
                 }
-                case "labelvaluequote" -> {
-                    if (charAt == '"') {
-                        state = "labelvalue";
-                    } else if (charAt != ' ' && charAt != '\t') {
-                        throw new IllegalStateException("Invalid line: " + line);
-                    }
+                i = skipWhitespace(i + 1, end);
+                if (i >= end || reader.byteAt(i) != '"') {
+                    throw invalidLine(start, end);
                 }
-                case "labelvalue" -> {
-                    if (charAt == '\\') {
-                        state = "labelvalueslash";
-                    } else if (charAt == '"') {
-                        labels.put(labelname.toString(), labelvalue.toString());
-                        labelname.setLength(0);
-                        labelvalue.setLength(0);
-                        state = "nextlabel";
+                int valueStart = ++i;
+                boolean escaped = false;
+                while (i < end) {
+                    byte b = reader.byteAt(i);
+                    if (b == '\\') {
+                        escaped = true;
+                        i += 2;
+                    } else if (b == '"') {
+                        break;
                     } else {
-                        labelvalue.append(charAt);
+                        i++;
                     }
                 }
-                case "labelvalueslash" -> {
-                    state = "labelvalue";
-                    if (charAt == '\\') {
-                        labelvalue.append('\\');
-                    } else if (charAt == 'n') {
-                        labelvalue.append('\n');
-                    } else if (charAt == '"') {
-                        labelvalue.append('"');
-                    } else {
-                        labelvalue.append('\\').append(charAt);
-                    }
+                if (i >= end) {
+                    throw invalidLine(start, end);
                 }
-                case "nextlabel" -> {
-                    if (charAt == ',') {
-                        state = "labelname";
-                    } else if (charAt == '}') {
-                        state = "endoflabels";
-                    } else if (charAt != ' ' && charAt != '\t') {
-                        throw new IllegalStateException("Invalid line: " + line);
-                    }
-                }
-                case "endoflabels" -> {
-                    if (charAt != ' ' && charAt != '\t') {
-                        value.append(charAt);
-                        state = "value";
-                    }
+                appendDecoded(sampleLabels.nextName(), labelNameStart, labelNameEnd, false);
+                appendDecoded(sampleLabels.nextValue(), valueStart, i, escaped);
+                sampleLabels.commit();
+                limits.checkLastLabel(sampleName, sampleLabels);
+
+                i = skipWhitespace(i + 1, end);
+                if (i < end && reader.byteAt(i) == ',') {
+                    i = skipWhitespace(i + 1, end);
+                } else if (i >= end || reader.byteAt(i) != '}') {
+                    throw invalidLine(start, end);
                 }
-                case "value" -> {
-                    if (charAt == ' ' || charAt == '\t') {
-                        break label; // timestamps are NOT supported - ignoring
-                    } else {
-                        value.append(charAt);
-                    }
+            }
+            i = skipWhitespace(i + 1, end);
+        }
+
+        int valueEnd = skipToWhitespace(i, end);
+        if (i == valueEnd) {
+            throw invalidLine(start, end);
+        }
+        sampleValue = Util.convertBytesToDouble(reader.buffer(), i, valueEnd);
+        sampleTimestamp = parseTimestamp(skipWhitespace(valueEnd, end), end);
+
+        limits.checkSamples(++samples);
+    }
+
+    private long parseTimestamp(int from, int to) {
+        if (from == to) {
+            return SampleVisitor.NO_TIMESTAMP;
+        }
+        boolean negative = reader.byteAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 18) {
+            return SampleVisitor.NO_TIMESTAMP;
+        }
+        long timestamp = 0;
+        for (; i < to; i++) {
+            int digit = reader.byteAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return SampleVisitor.NO_TIMESTAMP; // not a valid timestamp - ignore it
+            }
+            timestamp = timestamp * 10 + digit;
+        }
+        return negative ? -timestamp : timestamp;
+    }
+
+    /**
+     * Appends the decoded range to the buffer, optionally resolving label value escape sequences.
+     * ASCII data is appended byte by byte without creating any garbage.
+     */
+    private void appendDecoded(@NotNull StringBuilder buffer, int from, int to, boolean unescape) {
+        for (int i = from; i < to; i++) {
+            if (reader.byteAt(i) < 0) {
+                // non-ASCII data - take the slow path and have it decoded as UTF-8
+                String decoded = reader.decode(from, to);
+                if (unescape) {
+                    unescapeLabelValue(buffer, decoded);
+                } else {
+                    buffer.append(decoded);
                 }
+                return;
+            }
+        }
+
+        for (int i = from; i < to; i++) {
+            char c = (char) reader.byteAt(i);
+            if (unescape && c == '\\' && i + 1 < to) {
+                appendEscaped(buffer, (char) reader.byteAt(++i));
+            } else {
+                buffer.append(c);
+            }
+        }
+    }
+
+    private void unescapeLabelValue(@NotNull StringBuilder buffer, @NotNull String text) {
+        for (int c = 0; c < text.length(); c++) {
+            char charAt = text.charAt(c);
+            if (charAt == '\\' && c + 1 < text.length()) {
+                appendEscaped(buffer, text.charAt(++c));
+            } else {
+                buffer.append(charAt);
+            }
+        }
+    }
+
+    private void appendEscaped(@NotNull StringBuilder buffer, char escaped) {
+        if (escaped == '\\') {
+            buffer.append('\\');
+        } else if (escaped == 'n') {
+            buffer.append('\n');
+        } else if (escaped == '"') {
+            buffer.append('"');
+        } else {
+            buffer.append('\\').append(escaped);
+        }
+    }
+
+    private int findNameEnd(int start, int end) {
+        int i = start;
+        while (i < end) {
+            byte b = reader.byteAt(i);
+            if (b == '{' || b == ' ' || b == '\t') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to) {
+            byte b = reader.byteAt(from);
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            from++;
+        }
+        return from;
+    }
+
+    private int skipToWhitespace(int from, int to) {
+        while (from < to) {
+            byte b = reader.byteAt(from);
+            if (b == ' ' || b == '\t') {
+                break;
             }
+            from++;
         }
+        return from;
+    }
 
-        return new TextSample.Builder()
-                .setLine(line)
-                .setName(name.toString())
-                .setValue(value.toString())
-                .addLabels(labels).build();
+    private @NotNull IllegalStateException invalidLine(int start, int end) {
+        return new IllegalStateException("Invalid line: " + reader.decode(start, end));
     }
 
     private String unescapeHelp(String text) {
@@ -436,22 +605,4 @@ public class TextPrometheusMetricDataParser extends PrometheusMetricDataParser<M
         }
         return result.toString();
     }
-
-    private @Nullable String readLine(@NotNull InputStream inputStream) throws IOException {
-        int lineChar;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        // Prometheus end of line character is a newline
-        for (lineChar = inputStream.read(); (lineChar != '\n' && lineChar != -1); lineChar = inputStream.read()) {
-            baos.write(lineChar);
-        }
-
-        if (lineChar == -1 && baos.size() == 0) {
-            // EOF
-            return null;
-        }
-
-        return baos.toString(StandardCharsets.UTF_8);
-    }
-
 }
@@ -1,25 +1,114 @@
 package com.github.epserv.prometheus.text;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+import com.github.epserv.prometheus.ProcessorOptions;
 import com.github.epserv.prometheus.PrometheusMetricsProcessor;
+import com.github.epserv.prometheus.SampleVisitor;
 import com.github.epserv.prometheus.types.MetricFamily;
 import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
- * This will iterate over a list of Prometheus metrics that are given as text data.
+ * This will iterate over a list of Prometheus metrics that are given as text data,
+ * either in a stream or already in memory.
  */
 public class TextPrometheusMetricsProcessor extends PrometheusMetricsProcessor<MetricFamily> {
+    private final @Nullable ByteBuffer data;
+
+    public TextPrometheusMetricsProcessor(@NotNull InputStream inputStream) {
+        super(inputStream);
+        this.data = null;
+    }
+
     public TextPrometheusMetricsProcessor(@NotNull InputStream inputStream, @NotNull PrometheusMetricsWalker theWalker) {
         super(inputStream, theWalker);
+        this.data = null;
+    }
+
+    /**
+     * @param inputStream where the Prometheus metrics are that the walker or visitor will traverse.
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered,
+     *                  or null if the processor is only going to be visited
+     * @param options the arena, limits, family filter and relabeling rules to process the data with. The samples
+     *                of families the filter does not accept are skipped without being tokenized.
+     */
+    public TextPrometheusMetricsProcessor(@NotNull InputStream inputStream, @Nullable PrometheusMetricsWalker theWalker,
+            @NotNull ProcessorOptions options) {
+        super(inputStream, theWalker, options);
+        this.data = null;
+    }
+
+    /**
+     * Use this constructor if the data is already in memory, e.g. in a memory mapped file.
+     * The remaining bytes of the buffer are parsed in place, without being copied.
+     *
+     * @param data the text data that the visitor will traverse
+     */
+    public TextPrometheusMetricsProcessor(@NotNull ByteBuffer data) {
+        super(InputStream.nullInputStream());
+        this.data = data;
+    }
+
+    /**
+     * Use this constructor if the data is already in memory, e.g. in a memory mapped file.
+     * The remaining bytes of the buffer are parsed in place, without being copied.
+     *
+     * @param data the text data that the walker will traverse
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered
+     */
+    public TextPrometheusMetricsProcessor(@NotNull ByteBuffer data, @NotNull PrometheusMetricsWalker theWalker) {
+        super(InputStream.nullInputStream(), theWalker);
+        this.data = data;
+    }
+
+    /**
+     * Use this constructor if the data is already in memory, e.g. in a memory mapped file.
+     * The remaining bytes of the buffer are parsed in place, without being copied.
+     *
+     * @param data the text data that the walker or visitor will traverse
+     * @param theWalker the actual object that will be notified about the metrics as they are encountered,
+     *                  or null if the processor is only going to be visited
+     * @param options the arena, limits, family filter and relabeling rules to process the data with
+     */
+    public TextPrometheusMetricsProcessor(@NotNull ByteBuffer data, @Nullable PrometheusMetricsWalker theWalker,
+            @NotNull ProcessorOptions options) {
+        super(InputStream.nullInputStream(), theWalker, options);
+        this.data = data;
     }
 
     @Override
     @Contract("-> new")
     public @NotNull TextPrometheusMetricDataParser createPrometheusMetricDataParser() {
-        return new TextPrometheusMetricDataParser(getInputStream());
+        TextPrometheusMetricDataParser parser = data != null
+                ? new TextPrometheusMetricDataParser(data.duplicate())
+                : new TextPrometheusMetricDataParser(getInputStream());
+        parser.setLimits(getLimits());
+        parser.setFamilyFilter(getFamilyFilter());
+        return parser;
+    }
+
+    @Override
+    protected void visitSamples(@NotNull SampleVisitor visitor) throws IOException {
+        TextPrometheusMetricDataParser parser = getArena().get(TextPrometheusMetricDataParser.class,
+                TextPrometheusMetricDataParser::new);
+        parser.setLimits(getLimits());
+        parser.setFamilyFilter(getFamilyFilter());
+        if (data != null) {
+            parser.reset(data.duplicate());
+        } else {
+            parser.reset(getInputStream());
+        }
+        try {
+            parser.parse(visitor);
+        } finally {
+            // the parser stays in the arena, the scraped data must not
+            parser.release();
+        }
     }
 
     @Override
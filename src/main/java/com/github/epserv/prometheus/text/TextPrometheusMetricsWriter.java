@@ -0,0 +1,296 @@
+package com.github.epserv.prometheus.text;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.github.epserv.prometheus.Util;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes metric families in the Prometheus text exposition format (version 0.0.4), e.g. to re-expose scraped
+ * metrics after filtering or aggregating them.
+ * <p>
+ * Every family is written as its {@code # HELP} (if it has a help text) and {@code # TYPE} lines followed by its
+ * samples. Summaries are expanded into their quantile samples and their {@code _sum} and {@code _count} samples,
+ * histograms into their {@code _bucket} samples and their {@code _sum} and {@code _count} samples. Help texts and
+ * label values are escaped as the format requires.
+ * <p>
+ * Text is encoded to UTF-8 and numbers are formatted straight into a byte buffer, which is written to the output
+ * stream when it is full or the writer is flushed. A writer without an output stream keeps everything in its
+ * buffer instead, see {@link #toByteArray()}. Apart from growing that buffer, writing allocates nothing.
+ * <p>
+ * A writer must only be used by one thread at a time.
+ */
+public class TextPrometheusMetricsWriter implements Flushable, Closeable {
+
+    /**
+     * The content type of the written data.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte[] HELP = "# HELP ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE = "# TYPE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUM = "_sum".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COUNT = "_count".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUCKET = "_bucket".getBytes(StandardCharsets.US_ASCII);
+
+    private final @Nullable OutputStream out;
+    private byte @NotNull [] buffer;
+    private int position;
+
+    /**
+     * Creates a writer that writes to the given stream.
+     *
+     * @param out the stream to write to
+     */
+    public TextPrometheusMetricsWriter(@NotNull OutputStream out) {
+        this.out = out;
+        this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * Creates a writer that keeps everything written in its buffer, see {@link #toByteArray()}.
+     */
+    public TextPrometheusMetricsWriter() {
+        this.out = null;
+        this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * @param families the metric families to write
+     * @throws IOException if the output stream could not be written to
+     */
+    public void write(@NotNull List<@NotNull MetricFamily> families) throws IOException {
+        for (MetricFamily family : families) {
+            write(family);
+        }
+    }
+
+    /**
+     * @param family the metric family to write
+     * @throws IOException if the output stream could not be written to
+     */
+    public void write(@NotNull MetricFamily family) throws IOException {
+        String name = family.getName();
+        MetricType type = family.getType();
+        if (family.getHelp() != null) {
+            writeBytes(HELP);
+            writeText(name, false, false);
+            writeByte(' ');
+            writeText(family.getHelp(), true, false);
+            writeByte('\n');
+        }
+        writeBytes(TYPE);
+        writeText(name, false, false);
+        writeByte(' ');
+        writeText(switch (type) {
+            case COUNTER -> "counter";
+            case GAUGE -> "gauge";
+            case SUMMARY -> "summary";
+            case HISTOGRAM -> "histogram";
+        }, false, false);
+        writeByte('\n');
+
+        for (Metric metric : family.getMetrics()) {
+            switch (type) {
+                case COUNTER -> writeSample(metric.getName(), null, metric.getLabels(), null, 0,
+                        ((Counter) metric).getValue());
+                case GAUGE -> writeSample(metric.getName(), null, metric.getLabels(), null, 0,
+                        ((Gauge) metric).getValue());
+                case SUMMARY -> {
+                    Summary summary = (Summary) metric;
+                    for (Summary.Quantile quantile : summary.getQuantiles()) {
+                        writeSample(metric.getName(), null, metric.getLabels(), "quantile", quantile.quantile(),
+                                quantile.value());
+                    }
+                    writeSample(metric.getName(), SUM, metric.getLabels(), null, 0, summary.getSampleSum());
+                    writeCount(metric.getName(), metric.getLabels(), summary.getSampleCount());
+                }
+                case HISTOGRAM -> {
+                    Histogram histogram = (Histogram) metric;
+                    for (Histogram.Bucket bucket : histogram.getBuckets()) {
+                        writeSampleStart(metric.getName(), BUCKET, metric.getLabels(), "le", bucket.upperBound());
+                        writeLong(bucket.cumulativeCount());
+                        writeByte('\n');
+                    }
+                    writeSample(metric.getName(), SUM, metric.getLabels(), null, 0, histogram.getSampleSum());
+                    writeCount(metric.getName(), metric.getLabels(), histogram.getSampleCount());
+                }
+            }
+        }
+    }
+
+    private void writeSample(@NotNull String name, byte @Nullable [] suffix, @NotNull Map<String, String> labels,
+            @Nullable String extraLabel, double extraValue, double value) throws IOException {
+        writeSampleStart(name, suffix, labels, extraLabel, extraValue);
+        ensure(Util.MAX_DOUBLE_LENGTH + 1);
+        position = Util.appendDouble(buffer, position, value);
+        buffer[position++] = '\n';
+    }
+
+    private void writeCount(@NotNull String name, @NotNull Map<String, String> labels, long count)
+            throws IOException {
+        writeSampleStart(name, COUNT, labels, null, 0);
+        writeLong(count);
+        writeByte('\n');
+    }
+
+    // writes the name and labels of a sample, followed by a space
+    private void writeSampleStart(@NotNull String name, byte @Nullable [] suffix,
+            @NotNull Map<String, String> labels, @Nullable String extraLabel, double extraValue) throws IOException {
+        writeText(name, false, false);
+        if (suffix != null) {
+            writeBytes(suffix);
+        }
+        if (!labels.isEmpty() || extraLabel != null) {
+            writeByte('{');
+            boolean first = true;
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeText(label.getKey(), false, false);
+                writeByte('=');
+                writeByte('"');
+                writeText(label.getValue(), true, true);
+                writeByte('"');
+            }
+            if (extraLabel != null) {
+                if (!first) {
+                    writeByte(',');
+                }
+                writeText(extraLabel, false, false);
+                writeByte('=');
+                writeByte('"');
+                ensure(Util.MAX_DOUBLE_LENGTH);
+                position = Util.appendDouble(buffer, position, extraValue);
+                writeByte('"');
+            }
+            writeByte('}');
+        }
+        writeByte(' ');
+    }
+
+    /**
+     * Writes text as UTF-8.
+     *
+     * @param escape whether to escape backslashes and line feeds
+     * @param escapeQuotes whether to escape double quotes as well
+     */
+    private void writeText(@NotNull String text, boolean escape, boolean escapeQuotes) throws IOException {
+        int length = text.length();
+        int from = 0;
+        if (escape) {
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c == '\\' || c == '\n' || c == '"' && escapeQuotes) {
+                    ensure((i - from) * 3 + 2);
+                    position = Util.appendUtf8(buffer, position, text, from, i);
+                    buffer[position++] = '\\';
+                    buffer[position++] = (byte) (c == '\n' ? 'n' : c);
+                    from = i + 1;
+                }
+            }
+        }
+        ensure((length - from) * 3);
+        position = Util.appendUtf8(buffer, position, text, from, length);
+    }
+
+    private void writeLong(long value) throws IOException {
+        ensure(Util.MAX_LONG_LENGTH);
+        position = Util.appendLong(buffer, position, value);
+    }
+
+    private void writeByte(char c) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void writeBytes(byte @NotNull [] bytes) throws IOException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    // makes room for the given number of bytes
+    private void ensure(int length) throws IOException {
+        if (buffer.length - position >= length) {
+            return;
+        }
+        if (out != null) {
+            out.write(buffer, 0, position);
+            position = 0;
+            if (buffer.length >= length) {
+                return;
+            }
+        }
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+    }
+
+    /**
+     * @return the number of bytes in the buffer, i.e. all bytes written if this writer has no output stream
+     */
+    @Contract(pure = true)
+    public int size() {
+        return position;
+    }
+
+    /**
+     * @return a copy of the bytes in the buffer, i.e. all bytes written if this writer has no output stream
+     */
+    public byte @NotNull [] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Discards the bytes in the buffer, so that a writer without an output stream can be reused.
+     */
+    public void reset() {
+        position = 0;
+    }
+
+    /**
+     * Writes the buffered bytes to the output stream and flushes it. Does nothing if this writer has no output
+     * stream.
+     *
+     * @throws IOException if the output stream could not be written to
+     */
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.write(buffer, 0, position);
+            position = 0;
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes this writer and closes the output stream.
+     *
+     * @throws IOException if the output stream could not be written to or closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (out != null) {
+            out.close();
+        }
+    }
+}
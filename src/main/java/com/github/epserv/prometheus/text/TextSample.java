@@ -46,9 +46,9 @@ public class TextSample extends Metric {
     /**
      * This is the line of text in the text data where this sample came from.
      * This can be used for debugging purposes, so you know what the sample
-     * looked like before being parsed.
+     * looked like before being parsed. Parsers that never decode whole lines leave this null.
      *
-     * @return the sample text line
+     * @return the sample text line, or null
      */
     public String getLine() {
         return line;
@@ -1,8 +1,12 @@
 package com.github.epserv.prometheus.walkers;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import com.github.epserv.prometheus.Util;
 import com.github.epserv.prometheus.types.Counter;
@@ -11,118 +15,268 @@ import com.github.epserv.prometheus.types.MetricFamily;
 import com.github.epserv.prometheus.types.Summary;
 import com.github.epserv.prometheus.types.Gauge;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * Writes the walked metric families as a JSON array of families, each with its name, help text, type and metrics.
+ * <p>
+ * Values, counts and sums are JSON numbers, except for non-finite values, which JSON has no numbers for - they are
+ * written as the strings {@code "NaN"}, {@code "+Inf"} and {@code "-Inf"}. Quantiles and bucket upper bounds are
+ * object keys and therefore strings. All strings are escaped as JSON requires.
+ * <p>
+ * The document is encoded as UTF-8 into one internal buffer, which is written to the output stream (or writer) when
+ * it is full and when the walk finishes. The stream is flushed, but not closed, when the walk finishes. Failures to
+ * write it are thrown as {@link UncheckedIOException}s.
+ * <p>
+ * A walker must only be used by one walk at a time.
+ */
 public class JSONPrometheusMetricsWalker implements PrometheusMetricsWalker {
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final @Nullable OutputStream out;
+    private final @Nullable Writer writer;
+    private final byte @NotNull [] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    /**
+     * Creates a walker that writes to {@link System#out}.
+     */
+    public JSONPrometheusMetricsWalker() {
+        this(System.out);
+    }
+
+    /**
+     * @param out the stream to write the UTF-8 encoded document to
+     */
+    public JSONPrometheusMetricsWalker(@NotNull OutputStream out) {
+        this.out = out;
+        this.writer = null;
+    }
+
+    /**
+     * @param writer the writer to write the document to
+     */
+    public JSONPrometheusMetricsWalker(@NotNull Writer writer) {
+        this.out = null;
+        this.writer = writer;
+    }
 
     @Override
     public void walkStart() {
-        System.out.println("[");
+        position = 0;
+        write("[\n");
     }
 
     @Override
     public void walkFinish(int familiesProcessed, int metricsProcessed) {
         if (familiesProcessed > 0) {
-            System.out.println("    ]");
-            System.out.println("  }");
+            write("\n    ]\n  }\n");
+        }
+        write("]\n");
+        try {
+            flushBuffer();
+            if (out != null) {
+                out.flush();
+            } else {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        System.out.println("]");
     }
 
     @Override
     public void walkMetricFamily(@NotNull MetricFamily familyInfo, int index) {
         if (index > 0) {
-            System.out.print("    ]\n");
-            System.out.print("  },\n");
+            write("\n    ]\n  },\n");
         }
-
-        System.out.print("  {\n");
-        System.out.printf("    \"name\":\"%s\",\n", familyInfo.getName());
-        System.out.printf("    \"help\":\"%s\",\n", familyInfo.getHelp());
-        System.out.printf("    \"type\":\"%s\",\n", familyInfo.getType());
-        System.out.print("    \"metrics\":[\n");
+        write("  {\n    \"name\":");
+        writeString(familyInfo.getName());
+        write(",\n    \"help\":");
+        if (familyInfo.getHelp() == null) {
+            write("null");
+        } else {
+            writeString(familyInfo.getHelp());
+        }
+        write(",\n    \"type\":");
+        writeString(familyInfo.getType().name());
+        write(",\n    \"metrics\":[");
     }
 
     @Override
     public void walkCounterMetric(@NotNull MetricFamily family, @NotNull Counter metric, int index) {
-        System.out.print("      {\n");
-        outputLabels(metric.getLabels());
-        System.out.printf("        \"value\":\"%s\"\n", Util.convertDoubleToString(metric.getValue()));
-        if ((index + 1) == family.getMetrics().size()) {
-            System.out.print("      }\n");
-        } else {
-            System.out.print("      },\n"); // there are more coming
-        }
+        startMetric(metric.getLabels(), index);
+        write("        \"value\":");
+        writeNumber(metric.getValue());
+        write("\n      }");
     }
 
     @Override
     public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge metric, int index) {
-        System.out.print("      {\n");
-        outputLabels(metric.getLabels());
-        System.out.printf("        \"value\":\"%s\"\n", Util.convertDoubleToString(metric.getValue()));
-        if ((index + 1) == family.getMetrics().size()) {
-            System.out.print("      }\n");
-        } else {
-            System.out.print("      },\n"); // there are more coming
-        }
+        startMetric(metric.getLabels(), index);
+        write("        \"value\":");
+        writeNumber(metric.getValue());
+        write("\n      }");
     }
 
     @Override
     public void walkSummaryMetric(@NotNull MetricFamily family, @NotNull Summary metric, int index) {
-        System.out.print("      {\n");
-        outputLabels(metric.getLabels());
-        if (!metric.getQuantiles().isEmpty()) {
-            System.out.print("        \"quantiles\":{\n");
-            Iterator<Summary.Quantile> iter = metric.getQuantiles().iterator();
-            while (iter.hasNext()) {
-                Summary.Quantile quantile = iter.next();
-                System.out.printf("          \"%f\":\"%f\"%s\n",
-                        quantile.quantile(), quantile.value(), (iter.hasNext()) ? "," : "");
+        startMetric(metric.getLabels(), index);
+        List<Summary.Quantile> quantiles = metric.getQuantiles();
+        if (!quantiles.isEmpty()) {
+            write("        \"quantiles\":{");
+            for (int i = 0; i < quantiles.size(); i++) {
+                write(i == 0 ? "\n          \"" : ",\n          \"");
+                writeDouble(quantiles.get(i).quantile());
+                write("\":");
+                writeNumber(quantiles.get(i).value());
             }
-            System.out.print("        },\n");
-        }
-        System.out.printf("        \"count\":\"%d\",\n", metric.getSampleCount());
-        System.out.printf("        \"sum\":\"%s\"\n", Util.convertDoubleToString(metric.getSampleSum()));
-        if ((index + 1) == family.getMetrics().size()) {
-            System.out.print("      }\n");
-        } else {
-            System.out.print("      },\n"); // there are more coming
+            write("\n        },\n");
         }
+        writeCountAndSum(metric.getSampleCount(), metric.getSampleSum());
     }
 
     @Override
     public void walkHistogramMetric(@NotNull MetricFamily family, @NotNull Histogram metric, int index) {
-        System.out.print("      {\n");
-        outputLabels(metric.getLabels());
-        if (!metric.getBuckets().isEmpty()) {
-            System.out.print("        \"buckets\":{\n");
-            Iterator<Histogram.Bucket> iter = metric.getBuckets().iterator();
-            while (iter.hasNext()) {
-                Histogram.Bucket bucket = iter.next();
-                System.out.printf("          \"%f\":\"%d\"%s\n",
-                        bucket.upperBound(), bucket.cumulativeCount(), (iter.hasNext()) ? "," : "");
+        startMetric(metric.getLabels(), index);
+        List<Histogram.Bucket> buckets = metric.getBuckets();
+        if (!buckets.isEmpty()) {
+            write("        \"buckets\":{");
+            for (int i = 0; i < buckets.size(); i++) {
+                write(i == 0 ? "\n          \"" : ",\n          \"");
+                writeDouble(buckets.get(i).upperBound());
+                write("\":");
+                writeLong(buckets.get(i).cumulativeCount());
             }
-            System.out.print("        },\n");
+            write("\n        },\n");
+        }
+        writeCountAndSum(metric.getSampleCount(), metric.getSampleSum());
+    }
+
+    private void startMetric(@NotNull Map<String, String> labels, int index) {
+        write(index > 0 ? ",\n      {\n" : "\n      {\n");
+        if (labels.isEmpty()) {
+            return;
         }
-        System.out.printf("        \"count\":\"%d\",\n", metric.getSampleCount());
-        System.out.printf("        \"sum\":\"%s\"\n", Util.convertDoubleToString(metric.getSampleSum()));
-        if ((index + 1) == family.getMetrics().size()) {
-            System.out.print("      }\n");
+        write("        \"labels\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            write(first ? "\n          " : ",\n          ");
+            first = false;
+            writeString(label.getKey());
+            write(":");
+            writeString(label.getValue());
+        }
+        write("\n        },\n");
+    }
+
+    private void writeCountAndSum(long count, double sum) {
+        write("        \"count\":");
+        writeLong(count);
+        write(",\n        \"sum\":");
+        writeNumber(sum);
+        write("\n      }");
+    }
+
+    // a JSON number, or a string for the non-finite values JSON cannot represent as numbers
+    private void writeNumber(double value) {
+        if (Double.isFinite(value)) {
+            writeDouble(value);
         } else {
-            System.out.print("      },\n"); // there are more coming
+            write('"');
+            writeDouble(value);
+            write('"');
         }
     }
 
-    private void outputLabels(Map<String, String> labels) {
-        if (labels == null || labels.isEmpty()) {
-            return;
+    private void writeDouble(double value) {
+        ensure(Util.MAX_DOUBLE_LENGTH);
+        position = Util.appendDouble(buffer, position, value);
+    }
+
+    private void writeLong(long value) {
+        ensure(Util.MAX_LONG_LENGTH);
+        position = Util.appendLong(buffer, position, value);
+    }
+
+    // writes a quoted and escaped JSON string
+    private void writeString(@NotNull String text) {
+        write('"');
+        int from = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writeUtf8(text, from, i);
+            ensure(6);
+            buffer[position++] = '\\';
+            switch (c) {
+                case '"', '\\' -> buffer[position++] = (byte) c;
+                case '\n' -> buffer[position++] = 'n';
+                case '\r' -> buffer[position++] = 'r';
+                case '\t' -> buffer[position++] = 't';
+                case '\b' -> buffer[position++] = 'b';
+                case '\f' -> buffer[position++] = 'f';
+                default -> {
+                    buffer[position++] = 'u';
+                    buffer[position++] = '0';
+                    buffer[position++] = '0';
+                    buffer[position++] = HEX[c >> 4];
+                    buffer[position++] = HEX[c & 0xf];
+                }
+            }
+            from = i + 1;
+        }
+        writeUtf8(text, from, text.length());
+        write('"');
+    }
+
+    // writes a range of text as UTF-8, in pieces that fit the buffer
+    private void writeUtf8(@NotNull String text, int from, int to) {
+        while (from < to) {
+            int end = Math.min(to, from + buffer.length / 3);
+            if (end < to && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--; // keep surrogate pairs together
+            }
+            ensure((end - from) * 3);
+            position = Util.appendUtf8(buffer, position, text, from, end);
+            from = end;
         }
-        System.out.print("        \"labels\":{\n");
-        Iterator<Entry<String, String>> iter = labels.entrySet().iterator();
-        while (iter.hasNext()) {
-            Entry<String, String> labelPair = iter.next();
-            String comma = (iter.hasNext()) ? "," : "";
-            System.out.printf("          \"%s\":\"%s\"%s\n", labelPair.getKey(), labelPair.getValue(), comma);
+    }
+
+    // writes ASCII text
+    private void write(@NotNull String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void write(char c) {
+        ensure(1);
+        buffer[position++] = (byte) c;
+    }
+
+    // makes room for the given number of bytes, which is never more than the size of the buffer
+    private void ensure(int length) {
+        if (buffer.length - position < length) {
+            try {
+                flushBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // the buffer only ever holds whole characters, so it can be decoded on its own for a writer
+    private void flushBuffer() throws IOException {
+        if (out != null) {
+            out.write(buffer, 0, position);
+        } else {
+            writer.write(new String(buffer, 0, position, StandardCharsets.UTF_8));
         }
-        System.out.print("        },\n");
+        position = 0;
     }
 }
@@ -2,6 +2,7 @@ package com.github.epserv.prometheus.walkers;
 
 import java.util.Map;
 
+import com.github.epserv.prometheus.Util;
 import com.github.epserv.prometheus.types.Counter;
 import com.github.epserv.prometheus.types.Histogram;
 import com.github.epserv.prometheus.types.MetricFamily;
@@ -47,37 +48,37 @@ public class LoggingPrometheusMetricsWalker implements PrometheusMetricsWalker {
 
     @Override
     public void walkCounterMetric(@NotNull MetricFamily family, @NotNull Counter metric, int index) {
-        log.logf(getLogLevel(), "COUNTER: %s%s=%f",
+        log.logf(getLogLevel(), "COUNTER: %s%s=%s",
                 metric.getName(),
                 buildLabelListString(metric.getLabels()),
-                metric.getValue());
+                Util.convertDoubleToString(metric.getValue()));
     }
 
     @Override
     public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge metric, int index) {
-        log.logf(getLogLevel(), "GAUGE: %s%s=%f",
+        log.logf(getLogLevel(), "GAUGE: %s%s=%s",
                 metric.getName(),
                 buildLabelListString(metric.getLabels()),
-                metric.getValue());
+                Util.convertDoubleToString(metric.getValue()));
     }
 
     @Override
     public void walkSummaryMetric(@NotNull MetricFamily family, @NotNull Summary metric, int index) {
-        log.logf(getLogLevel(), "SUMMARY: %s%s: count=%d, sum=%f, quantiles=%s",
+        log.logf(getLogLevel(), "SUMMARY: %s%s: count=%d, sum=%s, quantiles=%s",
                 metric.getName(),
                 buildLabelListString(metric.getLabels()),
                 metric.getSampleCount(),
-                metric.getSampleSum(),
+                Util.convertDoubleToString(metric.getSampleSum()),
                 metric.getQuantiles());
     }
 
     @Override
     public void walkHistogramMetric(@NotNull MetricFamily family, @NotNull Histogram metric, int index) {
-        log.logf(getLogLevel(), "HISTOGRAM: %s%s: count=%d, sum=%f, buckets=%s",
+        log.logf(getLogLevel(), "HISTOGRAM: %s%s: count=%d, sum=%s, buckets=%s",
                 metric.getName(),
                 buildLabelListString(metric.getLabels()),
                 metric.getSampleCount(),
-                metric.getSampleSum(),
+                Util.convertDoubleToString(metric.getSampleSum()),
                 metric.getBuckets());
     }
 
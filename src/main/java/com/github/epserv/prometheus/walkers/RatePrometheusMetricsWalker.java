@@ -0,0 +1,316 @@
+package com.github.epserv.prometheus.walkers;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+
+import com.github.epserv.prometheus.Util;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.Summary;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Computes the increase and the per-second rate of every counter since the previous walk, like Prometheus'
+ * {@code increase()} and {@code rate()} over two consecutive scrapes, and reports them to a {@link Listener}
+ * as part of the walk. The walk itself is passed on to another walker, if there is one.
+ * <p>
+ * Counters are the values of counter metrics, the buckets and the {@code _sum} and {@code _count} of histograms,
+ * and the {@code _sum} and {@code _count} of summaries. A counter that decreased was reset, e.g. because the
+ * target restarted, and its increase is its current value. The buckets and sums of a histogram or summary are
+ * reset together: all its counters are treated as reset when its count or any of its buckets decreased, so the
+ * bucket increases of a histogram stay consistent with each other, and a sum that decreased due to negative
+ * observations is not mistaken for a reset.
+ * <p>
+ * The last value of every counter is kept in a table of primitive arrays keyed by a 64-bit hash of the sample name
+ * and the labels, which is verified with a second, independent 64-bit hash of them (see {@link SeriesStateTable});
+ * series that are missing from a walk are forgotten. Nothing is
+ * reported for a series the previous walk did not see. The walker is meant to be reused for all scrapes of the
+ * same target, but must only be used by one walk at a time.
+ */
+public class RatePrometheusMetricsWalker implements PrometheusMetricsWalker {
+
+    /**
+     * Receives the increases and rates computed by a {@link RatePrometheusMetricsWalker}.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every counter of the walk that was also seen by the previous walk.
+         *
+         * @param family the family of the metric
+         * @param metric the metric the counter belongs to
+         * @param sampleName the name of the counter sample, e.g. the metric name or the metric name with
+         *        a {@code _bucket}, {@code _sum} or {@code _count} suffix
+         * @param upperBound the upper bound of the bucket if the counter is a histogram bucket, NaN otherwise
+         * @param increase the increase of the counter since the previous walk
+         * @param perSecond the increase divided by the seconds since the previous walk
+         */
+        void onRate(@NotNull MetricFamily family, @NotNull Metric metric, @NotNull String sampleName,
+                double upperBound, double increase, double perSecond);
+    }
+
+    private static final long SUM_SUFFIX = 0x5a3f1c7d9e2b4861L;
+    private static final long COUNT_SUFFIX = 0x2c6b8e1f4a7d3905L;
+    private static final long BUCKET_SUFFIX = 0x7e1d4b9a3c5f2806L;
+
+    // the check hashes are polynomial hashes with their own multiplier and seeds, independent of the FNV hashes
+    private static final long CHECK_MULTIPLIER = 0x9e3779b97f4a7c15L;
+    private static final long CHECK_NAME_SEED = 0x3b9f6e2d81c4a7f1L;
+    private static final long CHECK_LABEL_SEED = 0x6d2a5c8e0f7b1943L;
+
+    private final @NotNull Listener listener;
+    private final @Nullable PrometheusMetricsWalker delegate;
+    private final @NotNull Clock clock;
+    private final @NotNull SeriesStateTable table = new SeriesStateTable();
+    private int walk;
+    private long walkTime = Long.MIN_VALUE;
+    private double seconds; // since the previous walk, NaN if there was none
+
+    // per family
+    private @Nullable String sumName;
+    private @Nullable String countName;
+    private @Nullable String bucketName;
+
+    // slots of the counters of the current histogram or summary
+    private int @NotNull [] slots = new int[16];
+
+    /**
+     * @param listener receives the increases and rates
+     */
+    public RatePrometheusMetricsWalker(@NotNull Listener listener) {
+        this(listener, null, Clock.systemUTC());
+    }
+
+    /**
+     * @param listener receives the increases and rates
+     * @param delegate the walker the walk is passed on to, or null
+     */
+    public RatePrometheusMetricsWalker(@NotNull Listener listener, @Nullable PrometheusMetricsWalker delegate) {
+        this(listener, delegate, Clock.systemUTC());
+    }
+
+    /**
+     * @param listener receives the increases and rates
+     * @param delegate the walker the walk is passed on to, or null
+     * @param clock the clock that provides the time of a walk
+     */
+    public RatePrometheusMetricsWalker(@NotNull Listener listener, @Nullable PrometheusMetricsWalker delegate,
+            @NotNull Clock clock) {
+        this.listener = listener;
+        this.delegate = delegate;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the number of series whose last value is kept
+     */
+    public int getTrackedSeries() {
+        return table.size();
+    }
+
+    @Override
+    public void walkStart() {
+        // the values of a walk that failed are still compared with, so it counts as the previous walk as well
+        walk++;
+        long previousWalkTime = walkTime;
+        walkTime = clock.millis();
+        seconds = previousWalkTime == Long.MIN_VALUE || walkTime <= previousWalkTime ? Double.NaN
+                : (walkTime - previousWalkTime) / 1000.0;
+        if (delegate != null) {
+            delegate.walkStart();
+        }
+    }
+
+    @Override
+    public void walkFinish(int familiesProcessed, int metricsProcessed) {
+        table.retain(walk);
+        if (delegate != null) {
+            delegate.walkFinish(familiesProcessed, metricsProcessed);
+        }
+    }
+
+    @Override
+    public void walkMetricFamily(@NotNull MetricFamily family, int index) {
+        sumName = null;
+        countName = null;
+        bucketName = null;
+        if (delegate != null) {
+            delegate.walkMetricFamily(family, index);
+        }
+    }
+
+    @Override
+    public void walkCounterMetric(@NotNull MetricFamily family, @NotNull Counter counter, int index) {
+        table.ensureCapacity(1);
+        int slot = table.slot(hash(counter.getName(), counter.getLabels()),
+                check(counter.getName(), counter.getLabels()), walk);
+        if (seen(slot)) {
+            double previous = table.value(slot);
+            double value = counter.getValue();
+            report(family, counter, counter.getName(), Double.NaN, value < previous ? value : value - previous);
+        }
+        update(slot, counter.getValue());
+        if (delegate != null) {
+            delegate.walkCounterMetric(family, counter, index);
+        }
+    }
+
+    @Override
+    public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge gauge, int index) {
+        if (delegate != null) {
+            delegate.walkGaugeMetric(family, gauge, index);
+        }
+    }
+
+    @Override
+    public void walkSummaryMetric(@NotNull MetricFamily family, @NotNull Summary summary, int index) {
+        long labels = hashLabels(summary.getLabels());
+        long name = hashName(summary.getName());
+        long checkLabels = checkLabels(summary.getLabels());
+        long checkName = checkName(summary.getName());
+        table.ensureCapacity(2);
+        int sumSlot = table.slot(Util.mix(name ^ SUM_SUFFIX) + labels,
+                Util.mix(checkName ^ SUM_SUFFIX) + checkLabels, walk);
+        int countSlot = table.slot(Util.mix(name ^ COUNT_SUFFIX) + labels,
+                Util.mix(checkName ^ COUNT_SUFFIX) + checkLabels, walk);
+
+        if (seen(sumSlot) && seen(countSlot)) {
+            boolean reset = summary.getSampleCount() < table.value(countSlot);
+            if (sumName == null) {
+                sumName = family.getName() + "_sum";
+                countName = family.getName() + "_count";
+            }
+            report(family, summary, sumName, Double.NaN, increase(sumSlot, summary.getSampleSum(), reset));
+            report(family, summary, countName, Double.NaN, increase(countSlot, summary.getSampleCount(), reset));
+        }
+        update(sumSlot, summary.getSampleSum());
+        update(countSlot, summary.getSampleCount());
+        if (delegate != null) {
+            delegate.walkSummaryMetric(family, summary, index);
+        }
+    }
+
+    @Override
+    public void walkHistogramMetric(@NotNull MetricFamily family, @NotNull Histogram histogram, int index) {
+        long labels = hashLabels(histogram.getLabels());
+        long name = hashName(histogram.getName());
+        long checkLabels = checkLabels(histogram.getLabels());
+        long checkName = checkName(histogram.getName());
+        List<Histogram.Bucket> buckets = histogram.getBuckets();
+        int bucketCount = buckets.size();
+        if (slots.length < bucketCount) {
+            slots = new int[Math.max(bucketCount, slots.length * 2)];
+        }
+        table.ensureCapacity(bucketCount + 2);
+        int sumSlot = table.slot(Util.mix(name ^ SUM_SUFFIX) + labels,
+                Util.mix(checkName ^ SUM_SUFFIX) + checkLabels, walk);
+        int countSlot = table.slot(Util.mix(name ^ COUNT_SUFFIX) + labels,
+                Util.mix(checkName ^ COUNT_SUFFIX) + checkLabels, walk);
+        boolean seen = seen(sumSlot) && seen(countSlot);
+        boolean reset = seen && histogram.getSampleCount() < table.value(countSlot);
+        long bucketName = Util.mix(name ^ BUCKET_SUFFIX);
+        long checkBucketName = Util.mix(checkName ^ BUCKET_SUFFIX);
+        for (int i = 0; i < bucketCount; i++) {
+            Histogram.Bucket bucket = buckets.get(i);
+            long bound = Double.doubleToLongBits(bucket.upperBound());
+            int slot = table.slot(Util.mix(bucketName ^ bound) + labels,
+                    Util.mix((checkBucketName + bound) * CHECK_MULTIPLIER) + checkLabels, walk);
+            slots[i] = slot;
+            seen &= seen(slot);
+            reset |= seen && bucket.cumulativeCount() < table.value(slot);
+        }
+
+        if (seen) {
+            if (sumName == null) {
+                sumName = family.getName() + "_sum";
+                countName = family.getName() + "_count";
+            }
+            if (this.bucketName == null) {
+                this.bucketName = family.getName() + "_bucket";
+            }
+            for (int i = 0; i < bucketCount; i++) {
+                Histogram.Bucket bucket = buckets.get(i);
+                report(family, histogram, this.bucketName, bucket.upperBound(),
+                        increase(slots[i], bucket.cumulativeCount(), reset));
+            }
+            report(family, histogram, sumName, Double.NaN, increase(sumSlot, histogram.getSampleSum(), reset));
+            report(family, histogram, countName, Double.NaN, increase(countSlot, histogram.getSampleCount(), reset));
+        }
+        for (int i = 0; i < bucketCount; i++) {
+            update(slots[i], buckets.get(i).cumulativeCount());
+        }
+        update(sumSlot, histogram.getSampleSum());
+        update(countSlot, histogram.getSampleCount());
+        if (delegate != null) {
+            delegate.walkHistogramMetric(family, histogram, index);
+        }
+    }
+
+    // whether the previous walk saw the series of the slot
+    private boolean seen(int slot) {
+        return table.walk(slot) == walk - 1;
+    }
+
+    private void update(int slot, double value) {
+        table.update(slot, value, walk);
+    }
+
+    private double increase(int slot, double value, boolean reset) {
+        return reset ? value : value - table.value(slot);
+    }
+
+    private void report(@NotNull MetricFamily family, @NotNull Metric metric, @NotNull String sampleName,
+            double upperBound, double increase) {
+        if (!Double.isNaN(seconds)) {
+            listener.onRate(family, metric, sampleName, upperBound, increase, increase / seconds);
+        }
+    }
+
+    private static long hash(@NotNull String name, @NotNull Map<String, String> labels) {
+        return Util.mix(hashName(name)) + hashLabels(labels);
+    }
+
+    private static long hashName(@NotNull String name) {
+        return Util.fnv(name);
+    }
+
+    // independent of the order of the labels
+    private static long hashLabels(@NotNull Map<String, String> labels) {
+        long hash = 0;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            hash += Util.hashLabel(label.getKey(), label.getValue());
+        }
+        return hash;
+    }
+
+    private static long check(@NotNull String name, @NotNull Map<String, String> labels) {
+        return Util.mix(checkName(name)) + checkLabels(labels);
+    }
+
+    private static long checkName(@NotNull String name) {
+        return Util.mix(checkText(CHECK_NAME_SEED, name));
+    }
+
+    // independent of the order of the labels, like hashLabels
+    private static long checkLabels(@NotNull Map<String, String> labels) {
+        long check = 0;
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            String name = label.getKey();
+            long hash = (checkText(CHECK_LABEL_SEED, name) + name.length()) * CHECK_MULTIPLIER;
+            check += Util.mix(checkText(hash, label.getValue()));
+        }
+        return check;
+    }
+
+    private static long checkText(long hash, @NotNull String text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash + text.charAt(i)) * CHECK_MULTIPLIER;
+        }
+        return hash;
+    }
+}
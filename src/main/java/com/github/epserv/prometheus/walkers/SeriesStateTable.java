@@ -0,0 +1,143 @@
+package com.github.epserv.prometheus.walkers;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The last value of every series seen by a {@link RatePrometheusMetricsWalker}, in an open addressing hash table
+ * of primitive arrays keyed by a 64-bit hash of the series. An entry also holds a second, independent 64-bit hash
+ * of the series, which is compared when the first one matches, so two series are only mistaken for each other
+ * if both their hashes collide. Compared to a {@code HashMap} of label maps to boxed values, an entry takes
+ * 28 bytes and looking one up allocates nothing.
+ * <p>
+ * Entries are stamped with the number of the walk that last saw them. Entries not seen by a walk are removed when
+ * the walk finishes, so the table only holds the series of the previous walk and those of the current one.
+ */
+final class SeriesStateTable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = 0;
+
+    private long @NotNull [] keys;
+    private long @NotNull [] checks;
+    private double @NotNull [] values;
+    private int @NotNull [] walks;
+    private int size;
+    private int mask;
+
+    SeriesStateTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        checks = new long[capacity];
+        values = new double[capacity];
+        walks = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Makes sure that the given number of series can be added without the table being resized, so that slots
+     * returned by {@link #slot(long, long, int)} stay valid.
+     */
+    void ensureCapacity(int additional) {
+        if ((size + additional) * 2L > keys.length) {
+            long capacity = Long.highestOneBit((size + additional) * 4L - 1);
+            if (capacity > 1 << 30) {
+                throw new IllegalStateException("Too many series: " + (size + additional));
+            }
+            rehash((int) capacity);
+        }
+    }
+
+    /**
+     * Finds the slot of a series, adding an entry for it if the table does not have one. The table must have
+     * room for the entry, see {@link #ensureCapacity(int)}.
+     *
+     * @param hash the hash of the series
+     * @param check another hash of the series, independent of the first one
+     * @param walk the number of the current walk, which new entries are stamped with
+     * @return the slot of the series
+     */
+    int slot(long hash, long check, int walk) {
+        long key = hash == EMPTY ? 1 : hash;
+        int slot = (int) (key ^ key >>> 32) & mask;
+        while (true) {
+            long existing = keys[slot];
+            if (existing == key && checks[slot] == check) {
+                return slot;
+            }
+            if (existing == EMPTY) {
+                keys[slot] = key;
+                checks[slot] = check;
+                values[slot] = Double.NaN;
+                walks[slot] = walk;
+                size++;
+                return slot;
+            }
+            slot = slot + 1 & mask;
+        }
+    }
+
+    double value(int slot) {
+        return values[slot];
+    }
+
+    int walk(int slot) {
+        return walks[slot];
+    }
+
+    void update(int slot, double value, int walk) {
+        values[slot] = value;
+        walks[slot] = walk;
+    }
+
+    /**
+     * Removes the entries that were not seen by the given walk.
+     */
+    void retain(int walk) {
+        int seen = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY && walks[slot] == walk) {
+                seen++;
+            }
+        }
+        if (seen == size) {
+            return;
+        }
+        long[] oldKeys = keys;
+        long[] oldChecks = checks;
+        double[] oldValues = values;
+        int[] oldWalks = walks;
+        // shrink the table if most series are gone
+        int capacity = keys.length;
+        while (capacity > INITIAL_CAPACITY && seen * 8L < capacity) {
+            capacity >>>= 1;
+        }
+        allocate(capacity);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY && oldWalks[slot] == walk) {
+                int newSlot = slot(oldKeys[slot], oldChecks[slot], walk);
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldChecks = checks;
+        double[] oldValues = values;
+        int[] oldWalks = walks;
+        allocate(capacity);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                int newSlot = slot(oldKeys[slot], oldChecks[slot], oldWalks[slot]);
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.github.epserv.prometheus.walkers;
 
 import java.net.URL;
 
+import com.github.epserv.prometheus.Util;
 import com.github.epserv.prometheus.types.Counter;
 import com.github.epserv.prometheus.types.Histogram;
 import com.github.epserv.prometheus.types.MetricFamily;
@@ -48,41 +49,41 @@ public class SimplePrometheusMetricsWalker implements PrometheusMetricsWalker {
 
     @Override
     public void walkCounterMetric(@NotNull MetricFamily family, @NotNull Counter metric, int index) {
-        System.out.printf("  +%2d. %s%s [%f]\n",
+        System.out.printf("  +%2d. %s%s [%s]\n",
                 index,
                 metric.getName(),
                 buildLabelListString(metric.getLabels(), "{", "}"),
-                metric.getValue());
+                Util.convertDoubleToString(metric.getValue()));
     }
 
     @Override
     public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge metric, int index) {
-        System.out.printf("  +%2d. %s%s [%f]\n",
+        System.out.printf("  +%2d. %s%s [%s]\n",
                 index,
                 metric.getName(),
                 buildLabelListString(metric.getLabels(), "{", "}"),
-                metric.getValue());
+                Util.convertDoubleToString(metric.getValue()));
     }
 
     @Override
     public void walkSummaryMetric(@NotNull MetricFamily family, @NotNull Summary metric, int index) {
-        System.out.printf("  +%2d. %s%s [%d/%f] {%s}\n",
+        System.out.printf("  +%2d. %s%s [%d/%s] {%s}\n",
                 index,
                 metric.getName(),
                 buildLabelListString(metric.getLabels(), "{", "}"),
                 metric.getSampleCount(),
-                metric.getSampleSum(),
+                Util.convertDoubleToString(metric.getSampleSum()),
                 metric.getQuantiles());
     }
 
     @Override
     public void walkHistogramMetric(@NotNull MetricFamily family, @NotNull Histogram metric, int index) {
-        System.out.printf("  +%2d. %s%s [%d/%f] {%s}\n",
+        System.out.printf("  +%2d. %s%s [%d/%s] {%s}\n",
                 index,
                 metric.getName(),
                 buildLabelListString(metric.getLabels(), "{", "}"),
                 metric.getSampleCount(),
-                metric.getSampleSum(),
+                Util.convertDoubleToString(metric.getSampleSum()),
                 metric.getBuckets());
     }
 }
@@ -0,0 +1,269 @@
+package com.github.epserv.prometheus.walkers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.epserv.prometheus.Util;
+import com.github.epserv.prometheus.storage.TimeSeries;
+import com.github.epserv.prometheus.storage.TimeSeriesStore;
+import com.github.epserv.prometheus.storage.WriteAheadLog;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.Summary;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Appends every walked metric to a {@link TimeSeriesStore}, with the time the walk started as the timestamp.
+ * <p>
+ * Metrics are stored as the series the text exposition format shows: a summary as its quantile series
+ * (with a {@code quantile} label) plus its {@code _sum} and {@code _count} series, and a histogram as its
+ * {@code _bucket} series (with an {@code le} label) plus {@code _sum} and {@code _count}. Retention is applied
+ * when the walk finishes.
+ * <p>
+ * If the walker is given a {@link WriteAheadLog}, the samples it appends are logged in batches and committed when
+ * the walk finishes, and log segments older than the retention of the store are deleted. Failures to write the log
+ * are thrown as {@link UncheckedIOException}s.
+ * <p>
+ * The walker remembers the series of the metrics it walked, so the series of a metric that is walked again is not
+ * looked up in the store. Metrics that are missing from a walk are forgotten when it finishes.
+ * <p>
+ * A walker must only be used by one walk at a time, but any number of walkers can share the same store.
+ */
+public class StoringPrometheusMetricsWalker implements PrometheusMetricsWalker {
+    private static final int BATCH_SIZE = 4096;
+
+    private final @NotNull TimeSeriesStore store;
+    private final @NotNull Clock clock;
+    private final @Nullable WriteAheadLog wal;
+    private long timestamp;
+    private int rejected;
+
+    // the series of the walked metrics, by metric name and labels
+    private final @NotNull Map<String, Map<Map<String, String>, MetricSeries>> metricSeries = new HashMap<>();
+    private int walk;
+
+    // the samples not logged yet
+    private final @NotNull TimeSeries @NotNull [] batchSeries;
+    private final long @NotNull [] batchTimestamps;
+    private final double @NotNull [] batchValues;
+    private int batchSize;
+
+    /**
+     * @param store the store to append the metrics to
+     */
+    public StoringPrometheusMetricsWalker(@NotNull TimeSeriesStore store) {
+        this(store, Clock.systemUTC(), null);
+    }
+
+    /**
+     * @param store the store to append the metrics to
+     * @param wal the log to log the appended samples to
+     */
+    public StoringPrometheusMetricsWalker(@NotNull TimeSeriesStore store, @NotNull WriteAheadLog wal) {
+        this(store, Clock.systemUTC(), wal);
+    }
+
+    /**
+     * @param store the store to append the metrics to
+     * @param clock the clock that provides the timestamp of the samples of a walk
+     */
+    public StoringPrometheusMetricsWalker(@NotNull TimeSeriesStore store, @NotNull Clock clock) {
+        this(store, clock, null);
+    }
+
+    /**
+     * @param store the store to append the metrics to
+     * @param clock the clock that provides the timestamp of the samples of a walk
+     * @param wal the log to log the appended samples to, or null to not log them
+     */
+    public StoringPrometheusMetricsWalker(@NotNull TimeSeriesStore store, @NotNull Clock clock,
+            @Nullable WriteAheadLog wal) {
+        this.store = store;
+        this.clock = clock;
+        this.wal = wal;
+        int capacity = wal == null ? 0 : BATCH_SIZE;
+        this.batchSeries = new TimeSeries[capacity];
+        this.batchTimestamps = new long[capacity];
+        this.batchValues = new double[capacity];
+    }
+
+    /**
+     * @return the number of samples of the last walk the store rejected, because they were not newer than the
+     *         last sample of their series
+     */
+    public int getRejectedSamples() {
+        return rejected;
+    }
+
+    @Override
+    public void walkStart() {
+        timestamp = clock.millis();
+        rejected = 0;
+        walk++;
+        if (batchSize > 0) {
+            // the previous walk was aborted before it finished, e.g. on a scrape limit - its samples are in the
+            // store, so they must be logged too
+            try {
+                logBatch();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void walkFinish(int familiesProcessed, int metricsProcessed) {
+        metricSeries.values().removeIf(byLabels -> {
+            byLabels.values().removeIf(series -> series.walk != walk);
+            return byLabels.isEmpty();
+        });
+        store.applyRetention();
+        if (wal != null) {
+            try {
+                logBatch();
+                wal.commit();
+                long maxTime = store.getMaxTime();
+                if (maxTime != Long.MIN_VALUE) {
+                    // an empty store has no time yet to apply the retention to
+                    wal.truncate(maxTime - store.getRetention().toMillis());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void walkMetricFamily(@NotNull MetricFamily family, int index) {
+    }
+
+    @Override
+    public void walkCounterMetric(@NotNull MetricFamily family, @NotNull Counter counter, int index) {
+        MetricSeries series = metricSeries(counter.getName(), counter.getLabels());
+        series.value = append(series.value, counter.getName(), "", counter.getLabels(), counter.getValue());
+    }
+
+    @Override
+    public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge gauge, int index) {
+        MetricSeries series = metricSeries(gauge.getName(), gauge.getLabels());
+        series.value = append(series.value, gauge.getName(), "", gauge.getLabels(), gauge.getValue());
+    }
+
+    @Override
+    public void walkSummaryMetric(@NotNull MetricFamily family, @NotNull Summary summary, int index) {
+        Map<String, String> labels = summary.getLabels();
+        MetricSeries series = metricSeries(summary.getName(), labels);
+        int i = 0;
+        for (Summary.Quantile quantile : summary.getQuantiles()) {
+            appendBound(series, i++, summary.getName(), labels, "quantile", quantile.quantile(), quantile.value());
+        }
+        series.sum = append(series.sum, summary.getName(), "_sum", labels, summary.getSampleSum());
+        series.count = append(series.count, summary.getName(), "_count", labels, summary.getSampleCount());
+    }
+
+    @Override
+    public void walkHistogramMetric(@NotNull MetricFamily family, @NotNull Histogram histogram, int index) {
+        Map<String, String> labels = histogram.getLabels();
+        MetricSeries series = metricSeries(histogram.getName(), labels);
+        String bucketName = null;
+        int i = 0;
+        for (Histogram.Bucket bucket : histogram.getBuckets()) {
+            if (bucketName == null) {
+                bucketName = histogram.getName() + "_bucket";
+            }
+            appendBound(series, i++, bucketName, labels, "le", bucket.upperBound(), bucket.cumulativeCount());
+        }
+        series.sum = append(series.sum, histogram.getName(), "_sum", labels, histogram.getSampleSum());
+        series.count = append(series.count, histogram.getName(), "_count", labels, histogram.getSampleCount());
+    }
+
+    private @NotNull MetricSeries metricSeries(@NotNull String name, @NotNull Map<String, String> labels) {
+        MetricSeries series = metricSeries.computeIfAbsent(name, n -> new HashMap<>()).get(labels);
+        if (series == null) {
+            series = new MetricSeries();
+            metricSeries.get(name).put(new HashMap<>(labels), series);
+        }
+        series.walk = walk;
+        return series;
+    }
+
+    // appends the sample of the i-th quantile or bucket of a summary or histogram
+    private void appendBound(@NotNull MetricSeries series, int i, @NotNull String name,
+            @NotNull Map<String, String> labels, @NotNull String boundLabel, double bound, double value) {
+        if (i == series.bounds.length) {
+            series.bounds = Arrays.copyOf(series.bounds, i + 1);
+            series.boundSeries = Arrays.copyOf(series.boundSeries, i + 1);
+        } else if (Double.compare(series.bounds[i], bound) != 0) {
+            series.boundSeries[i] = null;
+        }
+        series.bounds[i] = bound;
+        TimeSeries timeSeries = series.boundSeries[i];
+        if (timeSeries == null) {
+            timeSeries = store.getOrCreateSeries(name, withLabel(labels, boundLabel, bound));
+        }
+        series.boundSeries[i] = append(timeSeries, value);
+    }
+
+    // appends a sample to the given series, or to the series named the metric name plus the suffix if it is null
+    private @NotNull TimeSeries append(@Nullable TimeSeries series, @NotNull String name, @NotNull String suffix,
+            @NotNull Map<String, String> labels, double value) {
+        if (series == null) {
+            series = store.getOrCreateSeries(suffix.isEmpty() ? name : name + suffix, labels);
+        }
+        return append(series, value);
+    }
+
+    // returns the series the sample was appended to, which is a new one if retention removed the given one
+    private @NotNull TimeSeries append(@NotNull TimeSeries series, double value) {
+        TimeSeries appended = store.append(series, timestamp, value);
+        if (appended == null) {
+            rejected++;
+            return series;
+        }
+        if (wal == null) {
+            return appended;
+        }
+        batchSeries[batchSize] = appended;
+        batchTimestamps[batchSize] = timestamp;
+        batchValues[batchSize] = value;
+        if (++batchSize == BATCH_SIZE) {
+            try {
+                logBatch();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return appended;
+    }
+
+    private void logBatch() throws IOException {
+        wal.log(batchSeries, batchTimestamps, batchValues, batchSize);
+        batchSize = 0;
+    }
+
+    private static @NotNull Map<String, String> withLabel(@NotNull Map<String, String> labels, @NotNull String name,
+            double value) {
+        Map<String, String> map = new LinkedHashMap<>(labels);
+        map.put(name, Util.convertDoubleToString(value));
+        return map;
+    }
+
+    // the series of a metric: the series of a counter or gauge, or the quantile or bucket series and the _sum and
+    // _count series of a summary or histogram
+    private static final class MetricSeries {
+        private @Nullable TimeSeries value;
+        private double @NotNull [] bounds = new double[0];
+        private @Nullable TimeSeries @NotNull [] boundSeries = new TimeSeries[0];
+        private @Nullable TimeSeries sum;
+        private @Nullable TimeSeries count;
+        private int walk;
+    }
+}
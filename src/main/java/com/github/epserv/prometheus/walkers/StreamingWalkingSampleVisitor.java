@@ -0,0 +1,182 @@
+package com.github.epserv.prometheus.walkers;
+
+import com.github.epserv.prometheus.MetricFamilyAssembler;
+import com.github.epserv.prometheus.MutableSampleLabels;
+import com.github.epserv.prometheus.SampleLabels;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adapts a {@link PrometheusMetricsWalker} to the {@link SampleVisitor} API without buffering whole metric families.
+ * <p>
+ * Counters and gauges are walked as soon as their sample is visited. The samples of a summary or histogram
+ * with the same labels (quantiles or buckets, sum and count) are combined into one metric, which is walked as soon
+ * as a sample with other labels (or of another family) comes along. So memory use does not depend on the size of
+ * the metric families.
+ * <p>
+ * Because the metrics of a family are not known when the walker is told about the family,
+ * {@link PrometheusMetricsWalker#walkMetricFamily(MetricFamily, int)} is given a family without any metrics -
+ * walkers that rely on {@link MetricFamily#getMetrics()} must not be used with this adapter.
+ * Also, the samples of a summary or histogram metric must be next to each other, as they are in any exposition
+ * produced by a Prometheus client. Otherwise the metric is walked once per run of samples.
+ */
+public class StreamingWalkingSampleVisitor implements SampleVisitor {
+    private final @NotNull PrometheusMetricsWalker walker;
+
+    private @Nullable MetricFamily family; // the current family, without its metrics
+    private int familyIndex;
+    private int metricIndex;
+    private int totalMetrics;
+    private boolean finished;
+
+    // combines the samples of the summary or histogram metric with the group labels into one metric
+    private final @NotNull MetricFamilyAssembler assembler = new MetricFamilyAssembler();
+    private final @NotNull MutableSampleLabels groupLabels = new MutableSampleLabels();
+    private boolean hasGroup;
+
+    /**
+     * @param walker the walker to notify about the metric families and their metrics
+     */
+    public StreamingWalkingSampleVisitor(@NotNull PrometheusMetricsWalker walker) {
+        this.walker = walker;
+    }
+
+    @Override
+    public void onStart() {
+        family = null;
+        hasGroup = false;
+        familyIndex = 0;
+        totalMetrics = 0;
+        finished = false;
+
+        // tell the walker we are starting
+        walker.walkStart();
+    }
+
+    @Override
+    public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, @Nullable CharSequence help) {
+        walkMetrics();
+        assembler.onFamily(name, type, help);
+        hasGroup = false;
+
+        family = new MetricFamily.Builder()
+                .setName(name.toString())
+                .setHelp(help == null ? null : help.toString())
+                .setType(type)
+                .build();
+        metricIndex = 0;
+
+        // let the walker know we are traversing a new family of metrics
+        walker.walkMetricFamily(family, familyIndex++);
+    }
+
+    @Override
+    public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+        MetricFamily family = this.family;
+        if (family == null) {
+            throw new IllegalStateException("Sample found before its metric family: " + name);
+        }
+
+        switch (family.getType()) {
+            case COUNTER, GAUGE -> {
+                assembler.onSample(name, labels, value, timestamp);
+                walkMetrics();
+            }
+            case SUMMARY, HISTOGRAM -> {
+                // the quantile and le labels aren't "real" labels, so they do not identify the metric
+                String excludedName = family.getType() == MetricType.SUMMARY ? "quantile" : "le";
+                if (!isGroup(labels, excludedName)) {
+                    walkMetrics();
+                    startGroup(labels, excludedName);
+                }
+                assembler.onSample(name, labels, value, timestamp);
+            }
+        }
+    }
+
+    @Override
+    public void onFinish() {
+        walkMetrics();
+        finished = true;
+
+        // tell the walker we have finished
+        walker.walkFinish(familyIndex, totalMetrics);
+    }
+
+    /**
+     * @return true if {@link #onFinish()} has been called since the visit was started
+     */
+    @Contract(pure = true)
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private int nextMetricIndex() {
+        totalMetrics++;
+        return metricIndex++;
+    }
+
+    /**
+     * @return true if the labels, except for the given one, are those of the metric being combined
+     */
+    private boolean isGroup(@NotNull SampleLabels labels, @NotNull String excludedName) {
+        if (!hasGroup) {
+            return false;
+        }
+        int groupIndex = 0;
+        for (int i = 0; i < labels.size(); i++) {
+            if (contentEquals(labels.name(i), excludedName)) {
+                continue;
+            }
+            if (groupIndex >= groupLabels.size()
+                    || !contentEquals(labels.name(i), groupLabels.name(groupIndex))
+                    || !contentEquals(labels.value(i), groupLabels.value(groupIndex))) {
+                return false;
+            }
+            groupIndex++;
+        }
+        return groupIndex == groupLabels.size();
+    }
+
+    private void startGroup(@NotNull SampleLabels labels, @NotNull String excludedName) {
+        groupLabels.clear();
+        for (int i = 0; i < labels.size(); i++) {
+            if (!contentEquals(labels.name(i), excludedName)) {
+                groupLabels.add(labels.name(i), labels.value(i));
+            }
+        }
+        hasGroup = true;
+    }
+
+    // walks the metrics the assembler has combined so far
+    private void walkMetrics() {
+        MetricFamily family = this.family;
+        if (family == null) {
+            return;
+        }
+        for (Metric metric : assembler.takeMetrics()) {
+            if (metric instanceof Counter counter) {
+                walker.walkCounterMetric(family, counter, nextMetricIndex());
+            } else if (metric instanceof Gauge gauge) {
+                walker.walkGaugeMetric(family, gauge, nextMetricIndex());
+            } else if (metric instanceof Summary summary) {
+                walker.walkSummaryMetric(family, summary, nextMetricIndex());
+            } else if (metric instanceof Histogram histogram) {
+                walker.walkHistogramMetric(family, histogram, nextMetricIndex());
+            }
+        }
+    }
+
+    private static boolean contentEquals(@NotNull CharSequence a, @NotNull CharSequence b) {
+        return CharSequence.compare(a, b) == 0;
+    }
+}
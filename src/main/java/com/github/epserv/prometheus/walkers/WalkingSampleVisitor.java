@@ -0,0 +1,113 @@
+package com.github.epserv.prometheus.walkers;
+
+import com.github.epserv.prometheus.MetricFamilyAssembler;
+import com.github.epserv.prometheus.SampleLabels;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Adapts a {@link PrometheusMetricsWalker} to the {@link SampleVisitor} API. The samples of each metric family
+ * are assembled into a {@link MetricFamily} which is then walked once the family is complete.
+ */
+public class WalkingSampleVisitor implements SampleVisitor {
+
+    private final @NotNull PrometheusMetricsWalker walker;
+    private final @NotNull MetricFamilyAssembler assembler = new MetricFamilyAssembler();
+
+    private int familyIndex;
+    private int totalMetrics;
+    private boolean finished;
+
+    /**
+     * @param walker the walker to notify about the metric families and their metrics
+     */
+    public WalkingSampleVisitor(@NotNull PrometheusMetricsWalker walker) {
+        this.walker = walker;
+    }
+
+    @Override
+    public void onStart() {
+        familyIndex = 0;
+        totalMetrics = 0;
+        finished = false;
+
+        // tell the walker we are starting
+        walker.walkStart();
+    }
+
+    @Override
+    public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, @Nullable CharSequence help) {
+        walkAssembledFamily();
+        assembler.onFamily(name, type, help);
+    }
+
+    @Override
+    public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+        assembler.onSample(name, labels, value, timestamp);
+    }
+
+    @Override
+    public void onFinish() {
+        walkAssembledFamily();
+        finished = true;
+
+        // tell the walker we have finished
+        walker.walkFinish(familyIndex, totalMetrics);
+    }
+
+    /**
+     * @return true if {@link #onFinish()} has been called since the visit was started
+     */
+    @Contract(pure = true)
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Walks a metric family that has already been built, as the next family of the current visit.
+     * A family whose samples were being visited is completed (and walked) first.
+     *
+     * @param family the complete family to walk
+     */
+    public void walkMetricFamily(@NotNull MetricFamily family) {
+        walkAssembledFamily();
+        walkFamily(family);
+    }
+
+    private void walkAssembledFamily() {
+        if (assembler.isStarted()) {
+            walkFamily(assembler.finish());
+        }
+    }
+
+    private void walkFamily(@NotNull MetricFamily family) {
+        // let the walker know we are traversing a new family of metrics
+        walker.walkMetricFamily(family, familyIndex++);
+
+        // walk through each metric in the family
+        int metricIndex = 0;
+
+        for (Metric metric : family.getMetrics()) {
+            switch (family.getType()) {
+                case COUNTER -> walker.walkCounterMetric(family, (Counter) metric, metricIndex);
+                case GAUGE -> walker.walkGaugeMetric(family, (Gauge) metric, metricIndex);
+                case SUMMARY -> walker.walkSummaryMetric(family, (Summary) metric, metricIndex);
+                case HISTOGRAM -> walker.walkHistogramMetric(family, (Histogram) metric, metricIndex);
+            }
+
+            metricIndex++;
+        }
+
+        // finished processing the metrics for the current family
+        totalMetrics += family.getMetrics().size();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.github.epserv.prometheus.AggregatingSampleVisitor;
+import com.github.epserv.prometheus.Aggregation;
+import com.github.epserv.prometheus.binary.BinaryPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.binary.BinaryPrometheusMetricsWriter;
+import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AggregationTest {
+    private static final String DATA = """
+            # HELP http_requests_total Requests.
+            # TYPE http_requests_total counter
+            http_requests_total{instance="a",service="api",code="200"} 10
+            http_requests_total{instance="b",service="api",code="200"} 20
+            http_requests_total{instance="a",service="api",code="500"} 1
+            http_requests_total{code="200",service="web",instance="a"} 5
+            http_requests_total{instance="c",service="web",code="200"} 7
+            # TYPE queue_length gauge
+            queue_length{instance="a",queue="in"} 3
+            queue_length{instance="b",queue="in"} 8
+            queue_length{instance="a",queue="out"} 2
+            queue_length{instance="b",queue="out",zone=""} 4
+            # TYPE up gauge
+            up{instance="a"} 1
+            up{instance="b"} 0
+            # TYPE latency histogram
+            latency_bucket{instance="a",le="0.5"} 2
+            latency_bucket{instance="a",le="+Inf"} 3
+            latency_sum{instance="a"} 1.5
+            latency_count{instance="a"} 3
+            latency_bucket{instance="b",le="0.5"} 4
+            latency_bucket{instance="b",le="+Inf"} 10
+            latency_sum{instance="b"} 8
+            latency_count{instance="b"} 10
+            # TYPE rpc summary
+            rpc{instance="a",quantile="0.5"} 1
+            rpc_sum{instance="a"} 10
+            rpc_count{instance="a"} 4
+            rpc{instance="b",quantile="0.5"} 2
+            rpc_sum{instance="b"} 5
+            rpc_count{instance="b"} 1
+            """;
+
+    private static List<String> aggregate(AggregatingSampleVisitor visitor) throws Exception {
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(DATA.getBytes(StandardCharsets.UTF_8)))
+                .visit(visitor);
+        return MetricFamilies.describe(visitor.getAggregatedFamilies());
+    }
+
+    @Test
+    public void testAggregation() throws Exception {
+        Aggregation aggregation = new Aggregation.Builder()
+                .by("http_requests_total", Aggregation.Operation.SUM, "service", "code")
+                .without("queue_length", Aggregation.Operation.MAX, "instance")
+                .by("up", Aggregation.Operation.COUNT)
+                .by("latency", Aggregation.Operation.SUM)
+                .without("rpc", Aggregation.Operation.SUM, "instance")
+                .build();
+        Assert.assertEquals(List.of(
+                "http_requests_total COUNTER Requests. http_requests_total{service=api, code=200}=30.0"
+                        + " http_requests_total{service=api, code=500}=1.0"
+                        + " http_requests_total{service=web, code=200}=12.0",
+                "queue_length GAUGE queue_length{queue=in}=8.0 queue_length{queue=out}=4.0",
+                "up GAUGE up{}=2.0",
+                "latency HISTOGRAM latency{}=13/9.5[0.5:6, +Inf:13]",
+                "rpc SUMMARY rpc{}=5/15.0[]"), aggregate(aggregation.apply(null)));
+    }
+
+    @Test
+    public void testOperations() throws Exception {
+        String[] expected = {
+                "queue_length GAUGE queue_length{queue=in}=11.0 queue_length{queue=out}=6.0",
+                "queue_length GAUGE queue_length{queue=in}=5.5 queue_length{queue=out}=3.0",
+                "queue_length GAUGE queue_length{queue=in}=3.0 queue_length{queue=out}=2.0",
+                "queue_length GAUGE queue_length{queue=in}=8.0 queue_length{queue=out}=4.0",
+                "queue_length GAUGE queue_length{queue=in}=2.0 queue_length{queue=out}=2.0"};
+        for (Aggregation.Operation operation : Aggregation.Operation.values()) {
+            Aggregation aggregation = new Aggregation.Builder().by("queue_length", operation, "queue").build();
+            Assert.assertEquals(operation.name(), List.of(expected[operation.ordinal()]),
+                    aggregate(aggregation.apply(null)));
+        }
+
+        // counters that are averaged or counted are no longer counters
+        Aggregation average = new Aggregation.Builder().by("http_requests_total", Aggregation.Operation.AVG).build();
+        Assert.assertEquals(List.of("http_requests_total GAUGE Requests. http_requests_total{}=8.6"),
+                aggregate(average.apply(null)));
+    }
+
+    @Test
+    public void testWalkerAndReuse() throws Exception {
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        AggregatingSampleVisitor visitor = new Aggregation.Builder()
+                .by("http_requests_total", Aggregation.Operation.SUM, "code")
+                .build()
+                .apply(collector);
+        List<String> first = aggregate(visitor);
+        Assert.assertEquals(List.of("http_requests_total COUNTER Requests. http_requests_total{code=200}=42.0"
+                + " http_requests_total{code=500}=1.0"), first);
+        Assert.assertEquals(1, collector.getAllMetricFamilies().size());
+        Assert.assertEquals("Requests.", collector.getAllMetricFamilies().get(0).getHelp());
+
+        // the next scrape starts from scratch
+        Assert.assertEquals(first, aggregate(visitor));
+    }
+
+    @Test
+    public void testFamilyTypeChange() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPrometheusMetricsWriter writer = new BinaryPrometheusMetricsWriter(out)) {
+            writer.write(new MetricFamily.Builder().setName("jobs").setType(MetricType.COUNTER)
+                    .addMetric(new Counter.Builder().setName("jobs").addLabel("instance", "a").setValue(1).build())
+                    .build());
+            writer.write(new MetricFamily.Builder().setName("jobs").setType(MetricType.GAUGE)
+                    .addMetric(new Gauge.Builder().setName("jobs").addLabel("instance", "a").setValue(2).build())
+                    .addMetric(new Gauge.Builder().setName("jobs").addLabel("instance", "b").setValue(3).build())
+                    .build());
+        }
+        AggregatingSampleVisitor visitor = new Aggregation.Builder().by("jobs", Aggregation.Operation.SUM).build()
+                .apply(null);
+        new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(out.toByteArray())).visit(visitor);
+
+        // the family of the new type replaces the old one
+        Assert.assertEquals(1, visitor.getAggregatedFamilies().size());
+        Assert.assertEquals("jobs GAUGE jobs{}=5.0", MetricFamilies.describe(visitor.getAggregatedFamilies().get(0)));
+    }
+}
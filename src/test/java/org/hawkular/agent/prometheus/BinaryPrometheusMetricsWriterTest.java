@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Objects;
+
+import com.github.epserv.prometheus.binary.BinaryPrometheusMetricsWriter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryPrometheusMetricsWriterTest {
+
+    private static byte[] write(List<MetricFamily> families) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryPrometheusMetricsWriter writer = new BinaryPrometheusMetricsWriter(out)) {
+            writer.write(families);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testTranscodeText() throws Exception {
+        byte[] text;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("prometheus.txt")) {
+            text = Objects.requireNonNull(in).readAllBytes();
+        }
+        List<MetricFamily> families = MetricFamilies.parseText(text);
+
+        byte[] binary = write(families);
+        Assert.assertEquals(MetricFamilies.describe(families),
+                MetricFamilies.describe(MetricFamilies.parseBinary(binary)));
+
+        // the generated classes read the same messages (histograms are unknown fields to them)
+        ByteArrayInputStream in = new ByteArrayInputStream(binary);
+        int messages = 0;
+        io.prometheus.client.Metrics.MetricFamily message;
+        while ((message = io.prometheus.client.Metrics.MetricFamily.parseDelimitedFrom(in)) != null) {
+            Assert.assertEquals(families.get(messages).getName(), message.getName());
+            Assert.assertEquals(families.get(messages).getMetrics().size(), message.getMetricCount());
+            messages++;
+        }
+        Assert.assertEquals(families.size(), messages);
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws Exception {
+        byte[] data;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("prometheus.data")) {
+            data = Objects.requireNonNull(in).readAllBytes();
+        }
+        List<MetricFamily> families = MetricFamilies.parseBinary(data);
+        Assert.assertEquals(MetricFamilies.describe(families),
+                MetricFamilies.describe(MetricFamilies.parseBinary(write(families))));
+    }
+
+    @Test
+    public void testLongMessages() throws Exception {
+        // lengths that need one, two and three bytes
+        String twoBytes = "x".repeat(200);
+        String threeBytes = "\u00e9".repeat(10_000);
+        Histogram.Builder histogram = new Histogram.Builder().setName("latency").addLabel("long", twoBytes)
+                .setSampleCount(100_000).setSampleSum(-1.25);
+        for (int i = 0; i < 100; i++) {
+            histogram.addBucket(i * 0.5, i * 1000L);
+        }
+        histogram.addBucket(Double.POSITIVE_INFINITY, 100_000);
+        List<MetricFamily> families = List.of(
+                new MetricFamily.Builder().setName("latency").setType(MetricType.HISTOGRAM).setHelp(threeBytes)
+                        .addMetric(histogram.build())
+                        .addMetric(new Histogram.Builder().setName("latency").build())
+                        .build(),
+                new MetricFamily.Builder().setName("up").setType(MetricType.GAUGE)
+                        .addMetric(new Gauge.Builder().setName("up").addLabel("emoji", "\uD83D\uDE00")
+                                .setValue(Double.NaN).build())
+                        .build());
+        Assert.assertEquals(MetricFamilies.describe(families),
+                MetricFamilies.describe(MetricFamilies.parseBinary(write(families))));
+    }
+}
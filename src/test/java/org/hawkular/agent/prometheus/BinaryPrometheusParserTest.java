@@ -17,8 +17,13 @@
 
 package org.hawkular.agent.prometheus;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -26,8 +31,24 @@ import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.epserv.prometheus.FamilyFilter;
+import com.github.epserv.prometheus.ProcessorOptions;
 import com.github.epserv.prometheus.PrometheusDataFormat;
 import com.github.epserv.prometheus.PrometheusScraper;
+import com.github.epserv.prometheus.SampleLabels;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.ScrapeArena;
+import com.github.epserv.prometheus.ScrapeLimitExceededException;
+import com.github.epserv.prometheus.ScrapeLimits;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import org.jboss.logging.Logger.Level;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Assert;
@@ -36,6 +57,7 @@ import com.github.epserv.prometheus.binary.BinaryPrometheusMetricDataParser;
 import com.github.epserv.prometheus.binary.BinaryPrometheusMetricsProcessor;
 import com.github.epserv.prometheus.walkers.LoggingPrometheusMetricsWalker;
 import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import com.github.epserv.prometheus.walkers.WalkingSampleVisitor;
 
 import io.prometheus.client.Metrics.MetricFamily;
 
@@ -114,4 +136,257 @@ public class BinaryPrometheusParserTest {
         scraper = new PrometheusScraper(testDataUrl, PrometheusDataFormat.BINARY);
         Assert.assertEquals(71, scraper.scrape().size());
     }
+
+    @Test
+    public void testDecoderMatchesGeneratedMessages() throws Exception {
+        List<String> converted = new ArrayList<>();
+        try (InputStream testData = this.getClass().getClassLoader().getResourceAsStream("prometheus.data")) {
+            BinaryPrometheusMetricsProcessor processor = new BinaryPrometheusMetricsProcessor(Objects.requireNonNull(testData)) {
+                @Override
+                protected void visitSamples(@NotNull SampleVisitor visitor) throws IOException {
+                    // the generated message classes and convert() instead of the decoder
+                    BinaryPrometheusMetricDataParser parser = createPrometheusMetricDataParser();
+                    for (MetricFamily family = parser.parse(); family != null; family = parser.parse()) {
+                        converted.add(describe(convert(family)));
+                    }
+                }
+            };
+            processor.visit(new SampleVisitor() {
+                @Override
+                public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+                }
+
+                @Override
+                public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                }
+            });
+        }
+
+        List<String> decoded = new ArrayList<>();
+        try (InputStream testData = this.getClass().getClassLoader().getResourceAsStream("prometheus.data")) {
+            CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+            new BinaryPrometheusMetricsProcessor(Objects.requireNonNull(testData), collector).walk();
+            for (com.github.epserv.prometheus.types.MetricFamily family : collector.getAllMetricFamilies()) {
+                decoded.add(describe(family));
+            }
+        }
+
+        Assert.assertEquals(converted, decoded);
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        ByteString histogram = message(h -> {
+            h.writeUInt64(1, 144320);
+            h.writeDouble(2, 53423);
+            h.writeBytes(3, message(b -> {
+                b.writeUInt64(1, 24054);
+                b.writeDouble(2, 0.05);
+            }));
+            h.writeBytes(3, message(b -> {
+                b.writeUInt64(1, 129389);
+                b.writeDouble(2, 1);
+            }));
+            h.writeBytes(3, message(b -> {
+                b.writeUInt64(1, 144320);
+                b.writeDouble(2, Double.POSITIVE_INFINITY);
+            }));
+        });
+        ByteString family = message(f -> {
+            f.writeString(1, "http_request_duration_seconds");
+            f.writeString(2, "A histogram of the request duration.");
+            f.writeEnum(3, 4);
+            f.writeBytes(4, message(m -> {
+                m.writeBytes(1, message(l -> {
+                    l.writeString(1, "path");
+                    l.writeString(2, "/a");
+                }));
+                m.writeBytes(7, histogram);
+                m.writeInt64(6, 1395066363000L);
+            }));
+        });
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(data);
+        out.writeRawVarint32(family.size());
+        out.writeRawBytes(family);
+        out.flush();
+
+        List<String> visited = new ArrayList<>();
+        new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data.toByteArray())).visit(new SampleVisitor() {
+            @Override
+            public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+                visited.add(name + " " + type + " " + help);
+            }
+
+            @Override
+            public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                visited.add(name + labels.toString() + " " + value + " " + timestamp);
+            }
+        });
+        Assert.assertEquals(List.of(
+                "http_request_duration_seconds HISTOGRAM A histogram of the request duration.",
+                "http_request_duration_seconds_bucket{path=/a,le=0.05} 24054.0 1395066363000",
+                "http_request_duration_seconds_bucket{path=/a,le=1} 129389.0 1395066363000",
+                "http_request_duration_seconds_bucket{path=/a,le=+Inf} 144320.0 1395066363000",
+                "http_request_duration_seconds_sum{path=/a} 53423.0 1395066363000",
+                "http_request_duration_seconds_count{path=/a} 144320.0 1395066363000"), visited);
+
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data.toByteArray()), collector).walk();
+        List<com.github.epserv.prometheus.types.MetricFamily> families = collector.getAllMetricFamilies();
+        Assert.assertEquals(1, families.size());
+        Histogram walked = (Histogram) families.get(0).getMetrics().get(0);
+        Assert.assertEquals(144320, walked.getSampleCount());
+        Assert.assertEquals(53423, walked.getSampleSum(), 0.0);
+        Assert.assertEquals(3, walked.getBuckets().size());
+        Assert.assertEquals(Double.POSITIVE_INFINITY, walked.getBuckets().get(2).upperBound(), 0.0);
+        Assert.assertEquals("/a", walked.getLabels().get("path"));
+    }
+
+    private interface MessageWriter {
+        void write(CodedOutputStream out) throws IOException;
+    }
+
+    private static ByteString message(MessageWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        writer.write(out);
+        out.flush();
+        return ByteString.copyFrom(bytes.toByteArray());
+    }
+
+    private static String describe(com.github.epserv.prometheus.types.MetricFamily family) {
+        StringBuilder str = new StringBuilder();
+        str.append(family.getName()).append(' ').append(family.getType()).append(' ').append(family.getHelp());
+        for (Metric metric : family.getMetrics()) {
+            str.append("\n  ").append(metric.getName()).append(metric.getLabels()).append(' ');
+            if (metric instanceof Counter counter) {
+                str.append(counter.getValue());
+            } else if (metric instanceof Gauge gauge) {
+                str.append(gauge.getValue());
+            } else if (metric instanceof Summary summary) {
+                str.append(summary.getSampleCount()).append('/').append(summary.getSampleSum())
+                        .append(summary.getQuantiles());
+            }
+        }
+        return str.toString();
+    }
+
+    @Test
+    public void testArenaReusesFamilyNames() throws Exception {
+        byte[] data;
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus.data")) {
+            data = Objects.requireNonNull(testData).readAllBytes();
+        }
+        List<List<CharSequence>> names = new ArrayList<>();
+        int[] samples = new int[2];
+        ScrapeArena arena = new ScrapeArena();
+        for (int scrape = 0; scrape < 2; scrape++) {
+            List<CharSequence> scrapeNames = new ArrayList<>();
+            names.add(scrapeNames);
+            int index = scrape;
+            new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), null,
+                    new ProcessorOptions.Builder().setArena(arena).build()).visit(new SampleVisitor() {
+                @Override
+                public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+                    scrapeNames.add(name);
+                }
+
+                @Override
+                public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value,
+                        long timestamp) {
+                    samples[index]++;
+                }
+            });
+        }
+
+        Assert.assertEquals(71, names.get(0).size());
+        Assert.assertEquals(names.get(0), names.get(1));
+        Assert.assertEquals(samples[0], samples[1]);
+        for (int i = 0; i < names.get(0).size(); i++) {
+            // the second scrape did not decode the unchanged names again
+            Assert.assertSame(names.get(0).get(i), names.get(1).get(i));
+        }
+    }
+
+    @Test
+    public void testLimits() throws Exception {
+        byte[] data;
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus.data")) {
+            data = Objects.requireNonNull(testData).readAllBytes();
+        }
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        ScrapeLimits limits = new ScrapeLimits.Builder().setSampleLimit(1000).setBodySizeLimit(data.length).build();
+        new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), collector,
+                new ProcessorOptions.Builder().setLimits(limits).build()).walk();
+        Assert.assertEquals(71, Objects.requireNonNull(collector.getAllMetricFamilies()).size());
+
+        limits = new ScrapeLimits.Builder().setSampleLimit(10).build();
+        try {
+            new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), null,
+                    new ProcessorOptions.Builder().setLimits(limits).build())
+                    .visit(new WalkingSampleVisitor(new CollectorPrometheusMetricsWalker()));
+            Assert.fail("Sample limit was not enforced");
+        } catch (ScrapeLimitExceededException e) {
+            Assert.assertEquals("Scrape exceeds the sample limit of 10", e.getMessage());
+        }
+
+        limits = new ScrapeLimits.Builder().setBodySizeLimit(data.length - 1).build();
+        try {
+            new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), new CollectorPrometheusMetricsWalker(),
+                    new ProcessorOptions.Builder().setLimits(limits).build()).walk();
+            Assert.fail("Body size limit was not enforced");
+        } catch (UncheckedIOException e) {
+            Assert.assertTrue(e.getCause() instanceof ScrapeLimitExceededException);
+        }
+    }
+
+    @Test
+    public void testBogusMessageLength() throws Exception {
+        // a length prefix of 2 GiB - 1, followed by far fewer bytes
+        byte[] data = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 0x0a, 0x01, 'x'};
+        try {
+            new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data))
+                    .visit(new WalkingSampleVisitor(new CollectorPrometheusMetricsWalker()));
+            Assert.fail("Truncated message was not detected");
+        } catch (EOFException e) {
+            Assert.assertEquals("Truncated metric family message: expected 2147483647 bytes but got 3",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFamilyFilter() throws Exception {
+        byte[] data;
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus.data")) {
+            data = Objects.requireNonNull(testData).readAllBytes();
+        }
+        FamilyFilter filter = new FamilyFilter.Builder().includePrefix("go_memstats_").exclude("go_memstats_sys_bytes")
+                .build();
+
+        CollectorPrometheusMetricsWalker all = new CollectorPrometheusMetricsWalker();
+        new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), all).walk();
+        List<String> expected = new ArrayList<>();
+        for (com.github.epserv.prometheus.types.MetricFamily family
+                : Objects.requireNonNull(all.getAllMetricFamilies())) {
+            if (filter.accept(family.getName())) {
+                expected.add(describe(family));
+            }
+        }
+        Assert.assertTrue(expected.size() > 1);
+
+        // the same decoder is used twice, so the second time the skipped names come from its cache
+        ScrapeArena arena = new ScrapeArena();
+        for (int scrape = 0; scrape < 2; scrape++) {
+            CollectorPrometheusMetricsWalker filtered = new CollectorPrometheusMetricsWalker();
+            new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), filtered,
+                    new ProcessorOptions.Builder().setArena(arena).setFamilyFilter(filter).build()).walk();
+            List<String> actual = new ArrayList<>();
+            for (com.github.epserv.prometheus.types.MetricFamily family
+                    : Objects.requireNonNull(filtered.getAllMetricFamilies())) {
+                actual.add(describe(family));
+            }
+            Assert.assertEquals(expected, actual);
+        }
+    }
 }
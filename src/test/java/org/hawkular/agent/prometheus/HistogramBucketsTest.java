@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.util.List;
+import java.util.Random;
+
+import com.github.epserv.prometheus.HistogramBuckets;
+import com.github.epserv.prometheus.types.Histogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramBucketsTest {
+    private static final double[] BOUNDS = {0.1, 0.5, 1, 5, Double.POSITIVE_INFINITY};
+
+    private static Histogram histogram(long... counts) {
+        Histogram.Builder builder = new Histogram.Builder().setName("latency").setSampleCount(counts[counts.length - 1])
+                .setSampleSum(42);
+        for (int i = 0; i < counts.length; i++) {
+            builder.addBucket(BOUNDS[i], counts[i]);
+        }
+        return builder.build();
+    }
+
+    // the straightforward estimate over the bucket list, for comparison
+    private static double naiveQuantile(double q, List<Histogram.Bucket> buckets) {
+        double total = buckets.get(buckets.size() - 1).cumulativeCount();
+        double rank = q * total;
+        for (int i = 0; i < buckets.size(); i++) {
+            Histogram.Bucket bucket = buckets.get(i);
+            if (bucket.cumulativeCount() >= rank) {
+                if (i == buckets.size() - 1) {
+                    return buckets.get(i - 1).upperBound();
+                }
+                double start = i == 0 ? 0 : buckets.get(i - 1).upperBound();
+                double below = i == 0 ? 0 : buckets.get(i - 1).cumulativeCount();
+                return start + (bucket.upperBound() - start) * ((rank - below) / (bucket.cumulativeCount() - below));
+            }
+        }
+        throw new AssertionError();
+    }
+
+    @Test
+    public void testQuantile() {
+        HistogramBuckets buckets = HistogramBuckets.of(histogram(10, 50, 90, 100, 100));
+        Assert.assertEquals(0.1, buckets.quantile(0.1), 1e-9);
+        Assert.assertEquals(0.3, buckets.quantile(0.3), 1e-9);
+        Assert.assertEquals(0.75, buckets.quantile(0.7), 1e-9);
+        Assert.assertEquals(5, buckets.quantile(1), 1e-9);
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, buckets.quantile(-1), 0);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, buckets.quantile(2), 0);
+        Assert.assertTrue(Double.isNaN(buckets.quantile(Double.NaN)));
+
+        // in the +Inf bucket
+        Assert.assertEquals(5, HistogramBuckets.of(histogram(0, 0, 0, 1, 10)).quantile(0.99), 0);
+        // no observations, no +Inf bucket
+        Assert.assertTrue(Double.isNaN(HistogramBuckets.of(histogram(0, 0, 0, 0, 0)).quantile(0.5)));
+        Assert.assertTrue(Double.isNaN(HistogramBuckets.of(new double[] {1, 2}, new double[] {1, 2}, 3)
+                .quantile(0.5)));
+        // q out of range takes precedence, as in Prometheus
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, HistogramBuckets.of(new double[] {1, 2}, new double[] {1, 2}, 3)
+                .quantile(-1), 0);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, HistogramBuckets.of(new double[] {Double.POSITIVE_INFINITY},
+                new double[] {1}, 3).quantile(2), 0);
+        // counts that are not monotonic
+        Assert.assertEquals(buckets.quantile(0.95), HistogramBuckets.of(histogram(10, 50, 90, 100, 99))
+                .quantile(0.95), 1e-9);
+    }
+
+    @Test
+    public void testBatchQuantileMatchesNaive() {
+        Random random = new Random(7);
+        int histograms = 1000;
+        double[] counts = new double[histograms * BOUNDS.length];
+        Histogram[] scraped = new Histogram[histograms];
+        for (int h = 0; h < histograms; h++) {
+            long[] cumulative = new long[BOUNDS.length];
+            long count = 0;
+            for (int b = 0; b < BOUNDS.length; b++) {
+                count += random.nextInt(100) + 1;
+                cumulative[b] = count;
+                counts[h * BOUNDS.length + b] = count;
+            }
+            scraped[h] = histogram(cumulative);
+        }
+
+        for (double q : new double[] {0, 0.25, 0.5, 0.9, 0.99, 1}) {
+            double[] result = new double[histograms];
+            HistogramBuckets.quantile(q, BOUNDS, counts, histograms, result);
+            for (int h = 0; h < histograms; h++) {
+                double expected = naiveQuantile(q, scraped[h].getBuckets());
+                Assert.assertEquals(expected, result[h], 1e-9);
+                Assert.assertEquals(expected, HistogramBuckets.of(scraped[h]).quantile(q), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testDelta() {
+        HistogramBuckets first = HistogramBuckets.of(histogram(10, 50, 90, 100, 100));
+        HistogramBuckets second = HistogramBuckets.of(histogram(15, 60, 95, 110, 111));
+        HistogramBuckets delta = second.delta(first);
+        Assert.assertArrayEquals(new double[] {5, 10, 5, 10, 11}, delta.getCounts(), 0);
+        Assert.assertEquals(0, delta.getSum(), 0);
+        Assert.assertEquals(11, delta.getCount(), 0);
+        Assert.assertArrayEquals(new double[] {0.5, 1, 0.5, 1, 1.1}, delta.scale(0.1).getCounts(), 1e-9);
+
+        // a reset
+        HistogramBuckets reset = HistogramBuckets.of(histogram(1, 2, 3, 4, 5));
+        Assert.assertArrayEquals(reset.getCounts(), reset.delta(second).getCounts(), 0);
+    }
+
+    @Test
+    public void testMerge() {
+        HistogramBuckets merged = HistogramBuckets.merge(List.of(HistogramBuckets.of(histogram(10, 50, 90, 100, 100)),
+                HistogramBuckets.of(histogram(1, 2, 3, 4, 5))));
+        Assert.assertArrayEquals(new double[] {11, 52, 93, 104, 105}, merged.getCounts(), 0);
+        Assert.assertEquals(84, merged.getSum(), 0);
+        Assert.assertTrue(merged.hasSameLayout(HistogramBuckets.of(histogram(0, 0, 0, 0, 0))));
+
+        HistogramBuckets other = HistogramBuckets.of(new double[] {1, Double.POSITIVE_INFINITY}, new double[] {1, 2}, 3);
+        Assert.assertThrows(IllegalArgumentException.class, () -> HistogramBuckets.merge(List.of(merged, other)));
+        Assert.assertThrows(IllegalArgumentException.class, () -> other.delta(merged));
+        Assert.assertThrows(IllegalArgumentException.class,
+                () -> HistogramBuckets.of(new double[] {2, 1}, new double[] {1, 2}, 3));
+    }
+
+    @Test
+    public void testUnsortedBuckets() {
+        Histogram histogram = new Histogram.Builder().setName("latency").setSampleCount(10).setSampleSum(1)
+                .addBucket(Double.POSITIVE_INFINITY, 10).addBucket(1, 5).build();
+        HistogramBuckets buckets = HistogramBuckets.of(histogram);
+        Assert.assertArrayEquals(new double[] {1, Double.POSITIVE_INFINITY}, buckets.getUpperBounds(), 0);
+        Assert.assertArrayEquals(new double[] {5, 10}, buckets.getCounts(), 0);
+    }
+
+    @Test
+    public void testDuplicateUpperBounds() {
+        // le="1" and le="1.0" of series that were merged, e.g. by relabeling
+        Histogram histogram = new Histogram.Builder().setName("latency").setSampleCount(10).setSampleSum(1)
+                .addBucket(1, 3).addBucket(Double.POSITIVE_INFINITY, 6).addBucket(1.0, 2)
+                .addBucket(Double.POSITIVE_INFINITY, 4).build();
+        HistogramBuckets buckets = HistogramBuckets.of(histogram);
+        Assert.assertArrayEquals(new double[] {1, Double.POSITIVE_INFINITY}, buckets.getUpperBounds(), 0);
+        Assert.assertArrayEquals(new double[] {5, 10}, buckets.getCounts(), 0);
+        Assert.assertEquals(0.5, buckets.quantile(0.25), 1e-9);
+    }
+}
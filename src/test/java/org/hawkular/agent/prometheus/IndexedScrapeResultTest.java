@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import com.github.epserv.prometheus.IndexedScrapeResult;
+import com.github.epserv.prometheus.LabelMatcher;
+import com.github.epserv.prometheus.PrometheusDataFormat;
+import com.github.epserv.prometheus.PrometheusScraper;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexedScrapeResultTest {
+
+    private IndexedScrapeResult scrapeTestData() throws Exception {
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        return new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT).scrapeIndexed();
+    }
+
+    // the series the matchers select, found by looking at every series
+    private static List<Metric> scan(IndexedScrapeResult result, LabelMatcher... matchers) {
+        List<Metric> selected = new ArrayList<>();
+        for (MetricFamily family : result.getFamilies()) {
+            series:
+            for (Metric metric : family.getMetrics()) {
+                for (LabelMatcher matcher : matchers) {
+                    String value = matcher.getName().equals("__name__") ? metric.getName()
+                            : metric.getLabels().getOrDefault(matcher.getName(), "");
+                    if (!matcher.matches(value)) {
+                        continue series;
+                    }
+                }
+                selected.add(metric);
+            }
+        }
+        return selected;
+    }
+
+    @Test
+    public void testFamilies() throws Exception {
+        IndexedScrapeResult result = scrapeTestData();
+        Assert.assertEquals(72, result.getFamilies().size());
+        MetricFamily family = result.getFamily("http_request_duration_microseconds");
+        Assert.assertNotNull(family);
+        Assert.assertEquals(MetricType.SUMMARY, family.getType());
+        Assert.assertNull(result.getFamily("no_such_family"));
+        Assert.assertEquals(result.getFamilies().stream().mapToInt(f -> f.getMetrics().size()).sum(),
+                result.getSeriesCount());
+        Assert.assertTrue(result.getLabelNames().contains("__name__"));
+        Assert.assertTrue(result.getLabelValues("handler").contains("alerts"));
+        Assert.assertTrue(result.getLabelValues("no_such_label").isEmpty());
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        IndexedScrapeResult result = scrapeTestData();
+        LabelMatcher[][] selectors = {
+                {},
+                {LabelMatcher.equal("__name__", "http_request_duration_microseconds")},
+                {LabelMatcher.equal("handler", "alerts")},
+                {LabelMatcher.equal("handler", "no_such_handler")},
+                {LabelMatcher.equal("handler", "")},
+                {LabelMatcher.notEqual("handler", "")},
+                {LabelMatcher.notEqual("handler", "alerts")},
+                {LabelMatcher.regex("handler", "a.*|c.*")},
+                {LabelMatcher.regex("handler", "a.*|")},
+                {LabelMatcher.notRegex("handler", "a.*|c.*")},
+                {LabelMatcher.regex("__name__", "http_.*"), LabelMatcher.notRegex("handler", "drop.*")},
+                {LabelMatcher.regex("__name__", "http_.*"), LabelMatcher.equal("handler", "consoles"),
+                        LabelMatcher.notEqual("quantile", "0.9")},
+                {LabelMatcher.equal("no_such_label", "")},
+                {LabelMatcher.notEqual("no_such_label", "x")},
+                {LabelMatcher.regex("no_such_label", ".+")},
+        };
+        for (LabelMatcher[] selector : selectors) {
+            Assert.assertEquals(List.of(selector).toString(), scan(result, selector), result.select(selector));
+        }
+        Assert.assertEquals(result.getSeriesCount(), result.select().size());
+    }
+
+    @Test
+    public void testSelectLargeScrape() {
+        // enough series for the posting lists of common values to become bitmaps
+        int seriesCount = 100_000;
+        List<MetricFamily> families = new ArrayList<>();
+        for (int f = 0; f < 10; f++) {
+            MetricFamily.Builder family = new MetricFamily.Builder().setName("family_" + f).setType(MetricType.COUNTER);
+            for (int i = f; i < seriesCount; i += 10) {
+                family.addMetric(new Counter.Builder().setName("family_" + f)
+                        .addLabel("instance", "instance-" + i)
+                        .addLabel("zone", "zone-" + i % 3)
+                        .addLabel("code", i % 100 == 0 ? "500" : "200")
+                        .setValue(i)
+                        .build());
+            }
+            families.add(family.build());
+        }
+        IndexedScrapeResult result = new IndexedScrapeResult(families);
+        Assert.assertEquals(seriesCount, result.getSeriesCount());
+
+        LabelMatcher[][] selectors = {
+                {LabelMatcher.equal("instance", "instance-4242")},
+                {LabelMatcher.equal("zone", "zone-1"), LabelMatcher.equal("code", "500")},
+                {LabelMatcher.equal("__name__", "family_0"), LabelMatcher.regex("zone", "zone-[01]"),
+                        LabelMatcher.notEqual("code", "200")},
+                {LabelMatcher.regex("instance", "instance-99.."), LabelMatcher.notRegex("zone", "zone-2")},
+        };
+        for (LabelMatcher[] selector : selectors) {
+            Assert.assertEquals(List.of(selector).toString(), scan(result, selector), result.select(selector));
+        }
+        Assert.assertEquals(1, result.select(LabelMatcher.equal("instance", "instance-4242")).size());
+    }
+
+    @Test
+    public void testLiteralNameLabel() {
+        MetricFamily.Builder family = new MetricFamily.Builder().setName("requests").setType(MetricType.COUNTER);
+        for (int i = 0; i < 4; i++) {
+            family.addMetric(new Counter.Builder().setName("requests")
+                    .addLabel("__name__", i % 2 == 0 ? "requests" : "other")
+                    .addLabel("code", "200")
+                    .setValue(i)
+                    .build());
+        }
+        IndexedScrapeResult result = new IndexedScrapeResult(List.of(family.build()));
+
+        // the name of the metric is matched, each series once
+        Assert.assertEquals(4, result.select(LabelMatcher.equal("__name__", "requests")).size());
+        Assert.assertTrue(result.select(LabelMatcher.equal("__name__", "other")).isEmpty());
+        Assert.assertEquals(Set.of("requests"), result.getLabelValues("__name__"));
+        Assert.assertEquals(4, result.select(LabelMatcher.equal("__name__", "requests"),
+                LabelMatcher.equal("code", "200")).size());
+    }
+
+    @Test
+    public void testMatcher() {
+        Assert.assertTrue(LabelMatcher.regex("code", "5..").matches("500"));
+        Assert.assertFalse(LabelMatcher.regex("code", "5..").matches("1500"));
+        Assert.assertTrue(LabelMatcher.notRegex("code", "5..").matches(""));
+        Assert.assertTrue(LabelMatcher.notEqual("code", "500").matches(""));
+        Assert.assertEquals("code=~\"5..\"", LabelMatcher.regex("code", "5..").toString());
+    }
+}
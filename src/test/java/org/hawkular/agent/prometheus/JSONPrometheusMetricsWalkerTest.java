@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.walkers.JSONPrometheusMetricsWalker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JSONPrometheusMetricsWalkerTest {
+
+    @Test
+    public void testDocument() {
+        String data = """
+                # HELP requests_total Requests "handled"\\nby \\\\ path \u00fc
+                # TYPE requests_total counter
+                requests_total{path="/a\\"b\\"",tab="\t"} 12
+                requests_total{path="/c"} 1.5e-07
+                # TYPE temperature gauge
+                temperature NaN
+                # TYPE rpc summary
+                rpc{quantile="0.5"} 0.25
+                rpc{quantile="0.99"} +Inf
+                rpc_sum 10
+                rpc_count 4
+                # TYPE latency histogram
+                latency_bucket{le="0.5"} 2
+                latency_bucket{le="+Inf"} 3
+                latency_sum 1.5
+                latency_count 3
+                """;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)),
+                new JSONPrometheusMetricsWalker(out)).walk();
+        Assert.assertEquals("""
+                [
+                  {
+                    "name":"requests_total",
+                    "help":"Requests \\"handled\\"\\nby \\\\ path \u00fc",
+                    "type":"COUNTER",
+                    "metrics":[
+                      {
+                        "labels":{
+                          "path":"/a\\"b\\"",
+                          "tab":"\\t"
+                        },
+                        "value":12
+                      },
+                      {
+                        "labels":{
+                          "path":"/c"
+                        },
+                        "value":1.5e-07
+                      }
+                    ]
+                  },
+                  {
+                    "name":"temperature",
+                    "help":"",
+                    "type":"GAUGE",
+                    "metrics":[
+                      {
+                        "value":"NaN"
+                      }
+                    ]
+                  },
+                  {
+                    "name":"rpc",
+                    "help":"",
+                    "type":"SUMMARY",
+                    "metrics":[
+                      {
+                        "quantiles":{
+                          "0.5":0.25,
+                          "0.99":"+Inf"
+                        },
+                        "count":4,
+                        "sum":10
+                      }
+                    ]
+                  },
+                  {
+                    "name":"latency",
+                    "help":"",
+                    "type":"HISTOGRAM",
+                    "metrics":[
+                      {
+                        "buckets":{
+                          "0.5":2,
+                          "+Inf":3
+                        },
+                        "count":3,
+                        "sum":1.5
+                      }
+                    ]
+                  }
+                ]
+                """, out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEmpty() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(new byte[0]),
+                new JSONPrometheusMetricsWalker(out)).walk();
+        Assert.assertEquals("[\n]\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamAndWriter() throws Exception {
+        byte[] data;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("prometheus.txt")) {
+            data = Objects.requireNonNull(in).readAllBytes();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new JSONPrometheusMetricsWalker(out))
+                .walk();
+        StringWriter writer = new StringWriter();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new JSONPrometheusMetricsWalker(writer))
+                .walk();
+
+        // far more than one buffer, so the document is written in several parts
+        Assert.assertTrue(out.size() > 8192);
+        Assert.assertEquals(out.toString(StandardCharsets.UTF_8), writer.toString());
+    }
+
+    @Test
+    public void testLongString() {
+        // longer than the buffer, with surrogate pairs that must not be split between two parts
+        String value = "a\u00e9\ud83d\ude00".repeat(5000);
+        String data = "# TYPE x gauge\nx{v=\"" + value + "\"} 1\n";
+        StringWriter writer = new StringWriter();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)),
+                new JSONPrometheusMetricsWalker(writer)).walk();
+        Assert.assertTrue(writer.toString().contains("\"v\":\"" + value + "\""));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.epserv.prometheus.binary.BinaryPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.Summary;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+
+/**
+ * Parses and describes metric families, so tests can compare them as strings.
+ */
+final class MetricFamilies {
+
+    private MetricFamilies() {
+    }
+
+    static List<MetricFamily> parseText(byte[] data) {
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), collector).walk();
+        return collector.getAllMetricFamilies();
+    }
+
+    static List<MetricFamily> parseBinary(byte[] data) {
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        new BinaryPrometheusMetricsProcessor(new ByteArrayInputStream(data), collector).walk();
+        return collector.getAllMetricFamilies();
+    }
+
+    static List<String> describe(List<MetricFamily> families) {
+        List<String> described = new ArrayList<>();
+        for (MetricFamily family : families) {
+            described.add(describe(family));
+        }
+        return described;
+    }
+
+    // a family without help text is parsed with an empty help text by one format and with none by the other
+    static String describe(MetricFamily family) {
+        StringBuilder builder = new StringBuilder(family.getName()).append(' ').append(family.getType());
+        if (family.getHelp() != null && !family.getHelp().isEmpty()) {
+            builder.append(' ').append(family.getHelp());
+        }
+        for (Metric metric : family.getMetrics()) {
+            builder.append(' ').append(metric.getName()).append(metric.getLabels());
+            if (metric instanceof Counter counter) {
+                builder.append('=').append(counter.getValue());
+            } else if (metric instanceof Gauge gauge) {
+                builder.append('=').append(gauge.getValue());
+            } else if (metric instanceof Histogram histogram) {
+                builder.append('=').append(histogram.getSampleCount()).append('/').append(histogram.getSampleSum())
+                        .append(histogram.getBuckets());
+            } else if (metric instanceof Summary summary) {
+                builder.append('=').append(summary.getSampleCount()).append('/').append(summary.getSampleSum())
+                        .append(summary.getQuantiles());
+            }
+        }
+        return builder.toString();
+    }
+}
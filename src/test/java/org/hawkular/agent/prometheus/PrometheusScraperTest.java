@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.epserv.prometheus.PrometheusDataFormat;
+import com.github.epserv.prometheus.PrometheusScraper;
+import com.github.epserv.prometheus.TransferStats;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrometheusScraperTest {
+    private HttpServer server;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/metrics", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body;
+            try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus.txt")) {
+                body = Objects.requireNonNull(testData).readAllBytes();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/compressed", exchange -> {
+            byte[] body = compress(exchange.getRequestURI().getQuery(), readTestData("prometheus.txt"));
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.getResponseHeaders().set("Content-Encoding",
+                    exchange.getRequestURI().getQuery().startsWith("gzip") ? "gzip" : "deflate");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/compressed-binary", exchange -> {
+            byte[] body = compress("gzip", readTestData("prometheus.data"));
+            exchange.getResponseHeaders().set("Content-Type", PrometheusDataFormat.BINARY.getContentType());
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/missing", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private byte[] readTestData(String name) throws IOException {
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream(name)) {
+            return Objects.requireNonNull(testData).readAllBytes();
+        }
+    }
+
+    // compresses the data with gzip, gzip split into two concatenated members, zlib wrapped deflate or raw deflate
+    private static byte[] compress(String encoding, byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (encoding.equals("gzip-members")) {
+            int half = data.length / 2;
+            for (byte[] member : new byte[][] {Arrays.copyOf(data, half), Arrays.copyOfRange(data, half, data.length)}) {
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(member);
+                }
+            }
+        } else if (encoding.equals("gzip")) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data);
+            }
+        } else {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, encoding.equals("raw-deflate"));
+            try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+                deflate.write(data);
+            } finally {
+                deflater.end();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private URL url(String path) throws Exception {
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+    }
+
+    @Test
+    public void testScrapeAsync() throws Exception {
+        PrometheusScraper scraper = new PrometheusScraper(url("/metrics"));
+        List<MetricFamily> families = scraper.scrapeAsync().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(72, families.size());
+
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        scraper.scrapeAsync(collector).get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(collector.isFinished());
+        Assert.assertEquals(72, Objects.requireNonNull(collector.getAllMetricFamilies()).size());
+    }
+
+    @Test
+    public void testScrapeAsyncReusesConnections() throws Exception {
+        PrometheusScraper scraper = new PrometheusScraper(url("/metrics"));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(72, scraper.scrapeAsync().get(10, TimeUnit.SECONDS).size());
+        }
+        Assert.assertEquals("scrapes should share one connection but came from ports " + clientPorts,
+                1, clientPorts.size());
+    }
+
+    @Test
+    public void testScrapeAsyncFailure() throws Exception {
+        PrometheusScraper scraper = new PrometheusScraper(url("/missing"));
+        try {
+            scraper.scrapeAsync().get(10, TimeUnit.SECONDS);
+            Assert.fail("Scraping a missing endpoint should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+            Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("404"));
+        }
+    }
+
+    @Test
+    public void testScrapeCompressed() throws Exception {
+        int length = readTestData("prometheus.txt").length;
+        for (String encoding : new String[] {"gzip", "gzip-members", "deflate", "raw-deflate"}) {
+            PrometheusScraper scraper = new PrometheusScraper(url("/compressed?" + encoding));
+            Assert.assertEquals(encoding, 72, scraper.scrape().size());
+            Assert.assertEquals(encoding, 72, scraper.scrapeAsync().get(10, TimeUnit.SECONDS).size());
+
+            TransferStats stats = scraper.getTransferStats();
+            Assert.assertEquals(stats.toString(), 2, stats.responses());
+            Assert.assertEquals(stats.toString(), 2, stats.compressedResponses());
+            Assert.assertEquals(stats.toString(), 2L * length, stats.decodedBytes());
+            Assert.assertTrue(stats.toString(), stats.compressionRatio() > 3);
+            Assert.assertTrue(stats.toString(), stats.decodingTime().compareTo(Duration.ZERO) > 0);
+        }
+
+        PrometheusScraper scraper = new PrometheusScraper(url("/compressed-binary"));
+        File file = new File(Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.data")).toURI());
+        Assert.assertEquals(new PrometheusScraper(file, PrometheusDataFormat.BINARY).scrape().size(),
+                scraper.scrape().size());
+        Assert.assertEquals(readTestData("prometheus.data").length, scraper.getTransferStats().decodedBytes());
+    }
+
+    @Test
+    public void testScrapeUncompressedTransferStats() throws Exception {
+        PrometheusScraper scraper = new PrometheusScraper(url("/metrics"));
+        scraper.scrape();
+        TransferStats stats = scraper.getTransferStats();
+        Assert.assertEquals(1, stats.responses());
+        Assert.assertEquals(0, stats.compressedResponses());
+        Assert.assertEquals(readTestData("prometheus.txt").length, stats.wireBytes());
+        Assert.assertEquals(stats.wireBytes(), stats.decodedBytes());
+        Assert.assertEquals(1, stats.compressionRatio(), 0);
+    }
+}
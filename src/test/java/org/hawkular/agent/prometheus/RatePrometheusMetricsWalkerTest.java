@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.epserv.prometheus.Util;
+import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+import com.github.epserv.prometheus.walkers.RatePrometheusMetricsWalker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RatePrometheusMetricsWalkerTest {
+
+    private static class MutableClock extends Clock {
+        long millis;
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+
+    private final MutableClock clock = new MutableClock();
+    private final List<String> rates = new ArrayList<>();
+    private final RatePrometheusMetricsWalker walker = new RatePrometheusMetricsWalker(
+            (family, metric, sampleName, upperBound, increase, perSecond) -> rates.add(sampleName
+                    + (Double.isNaN(upperBound) ? "" : "[" + Util.convertDoubleToString(upperBound) + "]")
+                    + metric.getLabels() + " " + Util.convertDoubleToString(increase) + " "
+                    + Util.convertDoubleToString(perSecond)),
+            null, clock);
+
+    private List<String> walk(long seconds, String text) {
+        clock.millis = seconds * 1000;
+        rates.clear();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), walker)
+                .walk();
+        return new ArrayList<>(rates);
+    }
+
+    @Test
+    public void testCounters() {
+        Assert.assertEquals(List.of(), walk(0, """
+                # TYPE requests_total counter
+                requests_total{code="200"} 100
+                requests_total{code="500"} 10
+                """));
+        Assert.assertEquals(2, walker.getTrackedSeries());
+
+        Assert.assertEquals(List.of("requests_total{code=200} 50 5", "requests_total{code=500} 0 0"), walk(10, """
+                # TYPE requests_total counter
+                requests_total{code="200"} 150
+                requests_total{code="500"} 10
+                """));
+
+        // a reset, a new series that is not reported yet, and a series that is gone
+        Assert.assertEquals(List.of("requests_total{code=200} 20 1"), walk(30, """
+                # TYPE requests_total counter
+                requests_total{code="200"} 20
+                requests_total{code="404"} 1
+                """));
+        Assert.assertEquals(2, walker.getTrackedSeries());
+
+        Assert.assertEquals(List.of("requests_total{code=404} 2 0.2", "requests_total{code=200} 0 0"), walk(40, """
+                # TYPE requests_total counter
+                requests_total{code="404"} 3
+                requests_total{code="200"} 20
+                """));
+    }
+
+    @Test
+    public void testHistogram() {
+        String first = """
+                # TYPE latency histogram
+                latency_bucket{job="a",le="0.1"} 5
+                latency_bucket{job="a",le="1"} 8
+                latency_bucket{job="a",le="+Inf"} 10
+                latency_sum{job="a"} 4
+                latency_count{job="a"} 10
+                """;
+        walk(0, first);
+        Assert.assertEquals(List.of(
+                "latency_bucket[0.1]{job=a} 1 0.5",
+                "latency_bucket[1]{job=a} 2 1",
+                "latency_bucket[+Inf]{job=a} 2 1",
+                "latency_sum{job=a} 1 0.5",
+                "latency_count{job=a} 2 1"), walk(2, """
+                # TYPE latency histogram
+                latency_bucket{job="a",le="0.1"} 6
+                latency_bucket{job="a",le="1"} 10
+                latency_bucket{job="a",le="+Inf"} 12
+                latency_sum{job="a"} 5
+                latency_count{job="a"} 12
+                """));
+
+        // only the lowest bucket decreased, but the whole histogram was reset
+        Assert.assertEquals(List.of(
+                "latency_bucket[0.1]{job=a} 1 0.5",
+                "latency_bucket[1]{job=a} 12 6",
+                "latency_bucket[+Inf]{job=a} 14 7",
+                "latency_sum{job=a} 6 3",
+                "latency_count{job=a} 14 7"), walk(4, """
+                # TYPE latency histogram
+                latency_bucket{job="a",le="0.1"} 1
+                latency_bucket{job="a",le="1"} 12
+                latency_bucket{job="a",le="+Inf"} 14
+                latency_sum{job="a"} 6
+                latency_count{job="a"} 14
+                """));
+    }
+
+    @Test
+    public void testSummary() {
+        walk(0, """
+                # TYPE rpc summary
+                rpc{quantile="0.5"} 1
+                rpc_sum 10
+                rpc_count 5
+                """);
+        // a sum that decreased due to negative observations is not a reset
+        Assert.assertEquals(List.of("rpc_sum{} -2 -0.2", "rpc_count{} 1 0.1"), walk(10, """
+                # TYPE rpc summary
+                rpc{quantile="0.5"} 1
+                rpc_sum 8
+                rpc_count 6
+                """));
+        Assert.assertEquals(List.of("rpc_sum{} 3 0.3", "rpc_count{} 2 0.2"), walk(20, """
+                # TYPE rpc summary
+                rpc{quantile="0.5"} 1
+                rpc_sum 3
+                rpc_count 2
+                """));
+    }
+
+    @Test
+    public void testDelegate() {
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        RatePrometheusMetricsWalker rateWalker = new RatePrometheusMetricsWalker(
+                (family, metric, sampleName, upperBound, increase, perSecond) -> { }, collector);
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream("""
+                # TYPE up gauge
+                up 1
+                """.getBytes(StandardCharsets.UTF_8)), rateWalker).walk();
+        Assert.assertEquals(1, collector.getAllMetricFamilies().size());
+        Assert.assertEquals(0, rateWalker.getTrackedSeries());
+    }
+}
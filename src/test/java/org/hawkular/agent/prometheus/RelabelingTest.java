@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import com.github.epserv.prometheus.MutableSampleLabels;
+import com.github.epserv.prometheus.ProcessorOptions;
+import com.github.epserv.prometheus.RelabelRule;
+import com.github.epserv.prometheus.Relabeling;
+import com.github.epserv.prometheus.SampleLabels;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RelabelingTest {
+
+    private static class RecordingVisitor implements SampleVisitor {
+        final List<String> samples = new ArrayList<>();
+        SampleLabels lastLabels;
+
+        @Override
+        public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+        }
+
+        @Override
+        public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+            samples.add(name + labels.toString());
+            lastLabels = labels;
+        }
+    }
+
+    private static List<String> relabel(Relabeling relabeling, String name, String... labels) {
+        MutableSampleLabels sampleLabels = new MutableSampleLabels();
+        for (int i = 0; i < labels.length; i += 2) {
+            sampleLabels.add(labels[i], labels[i + 1]);
+        }
+        RecordingVisitor visitor = new RecordingVisitor();
+        relabeling.apply(visitor).onSample(name, sampleLabels, 1, SampleVisitor.NO_TIMESTAMP);
+        return visitor.samples;
+    }
+
+    private static Relabeling rules(RelabelRule.Builder... rules) {
+        Relabeling.Builder builder = new Relabeling.Builder();
+        for (RelabelRule.Builder rule : rules) {
+            builder.addRule(rule.build());
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testKeepAndDrop() {
+        Relabeling relabeling = rules(
+                new RelabelRule.Builder().setAction(RelabelRule.Action.KEEP)
+                        .setSourceLabels(RelabelRule.METRIC_NAME_LABEL).setRegex("http_.*"),
+                new RelabelRule.Builder().setAction(RelabelRule.Action.DROP)
+                        .setSourceLabels("method", "code").setRegex("GET;5.."));
+        Assert.assertEquals(List.of("http_requests{method=GET,code=200}"),
+                relabel(relabeling, "http_requests", "method", "GET", "code", "200"));
+        Assert.assertEquals(List.of(), relabel(relabeling, "http_requests", "method", "GET", "code", "503"));
+        Assert.assertEquals(List.of("http_requests{method=POST,code=503}"),
+                relabel(relabeling, "http_requests", "method", "POST", "code", "503"));
+        Assert.assertEquals(List.of(), relabel(relabeling, "go_goroutines"));
+
+        // a literal regex must match the whole value
+        relabeling = rules(new RelabelRule.Builder().setAction(RelabelRule.Action.DROP)
+                .setSourceLabels("env").setRegex("test"));
+        Assert.assertEquals(List.of(), relabel(relabeling, "up", "env", "test"));
+        Assert.assertEquals(List.of("up{env=testing}"), relabel(relabeling, "up", "env", "testing"));
+        Assert.assertEquals(List.of("up{}"), relabel(relabeling, "up"));
+    }
+
+    @Test
+    public void testReplace() {
+        Relabeling relabeling = rules(
+                new RelabelRule.Builder().setSourceLabels("instance").setRegex("([^:]+):(?<port>\\d+)")
+                        .setTargetLabel("host").setReplacement("$1"),
+                new RelabelRule.Builder().setSourceLabels("instance").setRegex("([^:]+):(?<port>\\d+)")
+                        .setTargetLabel("port").setReplacement("${port}"),
+                new RelabelRule.Builder().setSourceLabels("host", "port").setSeparator("/")
+                        .setTargetLabel("address").setReplacement("[$1] $$ $2x ${2}x"),
+                new RelabelRule.Builder().setSourceLabels("instance").setTargetLabel("instance").setReplacement(""),
+                new RelabelRule.Builder().setSourceLabels("env").setRegex("").setTargetLabel("env")
+                        .setReplacement("default"));
+        Assert.assertEquals(List.of("up{host=db,port=5432,address=[db/5432] $  x,env=default}"),
+                relabel(relabeling, "up", "instance", "db:5432"));
+        // source values that do not match leave their targets alone, missing source labels are empty
+        Assert.assertEquals(List.of("up{env=prod,address=[/] $  x}"),
+                relabel(relabeling, "up", "instance", "db", "env", "prod"));
+    }
+
+    @Test
+    public void testLabelActions() {
+        Relabeling relabeling = rules(
+                new RelabelRule.Builder().setAction(RelabelRule.Action.LABELMAP).setRegex("k8s_(.+)")
+                        .setReplacement("$1"),
+                new RelabelRule.Builder().setAction(RelabelRule.Action.LABELDROP).setRegex("k8s_.*|tmp"));
+        Assert.assertEquals(List.of("up{job=api,pod=api-1,namespace=prod}"),
+                relabel(relabeling, "up", "k8s_pod", "api-1", "job", "api", "tmp", "x", "k8s_namespace", "prod"));
+
+        relabeling = rules(new RelabelRule.Builder().setAction(RelabelRule.Action.LABELKEEP).setRegex("job|le"));
+        Assert.assertEquals(List.of("latency_bucket{job=api,le=0.5}"),
+                relabel(relabeling, "latency_bucket", "job", "api", "pod", "api-1", "le", "0.5"));
+    }
+
+    @Test
+    public void testUnchangedLabelsAreNotCopied() {
+        MutableSampleLabels labels = new MutableSampleLabels();
+        labels.add("job", "api");
+        RecordingVisitor visitor = new RecordingVisitor();
+        rules(new RelabelRule.Builder().setAction(RelabelRule.Action.KEEP).setSourceLabels("job"),
+                new RelabelRule.Builder().setAction(RelabelRule.Action.LABELDROP).setRegex("pod"))
+                .apply(visitor).onSample("up", labels, 1, SampleVisitor.NO_TIMESTAMP);
+        Assert.assertSame(labels, visitor.lastLabels);
+        Assert.assertSame(visitor, Relabeling.NONE.apply(visitor));
+    }
+
+    @Test
+    public void testInvalidRules() {
+        try {
+            new RelabelRule.Builder().setSourceLabels("job").build();
+            Assert.fail("Replace rule without target label was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new RelabelRule.Builder().setSourceLabels("job").setTargetLabel(RelabelRule.METRIC_NAME_LABEL).build();
+            Assert.fail("Rule changing the sample name was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            rules(new RelabelRule.Builder().setAction(RelabelRule.Action.DROP).setSourceLabels("job").setRegex("("));
+            Assert.fail("Invalid regex was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testRelabelingWhileWalking() throws Exception {
+        String data = """
+                # TYPE requests counter
+                requests{method="get",code="200",pod="a"} 10
+                requests{method="get",code="500",pod="a"} 2
+                requests{method="get",code="200",pod="b"} 5
+                # TYPE latency histogram
+                latency_bucket{pod="a",le="1"} 3
+                latency_bucket{pod="a",le="+Inf"} 4
+                latency_sum{pod="a"} 2.5
+                latency_count{pod="a"} 4
+                """;
+        Relabeling relabeling = rules(
+                new RelabelRule.Builder().setAction(RelabelRule.Action.DROP).setSourceLabels("code").setRegex("5.."),
+                new RelabelRule.Builder().setSourceLabels("pod").setTargetLabel("instance").setReplacement("pod-$1"),
+                new RelabelRule.Builder().setAction(RelabelRule.Action.LABELDROP).setRegex("pod"));
+
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), collector,
+                new ProcessorOptions.Builder().setRelabeling(relabeling).build()).walk();
+        List<MetricFamily> families = Objects.requireNonNull(collector.getAllMetricFamilies());
+        Assert.assertEquals(2, families.size());
+
+        List<String> counters = new ArrayList<>();
+        for (var metric : families.get(0).getMetrics()) {
+            counters.add(metric.getLabels() + " " + ((Counter) metric).getValue());
+        }
+        Assert.assertEquals(List.of("{method=get, code=200, instance=pod-a} 10.0",
+                "{method=get, code=200, instance=pod-b} 5.0"), counters);
+
+        Assert.assertEquals(1, families.get(1).getMetrics().size());
+        Histogram histogram = (Histogram) families.get(1).getMetrics().get(0);
+        Assert.assertEquals("{instance=pod-a}", histogram.getLabels().toString());
+        Assert.assertEquals(4, histogram.getSampleCount());
+        Assert.assertEquals(2, histogram.getBuckets().size());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.hawkular.agent.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.epserv.prometheus.PrometheusDataFormat;
+import com.github.epserv.prometheus.ScrapeManager;
+import com.github.epserv.prometheus.ScrapeStats;
+import com.github.epserv.prometheus.ScrapeTarget;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScrapeManagerTest {
+    private HttpServer server;
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        byte[] body;
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus-three-counters.txt")) {
+            body = Objects.requireNonNull(testData).readAllBytes();
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/metrics", exchange -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // before responding, so the client cannot start another scrape before this one is counted as done
+                concurrent.decrementAndGet();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testScrapeTargets() throws Exception {
+        URL url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/metrics");
+        URL missing = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/missing");
+
+        List<CountingWalker> walkers = new ArrayList<>();
+        try (ScrapeManager manager = new ScrapeManager(2)) {
+            for (int i = 0; i < 6; i++) {
+                CountingWalker walker = new CountingWalker();
+                walkers.add(walker);
+                manager.addTarget(new ScrapeTarget.Builder()
+                        .setUrl(url)
+                        .setDataFormat(PrometheusDataFormat.TEXT)
+                        .setInterval(Duration.ofMillis(50))
+                        .setWalker(walker)
+                        .build());
+            }
+            ScrapeTarget failing = new ScrapeTarget.Builder()
+                    .setUrl(missing)
+                    .setInterval(Duration.ofMillis(50))
+                    .setWalker(new CollectorPrometheusMetricsWalker())
+                    .build();
+            manager.addTarget(failing);
+            Assert.assertEquals(7, manager.getTargets().size());
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (manager.getStats().scrapes() < 30 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(manager.removeTarget(failing));
+            Assert.assertFalse(manager.removeTarget(failing));
+
+            ScrapeStats stats = manager.getStats();
+            Assert.assertTrue(stats.toString(), stats.scrapes() >= 30);
+            Assert.assertTrue(stats.toString(), stats.failures() > 0);
+            Assert.assertTrue(stats.toString(), stats.failures() < stats.scrapes());
+            Assert.assertTrue(stats.toString(), stats.averageLatency().compareTo(Duration.ofMillis(20)) >= 0
+                    || stats.failures() > stats.scrapes() / 2);
+            Assert.assertTrue(stats.toString(), stats.maxLatency().compareTo(Duration.ZERO) > 0);
+            Assert.assertTrue(stats.toString(), stats.scrapesPerSecond() > 0);
+            Assert.assertEquals(6, stats.targets());
+            Assert.assertTrue(stats.toString(), stats.due() >= stats.scrapes() + stats.overlapping());
+            Assert.assertTrue(stats.toString(), stats.averageSchedulingLag().compareTo(Duration.ofMillis(500)) < 0);
+        }
+
+        Assert.assertTrue("at most 2 scrapes per host but saw " + maxConcurrent.get(), maxConcurrent.get() <= 2);
+        for (CountingWalker walker : walkers) {
+            Assert.assertTrue(walker.scrapes.get() > 0);
+            Assert.assertEquals(0, walker.incompleteScrapes.get());
+        }
+    }
+
+    @Test
+    public void testScrapeOffset() throws Exception {
+        Duration interval = Duration.ofSeconds(10);
+        int[] buckets = new int[10];
+        for (int i = 0; i < 1000; i++) {
+            ScrapeTarget target = new ScrapeTarget.Builder()
+                    .setUrl(new URL("http://node-" + i + ".example.com:9100/metrics"))
+                    .setInterval(interval)
+                    .setWalker(new CollectorPrometheusMetricsWalker())
+                    .build();
+            Duration offset = ScrapeManager.getScrapeOffset(target);
+            Assert.assertFalse(offset.isNegative());
+            Assert.assertTrue(offset.compareTo(interval) < 0);
+            Assert.assertEquals(offset, ScrapeManager.getScrapeOffset(new ScrapeTarget.Builder()
+                    .setUrl(target.getUrl())
+                    .setInterval(interval)
+                    .setWalker(new CollectorPrometheusMetricsWalker())
+                    .build()));
+            buckets[(int) offset.toSeconds()]++;
+        }
+
+        // the targets are spread evenly across the interval
+        for (int count : buckets) {
+            Assert.assertTrue(Arrays.toString(buckets), count > 50 && count < 150);
+        }
+    }
+
+    private static class CountingWalker extends CollectorPrometheusMetricsWalker {
+        private final AtomicInteger scrapes = new AtomicInteger();
+        private final AtomicInteger incompleteScrapes = new AtomicInteger();
+
+        // close() does not wait for scrapes in flight, so each scrape is checked on its own instead of comparing
+        // totals that such a scrape may be updating
+        @Override
+        public void walkFinish(int familiesProcessed, int metricsProcessed) {
+            super.walkFinish(familiesProcessed, metricsProcessed);
+            if (familiesProcessed != 3) {
+                incompleteScrapes.incrementAndGet();
+            }
+            scrapes.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+import com.github.epserv.prometheus.text.TextPrometheusMetricsWriter;
+import com.github.epserv.prometheus.types.Counter;
+import com.github.epserv.prometheus.types.Gauge;
+import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.MetricFamily;
+import com.github.epserv.prometheus.types.MetricType;
+import com.github.epserv.prometheus.types.Summary;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TextPrometheusMetricsWriterTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("prometheus.txt")) {
+            data = Objects.requireNonNull(in).readAllBytes();
+        }
+        List<MetricFamily> families = MetricFamilies.parseText(data);
+
+        TextPrometheusMetricsWriter writer = new TextPrometheusMetricsWriter();
+        writer.write(families);
+        byte[] written = writer.toByteArray();
+        Assert.assertEquals(MetricFamilies.describe(families),
+                MetricFamilies.describe(MetricFamilies.parseText(written)));
+
+        // the output is the same when it is streamed through a buffer much smaller than the whole output
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TextPrometheusMetricsWriter streaming = new TextPrometheusMetricsWriter(out)) {
+            streaming.write(families);
+        }
+        Assert.assertTrue(written.length > 8192);
+        Assert.assertArrayEquals(written, out.toByteArray());
+
+        // a reset writer can be reused
+        writer.reset();
+        writer.write(families);
+        Assert.assertArrayEquals(written, writer.toByteArray());
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        List<MetricFamily> families = List.of(
+                new MetricFamily.Builder().setName("requests_total").setType(MetricType.COUNTER)
+                        .setHelp("Requests\\responses\nhandled \"so far\" \u00fc")
+                        .addMetric(new Counter.Builder().setName("requests_total")
+                                .addLabel("path", "C:\\temp\n\"quoted\" \uD83D\uDE00").setValue(12).build())
+                        .build(),
+                new MetricFamily.Builder().setName("temperature").setType(MetricType.GAUGE)
+                        .addMetric(new Gauge.Builder().setName("temperature").setValue(Double.NaN).build())
+                        .build(),
+                new MetricFamily.Builder().setName("rpc").setType(MetricType.SUMMARY)
+                        .addMetric(new Summary.Builder().setName("rpc").addLabel("service", "a")
+                                .addQuantile(0.5, 0.25).addQuantile(0.99, 2).setSampleCount(-3)
+                                .setSampleSum(Double.NEGATIVE_INFINITY).build())
+                        .build(),
+                new MetricFamily.Builder().setName("latency").setType(MetricType.HISTOGRAM).setHelp("")
+                        .addMetric(new Histogram.Builder().setName("latency")
+                                .addBucket(0.1, 1).addBucket(Double.POSITIVE_INFINITY, 1234567890123L)
+                                .setSampleCount(1234567890123L).setSampleSum(7.5).build())
+                        .build());
+
+        TextPrometheusMetricsWriter writer = new TextPrometheusMetricsWriter();
+        writer.write(families);
+        Assert.assertEquals("""
+                # HELP requests_total Requests\\\\responses\\nhandled "so far" \u00fc
+                # TYPE requests_total counter
+                requests_total{path="C:\\\\temp\\n\\"quoted\\" \uD83D\uDE00"} 12
+                # TYPE temperature gauge
+                temperature NaN
+                # TYPE rpc summary
+                rpc{service="a",quantile="0.5"} 0.25
+                rpc{service="a",quantile="0.99"} 2
+                rpc_sum{service="a"} -Inf
+                rpc_count{service="a"} -3
+                # HELP latency\s
+                # TYPE latency histogram
+                latency_bucket{le="0.1"} 1
+                latency_bucket{le="+Inf"} 1234567890123
+                latency_sum 7.5
+                latency_count 1234567890123
+                """, new String(writer.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals(MetricFamilies.describe(families),
+                MetricFamilies.describe(MetricFamilies.parseText(writer.toByteArray())));
+    }
+}
@@ -17,29 +17,57 @@
 
 package org.hawkular.agent.prometheus;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
+import com.github.epserv.prometheus.FamilyFilter;
+import com.github.epserv.prometheus.ProcessorOptions;
 import com.github.epserv.prometheus.PrometheusDataFormat;
 import com.github.epserv.prometheus.PrometheusScraper;
+import com.github.epserv.prometheus.RelabelRule;
+import com.github.epserv.prometheus.Relabeling;
+import com.github.epserv.prometheus.MutableSampleLabels;
+import com.github.epserv.prometheus.SampleLabels;
+import com.github.epserv.prometheus.SampleVisitor;
+import com.github.epserv.prometheus.ScrapeArena;
+import com.github.epserv.prometheus.ScrapeLimitExceededException;
+import com.github.epserv.prometheus.ScrapeLimits;
+import com.sun.management.ThreadMXBean;
 import org.jboss.logging.Logger.Level;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
+import com.github.epserv.prometheus.text.ParallelTextPrometheusMetricsProcessor;
 import com.github.epserv.prometheus.text.TextPrometheusMetricDataParser;
 import com.github.epserv.prometheus.text.TextPrometheusMetricsProcessor;
 import com.github.epserv.prometheus.types.Counter;
 import com.github.epserv.prometheus.types.Gauge;
 import com.github.epserv.prometheus.types.Histogram;
+import com.github.epserv.prometheus.types.Metric;
 import com.github.epserv.prometheus.types.MetricFamily;
 import com.github.epserv.prometheus.types.MetricType;
 import com.github.epserv.prometheus.types.Summary;
+import com.github.epserv.prometheus.walkers.CollectorPrometheusMetricsWalker;
 import com.github.epserv.prometheus.walkers.LoggingPrometheusMetricsWalker;
 import com.github.epserv.prometheus.walkers.PrometheusMetricsWalker;
+import com.github.epserv.prometheus.walkers.StreamingWalkingSampleVisitor;
 
 public class TextPrometheusParserTest {
 
@@ -205,6 +233,615 @@ public class TextPrometheusParserTest {
         Assert.assertEquals(0, counter.getLabels().size());
     }
 
+    @Test
+    public void testLinesSpanningBufferBoundaries() throws Exception {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP big_gauge A gauge with \\backslashes\\ in its help\r\n");
+        text.append("# TYPE big_gauge gauge\r\n");
+        for (int i = 0; i < 20000; i++) {
+            text.append("big_gauge{id=\"").append(i).append("\",escaped=\"a\\\"b\\\\c\\nd\"} ").append(i).append("\r\n");
+        }
+        String longValue = "x".repeat(200 * 1024);
+        text.append("big_gauge{id=\"long\",escaped=\"").append(longValue).append("\"} 1.5 1395066363000");
+
+        List<MetricFamily> metricFamilies = new ArrayList<>();
+        TextPrometheusMetricDataParser parser = new TextPrometheusMetricDataParser(
+                new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8)));
+        for (MetricFamily family = parser.parse(); family != null; family = parser.parse()) {
+            metricFamilies.add(family);
+        }
+
+        Assert.assertEquals(1, metricFamilies.size());
+        MetricFamily family = metricFamilies.get(0);
+        Assert.assertEquals("A gauge with \\backslashes\\ in its help", family.getHelp());
+        Assert.assertEquals(20001, family.getMetrics().size());
+
+        Gauge gauge = (Gauge) family.getMetrics().get(12345);
+        Assert.assertEquals("12345", gauge.getLabels().get("id"));
+        Assert.assertEquals("a\"b\\c\nd", gauge.getLabels().get("escaped"));
+        Assert.assertEquals(12345, gauge.getValue(), 0.1);
+
+        gauge = (Gauge) family.getMetrics().get(20000);
+        Assert.assertEquals(longValue, gauge.getLabels().get("escaped"));
+        Assert.assertEquals(1.5, gauge.getValue(), 0.01);
+    }
+
+    @Test
+    public void testVisitSamples() throws Exception {
+        List<String> visited = new ArrayList<>();
+        SampleVisitor visitor = new SampleVisitor() {
+            @Override
+            public void onStart() {
+                visited.add("start");
+            }
+
+            @Override
+            public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+                visited.add(name + " " + type + " " + help);
+            }
+
+            @Override
+            public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                visited.add(name + labels.toString() + " " + value + " " + timestamp);
+            }
+
+            @Override
+            public void onFinish() {
+                visited.add("finish");
+            }
+        };
+
+        String text = "# TYPE http_request_duration_seconds histogram\n"
+                + "http_request_duration_seconds_bucket{le=\"0.05\",path=\"/a\"} 24054 1395066363000\n"
+                + "http_request_duration_seconds_bucket{le=\"+Inf\",path=\"/a\"} 144320 1395066363000\n"
+                + "http_request_duration_seconds_sum{path=\"/a\"} 53423\n"
+                + "http_request_duration_seconds_count{path=\"/a\"} 144320\n";
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)))
+                .visit(visitor);
+
+        Assert.assertEquals(List.of(
+                "start",
+                "http_request_duration_seconds HISTOGRAM ",
+                "http_request_duration_seconds_bucket{le=0.05,path=/a} 24054.0 1395066363000",
+                "http_request_duration_seconds_bucket{le=+Inf,path=/a} 144320.0 1395066363000",
+                "http_request_duration_seconds_sum{path=/a} 53423.0 " + SampleVisitor.NO_TIMESTAMP,
+                "http_request_duration_seconds_count{path=/a} 144320.0 " + SampleVisitor.NO_TIMESTAMP,
+                "finish"), visited);
+    }
+
+    @Test
+    public void testFailingVisitorFailsTheParse() throws Exception {
+        byte[] data = readParallelTestData();
+        AtomicInteger samples = new AtomicInteger();
+        SampleVisitor visitor = new SampleVisitor() {
+            @Override
+            public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+            }
+
+            @Override
+            public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                samples.incrementAndGet();
+                throw new IllegalStateException("visitor failed");
+            }
+        };
+        try {
+            new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data)).visit(visitor);
+            Assert.fail("The failure of the visitor should not be taken for a malformed line");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("visitor failed", e.getMessage());
+        }
+        Assert.assertEquals(1, samples.get());
+
+        // a failing walker aborts the walk instead of being handed the rest of the families
+        List<String> walked = new ArrayList<>();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(walked) {
+            @Override
+            public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge gauge, int index) {
+                throw new IllegalStateException("walker failed");
+            }
+        }).walk();
+        Assert.assertFalse(walked.stream().anyMatch(line -> line.contains("go_memstats_alloc_bytes_total")));
+        Assert.assertTrue(walked.get(walked.size() - 1).startsWith("finish "));
+    }
+
+    private byte[] readParallelTestData() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (String fileName : List.of("prometheus.txt", "prometheus-summary.txt", "prometheus-histogram.txt",
+                "prometheus-three-counters.txt", "prometheus.txt")) {
+            try (InputStream testData = getClass().getClassLoader().getResourceAsStream(fileName)) {
+                text.append(new String(Objects.requireNonNull(testData).readAllBytes(), StandardCharsets.UTF_8));
+            }
+            text.append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testParallelProcessor() throws Exception {
+        byte[] data = readParallelTestData();
+
+        List<String> sequential = new ArrayList<>();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(sequential)).walk();
+        Assert.assertTrue(sequential.get(sequential.size() - 1).startsWith("finish 149 "));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] { 1, 100, 1000, ParallelTextPrometheusMetricsProcessor.DEFAULT_CHUNK_SIZE }) {
+                List<String> parallel = new ArrayList<>();
+                new ParallelTextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(parallel),
+                        pool, chunkSize).walk();
+                Assert.assertEquals("chunk size " + chunkSize, sequential, parallel);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelProcessorOptions() throws Exception {
+        byte[] data = readParallelTestData();
+        ProcessorOptions options = new ProcessorOptions.Builder()
+                .setFamilyFilter(new FamilyFilter.Builder().includePrefix("http_").includePrefix("prometheus_").build())
+                .setRelabeling(new Relabeling.Builder().addRule(new RelabelRule.Builder()
+                        .setAction(RelabelRule.Action.DROP).setSourceLabels("handler").setRegex("prometheus")
+                        .build()).build())
+                .build();
+        List<String> sequential = new ArrayList<>();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(sequential), options)
+                .walk();
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] { 100, ParallelTextPrometheusMetricsProcessor.DEFAULT_CHUNK_SIZE }) {
+                List<String> parallel = new ArrayList<>();
+                new ParallelTextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(parallel),
+                        options, pool, chunkSize).walk();
+                Assert.assertEquals("chunk size " + chunkSize, sequential, parallel);
+
+                // the sample limit applies to all chunks together, the other limits to every chunk
+                for (ScrapeLimits limits : List.of(new ScrapeLimits.Builder().setSampleLimit(500).build(),
+                        new ScrapeLimits.Builder().setLabelLimit(1).build(),
+                        new ScrapeLimits.Builder().setBodySizeLimit(data.length - 1).build())) {
+                    List<String> walked = new ArrayList<>();
+                    try {
+                        new ParallelTextPrometheusMetricsProcessor(ByteBuffer.wrap(data), new RecordingWalker(walked),
+                                new ProcessorOptions.Builder().setLimits(limits).build(), pool, chunkSize).walk();
+                        Assert.fail(limits + " were not enforced with chunk size " + chunkSize);
+                    } catch (UncheckedIOException e) {
+                        Assert.assertTrue(e.getCause() instanceof ScrapeLimitExceededException);
+                    }
+                    Assert.assertFalse(walked.get(walked.size() - 1).startsWith("finish"));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWalkStreaming() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (String fileName : List.of("prometheus.txt", "prometheus-summary.txt", "prometheus-histogram.txt")) {
+            try (InputStream testData = getClass().getClassLoader().getResourceAsStream(fileName)) {
+                text.append(new String(Objects.requireNonNull(testData).readAllBytes(), StandardCharsets.UTF_8));
+            }
+            text.append('\n');
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        List<String> walked = new ArrayList<>();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(walked)).walk();
+        List<String> streamed = new ArrayList<>();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), new RecordingWalker(streamed)).walkStreaming();
+        Assert.assertEquals(walked, streamed);
+
+        // metrics are walked as soon as they are complete, not when the family is complete
+        streamed.clear();
+        StreamingWalkingSampleVisitor visitor = new StreamingWalkingSampleVisitor(new RecordingWalker(streamed));
+        MutableSampleLabels labels = new MutableSampleLabels();
+        visitor.onStart();
+        visitor.onFamily("requests", MetricType.COUNTER, null);
+        labels.add("path", "/a");
+        visitor.onSample("requests", labels, 1, SampleVisitor.NO_TIMESTAMP);
+        Assert.assertEquals(List.of("start", "0. requests COUNTER null", "0. {path=/a} 1.0"), streamed);
+
+        streamed.clear();
+        visitor.onFamily("latency", MetricType.SUMMARY, null);
+        labels.add("quantile", "0.5");
+        visitor.onSample("latency", labels, 0.25, SampleVisitor.NO_TIMESTAMP);
+        labels.truncate(1);
+        visitor.onSample("latency_sum", labels, 10, SampleVisitor.NO_TIMESTAMP);
+        visitor.onSample("latency_count", labels, 40, SampleVisitor.NO_TIMESTAMP);
+        Assert.assertEquals(List.of("1. latency SUMMARY null"), streamed);
+        labels.clear();
+        labels.add("path", "/b");
+        visitor.onSample("latency_count", labels, 1, SampleVisitor.NO_TIMESTAMP);
+        Assert.assertEquals(List.of("1. latency SUMMARY null", "0. {path=/a} 40/10.0 [0.5:0.25]"), streamed);
+        visitor.onFinish();
+        Assert.assertEquals("finish 2 3", streamed.get(streamed.size() - 1));
+    }
+
+    @Test
+    public void testScrapeFile() throws Exception {
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        List<MetricFamily> metricFamilies = new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT)
+                .scrape();
+        Assert.assertEquals(72, metricFamilies.size());
+    }
+
+    @Test
+    public void testScrapeLargeFileWithBoundedAllocation() throws Exception {
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        int samples = 200_000;
+        Path file = Files.createTempFile("prometheus-large", ".txt");
+        try {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                writer.write("# HELP node_textfile_big A large textfile collector dump\n");
+                writer.write("# TYPE node_textfile_big gauge\n");
+                for (int i = 0; i < samples; i++) {
+                    writer.write("node_textfile_big{instance=\"host-" + i + ".example.com:9100\",job=\"node\"} " + i
+                            + ".5 1395066363000\n");
+                }
+            }
+            long fileSize = Files.size(file);
+
+            long[] count = new long[1];
+            double[] sum = new double[1];
+            SampleVisitor visitor = new SampleVisitor() {
+                @Override
+                public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+                }
+
+                @Override
+                public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                    count[0]++;
+                    sum[0] += value;
+                }
+            };
+            PrometheusScraper scraper = new PrometheusScraper(file.toFile(), PrometheusDataFormat.TEXT);
+
+            scraper.scrape(visitor); // warm up
+            count[0] = 0;
+            sum[0] = 0;
+            long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+            scraper.scrape(visitor);
+            long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+            Assert.assertEquals(samples, count[0]);
+            Assert.assertEquals((double) samples * samples / 2, sum[0], 0.0);
+            Assert.assertTrue("Allocated " + allocated + " bytes to scrape " + fileSize + " bytes",
+                    allocated < fileSize / 10);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testScrapeMappedFileReusesArena() throws Exception {
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT);
+        int[] samples = new int[1];
+        SampleVisitor visitor = new SampleVisitor() {
+            @Override
+            public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+            }
+
+            @Override
+            public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                samples[0]++;
+            }
+        };
+        scraper.scrape(visitor); // warm up
+
+        int scrapes = 20;
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < scrapes; i++) {
+            scraper.scrape(visitor);
+        }
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        // neither a new parser nor its 64 KB stream buffer is allocated for every scrape of the mapped file
+        Assert.assertTrue(samples[0] > 0);
+        Assert.assertTrue("Allocated " + allocated / scrapes + " bytes per scrape", allocated / scrapes < 16 * 1024);
+    }
+
+    @Test
+    public void testArenaScrapesAreNearlyGarbageFree() throws Exception {
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        byte[] data;
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus.txt")) {
+            data = Objects.requireNonNull(testData).readAllBytes();
+        }
+        int[] counts = new int[2];
+        SampleVisitor visitor = new SampleVisitor() {
+            @Override
+            public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+                counts[0]++;
+            }
+
+            @Override
+            public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                counts[1]++;
+            }
+        };
+
+        int scrapes = 100;
+        ScrapeArena arena = new ScrapeArena();
+        ProcessorOptions options = new ProcessorOptions.Builder().setArena(arena).build();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), null, options).visit(visitor); // warm up
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data)).visit(visitor);
+        int families = counts[0] / 2;
+        int samples = counts[1] / 2;
+
+        counts[0] = 0;
+        counts[1] = 0;
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < scrapes; i++) {
+            new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data), null, options).visit(visitor);
+        }
+        long allocatedWithArena = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        Assert.assertEquals(scrapes * families, counts[0]);
+        Assert.assertEquals(scrapes * samples, counts[1]);
+
+        allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < scrapes; i++) {
+            new TextPrometheusMetricsProcessor(new ByteArrayInputStream(data)).visit(visitor);
+        }
+        long allocatedWithoutArena = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        Assert.assertTrue("Allocated " + allocatedWithArena / scrapes + " bytes per scrape with an arena",
+                allocatedWithArena / scrapes < 1024);
+        Assert.assertTrue("Allocated " + allocatedWithArena + " bytes with an arena but " + allocatedWithoutArena
+                + " bytes without", allocatedWithArena * 20 < allocatedWithoutArena);
+    }
+
+    @Test
+    public void testArenaDoesNotKeepScrapedData() throws Exception {
+        ScrapeArena arena = new ScrapeArena();
+        ProcessorOptions options = new ProcessorOptions.Builder().setArena(arena).build();
+        InputStream stream = new ByteArrayInputStream(readParallelTestData());
+        WeakReference<InputStream> streamReference = new WeakReference<>(stream);
+        List<String> walked = new ArrayList<>();
+        new TextPrometheusMetricsProcessor(stream, new RecordingWalker(walked), options).walkStreaming();
+        Assert.assertTrue(walked.get(walked.size() - 1).startsWith("finish 149 "));
+
+        stream = null;
+        for (int i = 0; i < 10 && streamReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull("The parser kept in the arena still references the last stream", streamReference.get());
+        Assert.assertNotNull(arena.get(TextPrometheusMetricDataParser.class, () -> null));
+    }
+
+    private static final String LIMITS_DATA = """
+            # TYPE requests counter
+            requests{method="get",code="200"} 10
+            requests{method="get",code="500"} 2
+            requests{method="post",code="200"} 5
+            # TYPE temperature gauge
+            temperature{room="kitchen"} 21.5
+            """;
+
+    private static int countSamples(@NotNull ScrapeLimits limits) throws Exception {
+        AtomicInteger samples = new AtomicInteger();
+        new TextPrometheusMetricsProcessor(new ByteArrayInputStream(LIMITS_DATA.getBytes(StandardCharsets.UTF_8)),
+                null, new ProcessorOptions.Builder().setLimits(limits).build()).visit(new SampleVisitor() {
+            @Override
+            public void onFamily(@NotNull CharSequence name, @NotNull MetricType type, CharSequence help) {
+            }
+
+            @Override
+            public void onSample(@NotNull CharSequence name, @NotNull SampleLabels labels, double value, long timestamp) {
+                samples.incrementAndGet();
+            }
+        });
+        return samples.get();
+    }
+
+    @Test
+    public void testLimitsNotExceeded() throws Exception {
+        ScrapeLimits limits = new ScrapeLimits.Builder()
+                .setSampleLimit(4)
+                .setLabelLimit(2)
+                .setLabelValueLengthLimit(7)
+                .setBodySizeLimit(LIMITS_DATA.length())
+                .build();
+        Assert.assertEquals(4, countSamples(limits));
+        Assert.assertEquals(4, countSamples(ScrapeLimits.NONE));
+    }
+
+    @Test
+    public void testSampleLimit() throws Exception {
+        try {
+            countSamples(new ScrapeLimits.Builder().setSampleLimit(3).build());
+            Assert.fail("Sample limit was not enforced");
+        } catch (ScrapeLimitExceededException e) {
+            Assert.assertEquals("Scrape exceeds the sample limit of 3", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLabelLimits() throws Exception {
+        try {
+            countSamples(new ScrapeLimits.Builder().setLabelLimit(1).build());
+            Assert.fail("Label limit was not enforced");
+        } catch (ScrapeLimitExceededException e) {
+            Assert.assertEquals("Sample requests exceeds the label limit of 1", e.getMessage());
+        }
+        try {
+            countSamples(new ScrapeLimits.Builder().setLabelValueLengthLimit(6).build());
+            Assert.fail("Label value length limit was not enforced");
+        } catch (ScrapeLimitExceededException e) {
+            Assert.assertEquals("Value of label room of sample temperature exceeds the label value length limit of 6",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBodySizeLimit() throws Exception {
+        ScrapeLimits limits = new ScrapeLimits.Builder().setBodySizeLimit(LIMITS_DATA.length() - 1).build();
+        try {
+            countSamples(limits);
+            Assert.fail("Body size limit was not enforced");
+        } catch (ScrapeLimitExceededException e) {
+            Assert.assertEquals("Scrape exceeds the body size limit of " + (LIMITS_DATA.length() - 1) + " bytes",
+                    e.getMessage());
+        }
+
+        // data that is already in memory is checked before any of it is parsed
+        ByteBuffer data = ByteBuffer.wrap(LIMITS_DATA.getBytes(StandardCharsets.UTF_8));
+        List<String> walked = new ArrayList<>();
+        try {
+            new TextPrometheusMetricsProcessor(data, new RecordingWalker(walked),
+                    new ProcessorOptions.Builder().setLimits(limits).build()).walk();
+            Assert.fail("Body size limit was not enforced");
+        } catch (UncheckedIOException e) {
+            Assert.assertTrue(e.getCause() instanceof ScrapeLimitExceededException);
+        }
+        // the walker was not told to finish, as the data is incomplete
+        Assert.assertEquals(List.of("start"), walked);
+    }
+
+    @Test
+    public void testScraperLimits() throws Exception {
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(testDataUrl, PrometheusDataFormat.TEXT);
+        scraper.setLimits(new ScrapeLimits.Builder().setSampleLimit(100).build());
+        try {
+            scraper.scrape();
+            Assert.fail("Sample limit was not enforced");
+        } catch (ScrapeLimitExceededException e) {
+            Assert.assertEquals("Scrape exceeds the sample limit of 100", e.getMessage());
+        }
+
+        scraper.setLimits(ScrapeLimits.NONE);
+        Assert.assertEquals(72, scraper.scrape().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        new ScrapeLimits.Builder().setSampleLimit(-1).build();
+    }
+
+    @Test
+    public void testFamilyFilter() throws Exception {
+        FamilyFilter filter = new FamilyFilter.Builder()
+                .includePrefix("go_")
+                .includePattern(Pattern.compile("process_.*_bytes"))
+                .include("http_requests_total")
+                .exclude("go_goroutines")
+                .build();
+        Assert.assertTrue(filter.accept("go_gc_duration_seconds"));
+        Assert.assertTrue(filter.accept("process_resident_memory_bytes"));
+        Assert.assertFalse(filter.accept("process_start_time_seconds"));
+        Assert.assertFalse(filter.accept("go_goroutines"));
+        Assert.assertTrue(FamilyFilter.ALL.acceptsAll());
+        Assert.assertFalse(filter.acceptsAll());
+
+        List<MetricFamily> expected = new ArrayList<>();
+        for (MetricFamily family : parseTestFile("prometheus.txt")) {
+            if (filter.accept(family.getName())) {
+                expected.add(family);
+            }
+        }
+        Assert.assertTrue(expected.size() > 1);
+
+        CollectorPrometheusMetricsWalker collector = new CollectorPrometheusMetricsWalker();
+        try (InputStream testData = getClass().getClassLoader().getResourceAsStream("prometheus.txt")) {
+            new TextPrometheusMetricsProcessor(Objects.requireNonNull(testData), collector,
+                    new ProcessorOptions.Builder().setFamilyFilter(filter).build()).walk();
+        }
+        Assert.assertEquals(describe(expected), describe(Objects.requireNonNull(collector.getAllMetricFamilies())));
+
+        // the samples of skipped families do not count against the sample limit
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(testDataUrl, PrometheusDataFormat.TEXT);
+        scraper.setFamilyFilter(filter);
+        int samples = 0;
+        for (MetricFamily family : expected) {
+            for (Metric metric : family.getMetrics()) {
+                samples += switch (family.getType()) {
+                    case COUNTER, GAUGE -> 1;
+                    case SUMMARY -> ((Summary) metric).getQuantiles().size() + 2;
+                    case HISTOGRAM -> ((Histogram) metric).getBuckets().size() + 2;
+                };
+            }
+        }
+        scraper.setLimits(new ScrapeLimits.Builder().setSampleLimit(samples).build());
+        Assert.assertEquals(describe(expected), describe(scraper.scrape()));
+    }
+
+    private static List<String> describe(List<MetricFamily> families) {
+        List<String> described = new ArrayList<>();
+        RecordingWalker walker = new RecordingWalker(described);
+        for (int i = 0; i < families.size(); i++) {
+            MetricFamily family = families.get(i);
+            walker.walkMetricFamily(family, i);
+            for (Metric metric : family.getMetrics()) {
+                switch (family.getType()) {
+                    case COUNTER -> walker.walkCounterMetric(family, (Counter) metric, 0);
+                    case GAUGE -> walker.walkGaugeMetric(family, (Gauge) metric, 0);
+                    case SUMMARY -> walker.walkSummaryMetric(family, (Summary) metric, 0);
+                    case HISTOGRAM -> walker.walkHistogramMetric(family, (Histogram) metric, 0);
+                }
+            }
+        }
+        return described;
+    }
+
+    private static class RecordingWalker implements PrometheusMetricsWalker {
+        private final List<String> walked;
+
+        RecordingWalker(List<String> walked) {
+            this.walked = walked;
+        }
+
+        @Override
+        public void walkStart() {
+            walked.add("start");
+        }
+
+        @Override
+        public void walkFinish(int familiesProcessed, int metricsProcessed) {
+            walked.add("finish " + familiesProcessed + " " + metricsProcessed);
+        }
+
+        @Override
+        public void walkMetricFamily(@NotNull MetricFamily family, int index) {
+            walked.add(index + ". " + family.getName() + " " + family.getType() + " " + family.getHelp());
+        }
+
+        @Override
+        public void walkCounterMetric(@NotNull MetricFamily family, @NotNull Counter counter, int index) {
+            walked.add(index + ". " + buildLabelListString(counter.getLabels(), "{", "}") + " " + counter.getValue());
+        }
+
+        @Override
+        public void walkGaugeMetric(@NotNull MetricFamily family, @NotNull Gauge gauge, int index) {
+            walked.add(index + ". " + buildLabelListString(gauge.getLabels(), "{", "}") + " " + gauge.getValue());
+        }
+
+        @Override
+        public void walkSummaryMetric(@NotNull MetricFamily family, @NotNull Summary summary, int index) {
+            walked.add(index + ". " + buildLabelListString(summary.getLabels(), "{", "}") + " "
+                    + summary.getSampleCount() + "/" + summary.getSampleSum() + " " + summary.getQuantiles());
+        }
+
+        @Override
+        public void walkHistogramMetric(@NotNull MetricFamily family, @NotNull Histogram histogram, int index) {
+            walked.add(index + ". " + buildLabelListString(histogram.getLabels(), "{", "}") + " "
+                    + histogram.getSampleCount() + "/" + histogram.getSampleSum() + " " + histogram.getBuckets());
+        }
+    }
+
     @Test
     public void testGetMetricsFromStream() throws Exception {
 
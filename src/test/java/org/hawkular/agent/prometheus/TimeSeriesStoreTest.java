@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.File;
+import java.net.URL;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import com.github.epserv.prometheus.LabelMatcher;
+import com.github.epserv.prometheus.PrometheusDataFormat;
+import com.github.epserv.prometheus.PrometheusScraper;
+import com.github.epserv.prometheus.storage.Sample;
+import com.github.epserv.prometheus.storage.TimeSeries;
+import com.github.epserv.prometheus.storage.TimeSeriesStore;
+import com.github.epserv.prometheus.walkers.StoringPrometheusMetricsWalker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeSeriesStoreTest {
+
+    @Test
+    public void testRoundTrip() {
+        TimeSeriesStore store = new TimeSeriesStore.Builder().setChunkSamples(50).build();
+        TimeSeries series = store.getOrCreateSeries("test", Map.of("job", "a"));
+        Random random = new Random(42);
+        List<Sample> expected = new ArrayList<>();
+        long timestamp = 1_600_000_000_000L;
+        double[] specialValues = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0, 0,
+                Double.MIN_VALUE, Double.MAX_VALUE};
+        for (int i = 0; i < 1000; i++) {
+            // regular, jittered and far apart timestamps
+            timestamp += switch (i % 4) {
+                case 0, 1 -> 15_000;
+                case 2 -> 15_000 + random.nextInt(2000) - 1000;
+                default -> 1 + random.nextInt(1 << 24) * (i % 3 == 0 ? 1000L : 1);
+            };
+            double value = switch (i % 5) {
+                case 0 -> i;
+                case 1 -> random.nextDouble();
+                case 2 -> specialValues[random.nextInt(specialValues.length)];
+                default -> i / 10;
+            };
+            Assert.assertTrue(series.append(timestamp, value));
+            expected.add(new Sample(timestamp, value));
+        }
+
+        Assert.assertEquals(expected, series.getSamples(Long.MIN_VALUE, Long.MAX_VALUE));
+        Assert.assertEquals(1000, store.getSampleCount());
+        long from = expected.get(120).timestamp();
+        long to = expected.get(730).timestamp();
+        Assert.assertEquals(expected.subList(120, 731), series.getSamples(from, to));
+    }
+
+    @Test
+    public void testCompression() {
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        long timestamp = 1_600_000_000_000L;
+        double requests = 0;
+        for (int i = 0; i < 720; i++, timestamp += 15_000) {
+            requests += i % 7;
+            store.append("http_requests_total", Map.of("code", "200"), timestamp, requests);
+            store.append("up", Map.of(), timestamp, 1);
+        }
+        Assert.assertEquals(1440, store.getSampleCount());
+        double bytesPerSample = (double) store.getChunkBytes() / store.getSampleCount();
+        Assert.assertTrue("Bytes per sample: " + bytesPerSample, bytesPerSample < 1.5);
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        Assert.assertTrue(store.append("up", Map.of("job", "a"), 2000, 1));
+        Assert.assertFalse(store.append("up", Map.of("job", "a"), 2000, 1));
+        Assert.assertFalse(store.append("up", Map.of("job", "a"), 1000, 1));
+        Assert.assertTrue(store.append("up", Map.of("job", "b"), 1000, 1));
+        Assert.assertEquals(2, store.getSeriesCount());
+    }
+
+    @Test
+    public void testRetention() {
+        TimeSeriesStore store = new TimeSeriesStore.Builder().setRetention(Duration.ofMinutes(10))
+                .setChunkSamples(10).build();
+        long start = 1_600_000_000_000L;
+        for (int i = 0; i <= 120; i++) {
+            long timestamp = start + i * 15_000L;
+            store.append("up", Map.of("job", "a"), timestamp, 1);
+            if (i < 20) {
+                store.append("up", Map.of("job", "gone"), timestamp, 1);
+            }
+            store.applyRetention();
+        }
+        Assert.assertEquals(1, store.getSeriesCount());
+        TimeSeries series = store.select(LabelMatcher.equal("job", "a")).get(0);
+        List<Sample> samples = series.getSamples(Long.MIN_VALUE, Long.MAX_VALUE);
+        long oldest = samples.get(0).timestamp();
+        // whole chunks (of 2.5 minutes here) are dropped, in steps of a sixteenth of the retention
+        Assert.assertTrue(oldest >= store.getMaxTime() - Duration.ofMinutes(14).toMillis());
+        Assert.assertTrue(oldest <= store.getMaxTime() - Duration.ofMinutes(10).toMillis());
+        Assert.assertEquals(store.getMaxTime(), samples.get(samples.size() - 1).timestamp());
+
+        // a series removed by retention comes back with its next sample
+        Assert.assertTrue(store.append("up", Map.of("job", "gone"), store.getMaxTime(), 1));
+        Assert.assertEquals(2, store.getSeriesCount());
+    }
+
+    @Test
+    public void testStoringWalker() throws Exception {
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT);
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        for (int i = 0; i < 3; i++) {
+            Instant now = Instant.ofEpochSecond(1_600_000_000L + i * 15L);
+            StoringPrometheusMetricsWalker walker = new StoringPrometheusMetricsWalker(store,
+                    Clock.fixed(now, ZoneOffset.UTC));
+            scraper.scrape(walker);
+            Assert.assertEquals(0, walker.getRejectedSamples());
+        }
+
+        List<TimeSeries> quantiles = store.select(LabelMatcher.equal("__name__", "http_request_duration_microseconds"),
+                LabelMatcher.equal("handler", "alerts"));
+        Assert.assertEquals(3, quantiles.size());
+        Assert.assertEquals(3, quantiles.get(0).getSamples(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        Assert.assertEquals(1, store.select(LabelMatcher.equal("__name__", "http_request_duration_microseconds_count"),
+                LabelMatcher.equal("handler", "alerts")).size());
+        Assert.assertEquals(store.getSeriesCount() * 3L, store.getSampleCount());
+    }
+
+    @Test
+    public void testReusedStoringWalker() throws Exception {
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT);
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        Instant start = Instant.ofEpochSecond(1_600_000_000L);
+        StoringPrometheusMetricsWalker walker = new StoringPrometheusMetricsWalker(store, new Clock() {
+            private int walks;
+
+            @Override
+            public ZoneId getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Instant instant() {
+                return start.plusSeconds(15L * walks++);
+            }
+        });
+        scraper.scrape(walker);
+        int seriesCount = store.getSeriesCount();
+        scraper.scrape(walker);
+        Assert.assertEquals(0, walker.getRejectedSamples());
+        Assert.assertEquals(seriesCount, store.getSeriesCount());
+        Assert.assertEquals(seriesCount * 2L, store.getSampleCount());
+
+        // the series the walker remembers are registered again after they were removed
+        store.truncate(Long.MAX_VALUE);
+        Assert.assertEquals(0, store.getSeriesCount());
+        scraper.scrape(walker);
+        Assert.assertEquals(0, walker.getRejectedSamples());
+        Assert.assertEquals(seriesCount, store.getSeriesCount());
+        Assert.assertEquals(seriesCount, store.getSampleCount());
+    }
+}
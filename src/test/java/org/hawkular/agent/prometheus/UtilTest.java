@@ -16,6 +16,10 @@
  */
 package org.hawkular.agent.prometheus;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
 import com.github.epserv.prometheus.Util;
 import org.junit.Assert;
 import org.junit.Test;
@@ -27,6 +31,82 @@ public class UtilTest {
         Assert.assertEquals("-Inf", Util.convertDoubleToString(Double.NEGATIVE_INFINITY));
         Assert.assertEquals("+Inf", Util.convertDoubleToString(Double.POSITIVE_INFINITY));
         Assert.assertEquals("NaN", Util.convertDoubleToString(Double.NaN));
+
+        Assert.assertEquals("0", Util.convertDoubleToString(0.0));
+        Assert.assertEquals("-0", Util.convertDoubleToString(-0.0));
+        Assert.assertEquals("1", Util.convertDoubleToString(1.0));
+        Assert.assertEquals("-1.5", Util.convertDoubleToString(-1.5));
+        Assert.assertEquals("0.05", Util.convertDoubleToString(0.05));
+        Assert.assertEquals("144320", Util.convertDoubleToString(144320));
+        Assert.assertEquals("100000", Util.convertDoubleToString(1e5));
+        Assert.assertEquals("1e+06", Util.convertDoubleToString(1e6));
+        Assert.assertEquals("4.14422136e+08", Util.convertDoubleToString(4.14422136e+08));
+        Assert.assertEquals("0.0001", Util.convertDoubleToString(1e-4));
+        Assert.assertEquals("1e-05", Util.convertDoubleToString(1e-5));
+        Assert.assertEquals("1e-09", Util.convertDoubleToString(1e-9));
+        Assert.assertEquals("0.30000000000000004", Util.convertDoubleToString(0.1 + 0.2));
+        Assert.assertEquals("5e-324", Util.convertDoubleToString(Double.MIN_VALUE));
+        Assert.assertEquals("1e-323", Util.convertDoubleToString(2 * Double.MIN_VALUE));
+        Assert.assertEquals("1.7976931348623157e+308", Util.convertDoubleToString(Double.MAX_VALUE));
+        Assert.assertEquals("2.2250738585072014e-308", Util.convertDoubleToString(Double.MIN_NORMAL));
+
+        StringBuilder builder = new StringBuilder("le=");
+        Assert.assertEquals("le=0.25", Util.appendDouble(builder, 0.25).toString());
+
+        byte[] buffer = new byte[Util.MAX_DOUBLE_LENGTH + 1];
+        buffer[0] = ' ';
+        int end = Util.appendDouble(buffer, 1, -Double.MIN_NORMAL);
+        Assert.assertEquals(Util.MAX_DOUBLE_LENGTH + 1, end);
+        Assert.assertEquals(" -2.2250738585072014e-308", new String(buffer, 0, end, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testAppendLong() {
+        byte[] buffer = new byte[Util.MAX_LONG_LENGTH];
+        for (long value : new long[] {0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            int end = Util.appendLong(buffer, 0, value);
+            Assert.assertEquals(Long.toString(value), new String(buffer, 0, end, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testAppendUtf8() {
+        String text = "a\u00e9\u20ac\ud83d\ude00";
+        byte[] buffer = new byte[text.length() * 3 + 1];
+        buffer[0] = '>';
+        int end = Util.appendUtf8(buffer, 1, text);
+        Assert.assertEquals(">" + text, new String(buffer, 0, end, StandardCharsets.UTF_8));
+
+        // a surrogate pair split by the range cannot be encoded
+        end = Util.appendUtf8(buffer, 0, text, 2, 4);
+        Assert.assertEquals("\u20ac?", new String(buffer, 0, end, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testConvertDoubleToStringRoundTrips() {
+        Random random = new Random(54321);
+        for (int i = 0; i < 100_000; i++) {
+            double value = switch (i % 3) {
+                case 0 -> Double.longBitsToDouble(random.nextLong());
+                case 1 -> random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+                default -> random.nextInt(1_000_000) / 1000.0;
+            };
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            String formatted = Util.convertDoubleToString(value);
+            Assert.assertEquals(formatted, Double.doubleToLongBits(value),
+                    Double.doubleToLongBits(Double.parseDouble(formatted)));
+
+            // never more significant digits than Java's own (round-trip but not always shortest) conversion
+            Assert.assertTrue(formatted, significantDigits(formatted) <= significantDigits(Double.toString(value)));
+        }
+    }
+
+    private static int significantDigits(String formatted) {
+        String mantissa = formatted.split("[eE]")[0].replace("-", "").replace(".", "");
+        mantissa = mantissa.replaceAll("^0+", "").replaceAll("0+$", "");
+        return mantissa.length();
     }
 
     @Test
@@ -34,5 +114,87 @@ public class UtilTest {
         Assert.assertEquals(Double.NEGATIVE_INFINITY, Util.convertStringToDouble("-Inf"), 0.001);
         Assert.assertEquals(Double.POSITIVE_INFINITY, Util.convertStringToDouble("+Inf"), 0.001);
         Assert.assertEquals(Double.NaN, Util.convertStringToDouble("NaN"), 0.001);
+        Assert.assertEquals(Double.NaN, Util.convertStringToDouble("nan"), 0.001);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, Util.convertStringToDouble("+inf"), 0.001);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, Util.convertStringToDouble("Inf"), 0.001);
+
+        try {
+            Util.convertStringToDouble("foo");
+            Assert.fail("Should have thrown exception because the string is not a number");
+        } catch (NumberFormatException expected) {
+        }
+        try {
+            Util.convertStringToDouble("1e");
+            Assert.fail("Should have thrown exception because the exponent is missing");
+        } catch (NumberFormatException expected) {
+        }
+    }
+
+    @Test
+    public void testConvertStringToDoubleIsExact() {
+        String[] values = {
+                "0", "-0", "1", "-1", "0.5", "1.5", "144320", "53423.0", "1.4432E5", "4.14422136e+08",
+                "4.238477484786966e+06", "0.1", "0.2", "0.3", "1e-9", "5e-324", "4.9e-324", "2.2250738585072011e-308",
+                "2.2250738585072014e-308", "1.7976931348623157e308", "1.7976931348623159e308", "1e400", "1e-400",
+                "9007199254740993", "9007199254740992.5", "123456789012345678901234567890", "0.000000000000000000001",
+                "3.141592653589793238462643383279", "7.3177701707893310e+15", "2.470328229206232720882e-324",
+                "1.00000000000000011102230246251565404236316680908203125",
+                "1.00000000000000011102230246251565404236316680908203124", "0x1.8p1", "  42  ", "1.", ".5",
+        };
+        for (String value : values) {
+            Assert.assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)),
+                    Double.doubleToLongBits(Util.convertStringToDouble(value)));
+        }
+
+        Random random = new Random(12345);
+        for (int i = 0; i < 100_000; i++) {
+            double expected = switch (i % 3) {
+                case 0 -> Double.longBitsToDouble(random.nextLong());
+                case 1 -> random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+                default -> random.nextInt(1_000_000) / 1000.0;
+            };
+            if (Double.isNaN(expected)) {
+                continue;
+            }
+            String value = Double.toString(expected);
+            Assert.assertEquals(value, Double.doubleToLongBits(expected),
+                    Double.doubleToLongBits(Util.convertStringToDouble(value)));
+        }
+    }
+
+    @Test
+    public void testConvertRangeToDouble() {
+        Assert.assertEquals(0.25, Util.convertStringToDouble("le=0.25}", 3, 7), 0.0);
+        ByteBuffer bytes = ByteBuffer.wrap("x 1.5e3 123".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertEquals(1500.0, Util.convertBytesToDouble(bytes, 2, 7), 0.0);
+        Assert.assertEquals(Double.NEGATIVE_INFINITY,
+                Util.convertBytesToDouble(ByteBuffer.wrap("-Inf".getBytes(StandardCharsets.US_ASCII)), 0, 4), 0.0);
+    }
+
+    @Test
+    public void testConvertBytesAndStringToDoubleAgree() {
+        Random random = new Random(6789);
+        int count = 4096;
+        String[] values = new String[count];
+        int[] starts = new int[count + 1];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            values[i] = i % 2 == 0 ? Double.toString(random.nextDouble() * 1e6) : Integer.toString(random.nextInt());
+            starts[i] = text.length();
+            text.append(values[i]).append(' ');
+        }
+        starts[count] = text.length();
+        ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.US_ASCII));
+
+        // both overloads run in the same JVM, as they do when text and binary scrapes are mixed
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < count; i++) {
+                double expected = Double.parseDouble(values[i]);
+                Assert.assertEquals(values[i], expected, Util.convertBytesToDouble(bytes, starts[i], starts[i + 1] - 1),
+                        0.0);
+                Assert.assertEquals(values[i], expected, Util.convertStringToDouble(values[i], 0, values[i].length()),
+                        0.0);
+            }
+        }
     }
 }
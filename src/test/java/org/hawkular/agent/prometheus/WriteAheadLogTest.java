@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015-2016 Red Hat, Inc. and/or its affiliates
+ * and other contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hawkular.agent.prometheus;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import com.github.epserv.prometheus.PrometheusDataFormat;
+import com.github.epserv.prometheus.PrometheusScraper;
+import com.github.epserv.prometheus.ScrapeLimits;
+import com.github.epserv.prometheus.storage.TimeSeries;
+import com.github.epserv.prometheus.storage.TimeSeriesStore;
+import com.github.epserv.prometheus.storage.WriteAheadLog;
+import com.github.epserv.prometheus.walkers.StoringPrometheusMetricsWalker;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // all samples of a store, by series
+    private static Map<String, String> dump(TimeSeriesStore store) {
+        Map<String, String> dump = new TreeMap<>();
+        for (TimeSeries series : store.getSeries()) {
+            dump.put(series.toString(), series.getSamples(Long.MIN_VALUE, Long.MAX_VALUE).toString());
+        }
+        return dump;
+    }
+
+    private static long segmentCount(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private void scrape(TimeSeriesStore store, WriteAheadLog wal, int scrapes, long firstSecond) throws Exception {
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT);
+        for (int i = 0; i < scrapes; i++) {
+            Clock clock = Clock.fixed(Instant.ofEpochSecond(firstSecond + i * 15L), ZoneOffset.UTC);
+            scraper.scrape(new StoringPrometheusMetricsWalker(store, clock, wal));
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).setSegmentSize(16 * 1024).build()) {
+            scrape(store, wal, 20, 1_600_000_000L);
+        }
+        Assert.assertTrue(segmentCount(directory) > 2);
+
+        TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            Assert.assertEquals(store.getSampleCount(), wal.replay(replayed));
+            Assert.assertEquals(dump(store), dump(replayed));
+
+            // the replayed store goes on where the previous one stopped
+            scrape(replayed, wal, 1, 1_600_000_000L + 20 * 15L);
+        }
+        TimeSeriesStore twiceReplayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            wal.replay(twiceReplayed);
+        }
+        Assert.assertEquals(dump(replayed), dump(twiceReplayed));
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            scrape(store, wal, 2, 1_600_000_000L);
+        }
+        Path segment = directory.resolve("00000000");
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 5);
+        }
+
+        TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            long samples = wal.replay(replayed);
+            Assert.assertTrue(samples > 0);
+            Assert.assertTrue(samples < store.getSampleCount());
+        }
+        for (TimeSeries series : replayed.getSeries()) {
+            Assert.assertFalse(series.getSamples(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+        }
+    }
+
+    @Test
+    public void testCorruptRecord() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            scrape(new TimeSeriesStore.Builder().build(), wal, 3, 1_600_000_000L);
+        }
+        Path segment = directory.resolve("00000000");
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 100] ^= 1;
+        Files.write(segment, data);
+
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+            wal.replay(replayed);
+            // each scrape is logged as one batch, so replay stops after the first two scrapes
+            Assert.assertEquals(replayed.getSeriesCount() * 2L, replayed.getSampleCount());
+        }
+    }
+
+    @Test
+    public void testTruncate() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).setSegmentSize(16 * 1024).build()) {
+            scrape(store, wal, 10, 1_600_000_000L);
+            long segments = segmentCount(directory);
+            // samples of the first two scrapes are older than the oldest sample kept
+            Assert.assertTrue(wal.truncate(1_600_000_000_000L + 2 * 15_000L) > 0);
+            Assert.assertTrue(segmentCount(directory) < segments);
+        }
+
+        TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            wal.replay(replayed);
+        }
+        for (TimeSeries series : replayed.getSeries()) {
+            long oldest = series.getSamples(Long.MIN_VALUE, Long.MAX_VALUE).get(0).timestamp();
+            Assert.assertTrue(oldest >= 1_600_000_000_000L + 15_000L);
+        }
+        Assert.assertEquals(store.getSeriesCount(), replayed.getSeriesCount());
+    }
+
+    @Test
+    public void testSyncPolicies() throws Exception {
+        for (WriteAheadLog.SyncPolicy policy : WriteAheadLog.SyncPolicy.values()) {
+            Path directory = folder.newFolder(policy.name()).toPath();
+            TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+            try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).setSyncPolicy(policy).build()) {
+                scrape(store, wal, 10, 1_600_000_000L);
+            }
+
+            TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+            try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+                Assert.assertEquals(policy.name(), store.getSampleCount(), wal.replay(replayed));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentCommitsAcrossRotations() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        int threads = 8;
+        int batches = 1000;
+        int batchSize = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).setSegmentSize(256).build()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                TimeSeries[] series = new TimeSeries[batchSize];
+                for (int i = 0; i < batchSize; i++) {
+                    series[i] = store.getOrCreateSeries("thread_" + t, Map.of("series", Integer.toString(i)));
+                }
+                futures.add(executor.submit(() -> {
+                    long[] timestamps = new long[batchSize];
+                    double[] values = new double[batchSize];
+                    for (int b = 0; b < batches; b++) {
+                        Arrays.fill(timestamps, 1_600_000_000_000L + b * 1000L);
+                        Arrays.fill(values, b);
+                        wal.log(series, timestamps, values, batchSize);
+                        // commits of the threads overlap with rotations by the others
+                        wal.commit();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            Assert.assertTrue(wal.getCurrentSegment() > 10);
+        } finally {
+            executor.shutdown();
+        }
+
+        TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            Assert.assertEquals((long) threads * batches * batchSize, wal.replay(replayed));
+        }
+    }
+
+    @Test
+    public void testAbortedWalkIsLogged() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        URL testDataUrl = Objects.requireNonNull(getClass().getClassLoader().getResource("prometheus.txt"));
+        PrometheusScraper scraper = new PrometheusScraper(new File(testDataUrl.toURI()), PrometheusDataFormat.TEXT);
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            StoringPrometheusMetricsWalker walker = new StoringPrometheusMetricsWalker(store,
+                    Clock.fixed(Instant.ofEpochSecond(1_600_000_000L), ZoneOffset.UTC), wal);
+            scraper.setLimits(new ScrapeLimits.Builder().setSampleLimit(100).build());
+            try {
+                scraper.scrape(walker);
+                Assert.fail("Sample limit was not enforced");
+            } catch (Exception e) {
+                // the walk was aborted without finishing, after some samples were stored
+            }
+            Assert.assertTrue(store.getSampleCount() > 0);
+
+            // the next walk logs the samples of the aborted one
+            scraper.setLimits(ScrapeLimits.NONE);
+            scraper.scrape(walker);
+        }
+
+        TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            Assert.assertEquals(store.getSampleCount(), wal.replay(replayed));
+        }
+        Assert.assertEquals(dump(store), dump(replayed));
+    }
+
+    @Test
+    public void testEmptyStoreKeepsSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TimeSeriesStore store = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).setSegmentSize(16 * 1024).build()) {
+            scrape(store, wal, 5, 1_600_000_000L);
+            long segments = segmentCount(directory);
+            Assert.assertTrue(segments > 2);
+
+            // a walk without samples into a store that has none yet must not apply any retention to the log
+            StoringPrometheusMetricsWalker walker = new StoringPrometheusMetricsWalker(
+                    new TimeSeriesStore.Builder().build(), wal);
+            walker.walkStart();
+            walker.walkFinish(0, 0);
+            Assert.assertEquals(segments, segmentCount(directory));
+        }
+
+        TimeSeriesStore replayed = new TimeSeriesStore.Builder().build();
+        try (WriteAheadLog wal = new WriteAheadLog.Builder(directory).build()) {
+            Assert.assertEquals(store.getSampleCount(), wal.replay(replayed));
+        }
+    }
+}